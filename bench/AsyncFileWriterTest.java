@@ -0,0 +1,231 @@
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+
+/**
+ * Run by surefire as a plain test class: a public test* method passes when it returns.
+ * AsyncFileWriter through a channel that fails once asked to, after which every write,
+ * flush and close must fail too.
+ */
+public class AsyncFileWriterTest {
+
+	private static final int MB = 1 << 20;
+
+	// a file channel whose writes throw once failing is set
+	private static final class FailingChannel extends FileChannel {
+		private final FileChannel file;
+		volatile boolean failing;
+
+		FailingChannel(File f) throws IOException {
+			file = FileChannel.open(f.toPath(), StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+		}
+
+		@Override
+		public int write(ByteBuffer src) throws IOException {
+			if (failing) {
+				src.position(src.position() + Math.min(src.remaining(), 4096)); // part of it got out
+				throw new IOException("No space left on device");
+			}
+			return file.write(src);
+		}
+
+		@Override
+		public long write(ByteBuffer[] srcs, int offset, int length) throws IOException {
+			throw new UnsupportedOperationException();
+		}
+
+		@Override
+		public int write(ByteBuffer src, long position) throws IOException {
+			throw new UnsupportedOperationException();
+		}
+
+		@Override
+		public int read(ByteBuffer dst) throws IOException {
+			throw new UnsupportedOperationException();
+		}
+
+		@Override
+		public long read(ByteBuffer[] dsts, int offset, int length) throws IOException {
+			throw new UnsupportedOperationException();
+		}
+
+		@Override
+		public int read(ByteBuffer dst, long position) throws IOException {
+			throw new UnsupportedOperationException();
+		}
+
+		@Override
+		public long position() throws IOException {
+			return file.position();
+		}
+
+		@Override
+		public FileChannel position(long newPosition) throws IOException {
+			file.position(newPosition);
+			return this;
+		}
+
+		@Override
+		public long size() throws IOException {
+			return file.size();
+		}
+
+		@Override
+		public FileChannel truncate(long size) throws IOException {
+			file.truncate(size);
+			return this;
+		}
+
+		@Override
+		public void force(boolean metaData) throws IOException {
+			file.force(metaData);
+		}
+
+		@Override
+		public long transferTo(long position, long count, WritableByteChannel target) throws IOException {
+			throw new UnsupportedOperationException();
+		}
+
+		@Override
+		public long transferFrom(ReadableByteChannel src, long position, long count) throws IOException {
+			throw new UnsupportedOperationException();
+		}
+
+		@Override
+		public MappedByteBuffer map(MapMode mode, long position, long size) throws IOException {
+			throw new UnsupportedOperationException();
+		}
+
+		@Override
+		public FileLock lock(long position, long size, boolean shared) throws IOException {
+			throw new UnsupportedOperationException();
+		}
+
+		@Override
+		public FileLock tryLock(long position, long size, boolean shared) throws IOException {
+			throw new UnsupportedOperationException();
+		}
+
+		@Override
+		protected void implCloseChannel() throws IOException {
+			file.close();
+		}
+	}
+
+	private static char[] chars(int n, char c) {
+		char[] a = new char[n];
+		Arrays.fill(a, c);
+		return a;
+	}
+
+	private static void check(boolean ok, String what) {
+		if (!ok) {
+			throw new AssertionError(what);
+		}
+	}
+
+	private static void checkFails(AsyncFileWriter w, String call) {
+		try {
+			if (call.equals("write")) {
+				w.write('x');
+			}
+			else if (call.equals("write string")) {
+				w.write("x");
+			}
+			else if (call.equals("flush")) {
+				w.flush();
+			}
+			else {
+				w.close();
+			}
+		}
+		catch (IOException e) {
+			return;
+		}
+		throw new AssertionError(call + " after a failed write did not fail");
+	}
+
+	public void testEveryCallAfterAFailedWriteFails() throws IOException {
+		File f = File.createTempFile("async", ".txt");
+		try {
+			FailingChannel channel = new FailingChannel(f);
+			AsyncFileWriter w = new AsyncFileWriter(channel);
+			w.write("first\n");
+			w.flush();
+			channel.failing = true;
+			// a buffer and a half, the first buffer's write fails in the background
+			w.write(chars(MB + MB / 2, 'a'));
+			boolean failed = false;
+			try {
+				w.flush();
+			}
+			catch (IOException e) {
+				failed = true;
+			}
+			check(failed, "flush after a failed write did not fail");
+			channel.failing = false; // the disk has room again, the hole stays
+			checkFails(w, "write");
+			checkFails(w, "write string");
+			checkFails(w, "flush");
+			checkFails(w, "close");
+			checkFails(w, "close");
+			check(!channel.isOpen(), "the channel is left open");
+			check(new String(Files.readAllBytes(f.toPath()), "US-ASCII").equals("first\n"),
+					"more than what was flushed before the failure is in the file");
+		}
+		finally {
+			f.delete();
+		}
+	}
+
+	// a failed buffer is not written again stale once it comes back as the one being filled
+	public void testNoStaleBytesAfterAFailedWrite() throws IOException {
+		File f = File.createTempFile("async", ".txt");
+		try {
+			FailingChannel channel = new FailingChannel(f);
+			AsyncFileWriter w = new AsyncFileWriter(channel);
+			channel.failing = true;
+			w.write(chars(MB, 'a'));
+			boolean failed = false;
+			try {
+				w.write(chars(2 * MB, 'b'));
+				w.flush();
+			}
+			catch (IOException e) {
+				failed = true;
+			}
+			check(failed, "writing on after a failed write did not fail");
+			channel.failing = false;
+			checkFails(w, "close");
+			check(f.length() == 0, "bytes of a failed buffer made it into the file");
+		}
+		finally {
+			f.delete();
+		}
+	}
+
+	public void testWritesWhatItIsGiven() throws IOException {
+		File f = File.createTempFile("async", ".txt");
+		try {
+			AsyncFileWriter w = new AsyncFileWriter(f.getPath());
+			w.write(chars(MB + 17, 'a'));
+			w.newLine();
+			w.write("end");
+			w.close();
+			w.close();
+			check(f.length() == MB + 17 + System.getProperty("line.separator").length() + 3, "the file has "
+					+ f.length() + " bytes");
+		}
+		finally {
+			f.delete();
+		}
+	}
+}
@@ -0,0 +1,218 @@
+package bench;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.IOException;
+import java.io.StringReader;
+import java.util.ArrayList;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+
+import org.apache.commons.csv.CSVParser;
+import org.apache.commons.csv.CSVRecord;
+
+/**
+ * Benchmark inputs built from the pair files checked in at the root of the repo.
+ * The pair files only carry ids, so the item blobs are generated from them with the
+ * attribute layout of the Walmart/vendor electronics items: every value is a one element
+ * JSON array, matching pairs share their name, brand and part number, and the B side
+ * carries the vendor taken from the B id.
+ */
+final class BenchData {
+
+	static final String[] ATTRIBUTES = {"Product Name", "Product Short Description", "Product Long Description",
+		"Product Type", "Brand", "Manufacturer", "Model", "Color", "Actual Color",
+		"Package Quantity", "Assembled Product Length", "Assembled Product Width",
+		"Assembled Product Height", "Assembled Product Weight", "Screen Size",
+		"Manufacturer Part Number", "UPC"};
+
+	private static final String[] BRANDS = {"Samsung", "Sony", "LG", "Panasonic", "Toshiba", "Canon",
+		"Nikon", "HP", "Dell", "Lenovo", "Asus", "Acer", "Logitech", "Belkin", "Kingston", "SanDisk"};
+
+	private static final String[] TYPES = {"LED TV", "Digital Camera", "Laptop", "Wireless Mouse",
+		"USB Flash Drive", "Ink Cartridge", "Headphones", "Bluetooth Speaker", "Surge Protector", "HDMI Cable"};
+
+	private static final String[] COLORS = {"Black", "White", "Silver", "Red", "Blue", "Gray"};
+
+	// item JSON the generated items do not have: escapes, nesting, numbers, literals, repeated keys
+	static final String[] ODD_ITEMS = {
+		"{\"Product Name\":[\"17\\\" \\u00e9cran \\/ \\\\ \\t tab\"],\"Brand\":[\"LG\"]}",
+		"{ \"a\" : [ 1 , -0 , 2.50 , 1e3 , -1.5E-2 ] , \"b\" : { \"c\" : [ true , false , null ] } }",
+		"{\"product_attributes\":{\"item_id\":{\"values\":[{\"value\":\"7\",\"isPrimary\":\"true\"}]}}}",
+		"{\"k\":[\"first\"],\"k\":[\"last\"],\"e\":{},\"f\":[]}",
+		"{\"\\ud83d\\ude00\":[\"\\u0000\"],\"x\":[\"\u00e9\u4e2d\"]}",
+	};
+
+	final String[] itemsA;
+	final String[] itemsB;
+	final int[] labels;
+	final String[] vendors;
+	final String[] partNumbersA;
+	final String[] partNumbersB;
+	final String tableACsv;
+	final String tableBCsv;
+
+	private BenchData(String[] itemsA, String[] itemsB, int[] labels, String[] vendors,
+			String[] partNumbersA, String[] partNumbersB, String tableACsv, String tableBCsv) {
+		this.itemsA = itemsA;
+		this.itemsB = itemsB;
+		this.labels = labels;
+		this.vendors = vendors;
+		this.partNumbersA = partNumbersA;
+		this.partNumbersB = partNumbersB;
+		this.tableACsv = tableACsv;
+		this.tableBCsv = tableBCsv;
+	}
+
+	static Set<String> attributes() {
+		Set<String> attributes = new LinkedHashSet<String>();
+		for (String s: ATTRIBUTES) {
+			attributes.add(s);
+		}
+		return attributes;
+	}
+
+	static File dataFile(String name) {
+		File f = new File(System.getProperty("bench.data", "."), name);
+		if (!f.exists()) {
+			throw new IllegalStateException("Benchmark input not found: " + f.getAbsolutePath()
+					+ " (set -Dbench.data to the repository root)");
+		}
+		return f;
+	}
+
+	/**
+	 * @param maxPairs no. of labeled pairs to read from train_stage1.csv
+	 * @param tableSize no. of rows in each of the cross product tables
+	 */
+	static BenchData load(int maxPairs, int tableSize) throws IOException {
+		List<String[]> pairs = new ArrayList<String[]>();
+		BufferedReader br = new BufferedReader(new FileReader(dataFile("train_stage1.csv")));
+		br.readLine(); // header
+		String line;
+		while ((line = br.readLine()) != null && pairs.size() < maxPairs) {
+			String[] vals = line.split(",");
+			if (vals.length == 4) {
+				pairs.add(vals);
+			}
+		}
+		br.close();
+
+		List<String> vendors = new ArrayList<String>();
+		CSVParser candsetParser = new CSVParser(new FileReader(dataFile("wv_candset_elec.csv")));
+		boolean header = true;
+		for (CSVRecord r: candsetParser) {
+			if (header) {
+				header = false;
+				continue;
+			}
+			String id2 = r.get(2);
+			vendors.add(id2.substring(id2.indexOf('#') + 1));
+		}
+
+		int n = pairs.size();
+		String[] itemsA = new String[n];
+		String[] itemsB = new String[n];
+		int[] labels = new int[n];
+		String[] partNumbersA = new String[n];
+		String[] partNumbersB = new String[n];
+		String[] namesA = new String[n];
+		String[] namesB = new String[n];
+		for (int i = 0; i < n; i++) {
+			String[] p = pairs.get(i);
+			String id1 = p[1];
+			String id2 = p[2];
+			labels[i] = Integer.parseInt(p[3].trim());
+			Item a = new Item(new Random(id1.hashCode()));
+			// matching pairs describe the same product, non-matching ones a random other one
+			Item b = labels[i] == 1 ? a : new Item(new Random(id2.hashCode()));
+			String vendor = id2.substring(id2.indexOf('#') + 1);
+			itemsA[i] = a.toJson(id1, "Walmart.com");
+			itemsB[i] = b.toJson(id2.substring(0, id2.indexOf('#')), vendor);
+			partNumbersA[i] = a.mpn;
+			partNumbersB[i] = labels[i] == 1 ? a.mpn.replace("-", "") : b.mpn;
+			namesA[i] = a.name;
+			namesB[i] = b.name;
+		}
+
+		StringBuilder tableA = new StringBuilder();
+		StringBuilder tableB = new StringBuilder();
+		for (int i = 0; i < Math.min(tableSize, n); i++) {
+			tableA.append(pairs.get(i)[1]).append(",Walmart.com,\"").append(namesA[i].replace("\"", "\"\"")).append("\"\n");
+			tableB.append(pairs.get(i)[2]).append(",,x,\"").append(namesB[i].replace("\"", "\"\"")).append("\"\n");
+		}
+		return new BenchData(itemsA, itemsB, labels, vendors.toArray(new String[vendors.size()]),
+				partNumbersA, partNumbersB, tableA.toString(), tableB.toString());
+	}
+
+	static List<CSVRecord> records(String csv) throws IOException {
+		return new CSVParser(new StringReader(csv)).getRecords();
+	}
+
+	private static final class Item {
+		final String brand;
+		final String type;
+		final String color;
+		final String model;
+		final String mpn;
+		final String name;
+		final int screen;
+		final int weight;
+
+		Item(Random rand) {
+			brand = BRANDS[rand.nextInt(BRANDS.length)];
+			type = TYPES[rand.nextInt(TYPES.length)];
+			color = COLORS[rand.nextInt(COLORS.length)];
+			model = brand.substring(0, 2).toUpperCase() + (1000 + rand.nextInt(9000));
+			mpn = model + "-" + (char) ('A' + rand.nextInt(26)) + rand.nextInt(100);
+			screen = 10 + rand.nextInt(60);
+			weight = 1 + rand.nextInt(40);
+			name = brand + " " + screen + "\" " + type + " " + model + " (" + color + ")";
+		}
+
+		String toJson(String itemId, String seller) {
+			StringBuilder sb = new StringBuilder(1024);
+			sb.append('{');
+			field(sb, "Item ID", itemId).append(',');
+			field(sb, "Product Name", name).append(',');
+			field(sb, "Product Short Description", brand + " " + type + ", " + color).append(',');
+			field(sb, "Product Long Description", "<p>The " + name + " from " + brand
+					+ " is sold by " + seller + ".</p>\n<ul><li>Model " + model + "</li><li>" + screen
+					+ "\" class</li></ul>").append(',');
+			field(sb, "Product Type", type).append(',');
+			field(sb, "Brand", brand).append(',');
+			field(sb, "Manufacturer", brand + " Electronics").append(',');
+			field(sb, "Model", model).append(',');
+			field(sb, "Color", color).append(',');
+			field(sb, "Actual Color", color).append(',');
+			field(sb, "Package Quantity", "1").append(',');
+			field(sb, "Assembled Product Weight", weight + " lb").append(',');
+			field(sb, "Screen Size", screen + " in").append(',');
+			field(sb, "Manufacturer Part Number", mpn).append(',');
+			field(sb, "GTIN", "00" + Math.abs((long) name.hashCode() * 31 + 7)).append(',');
+			field(sb, "Warranty Length", "1 year");
+			sb.append('}');
+			return sb.toString();
+		}
+
+		private static StringBuilder field(StringBuilder sb, String key, String value) {
+			sb.append('"').append(key).append("\":[\"");
+			for (int i = 0; i < value.length(); i++) {
+				char c = value.charAt(i);
+				if (c == '"') {
+					sb.append("\\\"");
+				}
+				else if (c == '\n') {
+					sb.append("\\n");
+				}
+				else {
+					sb.append(c);
+				}
+			}
+			return sb.append("\"]");
+		}
+	}
+}
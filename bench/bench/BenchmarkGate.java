@@ -0,0 +1,119 @@
+package bench;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Properties;
+
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.results.Result;
+import org.openjdk.jmh.results.RunResult;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.ChainedOptionsBuilder;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+import org.openjdk.jmh.runner.options.TimeValue;
+
+/**
+ * Runs the benchmarks with the GC profiler and compares ops/sec and allocated bytes/op
+ * against a baseline properties file. Exits with status 1 when any benchmark regressed
+ * by more than the tolerance, which fails the "bench" Maven profile.
+ *
+ * System properties:
+ *   bench.baseline    baseline file, written when missing or when bench.update=true
+ *   bench.tolerance   allowed regression in percent (default 15)
+ *   bench.include     benchmark regex (default all of the *Benchmarks classes)
+ *   bench.forks, bench.warmup, bench.iterations   override the annotations on the benchmark class
+ */
+public final class BenchmarkGate {
+
+	private static final String ALLOC_NORM = "gc.alloc.rate.norm";
+	// allocation baselines close to zero are noisy, differences below this many bytes are ignored
+	private static final double ALLOC_SLACK_BYTES = 16.0;
+
+	private BenchmarkGate() {
+	}
+
+	public static void main(String[] args) throws RunnerException, IOException {
+		File baselineFile = new File(System.getProperty("bench.baseline", "bench/baseline.properties"));
+		double tolerance = Double.parseDouble(System.getProperty("bench.tolerance", "15")) / 100.0;
+		boolean update = Boolean.parseBoolean(System.getProperty("bench.update", "false"));
+
+		ChainedOptionsBuilder options = new OptionsBuilder()
+				.include(System.getProperty("bench.include", "bench\\..*Benchmarks"))
+				.addProfiler(GCProfiler.class)
+				.jvmArgsAppend("-Dbench.data=" + System.getProperty("bench.data", new File(".").getAbsolutePath()));
+		if (System.getProperty("bench.forks") != null) {
+			options.forks(Integer.getInteger("bench.forks"));
+		}
+		if (System.getProperty("bench.warmup") != null) {
+			options.warmupIterations(Integer.getInteger("bench.warmup")).warmupTime(TimeValue.seconds(1));
+		}
+		if (System.getProperty("bench.iterations") != null) {
+			options.measurementIterations(Integer.getInteger("bench.iterations")).measurementTime(TimeValue.seconds(1));
+		}
+		Collection<RunResult> results = new Runner(options.build()).run();
+
+		Properties baseline = new Properties();
+		if (baselineFile.exists()) {
+			InputStream in = new FileInputStream(baselineFile);
+			baseline.load(in);
+			in.close();
+		}
+
+		List<String> regressions = new ArrayList<String>();
+		Properties updated = new Properties();
+		updated.putAll(baseline);
+		boolean baselineChanged = false;
+		for (RunResult r: results) {
+			String name = r.getParams().getBenchmark();
+			name = name.substring(name.lastIndexOf('.') + 1);
+			double ops = r.getPrimaryResult().getScore();
+			Result<?> alloc = r.getSecondaryResults().get(ALLOC_NORM);
+			double bytes = alloc == null ? 0.0 : alloc.getScore();
+
+			String baseOps = baseline.getProperty(name + ".ops");
+			String baseBytes = baseline.getProperty(name + ".bytes");
+			if (update || baseOps == null || baseBytes == null) {
+				updated.setProperty(name + ".ops", String.valueOf(ops));
+				updated.setProperty(name + ".bytes", String.valueOf(bytes));
+				baselineChanged = true;
+				System.out.println(String.format("%-28s %14.1f ops/s %12.1f B/op  (new baseline)", name, ops, bytes));
+				continue;
+			}
+			double expectedOps = Double.parseDouble(baseOps);
+			double expectedBytes = Double.parseDouble(baseBytes);
+			System.out.println(String.format("%-28s %14.1f ops/s (baseline %14.1f) %12.1f B/op (baseline %12.1f)",
+					name, ops, expectedOps, bytes, expectedBytes));
+			if (ops < expectedOps * (1.0 - tolerance)) {
+				regressions.add(name + ": " + String.format("%.1f", ops) + " ops/s, baseline "
+						+ String.format("%.1f", expectedOps));
+			}
+			if (bytes > expectedBytes * (1.0 + tolerance) + ALLOC_SLACK_BYTES) {
+				regressions.add(name + ": " + String.format("%.1f", bytes) + " B/op, baseline "
+						+ String.format("%.1f", expectedBytes));
+			}
+		}
+
+		if (baselineChanged) {
+			OutputStream out = new FileOutputStream(baselineFile);
+			updated.store(out, "JMH baseline: ops/sec and allocated bytes/op per benchmark");
+			out.close();
+			System.out.println("Wrote baseline " + baselineFile);
+		}
+
+		if (!regressions.isEmpty()) {
+			System.err.println("Benchmark regressions (tolerance " + Math.round(tolerance * 100) + "%):");
+			for (String s: regressions) {
+				System.err.println("  " + s);
+			}
+			System.exit(1);
+		}
+	}
+}
@@ -0,0 +1,254 @@
+package bench;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.commons.csv.CSVParser;
+import org.apache.commons.csv.CSVRecord;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Reading a generated pair file of PAIRS records per op, with PairColumns and, as baselines,
+ * with CSVParser and with line.split(","), the ids coded through a HashMap as PairColumns
+ * codes them. Some B ids have a vendor with a comma or a quote in it, quoted as CSV.
+ *
+ * Before anything is timed the setup checks PairColumns against CSVParser on the file, and
+ * downsampleNegatives and labelCandset, which read through it, against what they should
+ * write; the benchmarks do not run when one of them is off.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class PairColumnsBenchmarks {
+
+	private static final int PAIRS = 100000;
+	private static final String[] VENDORS = {"Newegg", "BestBuy", "i-Blason, LLC", "Tiger Direct, Inc.",
+		"Acme \"Pro\" Store", "Rakuten"};
+	// the headers Parser writes, one quoted field
+	private static final String GOLD_HEADER = "\"pairID:INTEGER,A.id:TEXT,B.id:TEXT,label:INTEGER\"";
+	private static final String CANDSET_HEADER = "\"pairID:INTEGER,A.id:TEXT,B.id:TEXT\"";
+
+	private File gold;
+	private String[] records = new String[PAIRS];
+	private String[] aIds = new String[PAIRS];
+	private String[] bIds = new String[PAIRS];
+	private int[] labels = new int[PAIRS];
+	private List<File> files = new ArrayList<File>();
+
+	@Setup
+	public void setup() throws Throwable {
+		gold = newFile();
+		Random rand = new Random(42);
+		Writer w = new FileWriter(gold);
+		w.write(GOLD_HEADER + "\n");
+		for (int i = 0; i < PAIRS; i++) {
+			aIds[i] = String.valueOf(1000000 + rand.nextInt(PAIRS / 2));
+			bIds[i] = (2000000 + rand.nextInt(PAIRS)) + "#" + VENDORS[rand.nextInt(VENDORS.length)];
+			labels[i] = rand.nextInt(10) < 3 ? 1 : 0;
+			records[i] = i + "," + aIds[i] + "," + csv(bIds[i]) + "," + labels[i];
+			w.write(records[i] + "\n");
+		}
+		w.close();
+		checkRead();
+		checkDownsampleNegatives();
+		checkLabelCandset();
+	}
+
+	@TearDown
+	public void tearDown() {
+		for (File f: files) {
+			f.delete();
+		}
+	}
+
+	private File newFile() throws IOException {
+		File f = File.createTempFile("pairs", ".csv");
+		f.deleteOnExit();
+		files.add(f);
+		return f;
+	}
+
+	private static String csv(String field) {
+		if (field.indexOf(',') < 0 && field.indexOf('"') < 0) {
+			return field;
+		}
+		return "\"" + field.replace("\"", "\"\"") + "\"";
+	}
+
+	// PairColumns reads what CSVParser reads
+	private void checkRead() throws Throwable {
+		Object pairs = ParserHandles.PAIR_COLUMNS_READ.invokeExact(gold.getPath());
+		FileReader reader = new FileReader(gold);
+		CSVParser parser = new CSVParser(reader);
+		int row = -1; // the header
+		for (CSVRecord r: parser) {
+			if (row >= 0) {
+				check(row < (int) ParserHandles.PAIR_COLUMNS_SIZE.invokeExact(pairs), "too few pairs");
+				check(Integer.parseInt(r.get(0)) == (int) ParserHandles.PAIR_COLUMNS_PAIR_ID.invokeExact(pairs, row)
+						&& r.get(1).equals((String) ParserHandles.PAIR_COLUMNS_A_ID.invokeExact(pairs, row))
+						&& r.get(2).equals((String) ParserHandles.PAIR_COLUMNS_B_ID.invokeExact(pairs, row))
+						&& Integer.parseInt(r.get(3)) == (int) ParserHandles.PAIR_COLUMNS_LABEL.invokeExact(pairs, row),
+						"pair " + row + " read otherwise than by CSVParser: " + r);
+			}
+			row++;
+		}
+		reader.close();
+		check(row == (int) ParserHandles.PAIR_COLUMNS_SIZE.invokeExact(pairs), "too many pairs");
+		ParserHandles.PAIR_COLUMNS_CLOSE.invokeExact(pairs);
+	}
+
+	// keeping no negative pair leaves the header and the positive records, quoted vendors and all
+	private void checkDownsampleNegatives() throws Throwable {
+		File out = newFile();
+		ParserHandles.DOWNSAMPLE_NEGATIVES.invokeExact(gold.getPath(), out.getPath(), 0.0);
+		List<String> expected = new ArrayList<String>();
+		expected.add(GOLD_HEADER);
+		for (int i = 0; i < PAIRS; i++) {
+			if (labels[i] == 1) {
+				expected.add(records[i]);
+			}
+		}
+		check(expected.equals(lines(out)), "downsampleNegatives kept other records than the positive ones");
+	}
+
+	// a candset of every third gold pair, backwards and with pair ids of its own, and pairs not in gold
+	private void checkLabelCandset() throws Throwable {
+		Map<String, Integer> goldLabels = new HashMap<String, Integer>(); // of the first pair of an A id and a B id
+		for (int i = 0; i < PAIRS; i++) {
+			String pair = aIds[i] + "\t" + bIds[i];
+			if (!goldLabels.containsKey(pair)) {
+				goldLabels.put(pair, labels[i]);
+			}
+		}
+		File candset = newFile();
+		File out = newFile();
+		Writer w = new FileWriter(candset);
+		w.write(CANDSET_HEADER + "\n");
+		List<String> expected = new ArrayList<String>();
+		int pairId = 0;
+		for (int i = PAIRS - 1; i >= 0; i -= 3) {
+			w.write(pairId + "," + aIds[i] + "," + csv(bIds[i]) + "\n");
+			w.write((pairId + 1) + "," + aIds[i] + "," + csv(bIds[i] + " elsewhere") + "\n");
+			expected.add(pairId + "," + aIds[i] + "," + bIds[i] + "," + goldLabels.get(aIds[i] + "\t" + bIds[i]));
+			pairId += 2;
+		}
+		w.close();
+		ParserHandles.LABEL_CANDSET.invokeExact(candset.getPath(), gold.getPath(), out.getPath());
+		List<String> labeled = new ArrayList<String>();
+		FileReader reader = new FileReader(out);
+		CSVParser parser = new CSVParser(reader);
+		for (CSVRecord r: parser) {
+			if (r.getRecordNumber() > 1) {
+				labeled.add(r.get(0) + "," + r.get(1) + "," + r.get(2) + "," + r.get(3));
+			}
+		}
+		reader.close();
+		check(expected.equals(labeled), "labelCandset labeled other pairs than the ones in gold");
+	}
+
+	private static List<String> lines(File f) throws IOException {
+		List<String> lines = new ArrayList<String>();
+		BufferedReader br = new BufferedReader(new FileReader(f));
+		String line;
+		while ((line = br.readLine()) != null) {
+			lines.add(line);
+		}
+		br.close();
+		return lines;
+	}
+
+	private static void check(boolean ok, String what) {
+		if (!ok) {
+			throw new IllegalStateException(what);
+		}
+	}
+
+	private static int code(Map<String, Integer> ids, String id) {
+		Integer code = ids.get(id);
+		if (code == null) {
+			code = ids.size();
+			ids.put(id, code);
+		}
+		return code;
+	}
+
+	@Benchmark
+	public int pairColumnsRead() throws Throwable {
+		Object pairs = ParserHandles.PAIR_COLUMNS_READ.invokeExact(gold.getPath());
+		int size = (int) ParserHandles.PAIR_COLUMNS_SIZE.invokeExact(pairs);
+		ParserHandles.PAIR_COLUMNS_CLOSE.invokeExact(pairs);
+		return size;
+	}
+
+	@Benchmark
+	public Object commonsCsvRead() throws IOException {
+		Map<String, Integer> aIds = new HashMap<String, Integer>();
+		Map<String, Integer> bIds = new HashMap<String, Integer>();
+		int[] pairIds = new int[PAIRS];
+		int[] a = new int[PAIRS];
+		int[] b = new int[PAIRS];
+		int[] labels = new int[PAIRS];
+		FileReader reader = new FileReader(gold);
+		CSVParser parser = new CSVParser(reader);
+		int row = -1;
+		for (CSVRecord r: parser) {
+			if (row >= 0) {
+				pairIds[row] = Integer.parseInt(r.get(0).trim());
+				a[row] = code(aIds, r.get(1).trim());
+				b[row] = code(bIds, r.get(2).trim());
+				labels[row] = Integer.parseInt(r.get(3).trim());
+			}
+			row++;
+		}
+		reader.close();
+		return new int[][] {pairIds, a, b, labels};
+	}
+
+	// what downsampleNegatives used to do, wrong on the quoted vendors with a comma
+	@Benchmark
+	public Object splitRead() throws IOException {
+		Map<String, Integer> aIds = new HashMap<String, Integer>();
+		Map<String, Integer> bIds = new HashMap<String, Integer>();
+		int[] pairIds = new int[PAIRS];
+		int[] a = new int[PAIRS];
+		int[] b = new int[PAIRS];
+		int[] labels = new int[PAIRS];
+		BufferedReader br = new BufferedReader(new FileReader(gold));
+		br.readLine(); // header
+		int row = 0;
+		String line;
+		while ((line = br.readLine()) != null) {
+			String[] vals = line.split(",");
+			pairIds[row] = Integer.parseInt(vals[0].trim());
+			a[row] = code(aIds, vals[1].trim());
+			b[row] = code(bIds, vals[2].trim());
+			labels[row] = Integer.parseInt(vals[vals.length - 1].trim());
+			row++;
+		}
+		br.close();
+		return new int[][] {pairIds, a, b, labels};
+	}
+}
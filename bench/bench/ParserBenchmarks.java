@@ -0,0 +1,169 @@
+package bench;
+
+import java.io.StringReader;
+import java.io.Writer;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+import javax.json.Json;
+
+import org.apache.commons.csv.CSVFormat;
+import org.apache.commons.csv.CSVPrinter;
+import org.apache.commons.csv.CSVRecord;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Throughput of the Parser hot paths, one item (or one pair) per op except for the
+ * cross product, which runs the whole Jaccard loop over two small tables per op.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ParserBenchmarks {
+
+	private static final int PAIRS = 4096; // power of two, see next()
+	private static final int TABLE_SIZE = 100;
+
+	private BenchData data;
+	private Set<String> attributes;
+	private Set<String> attributesToSuppress;
+	private Map<String, Integer> dictionary;
+	private List<CSVRecord> recordsA;
+	private List<CSVRecord> recordsB;
+	private CSVPrinter nullPrinter;
+	private int cursor;
+
+	@Setup
+	public void setup() throws Throwable {
+		data = BenchData.load(PAIRS, TABLE_SIZE);
+		if (data.itemsA.length < PAIRS) {
+			throw new IllegalStateException("train_stage1.csv has fewer than " + PAIRS + " pairs");
+		}
+		attributes = BenchData.attributes();
+		attributesToSuppress = new HashSet<String>();
+		attributesToSuppress.add("Item ID");
+		attributesToSuppress.add("Manufacturer Part Number");
+		attributesToSuppress.add("UPC");
+		attributesToSuppress.add("GTIN");
+		attributesToSuppress.add("ISBN-13");
+		dictionary = new HashMap<String, Integer>();
+		recordsA = BenchData.records(data.tableACsv);
+		recordsB = BenchData.records(data.tableBCsv);
+		nullPrinter = new CSVPrinter(new NullWriter(), CSVFormat.DEFAULT.toBuilder().withRecordSeparator("\n").build());
+		// jsonIndexParse times nothing worth timing if JsonIndex reads the items otherwise than javax.json
+		checkJsonParity(data.itemsA);
+		checkJsonParity(data.itemsB);
+		checkJsonParity(BenchData.ODD_ITEMS);
+	}
+
+	private static void checkJsonParity(String[] items) throws Throwable {
+		for (String item: items) {
+			String m = (String) ParserHandles.JSON_PARITY_MISMATCH.invokeExact(item);
+			if (m != null) {
+				throw new IllegalStateException("JsonIndex and javax.json read " + item + " differently: " + m);
+			}
+		}
+	}
+
+	private int next() {
+		return cursor = (cursor + 1) & (PAIRS - 1);
+	}
+
+	@Benchmark
+	public Object getAttributeNames() throws Throwable {
+		return (Set<?>) ParserHandles.GET_ATTRIBUTE_NAMES.invokeExact(data.itemsB[next()]);
+	}
+
+	@Benchmark
+	public Object parseJsonBlob() throws Throwable {
+		return (Map<?, ?>) ParserHandles.PARSE_JSON_BLOB.invokeExact(data.itemsA[next()], attributes);
+	}
+
+	// the two stages of JsonIndex against javax.json on the same items
+	@Benchmark
+	public Object jsonIndexParse() throws Throwable {
+		return (Object) ParserHandles.JSON_INDEX_PARSE.invokeExact(data.itemsA[next()]);
+	}
+
+	@Benchmark
+	public Object javaxJsonParse() {
+		return Json.createReader(new StringReader(data.itemsA[next()])).readObject();
+	}
+
+	@Benchmark
+	public Object suppress() throws Throwable {
+		return (String) ParserHandles.SUPPRESS.invokeExact(data.itemsB[next()], attributesToSuppress);
+	}
+
+	@Benchmark
+	public Object internedItemFromJson() throws Throwable {
+		return (Object) ParserHandles.INTERNED_ITEM_FROM_JSON.invokeExact(data.itemsB[next()], (Object) null, (Object) null);
+	}
+
+	@Benchmark
+	public boolean hasValidJson() throws Throwable {
+		return (boolean) ParserHandles.HAS_VALID_JSON.invokeExact(data.itemsA[next()]);
+	}
+
+	@Benchmark
+	public int addIncr() throws Throwable {
+		int i = next();
+		ParserHandles.ADD_INCR.invokeExact(dictionary, data.vendors[i]);
+		return dictionary.size();
+	}
+
+	@Benchmark
+	public int applyRuleOnCrossProduct() throws Throwable {
+		return (int) ParserHandles.APPLY_RULE_ON_CROSS_PRODUCT.invokeExact(recordsA, recordsB, nullPrinter);
+	}
+
+	@Benchmark
+	public boolean cleanupValuesMatch() throws Throwable {
+		int i = next();
+		return (boolean) ParserHandles.VALUES_MATCH.invokeExact(data.partNumbersA[i], data.partNumbersB[i]);
+	}
+
+	private static final class NullWriter extends Writer {
+		@Override
+		public void write(char[] cbuf, int off, int len) {
+		}
+
+		@Override
+		public void write(String str, int off, int len) {
+		}
+
+		@Override
+		public Writer append(CharSequence csq) {
+			return this;
+		}
+
+		@Override
+		public Writer append(char c) {
+			return this;
+		}
+
+		@Override
+		public void flush() {
+		}
+
+		@Override
+		public void close() {
+		}
+	}
+}
@@ -0,0 +1,80 @@
+package bench;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.reflect.Method;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.apache.commons.csv.CSVPrinter;
+
+/**
+ * Parser lives in the default package, which JMH benchmarks (and any other named package)
+ * cannot import, so the methods under test are looked up reflectively once and invoked
+ * through constant method handles.
+ */
+final class ParserHandles {
+
+	static final MethodHandle GET_ATTRIBUTE_NAMES = find("getAttributeNames", String.class);
+	static final MethodHandle PARSE_JSON_BLOB = find("parseJsonBlob", String.class, Set.class);
+	static final MethodHandle SUPPRESS = find("suppress", String.class, Set.class);
+	static final MethodHandle HAS_VALID_JSON = find("hasValidJson", String.class);
+	static final MethodHandle ADD_INCR = find("addIncr", Map.class, String.class);
+	static final MethodHandle APPLY_RULE_ON_CROSS_PRODUCT = find("applyRuleOnCrossProduct",
+			List.class, List.class, CSVPrinter.class);
+	static final MethodHandle VALUES_MATCH = find("valuesMatch", String.class, String.class);
+	// (String itemJson, Union only, Union seen) -> InternedItem, with the default-package types erased to Object
+	static final MethodHandle INTERNED_ITEM_FROM_JSON = find(type("InternedItem"), "fromJson",
+			String.class, type("SymbolTable$Union"), type("SymbolTable$Union"))
+			.asType(MethodType.methodType(Object.class, String.class, Object.class, Object.class));
+	// (String json) -> JsonIndex, null when javax.json has to read it
+	static final MethodHandle JSON_INDEX_PARSE = find(type("JsonIndex"), "parse", String.class)
+			.asType(MethodType.methodType(Object.class, String.class));
+	static final MethodHandle JSON_PARITY_MISMATCH = find(type("JsonParity"), "mismatch", String.class);
+	static final MethodHandle DOWNSAMPLE_NEGATIVES = find("downsampleNegatives", String.class, String.class, double.class);
+	static final MethodHandle LABEL_CANDSET = find("labelCandset", String.class, String.class, String.class);
+	// PairColumns, as Object
+	static final MethodHandle PAIR_COLUMNS_READ = find(type("PairColumns"), "read", String.class)
+			.asType(MethodType.methodType(Object.class, String.class));
+	static final MethodHandle PAIR_COLUMNS_SIZE = pairColumns("size", int.class);
+	static final MethodHandle PAIR_COLUMNS_PAIR_ID = pairColumns("pairId", int.class, int.class);
+	static final MethodHandle PAIR_COLUMNS_A_ID = pairColumns("aId", String.class, int.class);
+	static final MethodHandle PAIR_COLUMNS_B_ID = pairColumns("bId", String.class, int.class);
+	static final MethodHandle PAIR_COLUMNS_LABEL = pairColumns("label", int.class, int.class);
+	static final MethodHandle PAIR_COLUMNS_CLOSE = pairColumns("close", void.class);
+
+	private ParserHandles() {
+	}
+
+	// an instance method of PairColumns, taking the PairColumns as an Object
+	private static MethodHandle pairColumns(String name, Class<?> returnType, Class<?>... parameterTypes) {
+		MethodHandle h = find(type("PairColumns"), name, parameterTypes);
+		return h.asType(MethodType.methodType(returnType, Object.class, parameterTypes));
+	}
+
+	private static MethodHandle find(String name, Class<?>... parameterTypes) {
+		return find(type("Parser"), name, parameterTypes);
+	}
+
+	private static MethodHandle find(Class<?> c, String name, Class<?>... parameterTypes) {
+		try {
+			Method m = c.getDeclaredMethod(name, parameterTypes);
+			m.setAccessible(true);
+			return MethodHandles.lookup().unreflect(m);
+		}
+		catch (ReflectiveOperationException e) {
+			throw new IllegalStateException(c.getName() + "." + name + " is not available", e);
+		}
+	}
+
+	private static Class<?> type(String name) {
+		try {
+			return Class.forName(name);
+		}
+		catch (ClassNotFoundException e) {
+			throw new IllegalStateException(name + " is not available", e);
+		}
+	}
+}
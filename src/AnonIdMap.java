@@ -0,0 +1,104 @@
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * The id map Anonymizer writes, memory mapped. original() finds the pair behind an
+ * anonymous id from its offset, anonIds() the anonymous ids of an original pair or item
+ * id by binary search on the hashes in the index, checking each candidate against the
+ * record. Maps of up to 2 GB.
+ */
+final class AnonIdMap {
+
+	private final MappedByteBuffer map;
+	private final int size;
+	private final long offsetsStart;
+	private final long indexStart;
+	private final int indexSize;
+
+	AnonIdMap(String fileName) throws IOException {
+		RandomAccessFile file = new RandomAccessFile(fileName, "r");
+		try {
+			map = file.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, file.length());
+		}
+		finally {
+			file.close();
+		}
+		int footer = map.capacity() - 28;
+		if (footer < 0 || map.getInt(footer + 24) != Anonymizer.MAGIC) {
+			throw new IOException(fileName + " is not an id map");
+		}
+		offsetsStart = map.getLong(footer);
+		indexStart = map.getLong(footer + 8);
+		size = map.getInt(footer + 16);
+		indexSize = map.getInt(footer + 20);
+	}
+
+	int size() {
+		return size;
+	}
+
+	// pair id, id1 and id2 of an anonymous id from 1 to size()
+	String[] original(int anonId) {
+		if (anonId < 1 || anonId > size) {
+			throw new IllegalArgumentException("No anonymous id " + anonId + " in a map of " + size);
+		}
+		int p = (int) map.getLong((int) offsetsStart + 8 * (anonId - 1));
+		String[] ids = new String[3];
+		for (int i = 0; i < 3; i++) {
+			int length = map.getInt(p);
+			byte[] bytes = new byte[length];
+			ByteBuffer b = map.duplicate();
+			b.position(p + 4);
+			b.get(bytes);
+			ids[i] = new String(bytes, Anonymizer.UTF8);
+			p += 4 + length;
+		}
+		return ids;
+	}
+
+	/**
+	 * The anonymous ids, ascending, whose original field (Anonymizer.PAIR, ID1 or ID2) is
+	 * id. An item is in as many pairs as it was in the input.
+	 */
+	List<Integer> anonIds(String id, int field) {
+		long key = (long) Anonymizer.hash(id) << 32;
+		int lo = 0;
+		int hi = indexSize;
+		while (lo < hi) { // first entry >= key
+			int mid = (lo + hi) >>> 1;
+			if (entry(mid) < key) {
+				lo = mid + 1;
+			}
+			else {
+				hi = mid;
+			}
+		}
+		List<Integer> anonIds = new ArrayList<Integer>();
+		for (int i = lo; i < indexSize; i++) {
+			long e = entry(i);
+			if ((e & 0xffffffff00000000L) != key) {
+				break;
+			}
+			int anonId = (int) ((e & 0xffffffffL) >>> 2);
+			if ((e & 3) == field && original(anonId)[field].equals(id)) {
+				anonIds.add(anonId);
+			}
+		}
+		return anonIds;
+	}
+
+	// the anonymous id of an original pair id, 0 when it is not in the map
+	int anonPairId(String pairId) {
+		List<Integer> anonIds = anonIds(pairId, Anonymizer.PAIR);
+		return anonIds.isEmpty() ? 0 : anonIds.get(0);
+	}
+
+	private long entry(int i) {
+		return map.getLong((int) indexStart + 8 * i);
+	}
+}
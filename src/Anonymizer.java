@@ -0,0 +1,219 @@
+import java.io.BufferedOutputStream;
+import java.io.BufferedReader;
+import java.io.DataOutputStream;
+import java.io.FileOutputStream;
+import java.io.FileReader;
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.Future;
+
+/**
+ * anonymizeAndRemoveLabels on TableWriter's pool: lines are cut into chunks of CHUNK_LINES
+ * and each chunk is split in parallel. As the splits complete in order, every chunk gets
+ * the anonymous id its first good pair starts at. The student and TA lines are then
+ * formatted in parallel and written in chunk order, so the files are the ones the single
+ * threaded loop wrote.
+ *
+ * The id map, when asked for, records the original pair id, id1 and id2 of every anonymous
+ * id (see AnonIdMap):
+ *
+ *   records   per anonymous id 1..n: pair id, id1, id2, each an int length and UTF-8 bytes
+ *   offsets   per anonymous id: long offset of its record
+ *   index     per original id: long (32-bit hash << 32 | anonymous id << 2 | field), sorted
+ *   footer    long offsets start, long index start, int n, int index size, int MAGIC
+ */
+final class Anonymizer {
+
+	static final int MAGIC = 0x414e4d31; // "ANM1"
+	static final int PAIR = 0;
+	static final int ID1 = 1;
+	static final int ID2 = 2;
+	static final Charset UTF8 = Charset.forName("UTF-8");
+
+	private static final int CHUNK_LINES = 4096;
+	private static final int WINDOW = 4 * Runtime.getRuntime().availableProcessors();
+
+	// the good pairs of a chunk: pair id, id1, item1, id2, item2, label
+	private static final class Split {
+		final List<String[]> pairs = new ArrayList<String[]>();
+		int bad;
+	}
+
+	private static final class Formatted {
+		final Split split;
+		final String students;
+		final String labels;
+
+		Formatted(Split split, String students, String labels) {
+			this.split = split;
+			this.students = students;
+			this.labels = labels;
+		}
+	}
+
+	private Anonymizer() {
+	}
+
+	static void anonymize(String inFile, String studFile, String taFile, String idMapFile) throws IOException {
+		BufferedReader br = new BufferedReader(new FileReader(inFile));
+		AsyncFileWriter students = new AsyncFileWriter(studFile);
+		AsyncFileWriter labels = new AsyncFileWriter(taFile);
+		IdMapWriter idMap = idMapFile == null ? null : new IdMapWriter(idMapFile);
+		final String newLine = System.getProperty("line.separator");
+		try {
+			ArrayDeque<Future<Split>> splitting = new ArrayDeque<Future<Split>>();
+			ArrayDeque<Future<Formatted>> formatting = new ArrayDeque<Future<Formatted>>();
+			int next = 1; // anonymous id of the next good pair
+			boolean eof = false;
+			while (!eof || !splitting.isEmpty() || !formatting.isEmpty()) {
+				while (!eof && splitting.size() + formatting.size() < WINDOW) {
+					final List<String> lines = new ArrayList<String>(CHUNK_LINES);
+					String line;
+					while (lines.size() < CHUNK_LINES && (line = br.readLine()) != null) {
+						lines.add(line);
+					}
+					eof = lines.size() < CHUNK_LINES;
+					if (!lines.isEmpty()) {
+						splitting.add(TableWriter.POOL.submit(new Callable<Split>() {
+							@Override
+							public Split call() {
+								return split(lines);
+							}
+						}));
+					}
+				}
+				// splits are numbered in order, the next one can be formatted as soon as it is done
+				while (!splitting.isEmpty() && (splitting.peek().isDone() || formatting.isEmpty())) {
+					final Split split = TableWriter.get(splitting.poll());
+					final int first = next;
+					next += split.pairs.size();
+					formatting.add(TableWriter.POOL.submit(new Callable<Formatted>() {
+						@Override
+						public Formatted call() {
+							return format(split, first, newLine);
+						}
+					}));
+				}
+				if (!formatting.isEmpty()) {
+					Formatted f = TableWriter.get(formatting.poll());
+					for (int i = 0; i < f.split.bad; i++) {
+						System.err.println("Bad pair");
+					}
+					students.write(f.students);
+					labels.write(f.labels);
+					if (idMap != null) {
+						for (String[] pair: f.split.pairs) {
+							idMap.add(pair[0], pair[1], pair[3]);
+						}
+					}
+				}
+			}
+		}
+		finally {
+			br.close();
+			students.close();
+			labels.close();
+			if (idMap != null) {
+				idMap.close();
+			}
+		}
+	}
+
+	private static Split split(List<String> lines) {
+		Split split = new Split();
+		for (String line: lines) {
+			String[] vals = line.split("\\?");
+			if (vals.length == 6) {
+				split.pairs.add(vals);
+			}
+			else {
+				split.bad++;
+			}
+		}
+		return split;
+	}
+
+	private static Formatted format(Split split, int first, String newLine) {
+		StringBuilder students = new StringBuilder(split.pairs.size() * 1024);
+		StringBuilder labels = new StringBuilder(split.pairs.size() * 16);
+		int anonId = first;
+		for (String[] vals: split.pairs) {
+			students.append(anonId).append('?').append(anonId).append('?').append(vals[2])
+					.append('?').append(anonId).append('?').append(vals[4]).append(newLine);
+			String label = vals[5].trim();
+			if (!label.equalsIgnoreCase("UNKNOWN")) {
+				labels.append(anonId).append(',').append(label).append(newLine);
+			}
+			anonId++;
+		}
+		return new Formatted(split, students.toString(), labels.toString());
+	}
+
+	static int hash(String id) {
+		return (int) (LongHashSet.fingerprint(id) >>> 32);
+	}
+
+	private static final class IdMapWriter {
+		private final DataOutputStream out;
+		private long position;
+		private long[] offsets = new long[1024];
+		private long[] index = new long[3 * 1024];
+		private int size;
+
+		IdMapWriter(String fileName) throws IOException {
+			out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(fileName), 1 << 16));
+		}
+
+		void add(String pairId, String id1, String id2) throws IOException {
+			if (size == offsets.length) {
+				offsets = Arrays.copyOf(offsets, size * 2);
+				index = Arrays.copyOf(index, 3 * size * 2);
+			}
+			int anonId = size + 1;
+			offsets[size] = position;
+			index[3 * size] = entry(pairId, anonId, PAIR);
+			index[3 * size + 1] = entry(id1, anonId, ID1);
+			index[3 * size + 2] = entry(id2, anonId, ID2);
+			size++;
+			writeString(pairId);
+			writeString(id1);
+			writeString(id2);
+		}
+
+		private static long entry(String id, int anonId, int field) {
+			return ((long) hash(id) << 32) | ((long) anonId << 2) | field;
+		}
+
+		private void writeString(String s) throws IOException {
+			byte[] bytes = s.getBytes(UTF8);
+			out.writeInt(bytes.length);
+			out.write(bytes);
+			position += 4 + bytes.length;
+		}
+
+		void close() throws IOException {
+			long offsetsStart = position;
+			for (int i = 0; i < size; i++) {
+				out.writeLong(offsets[i]);
+			}
+			long indexStart = offsetsStart + 8L * size;
+			long[] sorted = Arrays.copyOf(index, 3 * size);
+			Arrays.parallelSort(sorted);
+			for (long e: sorted) {
+				out.writeLong(e);
+			}
+			out.writeLong(offsetsStart);
+			out.writeLong(indexStart);
+			out.writeInt(size);
+			out.writeInt(sorted.length);
+			out.writeInt(MAGIC);
+			out.close();
+			System.out.println("Id map of " + size + " pairs written");
+		}
+	}
+}
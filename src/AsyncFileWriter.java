@@ -0,0 +1,228 @@
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.Writer;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetEncoder;
+import java.nio.charset.CoderResult;
+import java.nio.charset.CodingErrorAction;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * A file Writer for stage outputs, in place of a BufferedWriter on a FileWriter. Chars are
+ * encoded into one of two 1 MB direct buffers while the other one is written to the file's
+ * channel by a background thread, so producing the output and writing it overlap. When
+ * the producer fills its buffer before the other one is written, it waits. close() writes
+ * what is left and forces the file to disk. An error of the background write is thrown
+ * by the next call that hands over a buffer, and by every write, flush and close after it,
+ * as the file has a hole from then on.
+ */
+final class AsyncFileWriter extends Writer {
+
+	private static final int BUFFER_SIZE = 1 << 20;
+	private static final String LINE_SEPARATOR = System.getProperty("line.separator");
+	// what FileWriter encodes with
+	private static final Charset CHARSET = Charset.defaultCharset();
+
+	private static final ExecutorService WRITERS = Executors.newCachedThreadPool(new ThreadFactory() {
+		private int n;
+
+		@Override
+		public synchronized Thread newThread(Runnable r) {
+			Thread t = new Thread(r, "output-writer-" + (++n));
+			t.setDaemon(true);
+			return t;
+		}
+	});
+
+	private final FileChannel channel;
+	private final CharsetEncoder encoder = CHARSET.newEncoder()
+			.onMalformedInput(CodingErrorAction.REPLACE)
+			.onUnmappableCharacter(CodingErrorAction.REPLACE);
+	private final char[] chars = new char[8192];
+	private int charCount;
+	private ByteBuffer filling = ByteBuffer.allocateDirect(BUFFER_SIZE);
+	private ByteBuffer spare = ByteBuffer.allocateDirect(BUFFER_SIZE);
+	private Future<?> writing; // the write of spare, if any
+	private IOException failure; // of the first write that failed
+	private boolean closed;
+
+	AsyncFileWriter(String fileName) throws IOException {
+		this(fileName, false);
+	}
+
+	AsyncFileWriter(String fileName, boolean append) throws IOException {
+		this(FileChannel.open(Paths.get(fileName), StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+				append ? StandardOpenOption.APPEND : StandardOpenOption.TRUNCATE_EXISTING));
+	}
+
+	AsyncFileWriter(FileChannel channel) {
+		this.channel = channel;
+	}
+
+	@Override
+	public void write(int c) throws IOException {
+		ensureOpen();
+		if (charCount == chars.length) {
+			encode(false);
+		}
+		chars[charCount++] = (char) c;
+	}
+
+	@Override
+	public void write(char[] cbuf, int off, int len) throws IOException {
+		ensureOpen();
+		while (len > 0) {
+			if (charCount == chars.length) {
+				encode(false);
+			}
+			int n = Math.min(len, chars.length - charCount);
+			System.arraycopy(cbuf, off, chars, charCount, n);
+			charCount += n;
+			off += n;
+			len -= n;
+		}
+	}
+
+	@Override
+	public void write(String s, int off, int len) throws IOException {
+		ensureOpen();
+		while (len > 0) {
+			if (charCount == chars.length) {
+				encode(false);
+			}
+			int n = Math.min(len, chars.length - charCount);
+			s.getChars(off, off + n, chars, charCount);
+			charCount += n;
+			off += n;
+			len -= n;
+		}
+	}
+
+	void newLine() throws IOException {
+		write(LINE_SEPARATOR);
+	}
+
+	// hands over everything written so far and waits until it is in the file
+	@Override
+	public void flush() throws IOException {
+		ensureOpen();
+		encode(false);
+		handOver();
+		awaitWrite();
+	}
+
+	@Override
+	public void close() throws IOException {
+		if (closed) {
+			if (failure != null) {
+				throw failed();
+			}
+			return;
+		}
+		try {
+			encode(true);
+			handOver();
+			awaitWrite();
+			channel.force(true);
+		}
+		finally {
+			closed = true;
+			channel.close();
+		}
+	}
+
+	private void ensureOpen() throws IOException {
+		if (failure != null) {
+			throw failed();
+		}
+		if (closed) {
+			throw new IOException("Stream closed");
+		}
+	}
+
+	// a new exception each time, the same one thrown twice cannot suppress itself
+	private IOException failed() {
+		return new IOException("An earlier write of the output file failed", failure);
+	}
+
+	// moves the chars into the byte buffer, handing it over whenever it is full
+	private void encode(boolean endOfInput) throws IOException {
+		ensureOpen();
+		CharBuffer in = CharBuffer.wrap(chars, 0, charCount);
+		while (true) {
+			CoderResult result = encoder.encode(in, filling, endOfInput);
+			if (result.isOverflow()) {
+				handOver();
+				continue;
+			}
+			break;
+		}
+		if (endOfInput) {
+			while (encoder.flush(filling).isOverflow()) {
+				handOver();
+			}
+			encoder.reset();
+		}
+		// an unpaired high surrogate waits for the next write
+		int left = in.remaining();
+		System.arraycopy(chars, in.position(), chars, 0, left);
+		charCount = left;
+	}
+
+	// starts writing the filled buffer once the previous write is done, and takes its buffer
+	private void handOver() throws IOException {
+		awaitWrite();
+		if (filling.position() == 0) {
+			return;
+		}
+		final ByteBuffer full = filling;
+		filling = spare;
+		spare = full;
+		full.flip();
+		writing = WRITERS.submit(new Callable<Void>() {
+			@Override
+			public Void call() throws IOException {
+				try {
+					while (full.hasRemaining()) {
+						channel.write(full);
+					}
+					return null;
+				}
+				finally {
+					full.clear();
+				}
+			}
+		});
+	}
+
+	private void awaitWrite() throws IOException {
+		if (writing == null) {
+			return;
+		}
+		try {
+			writing.get();
+			writing = null;
+		}
+		catch (InterruptedException e) {
+			// the write goes on, the next call waits for it again
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException("Interrupted while writing an output file");
+		}
+		catch (ExecutionException e) {
+			writing = null;
+			Throwable cause = e.getCause();
+			failure = cause instanceof IOException ? (IOException) cause : new IOException(cause);
+			throw failure;
+		}
+	}
+}
@@ -0,0 +1,315 @@
+import java.io.BufferedReader;
+import java.io.FileReader;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.StringReader;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+
+import javax.json.Json;
+import javax.json.JsonArray;
+import javax.json.JsonException;
+import javax.json.JsonObject;
+import javax.json.JsonString;
+import javax.json.JsonValue;
+
+import org.apache.commons.csv.CSVFormat;
+import org.apache.commons.csv.CSVPrinter;
+
+/**
+ * Profiles every attribute of a catalog in one pass: how many items have it, how many
+ * distinct values it takes (HyperLogLog), its most frequent values (SpaceSaving) and
+ * the distribution of value lengths, in a few KB per attribute whatever the size of the
+ * catalog. Lines are read in batches by one thread and profiled by the others, each
+ * into its own profiles, which are merged at the end.
+ *
+ * Items are one JSON object per line, followed by anything after a tab. Attributes are
+ * the members of the object named by attributesKey ("." for the item itself). A catalog
+ * attribute ({"values": [{"value": ..., "isPrimary": ...}, ...]}) has the value of its
+ * only or primary entry, as in createDictionaries; other attributes have their table cell.
+ */
+final class AttributeProfiler {
+
+	static final String ITEM = ".";
+
+	private static final int BATCH = 1000;
+	private static final int MAX_LENGTH = 256; // longer values share the last bucket
+	private static final List<String> END = new ArrayList<String>();
+
+	static final class Profile {
+		final String attribute;
+		long items; // items with the attribute
+		long values; // items with a value for it
+		final HyperLogLog distinct = new HyperLogLog();
+		final SpaceSaving frequent;
+		final long[] lengths = new long[MAX_LENGTH + 1];
+		long totalLength;
+		int maxLength;
+
+		Profile(String attribute, int capacity) {
+			this.attribute = attribute;
+			frequent = new SpaceSaving(capacity);
+		}
+
+		void add(String value) {
+			values++;
+			distinct.add(LongHashSet.fingerprint(value));
+			frequent.add(value);
+			int length = value.length();
+			lengths[Math.min(length, MAX_LENGTH)]++;
+			totalLength += length;
+			maxLength = Math.max(maxLength, length);
+		}
+
+		void merge(Profile other) {
+			items += other.items;
+			values += other.values;
+			distinct.merge(other.distinct);
+			frequent.merge(other.frequent);
+			for (int i = 0; i <= MAX_LENGTH; i++) {
+				lengths[i] += other.lengths[i];
+			}
+			totalLength += other.totalLength;
+			maxLength = Math.max(maxLength, other.maxLength);
+		}
+
+		// the length at or below which fraction of the values are, MAX_LENGTH for the longer ones
+		int lengthPercentile(double fraction) {
+			long seen = 0;
+			for (int i = 0; i < MAX_LENGTH; i++) {
+				seen += lengths[i];
+				if (seen >= fraction * values) {
+					return i;
+				}
+			}
+			return MAX_LENGTH;
+		}
+	}
+
+	// the profiles of the items of one worker
+	private static final class Shard implements Runnable {
+		private final BlockingQueue<List<String>> batches;
+		private final String attributesKey;
+		private final int capacity;
+		final Map<String, Profile> profiles = new HashMap<String, Profile>();
+		long items;
+		long badItems; // invalid JSON
+		long missing; // no attributes object
+		Throwable failure;
+
+		Shard(BlockingQueue<List<String>> batches, String attributesKey, int capacity) {
+			this.batches = batches;
+			this.attributesKey = attributesKey;
+			this.capacity = capacity;
+		}
+
+		@Override
+		public void run() {
+			try {
+				List<String> batch;
+				while ((batch = batches.take()) != END) {
+					for (String line: batch) {
+						add(line);
+					}
+				}
+			}
+			catch (Throwable t) {
+				failure = t;
+				// keep taking batches so the reader is not blocked
+				try {
+					while (batches.take() != END) {
+					}
+				}
+				catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+				}
+			}
+		}
+
+		private void add(String line) {
+			items++;
+			int tab = line.indexOf('\t');
+			String itemJson = tab < 0 ? line : line.substring(0, tab);
+			JsonObject attributes;
+			try {
+				JsonObject item = Json.createReader(new StringReader(itemJson)).readObject();
+				JsonValue v = ITEM.equals(attributesKey) ? item : item.get(attributesKey);
+				if (!(v instanceof JsonObject)) {
+					missing++;
+					return;
+				}
+				attributes = (JsonObject) v;
+			}
+			catch (JsonException e) {
+				badItems++;
+				return;
+			}
+			for (Map.Entry<String, JsonValue> e: attributes.entrySet()) {
+				Profile p = profiles.get(e.getKey());
+				if (p == null) {
+					p = new Profile(e.getKey(), capacity);
+					profiles.put(e.getKey(), p);
+				}
+				p.items++;
+				String value = value(e.getValue());
+				if (value != null) {
+					p.add(value);
+				}
+			}
+		}
+	}
+
+	private AttributeProfiler() {
+	}
+
+	/**
+	 * Profiles the attributes of the items in the given files and writes one CSV row per
+	 * attribute to outputFileName, the most common attributes first, with the top most
+	 * frequent values of each and a lower bound of their counts.
+	 */
+	static void profile(String[] inputFileNames, String outputFileName, String attributesKey, int top) throws IOException {
+		int threads = Math.max(1, Runtime.getRuntime().availableProcessors() - 1);
+		BlockingQueue<List<String>> batches = new ArrayBlockingQueue<List<String>>(2 * threads);
+		List<Shard> shards = new ArrayList<Shard>();
+		List<Thread> workers = new ArrayList<Thread>();
+		for (int i = 0; i < threads; i++) {
+			Shard shard = new Shard(batches, attributesKey, 4 * top);
+			Thread t = new Thread(shard, "profiler-" + i);
+			t.setDaemon(true);
+			t.start();
+			shards.add(shard);
+			workers.add(t);
+		}
+		long lines = 0;
+		try {
+			for (String inputFileName: inputFileNames) {
+				BufferedReader br = new BufferedReader(new FileReader(inputFileName));
+				List<String> batch = new ArrayList<String>(BATCH);
+				String line;
+				while ((line = br.readLine()) != null) {
+					batch.add(line);
+					if (batch.size() == BATCH) {
+						batches.put(batch);
+						batch = new ArrayList<String>(BATCH);
+					}
+					if (++lines % 100000 == 0) {
+						System.out.println("Processed " + lines + " records");
+					}
+				}
+				br.close();
+				if (!batch.isEmpty()) {
+					batches.put(batch);
+				}
+			}
+			for (int i = 0; i < threads; i++) {
+				batches.put(END);
+			}
+			for (Thread t: workers) {
+				t.join();
+			}
+		}
+		catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException("Interrupted while profiling " + inputFileNames[0]);
+		}
+
+		Map<String, Profile> profiles = new HashMap<String, Profile>();
+		long badItems = 0;
+		long missing = 0;
+		for (Shard shard: shards) {
+			if (shard.failure != null) {
+				throw new IOException("Profiling failed", shard.failure);
+			}
+			badItems += shard.badItems;
+			missing += shard.missing;
+			for (Profile p: shard.profiles.values()) {
+				Profile merged = profiles.get(p.attribute);
+				if (merged == null) {
+					profiles.put(p.attribute, p);
+				}
+				else {
+					merged.merge(p);
+				}
+			}
+		}
+		System.out.println("No. of records seen: " + lines);
+		System.out.println("No. of records with Invalid JSON: " + badItems);
+		System.out.println("No. of records without " + attributesKey + ": " + missing);
+		System.out.println("Total no. of attributes: " + profiles.size());
+		write(outputFileName, profiles, lines, top);
+	}
+
+	private static void write(String outputFileName, Map<String, Profile> profiles, long items, int top) throws IOException {
+		List<Profile> sorted = new ArrayList<Profile>(profiles.values());
+		Collections.sort(sorted, new Comparator<Profile>() {
+			@Override
+			public int compare(Profile p1, Profile p2) {
+				if (p1.items != p2.items) {
+					return p1.items > p2.items ? -1 : 1;
+				}
+				return p1.attribute.compareTo(p2.attribute);
+			}
+		});
+		AsyncFileWriter bw = new AsyncFileWriter(outputFileName);
+		CSVPrinter printer = new CSVPrinter(bw, CSVFormat.DEFAULT.toBuilder().withRecordSeparator("\n").build());
+		printer.print("attribute");
+		printer.print("items");
+		printer.print("coverage");
+		printer.print("values");
+		printer.print("distinct");
+		printer.print("meanLength");
+		printer.print("medianLength");
+		printer.print("p90Length");
+		printer.print("maxLength");
+		for (int i = 1; i <= top; i++) {
+			printer.print("value" + i);
+			printer.print("count" + i);
+		}
+		printer.println();
+		for (Profile p: sorted) {
+			printer.print(p.attribute);
+			printer.print(p.items);
+			printer.print(String.format("%.4f", items == 0 ? 0.0 : (double) p.items / items));
+			printer.print(p.values);
+			printer.print(p.values == 0 ? 0 : Math.min(p.distinct.estimate(), p.values));
+			printer.print(String.format("%.1f", p.values == 0 ? 0.0 : (double) p.totalLength / p.values));
+			printer.print(p.lengthPercentile(0.5));
+			printer.print(p.lengthPercentile(0.9));
+			printer.print(p.maxLength);
+			for (SpaceSaving.Counter c: p.frequent.top(top)) {
+				printer.print(c.value);
+				printer.print(c.guaranteed());
+			}
+			printer.println();
+		}
+		printer.close();
+		bw.close();
+		System.out.println("Attribute profiles: " + outputFileName);
+	}
+
+	// the value of a catalog attribute, or the table cell of any other
+	static String value(JsonValue v) {
+		if (v instanceof JsonObject && ((JsonObject) v).get("values") instanceof JsonArray) {
+			JsonArray arr = ((JsonObject) v).getJsonArray("values");
+			for (int k = 0; k < arr.size(); k++) {
+				if (!(arr.get(k) instanceof JsonObject)) {
+					continue;
+				}
+				JsonObject entry = arr.getJsonObject(k);
+				JsonValue primary = entry.get("isPrimary");
+				if (arr.size() == 1 || (primary instanceof JsonString && "true".equals(((JsonString) primary).getString()))) {
+					JsonValue value = entry.get("value");
+					return value instanceof JsonString ? ((JsonString) value).getString() : null;
+				}
+			}
+			return null;
+		}
+		return Parser.renderCell(v);
+	}
+}
@@ -0,0 +1,262 @@
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.Future;
+
+/**
+ * Reads the annotated extraction files collateExtractedFile(s) take:
+ *
+ *   ... Walmart product ...:<item id><one more char>
+ *   BRAND: Samsung
+ *   SCREEN SIZE: 32 in
+ *   ***
+ *
+ * The file is memory mapped and scanned byte by byte by a two state machine, outside a
+ * block and inside one, with lines ended as BufferedReader.readLine ends them. Only the
+ * item ids and the values of the wanted attributes become Strings; the table name and
+ * attribute names are matched as bytes. Reads what the line by line loops read: the item
+ * id is what follows the first ':' up to the next one, less its last char, and a value is
+ * what follows the first ": " up to the next one, trimmed.
+ *
+ * Encoded with the default charset, as FileReader reads them, which must be ASCII
+ * compatible.
+ */
+final class ExtractionParser {
+
+	private static final Charset CHARSET = Charset.defaultCharset();
+
+	private final MappedByteBuffer buf;
+	private final int length;
+	private final byte[] marker; // "<table> product"
+	private final byte[][] attributeBytes;
+	private final String[] attributeNames;
+	private int pos;
+
+	private ExtractionParser(String fileName, String tableName, Set<String> attributes) throws IOException {
+		RandomAccessFile file = new RandomAccessFile(fileName, "r");
+		try {
+			if (file.length() > Integer.MAX_VALUE) {
+				throw new IOException(fileName + " is larger than 2 GB");
+			}
+			buf = file.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, file.length());
+		}
+		finally {
+			file.close();
+		}
+		length = buf.capacity();
+		marker = (tableName + " product").getBytes(CHARSET);
+		attributeNames = attributes.toArray(new String[attributes.size()]);
+		attributeBytes = new byte[attributeNames.length][];
+		for (int i = 0; i < attributeNames.length; i++) {
+			attributeBytes[i] = attributeNames[i].getBytes(CHARSET);
+		}
+	}
+
+	/**
+	 * The items of a file by id, in the order they first appear. An item seen again has
+	 * its values replaced when merge is false, as collateExtractedFile does, or updated.
+	 */
+	static LinkedHashMap<String, Map<String, String>> parse(String fileName, String tableName,
+			Set<String> attributes, boolean merge) throws IOException {
+		return new ExtractionParser(fileName, tableName, attributes).parse(merge);
+	}
+
+	/**
+	 * The items of all files, parsed in parallel and merged by id in file order, as
+	 * collateExtractedFiles reads them one after the other: the values of a later file
+	 * win, and items keep the place of their first appearance.
+	 */
+	static LinkedHashMap<String, Map<String, String>> parseAll(String[] fileNames, final String tableName,
+			final Set<String> attributes) throws IOException {
+		List<Future<LinkedHashMap<String, Map<String, String>>>> parsed =
+				new ArrayList<Future<LinkedHashMap<String, Map<String, String>>>>();
+		for (final String fileName: fileNames) {
+			parsed.add(TableWriter.POOL.submit(new Callable<LinkedHashMap<String, Map<String, String>>>() {
+				@Override
+				public LinkedHashMap<String, Map<String, String>> call() throws IOException {
+					return parse(fileName, tableName, attributes, true);
+				}
+			}));
+		}
+		// values are put one by one in the order they were first read, the maps are the HashMaps a single pass builds
+		LinkedHashMap<String, Map<String, String>> table = new LinkedHashMap<String, Map<String, String>>();
+		for (Future<LinkedHashMap<String, Map<String, String>>> f: parsed) {
+			for (Map.Entry<String, Map<String, String>> e: TableWriter.get(f).entrySet()) {
+				Map<String, String> itemMap = table.get(e.getKey());
+				if (itemMap == null) {
+					itemMap = new HashMap<String, String>();
+					table.put(e.getKey(), itemMap);
+				}
+				for (Map.Entry<String, String> v: e.getValue().entrySet()) {
+					itemMap.put(v.getKey(), v.getValue());
+				}
+			}
+		}
+		return table;
+	}
+
+	private LinkedHashMap<String, Map<String, String>> parse(boolean merge) {
+		LinkedHashMap<String, Map<String, String>> table = new LinkedHashMap<String, Map<String, String>>();
+		int bad = 0;
+		while (pos < length) {
+			int start = pos;
+			int end = lineEnd();
+			if (!contains(start, end, marker)) {
+				continue;
+			}
+			String itemId = itemId(start, end);
+			Map<String, String> itemMap = merge ? table.get(itemId) : null;
+			if (itemMap == null) {
+				// merged maps keep the order the values were first read in, for parseAll
+				itemMap = merge ? new LinkedHashMap<String, String>() : new HashMap<String, String>();
+			}
+			// the block, up to a line starting with "***"
+			while (pos < length) {
+				start = pos;
+				end = lineEnd();
+				if (end - start >= 3 && buf.get(start) == '*' && buf.get(start + 1) == '*' && buf.get(start + 2) == '*') {
+					break;
+				}
+				value(start, end, itemMap);
+			}
+			if (itemId == null) {
+				bad++;
+				continue;
+			}
+			table.put(itemId, itemMap);
+		}
+		if (bad > 0) {
+			System.err.println(bad + " product lines without an item id skipped");
+		}
+		return table;
+	}
+
+	// the end of the line at pos, which moves past its terminator
+	private int lineEnd() {
+		int i = pos;
+		while (i < length) {
+			byte b = buf.get(i);
+			if (b == '\n') {
+				pos = i + 1;
+				return i;
+			}
+			if (b == '\r') {
+				pos = i + 1 < length && buf.get(i + 1) == '\n' ? i + 2 : i + 1;
+				return i;
+			}
+			i++;
+		}
+		pos = length;
+		return length;
+	}
+
+	private boolean contains(int start, int end, byte[] s) {
+		byte first = s[0];
+		for (int i = start; i <= end - s.length; i++) {
+			if (buf.get(i) == first && matches(i, s)) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	private boolean matches(int at, byte[] s) {
+		for (int j = 1; j < s.length; j++) {
+			if (buf.get(at + j) != s[j]) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	// between the first ':' and the next, less its last char; null when there is none
+	private String itemId(int start, int end) {
+		int colon = indexOf(start, end, (byte) ':');
+		if (colon < 0) {
+			return null;
+		}
+		int next = indexOf(colon + 1, end, (byte) ':');
+		String id = string(colon + 1, next < 0 ? end : next);
+		return id.isEmpty() ? null : id.substring(0, id.length() - 1);
+	}
+
+	// puts "<attribute>: <value>[: ...]" when the attribute is wanted and something non-empty follows
+	private void value(int start, int end, Map<String, String> itemMap) {
+		int sep = separator(start, end);
+		if (sep < 0) {
+			return;
+		}
+		String attribute = null;
+		for (int a = 0; a < attributeBytes.length; a++) {
+			byte[] name = attributeBytes[a];
+			if (name.length == sep - start && (name.length == 0 || (buf.get(start) == name[0] && matches(start, name)))) {
+				attribute = attributeNames[a];
+				break;
+			}
+		}
+		if (attribute == null) {
+			return;
+		}
+		// String.split drops the trailing empty pieces, nothing is put for "<attribute>: : "
+		int from = sep + 2;
+		int to = separator(from, end);
+		int p = from;
+		while (p < end) {
+			int s = separator(p, end);
+			if (s != p) {
+				break;
+			}
+			p += 2;
+		}
+		if (p >= end) {
+			return;
+		}
+		if (to < 0) {
+			to = end;
+		}
+		while (from < to && (buf.get(from) & 0xff) <= ' ') {
+			from++;
+		}
+		while (to > from && (buf.get(to - 1) & 0xff) <= ' ') {
+			to--;
+		}
+		itemMap.put(attribute, string(from, to));
+	}
+
+	// the first ": " in [from, end), -1 if none
+	private int separator(int from, int end) {
+		for (int i = from; i < end - 1; i++) {
+			if (buf.get(i) == ':' && buf.get(i + 1) == ' ') {
+				return i;
+			}
+		}
+		return -1;
+	}
+
+	private int indexOf(int from, int end, byte b) {
+		for (int i = from; i < end; i++) {
+			if (buf.get(i) == b) {
+				return i;
+			}
+		}
+		return -1;
+	}
+
+	private String string(int from, int to) {
+		byte[] bytes = new byte[to - from];
+		ByteBuffer b = buf.duplicate();
+		b.position(from);
+		b.get(bytes);
+		return new String(bytes, CHARSET);
+	}
+}
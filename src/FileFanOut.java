@@ -0,0 +1,119 @@
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * Reads many input files at once, each into its own accumulator, and merges those by a
+ * tree reduce: neighbours are merged in pairs, in parallel, then the pairs, and so on,
+ * always the later file into the earlier one. At most readers files are read at the
+ * same time, on threads of their own, so I/O bound reads do not hold the threads of
+ * TableWriter's pool. Every file is reported, in file order, when all are read.
+ */
+final class FileFanOut {
+
+	static final int DEFAULT_READERS = Math.max(4, Runtime.getRuntime().availableProcessors());
+
+	interface Ingest<T> {
+		// the accumulator of one file
+		T read(String fileName) throws IOException;
+
+		// e.g. its bad records, before it is merged
+		void report(String fileName, T read);
+
+		// other, of later files, added to into, which is returned
+		T merge(T into, T other);
+	}
+
+	private FileFanOut() {
+	}
+
+	static <T> T ingest(String[] fileNames, Ingest<T> ingest) throws IOException {
+		return ingest(fileNames, DEFAULT_READERS, ingest);
+	}
+
+	static <T> T ingest(String[] fileNames, int readers, final Ingest<T> ingest) throws IOException {
+		if (fileNames.length == 0) {
+			throw new IllegalArgumentException("No files to read");
+		}
+		ExecutorService pool = Executors.newFixedThreadPool(Math.max(1, Math.min(readers, fileNames.length)),
+				new ThreadFactory() {
+			private int n;
+
+			@Override
+			public synchronized Thread newThread(Runnable r) {
+				Thread t = new Thread(r, "file-reader-" + (++n));
+				t.setDaemon(true);
+				return t;
+			}
+		});
+		try {
+			List<Future<T>> reads = new ArrayList<Future<T>>(fileNames.length);
+			for (final String fileName: fileNames) {
+				reads.add(pool.submit(new Callable<T>() {
+					@Override
+					public T call() throws IOException {
+						return ingest.read(fileName);
+					}
+				}));
+			}
+			List<T> level = new ArrayList<T>(fileNames.length);
+			for (int i = 0; i < fileNames.length; i++) {
+				T read = get(reads.get(i));
+				ingest.report(fileNames[i], read);
+				level.add(read);
+			}
+			while (level.size() > 1) {
+				List<Future<T>> merges = new ArrayList<Future<T>>((level.size() + 1) / 2);
+				for (int i = 0; i + 1 < level.size(); i += 2) {
+					final T into = level.get(i);
+					final T other = level.get(i + 1);
+					merges.add(pool.submit(new Callable<T>() {
+						@Override
+						public T call() {
+							return ingest.merge(into, other);
+						}
+					}));
+				}
+				List<T> next = new ArrayList<T>(merges.size() + 1);
+				for (Future<T> f: merges) {
+					next.add(get(f));
+				}
+				if (level.size() % 2 == 1) {
+					next.add(level.get(level.size() - 1));
+				}
+				level = next;
+			}
+			return level.get(0);
+		}
+		finally {
+			pool.shutdownNow();
+		}
+	}
+
+	private static <T> T get(Future<T> f) throws IOException {
+		try {
+			return f.get();
+		}
+		catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException("Interrupted while reading files");
+		}
+		catch (ExecutionException e) {
+			Throwable cause = e.getCause();
+			if (cause instanceof IOException) {
+				throw (IOException) cause;
+			}
+			if (cause instanceof RuntimeException) {
+				throw (RuntimeException) cause;
+			}
+			throw new IllegalStateException(cause);
+		}
+	}
+}
@@ -0,0 +1,46 @@
+/**
+ * Counts distinct values in 4 KB whatever their number: 2^12 one-byte registers, each the
+ * longest run of leading zeros seen among the hashes that fall into it. The standard error
+ * is about 1.6%. Hashes are 64 bits, from LongHashSet.fingerprint.
+ */
+final class HyperLogLog {
+
+	private static final int P = 12;
+	private static final int M = 1 << P;
+
+	private final byte[] registers = new byte[M];
+
+	void add(long hash) {
+		int index = (int) (hash >>> (64 - P));
+		int rank = Long.numberOfLeadingZeros((hash << P) | (1L << (P - 1))) + 1;
+		if (rank > registers[index]) {
+			registers[index] = (byte) rank;
+		}
+	}
+
+	// afterwards this counts the values added to either
+	void merge(HyperLogLog other) {
+		for (int i = 0; i < M; i++) {
+			if (other.registers[i] > registers[i]) {
+				registers[i] = other.registers[i];
+			}
+		}
+	}
+
+	long estimate() {
+		double sum = 0;
+		int zeros = 0;
+		for (byte r: registers) {
+			sum += 1.0 / (1L << r);
+			if (r == 0) {
+				zeros++;
+			}
+		}
+		double alpha = 0.7213 / (1 + 1.079 / M);
+		double estimate = alpha * M * M / sum;
+		if (estimate <= 2.5 * M && zeros > 0) { // few values, linear counting is closer
+			estimate = M * Math.log((double) M / zeros);
+		}
+		return Math.round(estimate);
+	}
+}
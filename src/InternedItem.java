@@ -0,0 +1,169 @@
+import java.io.StringReader;
+import java.util.Arrays;
+
+import javax.json.Json;
+import javax.json.JsonException;
+import javax.json.JsonObject;
+import javax.json.JsonReader;
+
+/**
+ * An item of table A or B held as attribute codes (SymbolTable.ATTRIBUTES) and the
+ * values its table cells will print, instead of its JSON blob. Values up to
+ * MAX_POOLED_LENGTH chars are shared through a pool of the attribute, longer ones
+ * (descriptions, mostly) are kept as they are. A pool takes at most MAX_POOLED_VALUES
+ * values, so only attributes with few distinct values (brands, colors, sizes, ...) are
+ * shared; past that, values of ids, UPCs or prices are kept as they are too rather than
+ * filling the pools of the process.
+ */
+final class InternedItem {
+
+	static final int MAX_POOLED_LENGTH = 40;
+	static final int MAX_POOLED_VALUES = 1024;
+
+	// by attribute code, replaced as a whole when a pool is added
+	private static volatile SymbolTable[] pools = new SymbolTable[64];
+
+	private final int[] attributes; // ascending
+	private final int[] values; // >= 0: code in the pool of the attribute, < 0: -1 - index into rest
+	private final String[] rest;
+
+	private InternedItem(int[] attributes, int[] values, String[] rest) {
+		this.attributes = attributes;
+		this.values = values;
+		this.rest = rest;
+	}
+
+	/**
+	 * @param only when not null, attributes outside of it are dropped
+	 * @param seen when not null, the attributes of the item are added to it in the order of the JSON keys
+	 */
+	static InternedItem fromJson(String itemJson, SymbolTable.Union only, SymbolTable.Union seen) throws JsonException {
+		Builder builder = new Builder(only, seen);
+		if (JsonCells.scan(itemJson, builder)) {
+			return builder.build();
+		}
+		// not in the shapes JsonCells reads, or not JSON at all
+		JsonReader reader = Json.createReader(new StringReader(itemJson));
+		JsonObject obj = reader.readObject();
+		builder = new Builder(only, seen);
+		for (String key: obj.keySet()) {
+			String value = Parser.renderCell(obj.get(key));
+			builder.cell(SymbolTable.ATTRIBUTES.intern(key), value, 0, value.length());
+		}
+		return builder.build();
+	}
+
+	private static final class Builder implements JsonCells.Sink {
+		private final SymbolTable.Union only;
+		private final SymbolTable.Union seen;
+		private int[] attributes = new int[32];
+		private int[] values = new int[32];
+		private String[] rest;
+		private int size;
+		private int restSize;
+		private int[] keys = new int[32]; // attributes in key order, for seen
+		private int keyCount;
+
+		Builder(SymbolTable.Union only, SymbolTable.Union seen) {
+			this.only = only;
+			this.seen = seen;
+		}
+
+		@Override
+		public boolean cell(int attribute, CharSequence text, int start, int end) {
+			if (seen != null) {
+				if (keyCount == keys.length) {
+					keys = Arrays.copyOf(keys, keyCount * 2);
+				}
+				keys[keyCount++] = attribute;
+			}
+			if (only != null && !only.contains(attribute)) {
+				return true;
+			}
+			if (size == attributes.length) {
+				attributes = Arrays.copyOf(attributes, size * 2);
+				values = Arrays.copyOf(values, size * 2);
+			}
+			int code = -1;
+			if (end - start <= MAX_POOLED_LENGTH) {
+				code = pool(attribute).intern(text, start, end, MAX_POOLED_VALUES);
+			}
+			if (code < 0) {
+				if (rest == null) {
+					rest = new String[4];
+				}
+				else if (restSize == rest.length) {
+					rest = Arrays.copyOf(rest, restSize * 2);
+				}
+				rest[restSize] = text.subSequence(start, end).toString();
+				code = -1 - restSize++;
+			}
+			// insertion sort by attribute code, items have a few dozen attributes
+			int i = size;
+			while (i > 0 && attributes[i - 1] > attribute) {
+				i--;
+			}
+			if (i > 0 && attributes[i - 1] == attribute) {
+				return false; // a repeated key, javax.json keeps its first position and last value
+			}
+			System.arraycopy(attributes, i, attributes, i + 1, size - i);
+			System.arraycopy(values, i, values, i + 1, size - i);
+			attributes[i] = attribute;
+			values[i] = code;
+			size++;
+			return true;
+		}
+
+		InternedItem build() {
+			if (seen != null) {
+				for (int i = 0; i < keyCount; i++) {
+					seen.add(keys[i]);
+				}
+			}
+			return new InternedItem(Arrays.copyOf(attributes, size), Arrays.copyOf(values, size),
+					rest == null ? null : Arrays.copyOf(rest, restSize));
+		}
+	}
+
+	private static SymbolTable pool(int attribute) {
+		SymbolTable[] p = pools;
+		if (attribute < p.length && p[attribute] != null) {
+			return p[attribute];
+		}
+		synchronized (InternedItem.class) {
+			p = pools;
+			if (attribute >= p.length || p[attribute] == null) {
+				p = Arrays.copyOf(p, attribute < p.length ? p.length : Math.max(2 * p.length, attribute + 1));
+				p[attribute] = new SymbolTable();
+				pools = p;
+			}
+			return p[attribute];
+		}
+	}
+
+	// codes of the attributes of this item, ascending
+	int[] attributes() {
+		return attributes;
+	}
+
+	// the cell value of an attribute, null when the item does not have it
+	String get(int attribute) {
+		int lo = 0;
+		int hi = attributes.length - 1;
+		while (lo <= hi) {
+			int mid = (lo + hi) >>> 1;
+			int a = attributes[mid];
+			if (a < attribute) {
+				lo = mid + 1;
+			}
+			else if (a > attribute) {
+				hi = mid - 1;
+			}
+			else {
+				int code = values[mid];
+				return code >= 0 ? pool(attribute).symbol(code) : rest[-1 - code];
+			}
+		}
+		return null;
+	}
+}
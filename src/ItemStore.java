@@ -0,0 +1,399 @@
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.io.StringReader;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.Arrays;
+import java.util.Comparator;
+
+import javax.json.Json;
+import javax.json.JsonException;
+import javax.json.JsonObject;
+import javax.json.JsonReader;
+
+/**
+ * A table A or B kept off the Java heap, so a catalog of tens of millions of items is not
+ * tens of millions of objects for the collector to trace. Items are appended to a file as
+ * records, and the file is memory-mapped once the table is built:
+ *
+ *   int n, n ints              the attribute codes (SymbolTable.ATTRIBUTES), ascending
+ *   n ints                     where the value of each starts, from the start of the record
+ *   int length, UTF-8 bytes    the id
+ *   per attribute int length, UTF-8 bytes, the cell as InternedItem would give it
+ *
+ * No record crosses a PAGE boundary, so each is read from one mapping. Ids are found by an
+ * open-addressing table of (fingerprint, row + 1) slots; rows are numbered in the order
+ * the items were added, and the offsets of their records are kept too. Both are in direct
+ * buffers, which count against -XX:MaxDirectMemorySize. While the table is built, ids with
+ * the same fingerprint are the same id, as in StreamingTable. After seal() it is read only,
+ * every read is an absolute one, and it can be shared by threads without locks.
+ */
+final class ItemStore {
+
+	static final long PAGE = 1L << 30;
+	private static final int LONGS_PAGE = 1 << 24; // longs per direct buffer
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+
+	// longs in direct buffers, one that grows up to LONGS_PAGE longs and then pages of that many
+	private static final class Longs {
+		private ByteBuffer[] pages = new ByteBuffer[0];
+
+		Longs(long n) {
+			ensure(n);
+		}
+
+		void ensure(long n) {
+			if (n <= LONGS_PAGE) {
+				long have = pages.length == 0 ? 0 : pages[0].capacity() / 8;
+				if (have < n) {
+					ByteBuffer bigger = ByteBuffer.allocateDirect(8 * (int) Math.min(LONGS_PAGE, Math.max(n, 2 * have)));
+					if (pages.length > 0) {
+						ByteBuffer old = pages[0].duplicate();
+						old.clear();
+						bigger.put(old);
+					}
+					pages = new ByteBuffer[] {bigger};
+				}
+				return;
+			}
+			ensure(LONGS_PAGE);
+			int needed = (int) ((n + LONGS_PAGE - 1) / LONGS_PAGE);
+			if (needed > pages.length) {
+				int old = pages.length;
+				pages = Arrays.copyOf(pages, needed);
+				for (int i = old; i < needed; i++) {
+					pages[i] = ByteBuffer.allocateDirect(8 * LONGS_PAGE);
+				}
+			}
+		}
+
+		long get(long i) {
+			return pages[(int) (i / LONGS_PAGE)].getLong(8 * (int) (i % LONGS_PAGE));
+		}
+
+		void set(long i, long v) {
+			pages[(int) (i / LONGS_PAGE)].putLong(8 * (int) (i % LONGS_PAGE), v);
+		}
+	}
+
+	// the cells of the item being added, UTF-8 encoded, sorted by attribute as they come
+	private static final class Encoder implements JsonCells.Sink {
+		int[] attributes = new int[32];
+		int[] starts = new int[32];
+		int[] lengths = new int[32];
+		int size;
+		int[] keys = new int[32]; // attributes in key order, for seen
+		int keyCount;
+		byte[] bytes = new byte[1 << 12];
+		int used;
+
+		void reset() {
+			size = 0;
+			keyCount = 0;
+			used = 0;
+		}
+
+		@Override
+		public boolean cell(int attribute, CharSequence text, int start, int end) {
+			if (keyCount == keys.length) {
+				keys = Arrays.copyOf(keys, keyCount * 2);
+			}
+			keys[keyCount++] = attribute;
+			if (size == attributes.length) {
+				attributes = Arrays.copyOf(attributes, size * 2);
+				starts = Arrays.copyOf(starts, size * 2);
+				lengths = Arrays.copyOf(lengths, size * 2);
+			}
+			int i = size;
+			while (i > 0 && attributes[i - 1] > attribute) {
+				i--;
+			}
+			if (i > 0 && attributes[i - 1] == attribute) {
+				return false; // a repeated key, left to javax.json as InternedItem does
+			}
+			System.arraycopy(attributes, i, attributes, i + 1, size - i);
+			System.arraycopy(starts, i, starts, i + 1, size - i);
+			System.arraycopy(lengths, i, lengths, i + 1, size - i);
+			attributes[i] = attribute;
+			starts[i] = used;
+			lengths[i] = encode(text, start, end);
+			size++;
+			return true;
+		}
+
+		// appends text[start, end) as UTF-8, unpaired surrogates as '?' like String.getBytes; returns the length
+		int encode(CharSequence text, int start, int end) {
+			if (used + 3 * (end - start) > bytes.length) {
+				bytes = Arrays.copyOf(bytes, Math.max(2 * bytes.length, used + 3 * (end - start)));
+			}
+			int from = used;
+			for (int i = start; i < end; i++) {
+				char c = text.charAt(i);
+				if (c < 0x80) {
+					bytes[used++] = (byte) c;
+				}
+				else if (c < 0x800) {
+					bytes[used++] = (byte) (0xc0 | c >> 6);
+					bytes[used++] = (byte) (0x80 | c & 0x3f);
+				}
+				else if (Character.isHighSurrogate(c) && i + 1 < end && Character.isLowSurrogate(text.charAt(i + 1))) {
+					int cp = Character.toCodePoint(c, text.charAt(++i));
+					bytes[used++] = (byte) (0xf0 | cp >> 18);
+					bytes[used++] = (byte) (0x80 | cp >> 12 & 0x3f);
+					bytes[used++] = (byte) (0x80 | cp >> 6 & 0x3f);
+					bytes[used++] = (byte) (0x80 | cp & 0x3f);
+				}
+				else if (Character.isSurrogate(c)) {
+					bytes[used++] = '?';
+				}
+				else {
+					bytes[used++] = (byte) (0xe0 | c >> 12);
+					bytes[used++] = (byte) (0x80 | c >> 6 & 0x3f);
+					bytes[used++] = (byte) (0x80 | c & 0x3f);
+				}
+			}
+			return used - from;
+		}
+	}
+
+	private final File file;
+	private BufferedOutputStream out; // null once sealed
+	private long length;
+	private ByteBuffer[] pages; // the mapped file, once sealed
+	private long capacity = 1024;
+	private Longs slots = new Longs(2 * capacity);
+	private final Longs records = new Longs(1024);
+	private int size;
+	private final Encoder encoder = new Encoder();
+	private byte[] record = new byte[1 << 12];
+
+	// the records go to fileName, which is deleted by close()
+	ItemStore(String fileName) throws IOException {
+		file = new File(fileName);
+		out = new BufferedOutputStream(new FileOutputStream(file), 1 << 16);
+	}
+
+	/**
+	 * Adds an item unless its id is already in the table; its JSON is parsed either way, and
+	 * when seen is not null the attributes of the item are added to it in the order of the
+	 * JSON keys. Bad JSON throws and adds nothing.
+	 */
+	boolean add(String id, String itemJson, SymbolTable.Union seen) throws JsonException, IOException {
+		encoder.reset();
+		if (!JsonCells.scan(itemJson, encoder)) {
+			// not in the shapes JsonCells reads, or not JSON at all
+			JsonReader reader = Json.createReader(new StringReader(itemJson));
+			JsonObject obj = reader.readObject();
+			encoder.reset();
+			for (String key: obj.keySet()) {
+				String value = Parser.renderCell(obj.get(key));
+				encoder.cell(SymbolTable.ATTRIBUTES.intern(key), value, 0, value.length());
+			}
+		}
+		if (seen != null) {
+			for (int i = 0; i < encoder.keyCount; i++) {
+				seen.add(encoder.keys[i]);
+			}
+		}
+		return append(id, false);
+	}
+
+	/**
+	 * Puts a row of cells, e.g. a CSVRecord, the attribute of a cell being its column. A row
+	 * already there under the id is replaced, as Map.put would; false when it was.
+	 */
+	boolean put(String id, Iterable<String> cells) throws IOException {
+		encoder.reset();
+		int column = 0;
+		for (String cell: cells) {
+			encoder.cell(column++, cell, 0, cell.length());
+		}
+		return append(id, true);
+	}
+
+	// a replaced row keeps its number and points to the new record, the old one stays in the file unread
+	private boolean append(String id, boolean replace) throws IOException {
+		if (out == null) {
+			throw new IllegalStateException("The item store " + file + " is sealed");
+		}
+		long fingerprint = LongHashSet.fingerprint(id);
+		long slot = slot(fingerprint);
+		long replaced = slots.get(2 * slot + 1); // the row + 1, 0 when the id is new
+		if (replaced != 0 && !replace) {
+			return false;
+		}
+		int n = encoder.size;
+		int idStart = encoder.used;
+		int idLength = encoder.encode(id, 0, id.length());
+		int header = 4 + 8 * n;
+		long total = header + 4L + idLength + 4L * n + idStart; // the values are the first idStart bytes
+		if (total > PAGE) {
+			throw new IOException("Item " + id + " does not fit in a page of the item store");
+		}
+		if (record.length < total) {
+			record = new byte[(int) Math.max(total, 2L * record.length)];
+		}
+		ByteBuffer rb = ByteBuffer.wrap(record);
+		rb.putInt(n);
+		for (int i = 0; i < n; i++) {
+			rb.putInt(encoder.attributes[i]);
+		}
+		rb.position(header);
+		rb.putInt(idLength);
+		rb.put(encoder.bytes, idStart, idLength);
+		for (int i = 0; i < n; i++) {
+			rb.putInt(4 + 4 * n + 4 * i, rb.position());
+			rb.putInt(encoder.lengths[i]);
+			rb.put(encoder.bytes, encoder.starts[i], encoder.lengths[i]);
+		}
+		if (length % PAGE + total > PAGE) { // to the next page
+			byte[] zeros = new byte[1 << 16];
+			for (long pad = PAGE - length % PAGE; pad > 0; pad -= zeros.length) {
+				out.write(zeros, 0, (int) Math.min(pad, zeros.length));
+			}
+			length += PAGE - length % PAGE;
+		}
+		out.write(record, 0, rb.position());
+		if (replaced != 0) {
+			records.set(replaced - 1, length);
+			length += rb.position();
+			return false;
+		}
+		records.ensure(size + 1L);
+		records.set(size, length);
+		length += rb.position();
+		size++;
+		slots.set(2 * slot, fingerprint);
+		slots.set(2 * slot + 1, size);
+		if (2L * size > capacity) {
+			grow();
+		}
+		return true;
+	}
+
+	// the slot of the fingerprint, or the empty one it would go to
+	private long slot(long fingerprint) {
+		long mask = capacity - 1;
+		for (long i = (fingerprint ^ (fingerprint >>> 32)) & mask; ; i = (i + 1) & mask) {
+			if (slots.get(2 * i + 1) == 0 || slots.get(2 * i) == fingerprint) {
+				return i;
+			}
+		}
+	}
+
+	private void grow() {
+		Longs old = slots;
+		long oldCapacity = capacity;
+		capacity *= 2;
+		slots = new Longs(2 * capacity);
+		for (long i = 0; i < oldCapacity; i++) {
+			long row = old.get(2 * i + 1);
+			if (row != 0) {
+				long fingerprint = old.get(2 * i);
+				long slot = slot(fingerprint);
+				slots.set(2 * slot, fingerprint);
+				slots.set(2 * slot + 1, row);
+			}
+		}
+	}
+
+	// ends the build and maps the records, the table is read only from here on
+	void seal() throws IOException {
+		if (out == null) {
+			return;
+		}
+		out.close();
+		out = null;
+		pages = new ByteBuffer[(int) ((length + PAGE - 1) / PAGE)];
+		RandomAccessFile raf = new RandomAccessFile(file, "r");
+		try {
+			FileChannel channel = raf.getChannel();
+			for (int i = 0; i < pages.length; i++) {
+				pages[i] = channel.map(FileChannel.MapMode.READ_ONLY, i * PAGE, Math.min(PAGE, length - i * PAGE));
+			}
+		}
+		finally {
+			raf.close();
+		}
+	}
+
+	int size() {
+		return size;
+	}
+
+	// the row of an id, -1 when it is not in the table; once sealed
+	int row(String id) {
+		long slot = slot(LongHashSet.fingerprint(id));
+		long row = slots.get(2 * slot + 1);
+		if (row == 0 || !id.equals(id((int) row - 1))) {
+			return -1;
+		}
+		return (int) row - 1;
+	}
+
+	String id(int row) {
+		long offset = records.get(row);
+		ByteBuffer page = pages[(int) (offset / PAGE)];
+		int at = (int) (offset % PAGE);
+		return string(page, at + 4 + 8 * page.getInt(at));
+	}
+
+	// the cell of an attribute of the item in row, null when the item does not have it
+	String get(int row, int attribute) {
+		long offset = records.get(row);
+		ByteBuffer page = pages[(int) (offset / PAGE)];
+		int at = (int) (offset % PAGE);
+		int n = page.getInt(at);
+		int lo = 0;
+		int hi = n - 1;
+		while (lo <= hi) {
+			int mid = (lo + hi) >>> 1;
+			int a = page.getInt(at + 4 + 4 * mid);
+			if (a < attribute) {
+				lo = mid + 1;
+			}
+			else if (a > attribute) {
+				hi = mid - 1;
+			}
+			else {
+				return string(page, at + page.getInt(at + 4 + 4 * n + 4 * mid));
+			}
+		}
+		return null;
+	}
+
+	private static String string(ByteBuffer page, int at) {
+		byte[] bytes = new byte[page.getInt(at)];
+		ByteBuffer view = page.duplicate();
+		view.position(at + 4);
+		view.get(bytes);
+		return new String(bytes, UTF8);
+	}
+
+	// the rows in the order of their ids; the ids are on the heap while they are sorted
+	int[] sortedRows(Comparator<String> order) {
+		String[] ids = new String[size];
+		for (int i = 0; i < size; i++) {
+			ids[i] = id(i);
+		}
+		Arrays.sort(ids, order);
+		int[] rows = new int[size];
+		for (int i = 0; i < size; i++) {
+			rows[i] = row(ids[i]);
+		}
+		return rows;
+	}
+
+	void close() throws IOException {
+		if (out != null) {
+			out.close();
+			out = null;
+		}
+		pages = null;
+		file.delete();
+	}
+}
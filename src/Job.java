@@ -0,0 +1,482 @@
+import java.io.File;
+import java.io.FileReader;
+import java.io.IOException;
+import java.io.Reader;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+
+/**
+ * A job is a DAG of stages. Every stage has a kind (see KINDS) whose parameters are typed:
+ * files it reads, files it writes, and plain values. A stage depends on every stage that
+ * writes one of the files it reads, and on the stages listed in its "after" parameter.
+ * Stages whose dependencies are done are run together on a shared executor.
+ *
+ * A job file is a properties file:
+ *
+ *   stages = diff, suppress
+ *   threads = 2
+ *   diff.kind = diff
+ *   diff.in = elec_pairs_40K.txt
+ *   diff.exclude = elec_pairs_stage1.txt, elec_pairs_stage2.txt
+ *   diff.out = elec_pairs_40K_unseen.txt
+ *   suppress.kind = suppress
+ *   suppress.in = elec_pairs_40K_unseen.txt
+ *   suppress.out = elec_pairs_40K_unseen_suppressed.txt
+ *   suppress.suppress2 = Item ID, UPC, GTIN
+ *
+ * List values are separated by commas.
+ */
+final class Job {
+
+	// parameter types
+	static final int IN = 0; // a file read by the stage
+	static final int INS = 1; // a list of files read by the stage
+	static final int OUT = 2; // a file written by the stage
+	static final int OUTS = 3; // a list of files written by the stage
+	static final int VALUE = 4;
+	static final int VALUES = 5;
+	static final int INT = 6;
+	static final int INTS = 7;
+	static final int NUMBER = 8;
+	static final int FLAG = 9;
+
+	private static final String[] TYPE_NAMES = {"file", "files", "output file", "output files",
+		"value", "values", "integer", "integers", "number", "true/false"};
+
+	static final String AFTER = "after";
+	static final String KIND = "kind";
+
+	static final class Param {
+		final String name;
+		final int type;
+		final boolean required;
+
+		Param(String name, int type, boolean required) {
+			this.name = name;
+			this.type = type;
+			this.required = required;
+		}
+	}
+
+	private static Param req(String name, int type) {
+		return new Param(name, type, true);
+	}
+
+	private static Param opt(String name, int type) {
+		return new Param(name, type, false);
+	}
+
+	/**
+	 * Stage kinds and their parameters, Parser.runStage dispatches on the kind.
+	 */
+	static final Map<String, Param[]> KINDS = new LinkedHashMap<String, Param[]>();
+	static {
+		kind("labeledPairs", req("in", IN), req("tableA", OUT), req("tableB", OUT), req("candset", OUT), req("gold", OUT),
+				opt("sorted", FLAG), opt("streaming", FLAG), opt("quarantine", OUT));
+		kind("trainTest", req("train", IN), req("test", IN), req("tableA", OUT), req("tableB", OUT),
+				req("candset", OUT), req("trainOut", OUT), req("testOut", OUT), opt("incremental", FLAG), opt("sorted", FLAG),
+				opt("streaming", FLAG), opt("offHeap", FLAG), opt("quarantine", OUT));
+		kind("items", req("in", IN), req("out", OUT), opt("sorted", FLAG), opt("streaming", FLAG),
+				opt("quarantine", OUT));
+		kind("tables", req("in", IN), req("tableA", OUT), req("tableB", OUT), req("gold", OUT), req("attributes", VALUES),
+				opt("sorted", FLAG), opt("streaming", FLAG));
+		kind("table", req("in", IN), req("side", VALUE), req("out", OUT), req("attributes", VALUES), opt("sorted", FLAG),
+				opt("streaming", FLAG));
+		kind("gold", req("in", IN), req("out", OUT));
+		kind("dictionaries", req("in", INS), req("out", OUTS), req("attributes", VALUES), opt("top", INT),
+				opt("checkpoint", OUT), opt("resume", FLAG), opt("checkpointSeconds", INT));
+		kind("mergeDictionaries", req("in", INS), req("out", OUT));
+		kind("profile", req("in", INS), req("out", OUT), opt("attributes", VALUE), opt("top", INT));
+		kind("getItems", req("in", IN), req("out", OUT), req("ids", VALUES), opt("quarantine", OUT),
+				opt("checkpoint", OUT), opt("resume", FLAG), opt("checkpointSeconds", INT));
+		kind("collate", req("in", INS), req("out", OUT), req("attributes", VALUES), req("table", VALUE));
+		kind("combine", req("original", IN), req("collated", IN), req("out", OUT), opt("runRows", INT));
+		kind("diff", req("in", IN), req("exclude", INS), req("out", OUT));
+		kind("suppress", req("in", IN), req("out", OUT), opt("suppress1", VALUES), opt("suppress2", VALUES));
+		kind("shuffle", req("in", IN), req("out", OUTS), opt("sizes", INTS), opt("validJson", FLAG));
+		kind("anonymize", req("in", IN), req("students", OUT), req("labels", OUT), opt("idMap", OUT));
+		kind("deanonymize", req("in", IN), req("idMap", IN), req("out", OUT));
+		kind("downsample", req("in", IN), req("out", OUT), req("keep", NUMBER));
+		kind("labelCandset", req("candset", IN), req("gold", IN), req("out", OUT));
+		kind("replaceLabels", req("in", IN), req("out", OUT));
+		kind("ruleEvals", req("in", IN), req("out", OUT));
+		kind("indexPairs", req("in", IN), opt("out", OUT));
+		kind("samplePairs", req("in", IN), req("out", OUT), req("positives", INT), req("negatives", INT),
+				req("attributes", VALUES), opt("index", OUT), opt("seed", INT));
+		kind("studentSample", req("in", IN), req("out", OUTS), req("extract", VALUES));
+		kind("extractionSample", req("in", IN), req("out", OUTS), req("extract", VALUE), opt("exclude", VALUES),
+				opt("limit", INT));
+		kind("evalRules", req("in", IN), req("tableA", IN), req("tableB", IN), req("rules", IN), req("out", OUT));
+	}
+
+	private static void kind(String name, Param... params) {
+		KINDS.put(name, params);
+	}
+
+	static final class Stage {
+		final String name;
+		final String kind;
+		final Map<String, String> params;
+
+		Stage(String name, String kind, Map<String, String> params) {
+			this.name = name;
+			this.kind = kind;
+			this.params = params;
+		}
+
+		String get(String param) {
+			return params.get(param);
+		}
+
+		String[] getList(String param) {
+			return split(params.get(param));
+		}
+
+		int[] getInts(String param) {
+			String[] vals = getList(param);
+			int[] ints = new int[vals.length];
+			for (int i = 0; i < vals.length; i++) {
+				ints[i] = Integer.parseInt(vals[i]);
+			}
+			return ints;
+		}
+
+		double getNumber(String param) {
+			return Double.parseDouble(params.get(param).trim());
+		}
+
+		boolean getFlag(String param) {
+			return Boolean.parseBoolean(params.get(param));
+		}
+
+		private List<String> files(int single, int multiple) {
+			List<String> files = new ArrayList<String>();
+			for (Param p: KINDS.get(kind)) {
+				if (params.containsKey(p.name) && (p.type == single || p.type == multiple)) {
+					for (String f: getList(p.name)) {
+						files.add(new File(f).getAbsolutePath());
+					}
+				}
+			}
+			return files;
+		}
+
+		List<String> inputs() {
+			return files(IN, INS);
+		}
+
+		List<String> outputs() {
+			return files(OUT, OUTS);
+		}
+
+		@Override
+		public String toString() {
+			return name + " (" + kind + ")";
+		}
+	}
+
+	interface StageRunner {
+		void run(Stage stage) throws Exception;
+	}
+
+	private final Map<String, Stage> stages = new LinkedHashMap<String, Stage>();
+	private int threads = Runtime.getRuntime().availableProcessors();
+
+	int threads() {
+		return threads;
+	}
+
+	Job threads(int threads) {
+		if (threads < 1) {
+			throw new IllegalArgumentException("threads must be at least 1, got " + threads);
+		}
+		this.threads = threads;
+		return this;
+	}
+
+	static String[] split(String list) {
+		if (list == null || list.trim().isEmpty()) {
+			return new String[0];
+		}
+		String[] vals = list.split(",");
+		for (int i = 0; i < vals.length; i++) {
+			vals[i] = vals[i].trim();
+		}
+		return vals;
+	}
+
+	/**
+	 * Adds a stage, e.g. job.stage("dedupe", "diff", "in", "a.txt", "exclude", "b.txt,c.txt", "out", "d.txt").
+	 */
+	Job stage(String name, String kind, String... paramsAndValues) {
+		if (paramsAndValues.length % 2 != 0) {
+			throw new IllegalArgumentException("Stage " + name + ": parameters and values must come in pairs");
+		}
+		Map<String, String> params = new LinkedHashMap<String, String>();
+		for (int i = 0; i < paramsAndValues.length; i += 2) {
+			params.put(paramsAndValues[i], paramsAndValues[i + 1]);
+		}
+		return stage(name, kind, params);
+	}
+
+	Job stage(String name, String kind, Map<String, String> params) {
+		if (stages.containsKey(name)) {
+			throw new IllegalArgumentException("Duplicate stage " + name);
+		}
+		Param[] spec = KINDS.get(kind);
+		if (spec == null) {
+			throw new IllegalArgumentException("Stage " + name + ": unknown kind " + kind + ", expected one of " + KINDS.keySet());
+		}
+		Set<String> known = new HashSet<String>();
+		known.add(AFTER);
+		for (Param p: spec) {
+			known.add(p.name);
+			String v = params.get(p.name);
+			if (v == null) {
+				if (p.required) {
+					throw new IllegalArgumentException("Stage " + name + ": missing " + TYPE_NAMES[p.type] + " parameter " + p.name);
+				}
+				continue;
+			}
+			try {
+				for (String s: split(v)) {
+					if (p.type == INT || p.type == INTS) {
+						Integer.parseInt(s);
+					}
+					else if (p.type == NUMBER) {
+						Double.parseDouble(s);
+					}
+				}
+			}
+			catch (NumberFormatException e) {
+				throw new IllegalArgumentException("Stage " + name + ": parameter " + p.name + " must be " + TYPE_NAMES[p.type] + ", got " + v);
+			}
+		}
+		for (String p: params.keySet()) {
+			if (!known.contains(p)) {
+				throw new IllegalArgumentException("Stage " + name + ": unknown parameter " + p + " for kind " + kind);
+			}
+		}
+		stages.put(name, new Stage(name, kind, params));
+		return this;
+	}
+
+	Set<String> stageNames() {
+		return stages.keySet();
+	}
+
+	static Job load(String jobFile) throws IOException {
+		Properties props = new Properties();
+		Reader r = new FileReader(jobFile);
+		props.load(r);
+		r.close();
+		return load(props);
+	}
+
+	static Job load(Properties props) {
+		Job job = new Job();
+		if (props.getProperty("threads") != null) {
+			job.threads(Integer.parseInt(props.getProperty("threads").trim()));
+		}
+		for (String name: split(props.getProperty("stages"))) {
+			String kind = props.getProperty(name + "." + KIND);
+			if (kind == null) {
+				throw new IllegalArgumentException("Stage " + name + ": missing " + name + "." + KIND);
+			}
+			Map<String, String> params = new LinkedHashMap<String, String>();
+			String prefix = name + ".";
+			for (String key: props.stringPropertyNames()) {
+				if (key.startsWith(prefix) && !key.equals(prefix + KIND)) {
+					params.put(key.substring(prefix.length()), props.getProperty(key));
+				}
+			}
+			job.stage(name, kind, params);
+		}
+		return job;
+	}
+
+	/**
+	 * stage -> stages it waits for. Fails on unknown "after" stages, on a file written by
+	 * two stages and on cycles.
+	 */
+	Map<String, Set<String>> dependencies() {
+		Map<String, String> writers = new HashMap<String, String>();
+		for (Stage s: stages.values()) {
+			for (String f: s.outputs()) {
+				String other = writers.put(f, s.name);
+				if (other != null) {
+					throw new IllegalArgumentException("Stages " + other + " and " + s.name + " both write " + f);
+				}
+			}
+		}
+		Map<String, Set<String>> deps = new LinkedHashMap<String, Set<String>>();
+		for (Stage s: stages.values()) {
+			Set<String> d = new LinkedHashSet<String>();
+			for (String f: s.inputs()) {
+				String w = writers.get(f);
+				if (w != null && !w.equals(s.name)) {
+					d.add(w);
+				}
+			}
+			for (String a: s.getList(AFTER)) {
+				if (!stages.containsKey(a)) {
+					throw new IllegalArgumentException("Stage " + s.name + ": unknown stage " + a + " in " + AFTER);
+				}
+				d.add(a);
+			}
+			deps.put(s.name, d);
+		}
+		// Kahn's algorithm, whatever is left over is on a cycle
+		Set<String> sorted = new HashSet<String>();
+		boolean progress = true;
+		while (progress) {
+			progress = false;
+			for (Map.Entry<String, Set<String>> e: deps.entrySet()) {
+				if (!sorted.contains(e.getKey()) && sorted.containsAll(e.getValue())) {
+					sorted.add(e.getKey());
+					progress = true;
+				}
+			}
+		}
+		if (sorted.size() != deps.size()) {
+			Set<String> cycle = new LinkedHashSet<String>(deps.keySet());
+			cycle.removeAll(sorted);
+			throw new IllegalArgumentException("Stages depend on each other in a cycle: " + cycle);
+		}
+		return deps;
+	}
+
+	private static final class Outcome {
+		final Stage stage;
+		final Throwable error;
+		final long millis;
+
+		Outcome(Stage stage, Throwable error, long millis) {
+			this.stage = stage;
+			this.error = error;
+			this.millis = millis;
+		}
+	}
+
+	/**
+	 * Checks the DAG and that every input either exists or is written by some stage.
+	 */
+	Map<String, Set<String>> validate() {
+		Map<String, Set<String>> deps = dependencies();
+		for (Stage s: stages.values()) {
+			for (String f: s.inputs()) {
+				if (!new File(f).exists() && !producedBySomeStage(f)) {
+					throw new IllegalArgumentException("Stage " + s.name + ": input " + f + " does not exist");
+				}
+			}
+		}
+		return deps;
+	}
+
+	/**
+	 * Runs every stage once its dependencies are done. Stages that depend on a failed stage
+	 * are skipped. Returns the names of the stages that failed or were skipped.
+	 */
+	Set<String> run(ExecutorService executor, final StageRunner runner) throws InterruptedException {
+		Map<String, Set<String>> deps = validate();
+		ExecutorCompletionService<Outcome> ecs = new ExecutorCompletionService<Outcome>(executor);
+		Set<String> done = new HashSet<String>();
+		Set<String> failed = new LinkedHashSet<String>();
+		Set<String> submitted = new HashSet<String>();
+		int running = 0;
+		while (true) {
+			// a skip can skip stages before it in the order, so skips go round until none is left
+			boolean skipped = true;
+			while (skipped) {
+				skipped = false;
+				for (Stage s: stages.values()) {
+					if (!submitted.contains(s.name) && !disjoint(deps.get(s.name), failed)) {
+						System.err.println("Skipping stage " + s + ", a stage it depends on failed or was skipped");
+						failed.add(s.name);
+						submitted.add(s.name);
+						skipped = true;
+					}
+				}
+			}
+			for (final Stage s: stages.values()) {
+				if (submitted.contains(s.name)) {
+					continue;
+				}
+				Set<String> d = deps.get(s.name);
+				if (done.containsAll(d)) {
+					submitted.add(s.name);
+					running++;
+					System.out.println("Starting stage " + s);
+					ecs.submit(new Callable<Outcome>() {
+						public Outcome call() {
+							long start = System.currentTimeMillis();
+							try {
+								runner.run(s);
+								return new Outcome(s, null, System.currentTimeMillis() - start);
+							}
+							catch (Throwable t) {
+								return new Outcome(s, t, System.currentTimeMillis() - start);
+							}
+						}
+					});
+				}
+			}
+			if (running == 0) {
+				break;
+			}
+			Outcome o;
+			try {
+				o = ecs.take().get();
+			}
+			catch (ExecutionException e) {
+				// the callable catches everything
+				throw new IllegalStateException(e);
+			}
+			running--;
+			if (o.error == null) {
+				System.out.println("Finished stage " + o.stage + " in " + o.millis + " ms");
+				done.add(o.stage.name);
+			}
+			else {
+				System.err.println("Stage " + o.stage + " failed after " + o.millis + " ms");
+				o.error.printStackTrace();
+				failed.add(o.stage.name);
+			}
+		}
+		for (String name: stages.keySet()) {
+			if (!done.contains(name) && !failed.contains(name)) {
+				throw new IllegalStateException("Stage " + name + " neither ran nor was skipped");
+			}
+		}
+		return failed;
+	}
+
+	private boolean producedBySomeStage(String file) {
+		for (Stage s: stages.values()) {
+			if (s.outputs().contains(file)) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	private static boolean disjoint(Set<String> a, Set<String> b) {
+		for (String s: a) {
+			if (b.contains(s)) {
+				return false;
+			}
+		}
+		return true;
+	}
+}
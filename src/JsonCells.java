@@ -0,0 +1,358 @@
+import java.io.StringReader;
+
+import javax.json.Json;
+import javax.json.JsonArray;
+import javax.json.JsonException;
+
+/**
+ * Reads the top level members of an item's JSON object and renders each value as
+ * Parser.renderCell renders the javax.json value, straight from the chars of the blob.
+ * Strings and arrays of strings, nearly all of the values in the catalogs, are rendered
+ * here, usually as a range of the blob itself; other values go through javax.json one at
+ * a time. scan() returns false on anything it does not accept, and the caller then parses
+ * the blob with javax.json, which reports the error.
+ */
+final class JsonCells {
+
+	interface Sink {
+		// the cell of the attribute is text[start, end), text is only valid during the call.
+		// false stops the scan.
+		boolean cell(int attribute, CharSequence text, int start, int end);
+	}
+
+	private final String json;
+	private final int length;
+	private int pos;
+	private StringBuilder scratch;
+
+	// the last string read: content json[stringStart, stringEnd)
+	private int stringStart;
+	private int stringEnd;
+	private boolean stringEscaped; // has backslash escapes
+	private boolean stringSpecial; // has chars the JSON writer escapes as \\u
+
+	private JsonCells(String json) {
+		this.json = json;
+		this.length = json.length();
+	}
+
+	static boolean scan(String json, Sink sink) {
+		return new JsonCells(json).object(sink);
+	}
+
+	private boolean object(Sink sink) {
+		skipWhitespace();
+		if (!consume('{')) {
+			return false;
+		}
+		skipWhitespace();
+		if (!consume('}')) {
+			do {
+				skipWhitespace();
+				if (!readString()) {
+					return false;
+				}
+				int attribute;
+				if (stringEscaped) {
+					StringBuilder sb = scratch();
+					appendDecoded(sb, stringStart, stringEnd);
+					attribute = SymbolTable.ATTRIBUTES.intern(sb, 0, sb.length());
+				}
+				else {
+					attribute = SymbolTable.ATTRIBUTES.intern(json, stringStart, stringEnd);
+				}
+				skipWhitespace();
+				if (!consume(':')) {
+					return false;
+				}
+				skipWhitespace();
+				if (!value(attribute, sink)) {
+					return false;
+				}
+				skipWhitespace();
+			} while (consume(','));
+			if (!consume('}')) {
+				return false;
+			}
+		}
+		skipWhitespace();
+		return pos == length;
+	}
+
+	private boolean value(int attribute, Sink sink) {
+		int valueStart = pos;
+		if (pos < length && json.charAt(pos) == '"') {
+			if (!readString()) {
+				return false;
+			}
+			// a string renders as itself, unquoted and unescaped
+			if (!stringEscaped) {
+				return cell(attribute, json, stringStart, stringEnd, sink);
+			}
+			StringBuilder sb = scratch();
+			appendDecoded(sb, stringStart, stringEnd);
+			return cell(attribute, sb, 0, sb.length(), sink);
+		}
+		if (pos < length && json.charAt(pos) == '[') {
+			pos++;
+			skipWhitespace();
+			if (consume(']')) {
+				return sink.cell(attribute, "[]", 0, 2);
+			}
+			// ["a", "b"] renders as a","b with the JSON writer's escaping, which is the blob
+			// itself when there is nothing to escape or unescape and no whitespace
+			int first = -1;
+			boolean verbatim = true;
+			int elements = 0;
+			do {
+				skipWhitespace();
+				if (pos >= length || json.charAt(pos) != '"') {
+					break;
+				}
+				if (elements > 0 && (json.charAt(pos - 1) != ',' || json.charAt(pos - 2) != '"')) {
+					verbatim = false;
+				}
+				if (!readString()) {
+					return false;
+				}
+				if (first < 0) {
+					first = stringStart;
+					verbatim = json.charAt(first - 2) == '[';
+				}
+				verbatim &= !stringEscaped && !stringSpecial;
+				elements++;
+				skipWhitespace();
+			} while (consume(','));
+			if (consume(']')) {
+				if (verbatim && json.charAt(pos - 2) == '"') {
+					return sink.cell(attribute, json, first, pos - 2);
+				}
+				return sink.cell(attribute, renderStrings(valueStart), 0, scratch.length());
+			}
+			// not an array of strings only
+			pos = valueStart;
+		}
+		return other(attribute, sink);
+	}
+
+	// trims and unwraps a rendered string as renderCell does
+	private boolean cell(int attribute, CharSequence text, int start, int end, Sink sink) {
+		while (start < end && text.charAt(start) <= ' ') {
+			start++;
+		}
+		while (end > start && text.charAt(end - 1) <= ' ') {
+			end--;
+		}
+		if (end - start >= 2 && text.charAt(start) == '[' && text.charAt(start + 1) == '"'
+				&& text.charAt(end - 2) == '"' && text.charAt(end - 1) == ']') {
+			if (end - start < 4) {
+				return false; // ["] makes renderCell throw, let it
+			}
+			start += 2;
+			end -= 2;
+		}
+		return sink.cell(attribute, text, start, end);
+	}
+
+	// the elements of the array of strings starting at from, escaped and joined by ","
+	private StringBuilder renderStrings(int from) {
+		StringBuilder sb = scratch();
+		pos = from + 1;
+		int elements = 0;
+		do {
+			skipWhitespace();
+			readString();
+			if (elements++ > 0) {
+				sb.append("\",\"");
+			}
+			appendEscaped(sb, stringStart, stringEnd);
+			skipWhitespace();
+		} while (consume(','));
+		consume(']');
+		return sb;
+	}
+
+	// numbers, literals, objects and arrays of anything but strings
+	private boolean other(int attribute, Sink sink) {
+		int start = pos;
+		int depth = 0;
+		while (pos < length) {
+			char c = json.charAt(pos);
+			if (c == '"') {
+				if (!readString()) {
+					return false;
+				}
+				continue;
+			}
+			if (c == '{' || c == '[') {
+				depth++;
+			}
+			else if (c == '}' || c == ']') {
+				if (depth == 0) {
+					break;
+				}
+				depth--;
+			}
+			else if (depth == 0 && (c == ',' || c == ' ' || c == '\t' || c == '\n' || c == '\r')) {
+				break;
+			}
+			pos++;
+		}
+		if (pos == start || depth != 0) {
+			return false;
+		}
+		String value;
+		try {
+			JsonArray array = Json.createReader(new StringReader("[" + json.substring(start, pos) + "]")).readArray();
+			if (array.size() != 1) {
+				return false;
+			}
+			value = Parser.renderCell(array.get(0));
+		}
+		catch (JsonException e) {
+			return false;
+		}
+		return sink.cell(attribute, value, 0, value.length());
+	}
+
+	private boolean readString() {
+		if (pos >= length || json.charAt(pos) != '"') {
+			return false;
+		}
+		int i = pos + 1;
+		boolean escaped = false;
+		boolean special = false;
+		while (true) {
+			if (i >= length) {
+				return false;
+			}
+			char c = json.charAt(i);
+			if (c == '"') {
+				break;
+			}
+			if (c == '\\') {
+				escaped = true;
+				if (i + 1 >= length) {
+					return false;
+				}
+				char e = json.charAt(i + 1);
+				if (e == 'u') {
+					if (i + 6 > length) {
+						return false;
+					}
+					for (int k = i + 2; k < i + 6; k++) {
+						char h = json.charAt(k);
+						if (!(h >= '0' && h <= '9') && !(h >= 'a' && h <= 'f') && !(h >= 'A' && h <= 'F')) {
+							return false;
+						}
+					}
+					i += 6;
+				}
+				else if (e == '"' || e == '\\' || e == '/' || e == 'b' || e == 'f' || e == 'n' || e == 'r' || e == 't') {
+					i += 2;
+				}
+				else {
+					return false;
+				}
+				continue;
+			}
+			if (c < 0x20 || (c >= 0x7f && c <= 0x9f)) { // rejected by the javax.json tokenizer
+				return false;
+			}
+			special |= escapedAsUnicode(c);
+			i++;
+		}
+		stringStart = pos + 1;
+		stringEnd = i;
+		stringEscaped = escaped;
+		stringSpecial = special;
+		pos = i + 1;
+		return true;
+	}
+
+	private void appendDecoded(StringBuilder sb, int start, int end) {
+		for (int i = start; i < end; i++) {
+			char c = json.charAt(i);
+			if (c == '\\') {
+				char e = json.charAt(++i);
+				switch (e) {
+				case 'b': c = '\b'; break;
+				case 'f': c = '\f'; break;
+				case 'n': c = '\n'; break;
+				case 'r': c = '\r'; break;
+				case 't': c = '\t'; break;
+				case 'u':
+					c = (char) Integer.parseInt(json.substring(i + 1, i + 5), 16);
+					i += 4;
+					break;
+				default: c = e;
+				}
+			}
+			sb.append(c);
+		}
+	}
+
+	// decodes json[start, end) and escapes it again as the javax.json writer does
+	private void appendEscaped(StringBuilder sb, int start, int end) {
+		if (!stringEscaped && !stringSpecial) {
+			sb.append(json, start, end);
+			return;
+		}
+		int from = sb.length();
+		appendDecoded(sb, start, end);
+		String decoded = sb.substring(from);
+		sb.setLength(from);
+		for (int i = 0; i < decoded.length(); i++) {
+			char c = decoded.charAt(i);
+			switch (c) {
+			case '"':
+			case '\\':
+				sb.append('\\').append(c);
+				break;
+			case '\b': sb.append("\\b"); break;
+			case '\f': sb.append("\\f"); break;
+			case '\n': sb.append("\\n"); break;
+			case '\r': sb.append("\\r"); break;
+			case '\t': sb.append("\\t"); break;
+			default:
+				if (c < 0x20 || escapedAsUnicode(c)) {
+					String hex = "000" + Integer.toHexString(c);
+					sb.append("\\u").append(hex.substring(hex.length() - 4));
+				}
+				else {
+					sb.append(c);
+				}
+			}
+		}
+	}
+
+	private static boolean escapedAsUnicode(char c) {
+		return (c >= 0x80 && c < 0xa0) || (c >= 0x2000 && c < 0x2100);
+	}
+
+	private StringBuilder scratch() {
+		if (scratch == null) {
+			scratch = new StringBuilder(256);
+		}
+		scratch.setLength(0);
+		return scratch;
+	}
+
+	private void skipWhitespace() {
+		while (pos < length) {
+			char c = json.charAt(pos);
+			if (c != ' ' && c != '\t' && c != '\n' && c != '\r') {
+				return;
+			}
+			pos++;
+		}
+	}
+
+	private boolean consume(char c) {
+		if (pos < length && json.charAt(pos) == c) {
+			pos++;
+			return true;
+		}
+		return false;
+	}
+}
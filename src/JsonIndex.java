@@ -0,0 +1,475 @@
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.Set;
+
+/**
+ * A JSON object read in two stages, as simdjson reads it. The first stage goes over the
+ * chars in blocks of 64 and makes a bit mask per block of the quotes, backslashes,
+ * operators ({}[]:,) and whitespace; escaped quotes, then the chars inside strings, are
+ * found with bit arithmetic on the masks, carried from block to block, and the positions
+ * of the structural chars (operators and quotes outside strings, and the first char of
+ * every number or literal) are the structural index. The second stage walks only the
+ * index, checks the grammar and lays the values out as a tape of nodes; string contents
+ * are only looked at in the blocks that have a backslash.
+ *
+ * parse() returns null for anything it is not sure javax.json reads the same way, bad JSON
+ * and control chars in strings (which javax.json rejects from 0x7f to 0x9f too) among
+ * them, and the caller then goes through javax.json, which throws or reads it.
+ */
+final class JsonIndex {
+
+	static final int OBJECT = 0;
+	static final int ARRAY = 1;
+	static final int STRING = 2;
+	static final int NUMBER = 3;
+	static final int LITERAL = 4; // true, false and null
+
+	private static final int MAX_DEPTH = 256;
+	private static final long ODD_BITS = 0xaaaaaaaaaaaaaaaaL;
+
+	private static final byte QUOTE = 1;
+	private static final byte BACKSLASH = 2;
+	private static final byte OPERATOR = 4;
+	private static final byte SPACE = 8;
+	private static final byte CONTROL = 16; // not allowed in strings, as javax.json reads them
+	private static final byte SPECIAL = 32; // written back escaped as \\u by javax.json
+	private static final byte[] CLASSES = new byte[0xa0];
+
+	static {
+		for (int c = 0; c < 0x20; c++) {
+			CLASSES[c] = CONTROL;
+		}
+		for (int c = 0x7f; c < 0xa0; c++) {
+			CLASSES[c] = CONTROL | SPECIAL;
+		}
+		CLASSES[' '] = SPACE;
+		CLASSES['\t'] = SPACE | CONTROL;
+		CLASSES['\n'] = SPACE | CONTROL;
+		CLASSES['\r'] = SPACE | CONTROL;
+		CLASSES['"'] = QUOTE;
+		CLASSES['\\'] = BACKSLASH;
+		for (char c: "{}[]:,".toCharArray()) {
+			CLASSES[c] = OPERATOR;
+		}
+	}
+
+	private final String json;
+	private final int length;
+
+	// stage 1
+	private int[] index;
+	private int structurals;
+	private long[] escapedBlocks; // bit per block with a backslash or SPECIAL char in a string
+
+	// stage 2, the nodes in document order; keys are STRING nodes before their values
+	private int next; // the next index entry
+	private int nodes;
+	private byte[] kinds;
+	private int[] starts; // the first char, after the quote for strings
+	private int[] ends; // after the last char, the closing quote or bracket
+	private int[] skips; // the node after the subtree
+	private int[] sizes; // members or elements
+
+	private JsonIndex(String json) {
+		this.json = json;
+		length = json.length();
+	}
+
+	static JsonIndex parse(String json) {
+		JsonIndex doc = new JsonIndex(json);
+		if (!doc.stage1() || doc.structurals == 0 || json.charAt(doc.index[0]) != '{') {
+			return null;
+		}
+		int n = doc.structurals;
+		doc.kinds = new byte[n];
+		doc.starts = new int[n];
+		doc.ends = new int[n];
+		doc.skips = new int[n];
+		doc.sizes = new int[n];
+		if (!doc.parseValue(0) || doc.next != n) {
+			return null;
+		}
+		return doc;
+	}
+
+	private boolean stage1() {
+		index = new int[Math.max(16, length / 4)];
+		escapedBlocks = new long[(((length + 63) >>> 6) + 63) >>> 6];
+		long nextIsEscaped = 0;
+		long prevInString = 0;
+		long prevScalar = 0;
+		for (int b = 0; b < length; b += 64) {
+			int end = Math.min(b + 64, length);
+			long quote = 0;
+			long backslash = 0;
+			long operator = 0;
+			long space = 0;
+			long control = 0;
+			long special = 0;
+			for (int j = b; j < end; j++) {
+				char c = json.charAt(j);
+				int k = c < 0xa0 ? CLASSES[c] : (c >>> 8) == 0x20 ? SPECIAL : 0;
+				if (k != 0) {
+					long bit = 1L << (j - b);
+					quote |= (k & QUOTE) != 0 ? bit : 0;
+					backslash |= (k & BACKSLASH) != 0 ? bit : 0;
+					operator |= (k & OPERATOR) != 0 ? bit : 0;
+					space |= (k & SPACE) != 0 ? bit : 0;
+					control |= (k & CONTROL) != 0 ? bit : 0;
+					special |= (k & SPECIAL) != 0 ? bit : 0;
+				}
+			}
+			long valid = end - b == 64 ? -1L : (1L << (end - b)) - 1;
+
+			// the chars after an odd run of backslashes are escaped
+			long escaped;
+			if (backslash == 0) {
+				escaped = nextIsEscaped;
+				nextIsEscaped = 0;
+			}
+			else {
+				long potential = backslash & ~nextIsEscaped;
+				long maybeEscaped = potential << 1;
+				long codes = ((maybeEscaped | ODD_BITS) - potential) ^ ODD_BITS;
+				escaped = codes ^ (backslash | nextIsEscaped);
+				nextIsEscaped = (codes & backslash) >>> 63;
+			}
+
+			// prefix xor of the quotes: from an opening quote up to its closing one
+			long quotes = quote & ~escaped;
+			long inString = quotes;
+			inString ^= inString << 1;
+			inString ^= inString << 2;
+			inString ^= inString << 4;
+			inString ^= inString << 8;
+			inString ^= inString << 16;
+			inString ^= inString << 32;
+			inString ^= prevInString;
+			prevInString = inString >> 63;
+			if ((control & inString) != 0) {
+				return false;
+			}
+			if (((backslash | special) & inString) != 0) {
+				escapedBlocks[b >>> 12] |= 1L << (b >>> 6);
+			}
+
+			long scalar = ~(operator | space | quote) & ~inString & valid;
+			long scalarStarts = scalar & ~(scalar << 1 | prevScalar);
+			prevScalar = scalar >>> 63;
+			long structural = operator & ~inString | quotes | scalarStarts;
+			if (structurals + 64 > index.length) {
+				index = Arrays.copyOf(index, Math.max(2 * index.length, structurals + 64));
+			}
+			while (structural != 0) {
+				index[structurals++] = b + Long.numberOfTrailingZeros(structural);
+				structural &= structural - 1;
+			}
+		}
+		return prevInString == 0;
+	}
+
+	private boolean parseValue(int depth) {
+		if (next >= structurals || depth > MAX_DEPTH) {
+			return false;
+		}
+		int node = nodes++;
+		int at = index[next];
+		starts[node] = at;
+		char c = json.charAt(at);
+		if (c == '{' || c == '[') {
+			boolean object = c == '{';
+			char close = object ? '}' : ']';
+			kinds[node] = (byte) (object ? OBJECT : ARRAY);
+			next++;
+			int size = 0;
+			if (next < structurals && json.charAt(index[next]) == close) {
+				ends[node] = index[next++] + 1;
+			}
+			else {
+				while (true) {
+					if (object) {
+						if (next >= structurals || json.charAt(index[next]) != '"' || !parseValue(depth + 1)
+								|| next >= structurals || json.charAt(index[next++]) != ':') {
+							return false;
+						}
+					}
+					if (!parseValue(depth + 1) || next >= structurals) {
+						return false;
+					}
+					size++;
+					char d = json.charAt(index[next++]);
+					if (d == close) {
+						ends[node] = index[next - 1] + 1;
+						break;
+					}
+					if (d != ',') {
+						return false;
+					}
+				}
+			}
+			sizes[node] = size;
+		}
+		else if (c == '"') {
+			kinds[node] = STRING;
+			starts[node] = at + 1;
+			ends[node] = index[next + 1]; // the closing quote, stage 1 saw to it
+			next += 2;
+			if (escapes(node) && !validEscapes(starts[node], ends[node])) {
+				return false;
+			}
+		}
+		else if (c == ':' || c == ',' || c == '}' || c == ']') {
+			return false;
+		}
+		else {
+			int end = ++next < structurals ? index[next] : length;
+			while (end > at && json.charAt(end - 1) <= ' ') {
+				end--;
+			}
+			ends[node] = end;
+			if (literal(at, end)) {
+				kinds[node] = LITERAL;
+			}
+			else if (number(at, end)) {
+				kinds[node] = NUMBER;
+			}
+			else {
+				return false;
+			}
+		}
+		skips[node] = nodes;
+		return true;
+	}
+
+	private boolean literal(int start, int end) {
+		return json.startsWith("true", start) && end - start == 4
+				|| json.startsWith("null", start) && end - start == 4
+				|| json.startsWith("false", start) && end - start == 5;
+	}
+
+	// -?(0|[1-9][0-9]*)(\.[0-9]+)?([eE][+-]?[0-9]+)?
+	private boolean number(int i, int end) {
+		if (i < end && json.charAt(i) == '-') {
+			i++;
+		}
+		if (i >= end) {
+			return false;
+		}
+		if (json.charAt(i) == '0') {
+			i++;
+		}
+		else {
+			int from = i;
+			i = digits(i, end);
+			if (i == from) {
+				return false;
+			}
+		}
+		if (i < end && json.charAt(i) == '.') {
+			int from = ++i;
+			i = digits(i, end);
+			if (i == from) {
+				return false;
+			}
+		}
+		if (i < end && (json.charAt(i) == 'e' || json.charAt(i) == 'E')) {
+			i++;
+			if (i < end && (json.charAt(i) == '+' || json.charAt(i) == '-')) {
+				i++;
+			}
+			int from = i;
+			i = digits(i, end);
+			if (i == from) {
+				return false;
+			}
+		}
+		return i == end;
+	}
+
+	private int digits(int i, int end) {
+		while (i < end && json.charAt(i) >= '0' && json.charAt(i) <= '9') {
+			i++;
+		}
+		return i;
+	}
+
+	// whether a string may have escapes or chars javax.json writes escaped, by the blocks it is in
+	private boolean escapes(int node) {
+		int last = Math.max(starts[node], ends[node] - 1) >>> 6;
+		for (int block = starts[node] >>> 6; block <= last; block++) {
+			if ((escapedBlocks[block >>> 6] & 1L << block) != 0) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	private boolean validEscapes(int start, int end) {
+		for (int i = start; i < end; i++) {
+			if (json.charAt(i) != '\\') {
+				continue;
+			}
+			char e = json.charAt(++i);
+			if (e == 'u') {
+				if (i + 5 > end) {
+					return false;
+				}
+				for (int k = i + 1; k < i + 5; k++) {
+					char h = json.charAt(k);
+					if (!(h >= '0' && h <= '9') && !(h >= 'a' && h <= 'f') && !(h >= 'A' && h <= 'F')) {
+						return false;
+					}
+				}
+				i += 4;
+			}
+			else if (e != '"' && e != '\\' && e != '/' && e != 'b' && e != 'f' && e != 'n' && e != 'r' && e != 't') {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	// the object, node 0
+	int root() {
+		return 0;
+	}
+
+	int kind(int node) {
+		return kinds[node];
+	}
+
+	// members of an object, elements of an array
+	int size(int node) {
+		return sizes[node];
+	}
+
+	// the first member key of an object, the first element of an array, -1 when it is empty
+	int first(int node) {
+		return sizes[node] == 0 ? -1 : node + 1;
+	}
+
+	// the next element of an array, or from a key the next key, -1 after the last
+	int next(int node, int container) {
+		int n = skips[kinds[container] == OBJECT ? skips[node] : node];
+		return n < skips[container] ? n : -1;
+	}
+
+	// the value of a member key
+	int value(int key) {
+		return key + 1;
+	}
+
+	/**
+	 * The value of the member of an object with that key, the last one when the key is
+	 * repeated as javax.json keeps it, -1 when there is none.
+	 */
+	int member(int object, String key) {
+		int found = -1;
+		for (int k = first(object); k >= 0; k = next(k, object)) {
+			if (keyEquals(k, key)) {
+				found = k + 1;
+			}
+		}
+		return found;
+	}
+
+	private boolean keyEquals(int key, String s) {
+		if (escapes(key)) {
+			return string(key).equals(s);
+		}
+		int n = ends[key] - starts[key];
+		return n == s.length() && json.regionMatches(starts[key], s, 0, n);
+	}
+
+	// a string, unescaped
+	String string(int node) {
+		int start = starts[node];
+		int end = ends[node];
+		if (!escapes(node)) {
+			return json.substring(start, end);
+		}
+		StringBuilder sb = new StringBuilder(end - start);
+		for (int i = start; i < end; i++) {
+			char c = json.charAt(i);
+			if (c == '\\') {
+				char e = json.charAt(++i);
+				switch (e) {
+				case 'b': c = '\b'; break;
+				case 'f': c = '\f'; break;
+				case 'n': c = '\n'; break;
+				case 'r': c = '\r'; break;
+				case 't': c = '\t'; break;
+				case 'u':
+					c = (char) Integer.parseInt(json.substring(i + 1, i + 5), 16);
+					i += 4;
+					break;
+				default: c = e;
+				}
+			}
+			sb.append(c);
+		}
+		return sb.toString();
+	}
+
+	// the keys of an object in the order javax.json keeps them, that of their first occurrence
+	Set<String> keys(int object) {
+		Set<String> keys = new LinkedHashSet<String>();
+		for (int k = first(object); k >= 0; k = next(k, object)) {
+			keys.add(string(k));
+		}
+		return keys;
+	}
+
+	/**
+	 * Whether javax.json writes the value back as the very chars it was read from: no
+	 * whitespace, no escapes, integers only, and no repeated keys.
+	 */
+	boolean verbatim(int node) {
+		switch (kinds[node]) {
+		case STRING:
+			return !escapes(node);
+		case LITERAL:
+			return true;
+		case NUMBER:
+			for (int i = starts[node]; i < ends[node]; i++) {
+				char c = json.charAt(i);
+				if (c == '.' || c == 'e' || c == 'E') {
+					return false;
+				}
+			}
+			// -0 is written as 0
+			return !json.startsWith("-0", starts[node]);
+		default:
+			boolean object = kinds[node] == OBJECT;
+			Set<String> keys = object ? new HashSet<String>() : null;
+			int expected = starts[node] + 1;
+			for (int c = first(node); c >= 0; c = next(c, node)) {
+				int v = c;
+				if (object) {
+					if (!verbatim(c) || !keys.add(string(c)) || starts[c] - 1 != expected
+							|| json.charAt(ends[c] + 1) != ':') {
+						return false;
+					}
+					v = c + 1;
+					expected = ends[c] + 2;
+				}
+				if (!verbatim(v) || start(v) != expected) {
+					return false;
+				}
+				expected = end(v) + 1; // the ',' or the closing bracket
+			}
+			return sizes[node] == 0 ? ends[node] == starts[node] + 2 : ends[node] == expected;
+		}
+	}
+
+	// the first char of a value, the opening quote of a string
+	int start(int node) {
+		return kinds[node] == STRING ? starts[node] - 1 : starts[node];
+	}
+
+	// after the last char of a value, the closing quote of a string
+	int end(int node) {
+		return kinds[node] == STRING ? ends[node] + 1 : ends[node];
+	}
+}
@@ -0,0 +1,134 @@
+import java.io.BufferedReader;
+import java.io.FileReader;
+import java.io.IOException;
+import java.io.StringReader;
+import java.math.BigDecimal;
+import java.util.ArrayList;
+import java.util.List;
+
+import javax.json.Json;
+import javax.json.JsonArray;
+import javax.json.JsonException;
+import javax.json.JsonNumber;
+import javax.json.JsonObject;
+import javax.json.JsonObjectBuilder;
+import javax.json.JsonString;
+import javax.json.JsonValue;
+
+/**
+ * Checks that JsonIndex reads item JSON as javax.json does: the same keys in the same
+ * order, the same values, and for a verbatim object the very text javax.json writes back.
+ * A document JsonIndex gives up on is fine, javax.json reads it then. The benchmarks run it
+ * over their items before timing them; on its own it checks files of item JSON lines, the
+ * JSON up to the first tab as in the catalog:
+ *
+ *   java JsonParity catalog.txt ...
+ */
+final class JsonParity {
+
+	private JsonParity() {
+	}
+
+	// what differs, null when nothing does
+	static String mismatch(String json) {
+		JsonObject obj = null;
+		try {
+			obj = Json.createReader(new StringReader(json)).readObject();
+		}
+		catch (JsonException e) {
+		}
+		JsonIndex doc = JsonIndex.parse(json);
+		if (doc == null) {
+			return null;
+		}
+		if (obj == null) {
+			return "JsonIndex reads JSON that javax.json rejects";
+		}
+		String m = mismatch(json, doc, doc.root(), obj, "");
+		if (m == null && doc.verbatim(doc.root())) {
+			JsonObjectBuilder builder = Json.createObjectBuilder();
+			for (String key: obj.keySet()) {
+				builder.add(key, obj.get(key));
+			}
+			if (!builder.build().toString().equals(json.substring(doc.start(doc.root()), doc.end(doc.root())))) {
+				m = "verbatim, but javax.json writes it otherwise";
+			}
+		}
+		return m;
+	}
+
+	private static String mismatch(String json, JsonIndex doc, int node, JsonValue v, String path) {
+		switch (doc.kind(node)) {
+		case JsonIndex.OBJECT:
+			if (!(v instanceof JsonObject)) {
+				return path + ": an object, not " + v.getValueType();
+			}
+			JsonObject obj = (JsonObject) v;
+			if (!new ArrayList<String>(doc.keys(node)).equals(new ArrayList<String>(obj.keySet()))) {
+				return path + ": keys " + doc.keys(node) + ", not " + obj.keySet();
+			}
+			for (String key: obj.keySet()) {
+				String m = mismatch(json, doc, doc.member(node, key), obj.get(key), path + "/" + key);
+				if (m != null) {
+					return m;
+				}
+			}
+			return null;
+		case JsonIndex.ARRAY:
+			if (!(v instanceof JsonArray)) {
+				return path + ": an array, not " + v.getValueType();
+			}
+			List<JsonValue> arr = (JsonArray) v;
+			if (arr.size() != doc.size(node)) {
+				return path + ": " + doc.size(node) + " elements, not " + arr.size();
+			}
+			int i = 0;
+			for (int e = doc.first(node); e >= 0; e = doc.next(e, node)) {
+				String m = mismatch(json, doc, e, arr.get(i), path + "/" + i++);
+				if (m != null) {
+					return m;
+				}
+			}
+			return null;
+		case JsonIndex.STRING:
+			if (!(v instanceof JsonString) || !((JsonString) v).getString().equals(doc.string(node))) {
+				return path + ": \"" + doc.string(node) + "\", not " + v;
+			}
+			return null;
+		case JsonIndex.NUMBER:
+			String text = json.substring(doc.start(node), doc.end(node));
+			if (!(v instanceof JsonNumber) || new BigDecimal(text).compareTo(((JsonNumber) v).bigDecimalValue()) != 0) {
+				return path + ": " + text + ", not " + v;
+			}
+			return null;
+		default:
+			String literal = json.substring(doc.start(node), doc.end(node));
+			return literal.equals(v.toString()) ? null : path + ": " + literal + ", not " + v;
+		}
+	}
+
+	public static void main(String[] args) throws IOException {
+		int lines = 0;
+		int mismatches = 0;
+		for (String fileName: args) {
+			BufferedReader br = new BufferedReader(new FileReader(fileName));
+			int lineNo = 0;
+			String line;
+			while ((line = br.readLine()) != null) {
+				lineNo++;
+				lines++;
+				int tab = line.indexOf('\t');
+				String m = mismatch(tab < 0 ? line : line.substring(0, tab));
+				if (m != null) {
+					mismatches++;
+					System.out.println(fileName + ":" + lineNo + ": " + m);
+				}
+			}
+			br.close();
+		}
+		System.out.println("No. of lines: " + lines + ", read otherwise by JsonIndex: " + mismatches);
+		if (mismatches > 0) {
+			System.exit(1);
+		}
+	}
+}
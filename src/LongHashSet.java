@@ -0,0 +1,106 @@
+/**
+ * A set of longs in one open-addressing array, 8 bytes per slot and no boxing. Used
+ * with fingerprint() as a set of ids: at 8 to 16 bytes per id, ten million item ids
+ * take a few hundred MB less than a HashSet<String> of them.
+ */
+final class LongHashSet {
+
+	private long[] slots; // 0 is an empty slot, the value 0 is kept in hasZero
+	private boolean hasZero;
+	private int size;
+
+	LongHashSet() {
+		this(1024);
+	}
+
+	LongHashSet(int expected) {
+		int capacity = 16;
+		while (capacity < expected * 2) {
+			capacity <<= 1;
+		}
+		slots = new long[capacity];
+	}
+
+	/**
+	 * A 64-bit fingerprint of s, FNV-1a with a final mix. Two of a million ids share a
+	 * fingerprint with a probability of about 3e-8.
+	 */
+	static long fingerprint(CharSequence s) {
+		long h = 0xcbf29ce484222325L;
+		for (int i = 0; i < s.length(); i++) {
+			h ^= s.charAt(i);
+			h *= 0x100000001b3L;
+		}
+		h ^= h >>> 33;
+		h *= 0xff51afd7ed558ccdL;
+		h ^= h >>> 33;
+		h *= 0xc4ceb9fe1a85ec53L;
+		h ^= h >>> 33;
+		return h;
+	}
+
+	boolean contains(long v) {
+		if (v == 0) {
+			return hasZero;
+		}
+		int mask = slots.length - 1;
+		for (int i = index(v, mask); ; i = (i + 1) & mask) {
+			long s = slots[i];
+			if (s == 0) {
+				return false;
+			}
+			if (s == v) {
+				return true;
+			}
+		}
+	}
+
+	// false when v was already in the set
+	boolean add(long v) {
+		if (v == 0) {
+			if (hasZero) {
+				return false;
+			}
+			hasZero = true;
+			size++;
+			return true;
+		}
+		int mask = slots.length - 1;
+		int i = index(v, mask);
+		while (slots[i] != 0) {
+			if (slots[i] == v) {
+				return false;
+			}
+			i = (i + 1) & mask;
+		}
+		slots[i] = v;
+		size++;
+		if (size * 2 > slots.length) {
+			grow();
+		}
+		return true;
+	}
+
+	int size() {
+		return size;
+	}
+
+	private void grow() {
+		long[] old = slots;
+		slots = new long[old.length * 2];
+		int mask = slots.length - 1;
+		for (long v: old) {
+			if (v != 0) {
+				int i = index(v, mask);
+				while (slots[i] != 0) {
+					i = (i + 1) & mask;
+				}
+				slots[i] = v;
+			}
+		}
+	}
+
+	private static int index(long v, int mask) {
+		return (int) (v ^ (v >>> 32)) & mask;
+	}
+}
@@ -0,0 +1,82 @@
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.Arrays;
+
+/**
+ * Reads lines as BufferedReader.readLine does, ended by "\n", "\r" or "\r\n", and knows
+ * the byte offset every line starts at, so a scan can be started again from the middle of
+ * a file. Lines are decoded one by one with the default charset, as FileReader decodes
+ * them, which must be ASCII compatible.
+ */
+final class OffsetLineReader {
+
+	private static final Charset CHARSET = Charset.defaultCharset();
+
+	private final FileChannel channel;
+	private final ByteBuffer buf = ByteBuffer.allocate(1 << 20);
+	private final byte[] bytes = buf.array();
+	private int pos;
+	private int limit;
+	private long bufferStart; // file offset of bytes[0]
+	private long lineStart;
+	private byte[] line = new byte[8192];
+
+	OffsetLineReader(String fileName, long offset) throws IOException {
+		channel = new RandomAccessFile(fileName, "r").getChannel();
+		channel.position(offset);
+		bufferStart = offset;
+		lineStart = offset;
+	}
+
+	String readLine() throws IOException {
+		int length = 0;
+		lineStart = offset();
+		while (true) {
+			if (pos == limit && !fill()) {
+				return length == 0 && offset() == lineStart ? null : new String(line, 0, length, CHARSET);
+			}
+			int from = pos;
+			while (pos < limit && bytes[pos] != '\n' && bytes[pos] != '\r') {
+				pos++;
+			}
+			int n = pos - from;
+			if (length + n > line.length) {
+				line = Arrays.copyOf(line, Math.max(length + n, 2 * line.length));
+			}
+			System.arraycopy(bytes, from, line, length, n);
+			length += n;
+			if (pos < limit) {
+				if (bytes[pos++] == '\r' && (pos < limit || fill()) && bytes[pos] == '\n') {
+					pos++;
+				}
+				return new String(line, 0, length, CHARSET);
+			}
+		}
+	}
+
+	// where the last line read starts
+	long lineStart() {
+		return lineStart;
+	}
+
+	// where the next line starts
+	long offset() {
+		return bufferStart + pos;
+	}
+
+	private boolean fill() throws IOException {
+		bufferStart += limit;
+		buf.clear();
+		int n = channel.read(buf);
+		pos = 0;
+		limit = Math.max(n, 0);
+		return limit > 0;
+	}
+
+	void close() throws IOException {
+		channel.close();
+	}
+}
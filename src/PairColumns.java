@@ -0,0 +1,591 @@
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.Future;
+
+/**
+ * A pair file of the candset, gold, train and test family, "pairID,A.id,B.id[,label]",
+ * read into columns: pair ids and labels as ints, A and B ids as codes of an Ids table
+ * each, given in the order the ids first appear in the file.
+ *
+ * The file is mapped in chunks that are copied out and parsed at the same time on
+ * TableWriter's pool. A record ends at a newline after an even number of quotes, so
+ * where the first record of a chunk starts depends on the quotes of all chunks before
+ * it: a first pass counts them per chunk, eight bytes at a time, and notes the first
+ * newline of the chunk after an even and after an odd number of them. Fields are split
+ * at commas outside quotes, trimmed and unquoted as CSV ("" is a quote). A first record
+ * whose pair id is not a number is the header. Records keep their byte range, so
+ * record() gives them back as they are.
+ *
+ * Ids are kept as the bytes of the field, so no String is made of them unless asked for;
+ * every chunk codes its ids in a table of its own and the tables are merged in file order.
+ */
+final class PairColumns {
+
+	// pair id or label that is missing or not a number
+	static final int NONE = -1;
+
+	private static final int MIN_CHUNK = 1 << 20;
+	private static final int MAX_CHUNK = 1 << 24;
+	private static final int WINDOW = 1 << 28;
+	// the charset FileReader decodes with
+	private static final Charset CHARSET = Charset.defaultCharset();
+
+	private static final long ONES = 0x0101010101010101L;
+	private static final long LOW7 = 0x7f7f7f7f7f7f7f7fL;
+
+	final Ids aIds;
+	final Ids bIds;
+	private final String fileName;
+	private int size;
+	private int[] pairIds = new int[0];
+	private int[] a = new int[0];
+	private int[] b = new int[0];
+	private int[] labels = new int[0];
+	private long[] starts = new long[0]; // bytes of every record, without its line end
+	private long[] ends = new long[0];
+	private long headerStart = -1;
+	private long headerEnd;
+	private int[] index; // by find(), row + 1 per slot
+
+	// record() reads through a mapped window of the file
+	private RandomAccessFile file;
+	private MappedByteBuffer window;
+	private long windowStart;
+	private byte[] text = new byte[256];
+
+	private PairColumns(String fileName, Ids aIds, Ids bIds) {
+		this.fileName = fileName;
+		this.aIds = aIds;
+		this.bIds = bIds;
+	}
+
+	static PairColumns read(String fileName) throws IOException {
+		return read(fileName, new Ids(), new Ids());
+	}
+
+	/**
+	 * Reads the file with ids coded by aIds and bIds, which files to be joined share.
+	 */
+	static PairColumns read(final String fileName, Ids aIds, Ids bIds) throws IOException {
+		RandomAccessFile raf = new RandomAccessFile(fileName, "r");
+		final FileChannel channel = raf.getChannel();
+		try {
+			final long length = channel.size();
+			int threads = Runtime.getRuntime().availableProcessors();
+			final long chunk = Math.min(MAX_CHUNK, Math.max(MIN_CHUNK, length / (4L * threads) + 1));
+			int chunks = (int) ((length + chunk - 1) / chunk);
+			List<Future<long[]>> counting = new ArrayList<Future<long[]>>(chunks);
+			for (int k = 0; k < chunks; k++) {
+				final long from = k * chunk;
+				counting.add(TableWriter.POOL.submit(new Callable<long[]>() {
+					@Override
+					public long[] call() throws IOException {
+						return quotes(channel, from, Math.min(length, from + chunk));
+					}
+				}));
+			}
+			long[] bounds = new long[chunks + 2];
+			int n = 0;
+			bounds[n++] = 0;
+			boolean quoted = false;
+			for (int k = 0; k < chunks; k++) {
+				long[] q = TableWriter.get(counting.get(k));
+				long newline = q[quoted ? 2 : 1];
+				if (k > 0 && newline >= 0) {
+					bounds[n++] = newline + 1;
+				}
+				quoted ^= (q[0] & 1) == 1;
+			}
+			bounds[n++] = length;
+
+			List<Future<Part>> parsing = new ArrayList<Future<Part>>(n - 1);
+			for (int i = 0; i + 1 < n; i++) {
+				final long from = bounds[i];
+				final long to = bounds[i + 1];
+				if (to - from > Integer.MAX_VALUE) {
+					throw new IOException("Record of more than 2 GB at byte " + from + " of " + fileName);
+				}
+				parsing.add(TableWriter.POOL.submit(new Callable<Part>() {
+					@Override
+					public Part call() throws IOException {
+						return parse(channel, from, to);
+					}
+				}));
+			}
+			PairColumns pairs = new PairColumns(fileName, aIds, bIds);
+			for (Future<Part> f: parsing) {
+				pairs.append(TableWriter.get(f));
+			}
+			System.out.println("Read " + pairs.size + " pairs of " + fileName);
+			return pairs;
+		}
+		finally {
+			raf.close();
+		}
+	}
+
+	/**
+	 * {quotes, first newline after an even number of them, first newline after an odd
+	 * number}, the newlines as file offsets, -1 when there is none.
+	 */
+	private static long[] quotes(FileChannel channel, long from, long to) throws IOException {
+		MappedByteBuffer m = channel.map(FileChannel.MapMode.READ_ONLY, from, to - from);
+		long[] q = {0, -1, -1};
+		int length = (int) (to - from);
+		int p = 0;
+		for (; p + 8 <= length; p += 8) {
+			long word = m.getLong(p);
+			long quotes = zeros(word ^ ('"' * ONES));
+			if (q[2] < 0 || q[1] < 0) {
+				if (zeros(word ^ ('\n' * ONES)) != 0) {
+					for (int i = p; i < p + 8; i++) {
+						count(q, m.get(i), from + i);
+					}
+					continue;
+				}
+			}
+			q[0] += Long.bitCount(quotes);
+		}
+		for (; p < length; p++) {
+			count(q, m.get(p), from + p);
+		}
+		return q;
+	}
+
+	private static void count(long[] q, byte c, long offset) {
+		if (c == '"') {
+			q[0]++;
+		}
+		else if (c == '\n' && q[1 + (int) (q[0] & 1)] < 0) {
+			q[1 + (int) (q[0] & 1)] = offset;
+		}
+	}
+
+	// 0x80 in every byte of x that is zero
+	private static long zeros(long x) {
+		return ~(((x & LOW7) + LOW7) | x | LOW7);
+	}
+
+	// the pairs of the records starting in [from, to), from at the start of a record
+	private static Part parse(FileChannel channel, long from, long to) throws IOException {
+		Part part = new Part(from == 0);
+		byte[] m = new byte[(int) (to - from)];
+		channel.map(FileChannel.MapMode.READ_ONLY, from, m.length).get(m);
+		int[] fields = new int[8]; // start and end of the first four fields
+		int start = 0;
+		while (start < m.length) {
+			int nf = 0;
+			int fieldStart = start;
+			boolean quoted = false;
+			int p = start;
+			for (; p < m.length; p++) {
+				byte c = m[p];
+				if (c == '"') {
+					quoted = !quoted;
+				}
+				else if (!quoted) {
+					if (c == '\n') {
+						break;
+					}
+					if (c == ',' && nf < 8) {
+						fields[nf++] = fieldStart;
+						fields[nf++] = p;
+						fieldStart = p + 1;
+					}
+				}
+			}
+			int end = p;
+			if (end > start && m[end - 1] == '\r') {
+				end--;
+			}
+			if (nf < 8) {
+				fields[nf++] = fieldStart;
+				fields[nf++] = Math.max(end, fieldStart);
+			}
+			if (trimStart(m, start, end) < end) {
+				part.add(m, from, start, end, fields, nf);
+			}
+			start = p + 1;
+		}
+		return part;
+	}
+
+	private static int trimStart(byte[] m, int from, int to) {
+		while (from < to && (m[from] & 0xff) <= ' ') {
+			from++;
+		}
+		return from;
+	}
+
+	private static int trimEnd(byte[] m, int from, int to) {
+		while (to > from && (m[to - 1] & 0xff) <= ' ') {
+			to--;
+		}
+		return to;
+	}
+
+	// the pairs of one chunk, with codes of its own tables
+	private static final class Part {
+		final Ids aIds = new Ids();
+		final Ids bIds = new Ids();
+		boolean first; // the chunk starting the file, before its first record
+		int size;
+		int[] pairIds = new int[1024];
+		int[] a = new int[1024];
+		int[] b = new int[1024];
+		int[] labels = new int[1024];
+		long[] starts = new long[1024];
+		long[] ends = new long[1024];
+		long headerStart = -1;
+		long headerEnd;
+		byte[] unquoted = new byte[64];
+
+		Part(boolean first) {
+			this.first = first;
+		}
+
+		void add(byte[] m, long offset, int start, int end, int[] fields, int nf) {
+			int pairId = number(m, fields[0], fields[1]);
+			if (first) {
+				first = false;
+				if (pairId == NONE) {
+					headerStart = offset + start;
+					headerEnd = offset + end;
+					return;
+				}
+			}
+			if (size == pairIds.length) {
+				int capacity = 2 * size;
+				pairIds = Arrays.copyOf(pairIds, capacity);
+				a = Arrays.copyOf(a, capacity);
+				b = Arrays.copyOf(b, capacity);
+				labels = Arrays.copyOf(labels, capacity);
+				starts = Arrays.copyOf(starts, capacity);
+				ends = Arrays.copyOf(ends, capacity);
+			}
+			pairIds[size] = pairId;
+			a[size] = nf >= 4 ? intern(aIds, m, fields[2], fields[3]) : aIds.intern(m, 0, 0);
+			b[size] = nf >= 6 ? intern(bIds, m, fields[4], fields[5]) : bIds.intern(m, 0, 0);
+			labels[size] = nf >= 8 ? number(m, fields[6], fields[7]) : NONE;
+			starts[size] = offset + start;
+			ends[size] = offset + end;
+			size++;
+		}
+
+		// the trimmed, unquoted field
+		private int intern(Ids ids, byte[] m, int from, int to) {
+			from = trimStart(m, from, to);
+			to = trimEnd(m, from, to);
+			if (to - from >= 2 && m[from] == '"' && m[to - 1] == '"') {
+				from++;
+				to--;
+			}
+			int n = 0;
+			for (int i = from; i < to; i++) {
+				if (m[i] == '"') {
+					n++;
+				}
+			}
+			if (n > 0) {
+				if (to - from > unquoted.length) {
+					unquoted = new byte[Math.max(to - from, 2 * unquoted.length)];
+				}
+				n = 0;
+				for (int i = from; i < to; i++) {
+					unquoted[n++] = m[i];
+					if (m[i] == '"' && i + 1 < to && m[i + 1] == '"') {
+						i++;
+					}
+				}
+				m = unquoted;
+				from = 0;
+				to = n;
+			}
+			from = trimStart(m, from, to);
+			return ids.intern(m, from, trimEnd(m, from, to));
+		}
+	}
+
+	// the trimmed, unquoted field as an int, NONE when it is not one
+	private static int number(byte[] m, int from, int to) {
+		from = trimStart(m, from, to);
+		to = trimEnd(m, from, to);
+		if (to - from >= 2 && m[from] == '"' && m[to - 1] == '"') {
+			from++;
+			to--;
+		}
+		boolean negative = from < to && m[from] == '-';
+		if (negative) {
+			from++;
+		}
+		if (from == to || to - from > 10) {
+			return NONE;
+		}
+		long v = 0;
+		for (int i = from; i < to; i++) {
+			int d = m[i] - '0';
+			if (d < 0 || d > 9) {
+				return NONE;
+			}
+			v = 10 * v + d;
+		}
+		v = negative ? -v : v;
+		return v < Integer.MIN_VALUE || v > Integer.MAX_VALUE ? NONE : (int) v;
+	}
+
+	/**
+	 * Interns ids into dense int codes, 0, 1, 2, ... in the order they are first seen, as
+	 * SymbolTable does for Strings, but keeping the bytes of every id one after the other
+	 * in one array. A slot holds the hash of the id next to its code, so a probe only
+	 * looks at the bytes of an id with the same hash. Not thread safe.
+	 */
+	static final class Ids {
+		private byte[] bytes = new byte[1 << 12];
+		private int[] offsets = new int[257]; // id c is bytes[offsets[c], offsets[c + 1])
+		private int[] hashes = new int[256];
+		private long[] slots = new long[512]; // hash << 32 | code + 1, 0 when empty
+		private int size;
+
+		int intern(byte[] b, int from, int to) {
+			return intern(b, from, to, hash(b, from, to));
+		}
+
+		private int intern(byte[] b, int from, int to, int h) {
+			int mask = slots.length - 1;
+			int i = h & mask;
+			for (long s = slots[i]; s != 0; s = slots[i = (i + 1) & mask]) {
+				int code = (int) s - 1;
+				if ((int) (s >>> 32) == h && equals(code, b, from, to)) {
+					return code;
+				}
+			}
+			int code = size++;
+			if (code + 1 == hashes.length) {
+				hashes = Arrays.copyOf(hashes, 2 * hashes.length);
+				offsets = Arrays.copyOf(offsets, hashes.length + 1);
+			}
+			int start = offsets[code];
+			if (start + to - from > bytes.length) {
+				bytes = Arrays.copyOf(bytes, Math.max(start + to - from, 2 * bytes.length));
+			}
+			System.arraycopy(b, from, bytes, start, to - from);
+			offsets[code + 1] = start + to - from;
+			hashes[code] = h;
+			slots[i] = (long) h << 32 | (code + 1);
+			if (2 * size > slots.length) {
+				rehash(2 * slots.length);
+			}
+			return code;
+		}
+
+		private void rehash(int capacity) {
+			long[] bigger = new long[capacity];
+			int mask = capacity - 1;
+			for (long s: slots) {
+				if (s != 0) {
+					int j = (int) (s >>> 32) & mask;
+					while (bigger[j] != 0) {
+						j = (j + 1) & mask;
+					}
+					bigger[j] = s;
+				}
+			}
+			slots = bigger;
+		}
+
+		// -1 when the id was never interned
+		int code(String id) {
+			byte[] b = id.getBytes(CHARSET);
+			int h = hash(b, 0, b.length);
+			int mask = slots.length - 1;
+			int i = h & mask;
+			for (long s = slots[i]; s != 0; s = slots[i = (i + 1) & mask]) {
+				int code = (int) s - 1;
+				if ((int) (s >>> 32) == h && equals(code, b, 0, b.length)) {
+					return code;
+				}
+			}
+			return -1;
+		}
+
+		String symbol(int code) {
+			return new String(bytes, offsets[code], offsets[code + 1] - offsets[code], CHARSET);
+		}
+
+		int size() {
+			return size;
+		}
+
+		// the codes of the ids of other in this table, interned if new
+		int[] intern(Ids other) {
+			int[] codes = new int[other.size];
+			for (int c = 0; c < other.size; c++) {
+				codes[c] = intern(other.bytes, other.offsets[c], other.offsets[c + 1], other.hashes[c]);
+			}
+			return codes;
+		}
+
+		private boolean equals(int code, byte[] b, int from, int to) {
+			int start = offsets[code];
+			if (offsets[code + 1] - start != to - from) {
+				return false;
+			}
+			for (int i = from; i < to; i++) {
+				if (bytes[start + i - from] != b[i]) {
+					return false;
+				}
+			}
+			return true;
+		}
+
+		private static int hash(byte[] b, int from, int to) {
+			int h = 0;
+			for (int i = from; i < to; i++) {
+				h = 31 * h + b[i];
+			}
+			h ^= h >>> 16;
+			h *= 0x85ebca6b;
+			return h ^ (h >>> 13);
+		}
+	}
+
+	// the rows of part, its codes coded again by the shared tables
+	private void append(Part part) {
+		if (part.headerStart >= 0) {
+			headerStart = part.headerStart;
+			headerEnd = part.headerEnd;
+		}
+		int[] codesA = aIds.intern(part.aIds);
+		int[] codesB = bIds.intern(part.bIds);
+		int capacity = size + part.size;
+		if (capacity > pairIds.length) {
+			capacity = Math.max(capacity, pairIds.length + (pairIds.length >> 1));
+			pairIds = Arrays.copyOf(pairIds, capacity);
+			a = Arrays.copyOf(a, capacity);
+			b = Arrays.copyOf(b, capacity);
+			labels = Arrays.copyOf(labels, capacity);
+			starts = Arrays.copyOf(starts, capacity);
+			ends = Arrays.copyOf(ends, capacity);
+		}
+		System.arraycopy(part.pairIds, 0, pairIds, size, part.size);
+		System.arraycopy(part.labels, 0, labels, size, part.size);
+		System.arraycopy(part.starts, 0, starts, size, part.size);
+		System.arraycopy(part.ends, 0, ends, size, part.size);
+		for (int i = 0; i < part.size; i++) {
+			a[size + i] = codesA[part.a[i]];
+			b[size + i] = codesB[part.b[i]];
+		}
+		size += part.size;
+		index = null;
+	}
+
+	int size() {
+		return size;
+	}
+
+	int pairId(int row) {
+		return pairIds[row];
+	}
+
+	int a(int row) {
+		return a[row];
+	}
+
+	int b(int row) {
+		return b[row];
+	}
+
+	int label(int row) {
+		return labels[row];
+	}
+
+	String aId(int row) {
+		return aIds.symbol(a[row]);
+	}
+
+	String bId(int row) {
+		return bIds.symbol(b[row]);
+	}
+
+	/**
+	 * The first row of the pair of A id code a and B id code b, -1 when there is none.
+	 */
+	int find(int a, int b) {
+		if (index == null) {
+			int capacity = 16;
+			while (capacity < 2 * size) {
+				capacity <<= 1;
+			}
+			index = new int[capacity];
+			for (int row = 0; row < size; row++) {
+				int mask = capacity - 1;
+				int i = hash(this.a[row], this.b[row]) & mask;
+				while (index[i] != 0 && !same(index[i] - 1, this.a[row], this.b[row])) {
+					i = (i + 1) & mask;
+				}
+				if (index[i] == 0) {
+					index[i] = row + 1;
+				}
+			}
+		}
+		int mask = index.length - 1;
+		for (int i = hash(a, b) & mask; index[i] != 0; i = (i + 1) & mask) {
+			if (same(index[i] - 1, a, b)) {
+				return index[i] - 1;
+			}
+		}
+		return -1;
+	}
+
+	private boolean same(int row, int a, int b) {
+		return this.a[row] == a && this.b[row] == b;
+	}
+
+	private static int hash(int a, int b) {
+		int h = a * 0x9e3779b1 + b;
+		h ^= h >>> 16;
+		h *= 0x85ebca6b;
+		return h ^ (h >>> 13);
+	}
+
+	// the header as it is in the file, null when there is none
+	String header() throws IOException {
+		return headerStart < 0 ? null : text(headerStart, headerEnd);
+	}
+
+	// the record of the row as it is in the file, without its line end
+	String record(int row) throws IOException {
+		return text(starts[row], ends[row]);
+	}
+
+	private String text(long from, long to) throws IOException {
+		if (file == null) {
+			file = new RandomAccessFile(fileName, "r");
+		}
+		int n = (int) (to - from);
+		if (window == null || from < windowStart || to > windowStart + window.capacity()) {
+			long length = Math.min(file.length() - from, Math.max(WINDOW, n));
+			window = file.getChannel().map(FileChannel.MapMode.READ_ONLY, from, length);
+			windowStart = from;
+		}
+		if (n > text.length) {
+			text = new byte[Math.max(n, 2 * text.length)];
+		}
+		window.position((int) (from - windowStart));
+		window.get(text, 0, n);
+		return new String(text, 0, n, CHARSET);
+	}
+
+	void close() throws IOException {
+		if (file != null) {
+			file.close();
+		}
+	}
+}
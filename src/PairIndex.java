@@ -0,0 +1,337 @@
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.io.StringReader;
+import java.nio.ByteBuffer;
+import java.nio.LongBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Random;
+import java.util.Set;
+
+import org.apache.commons.csv.CSVParser;
+import org.apache.commons.csv.CSVRecord;
+
+/**
+ * An index of a pair file (pair id, id1, item1, id2, item2, label), either CSV or one pair
+ * per line separated by '?', for reading pairs by position without loading the file:
+ *
+ *   header    int MAGIC, int count, long file length, long file lastModified
+ *   offsets   count + 1 longs, the byte offset of every pair and the end of the last
+ *   labels    (count + 63) / 64 longs, bit i set when pair i is a MATCH (or 1)
+ *
+ * CSV records end at a newline outside quotes. The label is the last field, read from the
+ * bytes after the last delimiter outside quotes, so building the index parses no JSON. A
+ * first record whose label is neither MATCH (1) nor MISMATCH (0) is a header, not a pair.
+ * The labels are kept in memory with the number of matches before every word, so the
+ * k-th match or non-match is found by a binary search; sample() picks distinct random
+ * pairs of either label that way.
+ */
+final class PairIndex {
+
+	private static final int MAGIC = 0x50494432; // "PID2"
+	private static final int HEADER = 24;
+	private static final byte[] MATCH = {'M', 'A', 'T', 'C', 'H'};
+	private static final byte[] MISMATCH = {'M', 'I', 'S', 'M', 'A', 'T', 'C', 'H'};
+	// the charset FileReader decodes with
+	private static final Charset CHARSET = Charset.defaultCharset();
+
+	private final String fileName;
+	private final boolean csv;
+	private final int count;
+	private final LongBuffer offsets;
+	private final long[] labels;
+	private final int[] ranks; // matches before word w
+	private final RandomAccessFile pairs;
+
+	private PairIndex(String fileName, String indexFileName) throws IOException {
+		this.fileName = fileName;
+		csv = isCsv(fileName);
+		RandomAccessFile index = new RandomAccessFile(indexFileName, "r");
+		ByteBuffer map;
+		try {
+			map = index.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, index.length());
+		}
+		finally {
+			index.close();
+		}
+		count = map.getInt(4);
+		map.position(HEADER);
+		offsets = map.slice().asLongBuffer();
+		labels = new long[(count + 63) >>> 6];
+		map.position(HEADER + 8 * (count + 1));
+		map.slice().asLongBuffer().get(labels);
+		ranks = new int[labels.length + 1];
+		for (int w = 0; w < labels.length; w++) {
+			ranks[w + 1] = ranks[w] + Long.bitCount(labels[w]);
+		}
+		pairs = new RandomAccessFile(fileName, "r");
+	}
+
+	/**
+	 * The index of the pair file, built when indexFileName does not exist or was built
+	 * for another version of the file.
+	 */
+	static PairIndex open(String fileName, String indexFileName) throws IOException {
+		if (!isCurrent(fileName, indexFileName)) {
+			build(fileName, indexFileName);
+		}
+		return new PairIndex(fileName, indexFileName);
+	}
+
+	static String defaultIndexName(String fileName) {
+		return fileName + ".idx";
+	}
+
+	// pairs with a .csv name are CSV, others one per line separated by '?'
+	private static boolean isCsv(String fileName) {
+		return fileName.toLowerCase().endsWith(".csv");
+	}
+
+	private static boolean isCurrent(String fileName, String indexFileName) throws IOException {
+		File index = new File(indexFileName);
+		if (!index.exists() || index.length() < HEADER) {
+			return false;
+		}
+		File file = new File(fileName);
+		RandomAccessFile in = new RandomAccessFile(index, "r");
+		try {
+			return in.readInt() == MAGIC && in.readInt() >= 0 && in.readLong() == file.length()
+					&& in.readLong() == file.lastModified();
+		}
+		finally {
+			in.close();
+		}
+	}
+
+	static void build(String fileName, String indexFileName) throws IOException {
+		boolean csv = isCsv(fileName);
+		File file = new File(fileName);
+		long length = file.length();
+		long lastModified = file.lastModified();
+		long[] offsets = new long[1024];
+		long[] labels = new long[16];
+		int count = 0;
+
+		FileChannel channel = new RandomAccessFile(file, "r").getChannel();
+		ByteBuffer buf = ByteBuffer.allocate(1 << 20);
+		byte delimiter = (byte) (csv ? ',' : '?');
+		byte[] label = new byte[64];
+		int labelLength = 0;
+		boolean quoted = false;
+		boolean empty = true; // nothing but line ends since the record start
+		boolean first = true;
+		long start = 0;
+		long pos = 0;
+		try {
+			byte[] bytes = buf.array();
+			int n;
+			while ((n = channel.read(buf)) > 0) {
+				for (int i = 0; i < n; i++) {
+					byte b = bytes[i];
+					pos++;
+					if (b == '"' && csv) {
+						quoted = !quoted;
+					}
+					if (b == '\n' && !quoted) {
+						int value = empty ? -1 : label(label, labelLength);
+						if (!empty && (!first || value >= 0)) {
+							if (count + 1 >= offsets.length) {
+								offsets = Arrays.copyOf(offsets, 2 * offsets.length);
+							}
+							if ((count >>> 6) >= labels.length) {
+								labels = Arrays.copyOf(labels, 2 * labels.length);
+							}
+							offsets[count] = start;
+							if (value == 1) {
+								labels[count >>> 6] |= 1L << count;
+							}
+							count++;
+						}
+						first &= empty;
+						start = pos;
+						empty = true;
+						labelLength = 0;
+						continue;
+					}
+					if (b != '\r') {
+						empty = false;
+					}
+					if (b == delimiter && !quoted) {
+						labelLength = 0;
+					}
+					else if (labelLength < label.length) {
+						label[labelLength++] = b;
+					}
+				}
+				buf.clear();
+			}
+		}
+		finally {
+			channel.close();
+		}
+		int value = empty ? -1 : label(label, labelLength);
+		if (!empty && (!first || value >= 0)) { // no newline after the last record
+			if (count + 1 >= offsets.length) {
+				offsets = Arrays.copyOf(offsets, 2 * offsets.length);
+			}
+			if ((count >>> 6) >= labels.length) {
+				labels = Arrays.copyOf(labels, 2 * labels.length);
+			}
+			offsets[count] = start;
+			if (value == 1) {
+				labels[count >>> 6] |= 1L << count;
+			}
+			count++;
+		}
+		offsets[count] = pos;
+
+		DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(indexFileName), 1 << 16));
+		try {
+			out.writeInt(MAGIC);
+			out.writeInt(count);
+			out.writeLong(length);
+			out.writeLong(lastModified);
+			for (int i = 0; i <= count; i++) {
+				out.writeLong(offsets[i]);
+			}
+			for (int w = 0; w < (count + 63) >>> 6; w++) {
+				out.writeLong(labels[w]);
+			}
+		}
+		finally {
+			out.close();
+		}
+		System.out.println("Indexed " + count + " pairs of " + fileName);
+	}
+
+	private static boolean startsWith(byte[] b, int from, byte[] prefix) {
+		for (int i = 0; i < prefix.length; i++) {
+			if (b[from + i] != prefix[i]) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	// the trimmed last field, unquoted: 1 for MATCH or 1, 0 for MISMATCH or 0, -1 for anything else
+	private static int label(byte[] label, int length) {
+		int from = 0;
+		int to = length;
+		while (from < to && (label[from] & 0xff) <= ' ') {
+			from++;
+		}
+		while (to > from && (label[to - 1] & 0xff) <= ' ') {
+			to--;
+		}
+		if (to - from >= 2 && label[from] == '"' && label[to - 1] == '"') {
+			from++;
+			to--;
+		}
+		if ((to - from == 1 && label[from] == '1') || (to - from == MATCH.length && startsWith(label, from, MATCH))) {
+			return 1;
+		}
+		if ((to - from == 1 && label[from] == '0') || (to - from == MISMATCH.length && startsWith(label, from, MISMATCH))) {
+			return 0;
+		}
+		return -1;
+	}
+
+	int size() {
+		return count;
+	}
+
+	int matches() {
+		return ranks[labels.length];
+	}
+
+	boolean isMatch(int pair) {
+		return (labels[pair >>> 6] & (1L << pair)) != 0;
+	}
+
+	// the fields of a pair, read from its offset
+	String[] get(int pair) throws IOException {
+		long from = offsets.get(pair);
+		byte[] bytes = new byte[(int) (offsets.get(pair + 1) - from)];
+		pairs.seek(from);
+		pairs.readFully(bytes);
+		String record = new String(bytes, CHARSET);
+		if (!csv) {
+			int end = record.length();
+			while (end > 0 && (record.charAt(end - 1) == '\n' || record.charAt(end - 1) == '\r')) {
+				end--;
+			}
+			return record.substring(0, end).split("\\?");
+		}
+		CSVRecord r = new CSVParser(new StringReader(record)).iterator().next();
+		String[] fields = new String[r.size()];
+		for (int i = 0; i < fields.length; i++) {
+			fields[i] = r.get(i);
+		}
+		return fields;
+	}
+
+	/**
+	 * n distinct pairs with the label, picked at random, in file order; all of them when
+	 * there are not more than n.
+	 */
+	int[] sample(boolean match, int n, Random random) {
+		int total = match ? matches() : count - matches();
+		n = Math.min(n, total);
+		// Floyd's algorithm over the ranks among the pairs with the label
+		Set<Integer> picked = new HashSet<Integer>();
+		for (int j = total - n; j < total; j++) {
+			int t = random.nextInt(j + 1);
+			picked.add(picked.contains(t) ? j : t);
+		}
+		int[] picks = new int[n];
+		int i = 0;
+		for (int r: picked) {
+			picks[i++] = r;
+		}
+		Arrays.sort(picks);
+		int[] sample = new int[n];
+		for (i = 0; i < n; i++) {
+			sample[i] = select(match, picks[i]);
+		}
+		return sample;
+	}
+
+	// the pair that is the k-th (from 0) with the label
+	private int select(boolean match, int k) {
+		int lo = 0;
+		int hi = labels.length;
+		while (lo < hi) { // the last word with fewer than k + 1 before it
+			int mid = (lo + hi + 1) >>> 1;
+			if (before(match, mid) <= k) {
+				lo = mid;
+			}
+			else {
+				hi = mid - 1;
+			}
+		}
+		long word = match ? labels[lo] : ~labels[lo];
+		for (int left = k - before(match, lo); left > 0; left--) {
+			word &= word - 1;
+		}
+		return (lo << 6) + Long.numberOfTrailingZeros(word);
+	}
+
+	private int before(boolean match, int word) {
+		return match ? ranks[word] : (word << 6) - ranks[word];
+	}
+
+	void close() throws IOException {
+		pairs.close();
+	}
+
+	@Override
+	public String toString() {
+		return fileName + ": " + count + " pairs, " + matches() + " matches";
+	}
+}
@@ -1,15 +1,27 @@
 import java.io.BufferedReader;
-import java.io.BufferedWriter;
 import java.io.File;
 import java.io.FileNotFoundException;
 import java.io.FileReader;
-import java.io.FileWriter;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
 import java.io.PrintWriter;
+import java.io.RandomAccessFile;
 import java.io.StringReader;
 import java.io.StringWriter;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
 import java.util.Collections;
+import java.util.Comparator;
 import java.util.Dictionary;
 import java.util.HashMap;
 import java.util.HashSet;
@@ -20,6 +32,8 @@ import java.util.Map;
 import java.util.Random;
 import java.util.Set;
 import java.util.TreeMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 
 import javax.json.Json;
 import javax.json.JsonArray;
@@ -50,8 +64,14 @@ public class Parser {
 	public static final String[] attributesToignore = {"Item ID", "GTIN", "Product Segment",
 		"Warranty Length", "Country of Origin: Components", "Category", "Composite Wood Code", "Warranty Information",
 		"Type", "Video Game Platform"};
+	// attributesToignore as attribute codes
+	private static final BitSet IGNORED = SymbolTable.ATTRIBUTES.codes(attributesToignore);
 
 	private static Set<String> getAttributeNames(String attrs) throws JsonParsingException {
+		JsonIndex doc = JsonIndex.parse(attrs);
+		if (doc != null) {
+			return doc.keys(doc.root());
+		}
 		Set<String> attributeNames = new HashSet<String>();
 		JsonReader reader = Json.createReader(new StringReader(attrs));
 		JsonObject obj = reader.readObject();
@@ -61,6 +81,17 @@ public class Parser {
 
 	private static Set<String> getAttributeNames(String itemJson, String attributeName) throws JsonParsingException {
 		Set<String> attributeNames = new HashSet<String>();
+		JsonIndex doc = JsonIndex.parse(itemJson);
+		if (doc != null) {
+			int attribute = doc.member(doc.root(), attributeName);
+			if (attribute < 0) {
+				return attributeNames;
+			}
+			if (doc.kind(attribute) == JsonIndex.OBJECT) {
+				return doc.keys(attribute);
+			}
+			// not an object, javax.json throws
+		}
 		JsonReader reader = Json.createReader(new StringReader(itemJson));
 		JsonObject obj = reader.readObject();
 		if (obj.containsKey(attributeName)) {
@@ -71,7 +102,7 @@ public class Parser {
 		return attributeNames;
 	}
 
-	private static String getHeader(Set<String> attributes) {
+	static String getHeader(Set<String> attributes) {
 		StringBuilder sb = new StringBuilder();
 		sb.append("id");
 		for (String s: attributes) {
@@ -97,22 +128,23 @@ public class Parser {
 		return attribValuePairs;
 	}
 
-	private static void printCsvRecord(String id1, String attr1, Set<String> attributes, CSVPrinter printer) {
-		try {
-			printer.print(id1);
-			Map<String, String> attribValuePairs = parseJsonBlob(attr1, attributes);
-			for (String s: attributes) {
-				String value = attribValuePairs.get(s).trim();
-				if (value.startsWith("[\"") && value.endsWith("\"]")) {
-					value = value.substring(2, value.length() - 2);
-				}
-				printer.print(value);
-			}
-			printer.println();
-		} catch (IOException e) {
-			// TODO Auto-generated catch block
-			e.printStackTrace();
+	// the table cell of a JSON attribute value, single-element arrays of strings are unwrapped
+	static String renderCell(JsonValue val) {
+		String value = val.toString().trim();
+		if (value.startsWith("[\"") && value.endsWith("\"]")) {
+			value = value.substring(2, value.length() - 2);
+		}
+		return value;
+	}
+
+	static void printCsvRecord(String id1, InternedItem item, SymbolTable.Union attributes, CSVPrinter printer)
+			throws IOException {
+		printer.print(id1);
+		for (int i = 0; i < attributes.size(); i++) {
+			String value = item.get(attributes.code(i));
+			printer.print(value == null ? "" : value);
 		}
+		printer.println();
 	}
 
 	private static void printCsvRecord(String id1, Map<String, String> itemMap, String[] attributes, CSVPrinter printer) {
@@ -129,172 +161,255 @@ public class Parser {
 		}
 	}
 
-	private static void parseLabeledItemPairs() {
+	private static void parseLabeledItemPairs() throws IOException {
 		String dataFilePath = "/Users/sdas7/Downloads/sample_electronics.csv";
 		String tableAPath = "A.csv";
 		String tableBPath = "B.csv";
 		String candsetPath = "candset.csv";
 		String goldPath = "gold.csv";
+		parseLabeledItemPairs(dataFilePath, tableAPath, tableBPath, candsetPath, goldPath, false, false, null);
+	}
 
+	// bad pairs are listed in quarantinePath, if it is not null
+	private static void parseLabeledItemPairs(String dataFilePath, String tableAPath, String tableBPath,
+			String candsetPath, String goldPath, boolean sortIds, boolean streaming, String quarantinePath) throws IOException {
+		if (streaming) {
+			parseLabeledItemPairsStreaming(dataFilePath, tableAPath, tableBPath, candsetPath, goldPath, quarantinePath);
+			return;
+		}
 		FileReader r;
-		try {
-			r = new FileReader(dataFilePath);
-			CSVParser parser;
-			parser = new CSVParser(r);
-			List<CSVRecord> records = parser.getRecords();
-			r.close();
-			int size = records.size();
-			System.out.println("No. of records: " + size);
-
-			Map<String, String> tableA = new HashMap<String, String>();
-			Map<String, String> tableB = new HashMap<String, String>();
-
-			Set<String> attributesA = new LinkedHashSet<String>();
-			Set<String> attributesB = new LinkedHashSet<String>();
-
-			BufferedWriter candsetBw = new BufferedWriter(new FileWriter(candsetPath, true));
-			CSVPrinter candsetPrinter = new CSVPrinter(candsetBw, CSVFormat.DEFAULT.toBuilder().withRecordSeparator("\n").build());
-			candsetPrinter.print(CANDSET_HEADER);
-			candsetPrinter.println();
-
-			BufferedWriter goldBw = new BufferedWriter(new FileWriter(goldPath, true));
-			CSVPrinter goldPrinter = new CSVPrinter(goldBw, CSVFormat.DEFAULT.toBuilder().withRecordSeparator("\n").build());
-			goldPrinter.print(GOLD_HEADER);
-			goldPrinter.println();
+		r = new FileReader(dataFilePath);
+		CSVParser parser;
+		parser = new CSVParser(r);
+		List<CSVRecord> records = parser.getRecords();
+		r.close();
+		int size = records.size();
+		System.out.println("No. of records: " + size);
+
+		Map<String, InternedItem> tableA = new HashMap<String, InternedItem>();
+		Map<String, InternedItem> tableB = new HashMap<String, InternedItem>();
+
+		SymbolTable.Union attributesA = new SymbolTable.Union(SymbolTable.ATTRIBUTES);
+		SymbolTable.Union attributesB = new SymbolTable.Union(SymbolTable.ATTRIBUTES);
+
+		AsyncFileWriter candsetBw = new AsyncFileWriter(candsetPath, true);
+		CSVPrinter candsetPrinter = new CSVPrinter(candsetBw, CSVFormat.DEFAULT.toBuilder().withRecordSeparator("\n").build());
+		candsetPrinter.print(CANDSET_HEADER);
+		candsetPrinter.println();
+
+		AsyncFileWriter goldBw = new AsyncFileWriter(goldPath, true);
+		CSVPrinter goldPrinter = new CSVPrinter(goldBw, CSVFormat.DEFAULT.toBuilder().withRecordSeparator("\n").build());
+		goldPrinter.print(GOLD_HEADER);
+		goldPrinter.println();
 
-			int badPairs = 0;
-			for (int i = 0; i < size; i++) {
-				CSVRecord rec = records.get(i);
-				int pairId = i + 1; // ignore the pairId coming from the data 
-				String id1 = rec.get(1).trim();
-				String attr1 = rec.get(2).trim();
-				String id2 = rec.get(3).trim();
-				String attr2 = rec.get(4).trim();
-				String matchLabel = rec.get(5).trim();
-				int label = 0;
-				if ("MATCH".equals(matchLabel)) {
-					label = 1;
-				}
-				try {
-					Set<String> attrA = getAttributeNames(attr1);
-					System.out.println("No. of attributes in A record: " + attrA.size());
-					attributesA.addAll(attrA);
-					if (tableA.containsKey(id1)) {
-						System.out.println("Duplicate A id: " + id1);
-					}
-					else {
-						tableA.put(id1, attr1);	
-					}
-				}
-				catch(JsonParsingException jpe) {
-					System.err.println("Bad attr1 in tuple pair #" + pairId + ", " + jpe.getMessage());
-					badPairs++;
-					continue;
-				}
-				catch(JsonException je) {
-					System.err.println("Bad attr1 in tuple pair #" + pairId + ", " + je.getMessage());
-					badPairs++;
-					continue;
+		RecordLog log = new RecordLog("labeledPairs", quarantinePath);
+		RecordLog.Type attributeCountsA = log.type("No. of attributes in A record: ", false);
+		RecordLog.Type attributeCountsB = log.type("No. of attributes in B record: ", false);
+		RecordLog.Type duplicatesA = log.type("Duplicate A id: ", false);
+		RecordLog.Type duplicatesB = log.type("Duplicate B id: ", false);
+		RecordLog.Type badAttr1 = log.type("Bad attr1 in tuple pair #", true);
+		RecordLog.Type badAttr2 = log.type("Bad attr2 in tuple pair #", true);
+		int badPairs = 0;
+		for (int i = 0; i < size; i++) {
+			CSVRecord rec = records.get(i);
+			int pairId = i + 1; // ignore the pairId coming from the data 
+			String id1 = rec.get(1).trim();
+			String attr1 = rec.get(2).trim();
+			String id2 = rec.get(3).trim();
+			String attr2 = rec.get(4).trim();
+			String matchLabel = rec.get(5).trim();
+			int label = 0;
+			if ("MATCH".equals(matchLabel)) {
+				label = 1;
+			}
+			try {
+				InternedItem itemA = InternedItem.fromJson(attr1, null, attributesA);
+				attributeCountsA.note(itemA.attributes().length);
+				if (tableA.containsKey(id1)) {
+					duplicatesA.note(id1);
 				}
-				try {
-					Set<String> attrB = getAttributeNames(attr2);
-					System.out.println("No. of attributes in B record: " + attrB.size());
-					attributesB.addAll(attrB);
-					if (tableB.containsKey(id2)) {
-						System.out.println("Duplicate B id: " + id2);
-					}
-					else {
-						tableB.put(id2, attr2);	
-					}
+				else {
+					tableA.put(id1, itemA);	
 				}
-				catch(JsonParsingException jpe) {
-					System.err.println("Bad attr2 in tuple pair #" + pairId + ", " + jpe.getMessage());
-					badPairs++;
-					continue;
+			}
+			catch(JsonException je) {
+				badAttr1.note(pairId + ", " + je.getMessage());
+				log.quarantine(dataFilePath, true, rec.getRecordNumber(), "attr1: " + je.getMessage());
+				badPairs++;
+				continue;
+			}
+			try {
+				InternedItem itemB = InternedItem.fromJson(attr2, null, attributesB);
+				attributeCountsB.note(itemB.attributes().length);
+				if (tableB.containsKey(id2)) {
+					duplicatesB.note(id2);
 				}
-				catch(JsonException je) {
-					System.err.println("Bad attr2 in tuple pair #" + pairId + ", " + je.getMessage());
-					badPairs++;
-					continue;
+				else {
+					tableB.put(id2, itemB);	
 				}
-				candsetPrinter.print(pairId);
-				candsetPrinter.print(id1);
-				candsetPrinter.print(id2);
-				candsetPrinter.println();
-
-				goldPrinter.print(pairId);
-				goldPrinter.print(id1);
-				goldPrinter.print(id2);
-				goldPrinter.print(label);
-				goldPrinter.println();
 			}
-			candsetPrinter.close();
-			candsetBw.close();
-			goldPrinter.close();
-			goldBw.close();
-
-			System.out.println("No. of A tuples: " + tableA.size());
-			System.out.println("No. of B tuples: " + tableB.size());
-			System.out.println("Removing Item ID from A attributes ...");
-			attributesA.remove("Item ID");
-			System.out.println("Removing Item ID from B attributes ...");
-			attributesB.remove("Item ID");
-			System.out.println("No. of attributes in A :" + attributesA.size());
-			System.out.println("No. of attributes in B :" + attributesB.size());
-			System.out.println("A attributes: ");
-			for (String s: attributesA) {
-				System.out.println(s);
+			catch(JsonException je) {
+				badAttr2.note(pairId + ", " + je.getMessage());
+				log.quarantine(dataFilePath, true, rec.getRecordNumber(), "attr2: " + je.getMessage());
+				badPairs++;
+				continue;
 			}
-			System.out.println();
+			candsetPrinter.print(pairId);
+			candsetPrinter.print(id1);
+			candsetPrinter.print(id2);
+			candsetPrinter.println();
 
-			System.out.println("B attributes: ");
-			for (String s: attributesB) {
-				System.out.println(s);
-			}
-			System.out.println("No. of bad pairs: " + badPairs);
+			goldPrinter.print(pairId);
+			goldPrinter.print(id1);
+			goldPrinter.print(id2);
+			goldPrinter.print(label);
+			goldPrinter.println();
+		}
+		candsetPrinter.close();
+		candsetBw.close();
+		goldPrinter.close();
+		goldBw.close();
+		log.close();
+
+		System.out.println("No. of A tuples: " + tableA.size());
+		System.out.println("No. of B tuples: " + tableB.size());
+		System.out.println("Removing Item ID from A attributes ...");
+		attributesA.remove("Item ID");
+		System.out.println("Removing Item ID from B attributes ...");
+		attributesB.remove("Item ID");
+		System.out.println("No. of attributes in A :" + attributesA.size());
+		System.out.println("No. of attributes in B :" + attributesB.size());
+		System.out.println("A attributes: ");
+		for (String s: attributesA.names()) {
+			System.out.println(s);
+		}
+		System.out.println();
 
-			//get header for the tables
-			String tableHeader = getHeader(attributesB);
+		System.out.println("B attributes: ");
+		for (String s: attributesB.names()) {
+			System.out.println(s);
+		}
+		System.out.println("No. of bad pairs: " + badPairs);
 
-			BufferedWriter tableABw = new BufferedWriter(new FileWriter(tableAPath, true));
-			CSVPrinter tableAPrinter = new CSVPrinter(tableABw, CSVFormat.DEFAULT.toBuilder().withRecordSeparator("\n").build());
-			tableAPrinter.print(tableHeader);
-			tableAPrinter.println();
+		//get header for the tables
+		String tableHeader = attributesB.header();
 
-			BufferedWriter tableBBw = new BufferedWriter(new FileWriter(tableBPath, true));
-			CSVPrinter tableBPrinter = new CSVPrinter(tableBBw, CSVFormat.DEFAULT.toBuilder().withRecordSeparator("\n").build());
-			tableBPrinter.print(tableHeader);
-			tableBPrinter.println();
+		writeTable(tableAPath, tableA, tableHeader, attributesB, sortIds);
+		writeTable(tableBPath, tableB, tableHeader, attributesB, sortIds);
+	}
 
-			// print table A records
-			for (Map.Entry<String, String> entry: tableA.entrySet()) {
-				String id1 = entry.getKey();
-				String attr1 = entry.getValue();
-				printCsvRecord(id1, attr1, attributesB, tableAPrinter);
-			}
-			tableAPrinter.close();
-			tableABw.close();
+	/**
+	 * parseLabeledItemPairs for label files too big for the heap: the attributes are found
+	 * first by SchemaDiscovery, then the pairs are read one at a time and table rows are
+	 * written as soon as an id is first seen (see StreamingTable), so rows are in that
+	 * order instead of hash order.
+	 */
+	private static void parseLabeledItemPairsStreaming(String dataFilePath, String tableAPath, String tableBPath,
+			String candsetPath, String goldPath, String quarantinePath) throws IOException {
+		List<String> schema = SchemaDiscovery.pairFiles(dataFilePath).get(1);
+		schema.remove("Item ID");
+		System.out.println("No. of attributes discovered in B: " + schema.size());
+		StreamingTable tableA = StreamingTable.withSchema(tableAPath, schema);
+		StreamingTable tableB = StreamingTable.withSchema(tableBPath, schema);
+
+		AsyncFileWriter candsetBw = new AsyncFileWriter(candsetPath, true);
+		CSVPrinter candsetPrinter = new CSVPrinter(candsetBw, CSVFormat.DEFAULT.toBuilder().withRecordSeparator("\n").build());
+		candsetPrinter.print(CANDSET_HEADER);
+		candsetPrinter.println();
+
+		AsyncFileWriter goldBw = new AsyncFileWriter(goldPath, true);
+		CSVPrinter goldPrinter = new CSVPrinter(goldBw, CSVFormat.DEFAULT.toBuilder().withRecordSeparator("\n").build());
+		goldPrinter.print(GOLD_HEADER);
+		goldPrinter.println();
 
-			// print table A records
-			for (Map.Entry<String, String> entry: tableB.entrySet()) {
-				String id2 = entry.getKey();
-				String attr2 = entry.getValue();
-				printCsvRecord(id2, attr2, attributesB, tableBPrinter);
+		RecordLog log = new RecordLog("labeledPairs", quarantinePath);
+		int[] counts = streamPairs(dataFilePath, "tuple", 1, true, tableA, tableB, candsetPrinter, goldPrinter, log);
+		candsetPrinter.close();
+		candsetBw.close();
+		goldPrinter.close();
+		goldBw.close();
+		log.close();
+
+		System.out.println("No. of records: " + counts[0]);
+		System.out.println("No. of A tuples: " + tableA.size());
+		System.out.println("No. of B tuples: " + tableB.size());
+		List<String> attributesA = tableA.attributeNames();
+		List<String> attributesB = tableB.attributeNames();
+		System.out.println("Removing Item ID from B attributes ...");
+		attributesA.remove("Item ID");
+		attributesB.remove("Item ID");
+		System.out.println("No. of attributes in A :" + attributesA.size());
+		System.out.println("No. of attributes in B :" + attributesB.size());
+		System.out.println("No. of bad pairs: " + counts[1]);
+
+		// both tables get the columns of B
+		tableA.finish(attributesB);
+		tableB.finish(attributesB);
+	}
+
+	/**
+	 * Reads the pairs of a pair file one at a time: items go to the tables, pairs numbered
+	 * from firstPairId go to candset and gold. Returns the number of pairs and of bad pairs.
+	 */
+	private static int[] streamPairs(String pairFilePath, String pairKind, int firstPairId, boolean reportDuplicates,
+			StreamingTable tableA, StreamingTable tableB, CSVPrinter candsetPrinter, CSVPrinter goldPrinter, RecordLog log)
+			throws IOException {
+		RecordLog.Type duplicatesA = log.type("Duplicate A id: ", false);
+		RecordLog.Type duplicatesB = log.type("Duplicate B id: ", false);
+		RecordLog.Type badAttr1 = log.type("Bad attr1 in " + pairKind + " pair #", true);
+		RecordLog.Type badAttr2 = log.type("Bad attr2 in " + pairKind + " pair #", true);
+		BufferedReader br = new BufferedReader(new FileReader(pairFilePath));
+		int size = 0;
+		int badPairs = 0;
+		for (CSVRecord rec: new CSVParser(br)) {
+			int pairId = firstPairId + size++; // ignore the pairId coming from the data
+			String id1 = rec.get(1).trim();
+			String attr1 = rec.get(2).trim();
+			String id2 = rec.get(3).trim();
+			String attr2 = rec.get(4).trim();
+			String matchLabel = rec.get(5).trim();
+			int label = 0;
+			if ("MATCH".equals(matchLabel)) {
+				label = 1;
 			}
-			tableBPrinter.close();
-			tableBBw.close();
-		}
-		catch (FileNotFoundException e) {
-			// TODO Auto-generated catch block
-			e.printStackTrace();
-		}
-		catch (IOException e) {
-			// TODO Auto-generated catch block
-			e.printStackTrace();
+			try {
+				if (!tableA.add(id1, tableA.parse(attr1)) && reportDuplicates) {
+					duplicatesA.note(id1);
+				}
+			}
+			catch(JsonException je) {
+				badAttr1.note(pairId + ", " + je.getMessage());
+				log.quarantine(pairFilePath, true, rec.getRecordNumber(), "attr1: " + je.getMessage());
+				badPairs++;
+				continue;
+			}
+			try {
+				if (!tableB.add(id2, tableB.parse(attr2)) && reportDuplicates) {
+					duplicatesB.note(id2);
+				}
+			}
+			catch(JsonException je) {
+				badAttr2.note(pairId + ", " + je.getMessage());
+				log.quarantine(pairFilePath, true, rec.getRecordNumber(), "attr2: " + je.getMessage());
+				badPairs++;
+				continue;
+			}
+			candsetPrinter.print(pairId);
+			candsetPrinter.print(id1);
+			candsetPrinter.print(id2);
+			candsetPrinter.println();
+
+			goldPrinter.print(pairId);
+			goldPrinter.print(id1);
+			goldPrinter.print(id2);
+			goldPrinter.print(label);
+			goldPrinter.println();
 		}
+		br.close();
+		return new int[] {size, badPairs};
 	}
 
-	private static void parseTrainTestItemPairs() {
+	private static void parseTrainTestItemPairs() throws IOException {
 		/*
 		String trainFilePath = "/Users/sdas7/Downloads/elec_train_30k.csv";
 		String testFilePath = "/Users/sdas7/Downloads/elec_test_30K.csv";
@@ -312,8 +427,45 @@ public class Parser {
 		String candsetPath = "wv_candset_elec_new.csv";
 		String trainPath = "train_stage1_new.csv";
 		String testPath = "test_stage3_new.csv";
+		parseTrainTestItemPairs(trainFilePath, testFilePath, tableAPath, tableBPath, candsetPath, trainPath, testPath, false, false, false, false, null);
+	}
 
+	/**
+	 * In incremental mode the outputs are replaced instead of appended to, and the fingerprints of
+	 * the pair files and of every item are kept in candsetPath + ".fingerprints". A rerun on unchanged
+	 * pair files does nothing, otherwise the table rows of items whose JSON did not change are copied
+	 * from the previous tables instead of being rendered again. Bad pairs are listed in quarantinePath,
+	 * if it is not null. With offHeap the items are kept in an ItemStore next to each table, not on the heap.
+	 */
+	private static void parseTrainTestItemPairs(String trainFilePath, String testFilePath, String tableAPath,
+			String tableBPath, String candsetPath, String trainPath, String testPath, boolean incremental,
+			boolean sortIds, boolean streaming, boolean offHeap, String quarantinePath) throws IOException {
+		if (streaming) {
+			parseTrainTestItemPairsStreaming(trainFilePath, testFilePath, tableAPath, tableBPath, candsetPath, trainPath, testPath,
+					quarantinePath);
+			return;
+		}
+		ItemStore storeA = null;
+		ItemStore storeB = null;
 		try {
+			String manifestPath = candsetPath + ".fingerprints";
+			Map<String, String> oldFingerprints = new HashMap<String, String>();
+			Map<String, String> fingerprints = new LinkedHashMap<String, String>();
+			if (incremental) {
+				fingerprints.put("train", fingerprint(trainFilePath));
+				fingerprints.put("test", fingerprint(testFilePath));
+				oldFingerprints = readFingerprints(manifestPath);
+				boolean outputsExist = true;
+				for (String path: new String[] {tableAPath, tableBPath, candsetPath, trainPath, testPath}) {
+					outputsExist &= new File(path).exists();
+				}
+				if (outputsExist && fingerprints.get("train").equals(oldFingerprints.get("train"))
+						&& fingerprints.get("test").equals(oldFingerprints.get("test"))) {
+					System.out.println("Train and test pairs unchanged since the last run, nothing to do");
+					return;
+				}
+			}
+
 			CSVParser trainParser = new CSVParser(new FileReader(trainFilePath));
 			List<CSVRecord> trainRecords = trainParser.getRecords();
 			int trainSize = trainRecords.size();
@@ -324,22 +476,31 @@ public class Parser {
 			int testSize = testRecords.size();
 			System.out.println("No. of test records: " + testSize);
 
-			Map<String, String> tableA = new HashMap<String, String>();
-			Map<String, String> tableB = new HashMap<String, String>();
+			Map<String, InternedItem> tableA = new HashMap<String, InternedItem>();
+			Map<String, InternedItem> tableB = new HashMap<String, InternedItem>();
+			if (offHeap) {
+				storeA = new ItemStore(tableAPath + ".items");
+				storeB = new ItemStore(tableBPath + ".items");
+			}
 
-			Set<String> attributesA = new LinkedHashSet<String>();
-			Set<String> attributesB = new LinkedHashSet<String>();
+			SymbolTable.Union attributesA = new SymbolTable.Union(SymbolTable.ATTRIBUTES);
+			SymbolTable.Union attributesB = new SymbolTable.Union(SymbolTable.ATTRIBUTES);
 
-			BufferedWriter candsetBw = new BufferedWriter(new FileWriter(candsetPath, true));
+			AsyncFileWriter candsetBw = openOutput(candsetPath, incremental);
 			CSVPrinter candsetPrinter = new CSVPrinter(candsetBw, CSVFormat.DEFAULT.toBuilder().withRecordSeparator("\n").build());
 			candsetPrinter.print(CANDSET_HEADER);
 			candsetPrinter.println();
 
-			BufferedWriter trainBw = new BufferedWriter(new FileWriter(trainPath, true));
+			AsyncFileWriter trainBw = openOutput(trainPath, incremental);
 			CSVPrinter trainPrinter = new CSVPrinter(trainBw, CSVFormat.DEFAULT.toBuilder().withRecordSeparator("\n").build());
 			trainPrinter.print(GOLD_HEADER);
 			trainPrinter.println();
 
+			RecordLog log = new RecordLog("trainTest", quarantinePath);
+			RecordLog.Type trainBadAttr1 = log.type("Bad attr1 in train pair #", true);
+			RecordLog.Type trainBadAttr2 = log.type("Bad attr2 in train pair #", true);
+			RecordLog.Type testBadAttr1 = log.type("Bad attr1 in test pair #", true);
+			RecordLog.Type testBadAttr2 = log.type("Bad attr2 in test pair #", true);
 			int badTrainPairs = 0;
 			for (int i = 0; i < trainSize; i++) {
 				CSVRecord rec = trainRecords.get(i);
@@ -354,45 +515,24 @@ public class Parser {
 					label = 1;
 				}
 				try {
-
-					Set<String> attrA = getAttributeNames(attr1);
-					//System.out.println("No. of attributes in A record: " + attrA.size());
-					attributesA.addAll(attrA);
-					if (tableA.containsKey(id1)) {
-						//System.out.println("Duplicate A id: " + id1);
+					if (putItem(tableA, storeA, id1, attr1, attributesA) && incremental) {
+						fingerprints.put("A\t" + id1, fingerprint64(attr1));
 					}
-					else {
-						tableA.put(id1, attr1);	
-					}
-				}
-				catch(JsonParsingException jpe) {
-					System.err.println("Bad attr1 in train pair #" + pairId + ", " + jpe.getMessage());
-					badTrainPairs++;
-					continue;
 				}
 				catch(JsonException je) {
-					System.err.println("Bad attr1 in train pair #" + pairId + ", " + je.getMessage());
+					trainBadAttr1.note(pairId + ", " + je.getMessage());
+					log.quarantine(trainFilePath, true, rec.getRecordNumber(), "attr1: " + je.getMessage());
 					badTrainPairs++;
 					continue;
 				}
 				try {
-					Set<String> attrB = getAttributeNames(attr2);
-					//System.out.println("No. of attributes in B record: " + attrB.size());
-					attributesB.addAll(attrB);
-					if (tableB.containsKey(id2)) {
-						//System.out.println("Duplicate B id: " + id2);
+					if (putItem(tableB, storeB, id2, attr2, attributesB) && incremental) {
+						fingerprints.put("B\t" + id2, fingerprint64(attr2));
 					}
-					else {
-						tableB.put(id2, attr2);	
-					}
-				}
-				catch(JsonParsingException jpe) {
-					System.err.println("Bad attr2 in train pair #" + pairId + ", " + jpe.getMessage());
-					badTrainPairs++;
-					continue;
 				}
 				catch(JsonException je) {
-					System.err.println("Bad attr2 in train pair #" + pairId + ", " + je.getMessage());
+					trainBadAttr2.note(pairId + ", " + je.getMessage());
+					log.quarantine(trainFilePath, true, rec.getRecordNumber(), "attr2: " + je.getMessage());
 					badTrainPairs++;
 					continue;
 				}
@@ -410,7 +550,7 @@ public class Parser {
 			trainPrinter.close();
 			trainBw.close();
 
-			BufferedWriter testBw = new BufferedWriter(new FileWriter(testPath, true));
+			AsyncFileWriter testBw = openOutput(testPath, incremental);
 			CSVPrinter testPrinter = new CSVPrinter(testBw, CSVFormat.DEFAULT.toBuilder().withRecordSeparator("\n").build());
 			testPrinter.print(GOLD_HEADER);
 			testPrinter.println();
@@ -429,44 +569,24 @@ public class Parser {
 					label = 1;
 				}
 				try {
-					Set<String> attrA = getAttributeNames(attr1);
-					//System.out.println("No. of attributes in A record: " + attrA.size());
-					attributesA.addAll(attrA);
-					if (tableA.containsKey(id1)) {
-						//System.out.println("Duplicate A id: " + id1);
+					if (putItem(tableA, storeA, id1, attr1, attributesA) && incremental) {
+						fingerprints.put("A\t" + id1, fingerprint64(attr1));
 					}
-					else {
-						tableA.put(id1, attr1);	
-					}
-				}
-				catch(JsonParsingException jpe) {
-					System.err.println("Bad attr1 in test pair #" + pairId + ", " + jpe.getMessage());
-					badTestPairs++;
-					continue;
 				}
 				catch(JsonException je) {
-					System.err.println("Bad attr1 in test pair #" + pairId + ", " + je.getMessage());
+					testBadAttr1.note(pairId + ", " + je.getMessage());
+					log.quarantine(testFilePath, true, rec.getRecordNumber(), "attr1: " + je.getMessage());
 					badTestPairs++;
 					continue;
 				}
 				try {
-					Set<String> attrB = getAttributeNames(attr2);
-					//System.out.println("No. of attributes in B record: " + attrB.size());
-					attributesB.addAll(attrB);
-					if (tableB.containsKey(id2)) {
-						//System.out.println("Duplicate B id: " + id2);
+					if (putItem(tableB, storeB, id2, attr2, attributesB) && incremental) {
+						fingerprints.put("B\t" + id2, fingerprint64(attr2));
 					}
-					else {
-						tableB.put(id2, attr2);	
-					}
-				}
-				catch(JsonParsingException jpe) {
-					System.err.println("Bad attr2 in test pair #" + pairId + ", " + jpe.getMessage());
-					badTestPairs++;
-					continue;
 				}
 				catch(JsonException je) {
-					System.err.println("Bad attr2 in test pair #" + pairId + ", " + je.getMessage());
+					testBadAttr2.note(pairId + ", " + je.getMessage());
+					log.quarantine(testFilePath, true, rec.getRecordNumber(), "attr2: " + je.getMessage());
 					badTestPairs++;
 					continue;
 				}
@@ -483,22 +603,23 @@ public class Parser {
 			}
 			testPrinter.close();
 			testBw.close();
+			log.close();
 
 			candsetPrinter.close();
 			candsetBw.close();
 
-			System.out.println("No. of A tuples: " + tableA.size());
-			System.out.println("No. of B tuples: " + tableB.size());
+			System.out.println("No. of A tuples: " + (offHeap ? storeA.size() : tableA.size()));
+			System.out.println("No. of B tuples: " + (offHeap ? storeB.size() : tableB.size()));
 			System.out.println("No. of attributes in A :" + attributesA.size());
 			System.out.println("No. of attributes in B :" + attributesB.size());
 			System.out.println("A attributes: ");
-			for (String s: attributesA) {
+			for (String s: attributesA.names()) {
 				System.out.println(s);
 			}
 			System.out.println();
 
 			System.out.println("B attributes: ");
-			for (String s: attributesB) {
+			for (String s: attributesB.names()) {
 				System.out.println(s);
 			}
 			System.out.println("No. of bad train pairs: " + badTrainPairs);
@@ -507,315 +628,317 @@ public class Parser {
 			attributesB.remove("Item ID");
 
 			//get header for the tables
-			String tableHeader = getHeader(attributesB);
-
-			BufferedWriter tableABw = new BufferedWriter(new FileWriter(tableAPath, true));
-			CSVPrinter tableAPrinter = new CSVPrinter(tableABw, CSVFormat.DEFAULT.toBuilder().withRecordSeparator("\n").build());
-			tableAPrinter.print(tableHeader);
-			tableAPrinter.println();
-
-			BufferedWriter tableBBw = new BufferedWriter(new FileWriter(tableBPath, true));
-			CSVPrinter tableBPrinter = new CSVPrinter(tableBBw, CSVFormat.DEFAULT.toBuilder().withRecordSeparator("\n").build());
-			tableBPrinter.print(tableHeader);
-			tableBPrinter.println();
-
-			// print table A records
-			for (Map.Entry<String, String> entry: tableA.entrySet()) {
-				String id1 = entry.getKey();
-				String attr1 = entry.getValue();
-				printCsvRecord(id1, attr1, attributesB, tableAPrinter);
+			String tableHeader = attributesB.header();
+			if (offHeap) {
+				storeA.seal();
+				storeB.seal();
 			}
-			tableAPrinter.close();
-			tableABw.close();
 
-			// print table B records
-			for (Map.Entry<String, String> entry: tableB.entrySet()) {
-				String id2 = entry.getKey();
-				String attr2 = entry.getValue();
-				printCsvRecord(id2, attr2, attributesB, tableBPrinter);
+			if (incremental) {
+				replaceOutput(candsetPath);
+				replaceOutput(trainPath);
+				replaceOutput(testPath);
+				String headerFingerprint = fingerprint64(tableHeader);
+				fingerprints.put("header", headerFingerprint);
+				boolean reuse = headerFingerprint.equals(oldFingerprints.get("header"));
+				writeTableIncremental(tableAPath, itemRows(tableA, storeA, attributesB, sortIds), tableHeader, attributesB, "A\t",
+						reuse ? oldFingerprints : new HashMap<String, String>(), fingerprints);
+				writeTableIncremental(tableBPath, itemRows(tableB, storeB, attributesB, sortIds), tableHeader, attributesB, "B\t",
+						reuse ? oldFingerprints : new HashMap<String, String>(), fingerprints);
+				writeFingerprints(manifestPath, fingerprints);
+				return;
 			}
-			tableBPrinter.close();
-			tableBBw.close();
-		}
-		catch (FileNotFoundException e) {
-			// TODO Auto-generated catch block
-			e.printStackTrace();
+
+			TableWriter.write(tableAPath, tableHeader, itemRows(tableA, storeA, attributesB, sortIds), true);
+			TableWriter.write(tableBPath, tableHeader, itemRows(tableB, storeB, attributesB, sortIds), true);
 		}
-		catch (IOException e) {
-			// TODO Auto-generated catch block
-			e.printStackTrace();
+		finally {
+			closeStores(storeA, storeB);
 		}
 	}
 
+	// the stores are scratch files, the outputs are written by now or failed already, so only warns
+	private static void closeStores(ItemStore... stores) {
+		for (ItemStore store: stores) {
+			if (store != null) {
+				try {
+					store.close();
+				}
+				catch (IOException e) {
+					System.err.println("Could not close an item store: " + e.getMessage());
+				}
+			}
+		}
+	}
+
+	// parseTrainTestItemPairs without holding the pairs or the items, as parseLabeledItemPairsStreaming
+	private static void parseTrainTestItemPairsStreaming(String trainFilePath, String testFilePath, String tableAPath,
+			String tableBPath, String candsetPath, String trainPath, String testPath, String quarantinePath) throws IOException {
+		List<String> schema = SchemaDiscovery.pairFiles(trainFilePath, testFilePath).get(1);
+		schema.remove("Item ID");
+		System.out.println("No. of attributes discovered in B: " + schema.size());
+		StreamingTable tableA = StreamingTable.withSchema(tableAPath, schema);
+		StreamingTable tableB = StreamingTable.withSchema(tableBPath, schema);
+
+		AsyncFileWriter candsetBw = new AsyncFileWriter(candsetPath, true);
+		CSVPrinter candsetPrinter = new CSVPrinter(candsetBw, CSVFormat.DEFAULT.toBuilder().withRecordSeparator("\n").build());
+		candsetPrinter.print(CANDSET_HEADER);
+		candsetPrinter.println();
+
+		AsyncFileWriter trainBw = new AsyncFileWriter(trainPath, true);
+		CSVPrinter trainPrinter = new CSVPrinter(trainBw, CSVFormat.DEFAULT.toBuilder().withRecordSeparator("\n").build());
+		trainPrinter.print(GOLD_HEADER);
+		trainPrinter.println();
+		RecordLog log = new RecordLog("trainTest", quarantinePath);
+		int[] train = streamPairs(trainFilePath, "train", 1, false, tableA, tableB, candsetPrinter, trainPrinter, log);
+		trainPrinter.close();
+		trainBw.close();
+		System.out.println("No. of train records: " + train[0]);
+
+		AsyncFileWriter testBw = new AsyncFileWriter(testPath, true);
+		CSVPrinter testPrinter = new CSVPrinter(testBw, CSVFormat.DEFAULT.toBuilder().withRecordSeparator("\n").build());
+		testPrinter.print(GOLD_HEADER);
+		testPrinter.println();
+		int[] test = streamPairs(testFilePath, "test", train[0] + 1, false, tableA, tableB, candsetPrinter, testPrinter, log);
+		testPrinter.close();
+		testBw.close();
+		log.close();
+		System.out.println("No. of test records: " + test[0]);
+
+		candsetPrinter.close();
+		candsetBw.close();
+
+		List<String> attributesA = tableA.attributeNames();
+		List<String> attributesB = tableB.attributeNames();
+		System.out.println("No. of A tuples: " + tableA.size());
+		System.out.println("No. of B tuples: " + tableB.size());
+		System.out.println("No. of attributes in A :" + attributesA.size());
+		System.out.println("No. of attributes in B :" + attributesB.size());
+		System.out.println("No. of bad train pairs: " + train[1]);
+		System.out.println("No. of bad test pairs: " + test[1]);
+		System.out.println("Removing Item ID from B attributes ...");
+		attributesB.remove("Item ID");
+
+		tableA.finish(attributesB);
+		tableB.finish(attributesB);
+	}
+
 	private static void sampleExamplePairs (int numPositives, int numNegatives,
 			List<String> attributesToKeep) throws IOException {
 		String candsetFilePath = "/Users/sdas7/Downloads/elec_test_30k.csv";
 		String samplePairsFilePath = "sample_negative_pairs.txt";
-		CSVParser candsetParser = new CSVParser(new FileReader(candsetFilePath));
-		List<CSVRecord> candsetRecords = candsetParser.getRecords();
-		int candsetSize = candsetRecords.size();
-		System.out.println("No. of candset records: " + candsetSize);
+		sampleExamplePairs(candsetFilePath, PairIndex.defaultIndexName(candsetFilePath), samplePairsFilePath,
+				numPositives, numNegatives, attributesToKeep, new Random());
+	}
+
+	// random positives and negatives of a pair file read by position through its index, which is built if needed
+	static void sampleExamplePairs(String candsetFilePath, String indexFilePath, String samplePairsFilePath,
+			int numPositives, int numNegatives, List<String> attributesToKeep, Random random) throws IOException {
+		PairIndex candset = PairIndex.open(candsetFilePath, indexFilePath);
+		System.out.println("No. of candset records: " + candset.size() + ", matches: " + candset.matches());
 
-		BufferedWriter samplePairsBw = new BufferedWriter(new FileWriter(samplePairsFilePath));
+		AsyncFileWriter samplePairsBw = new AsyncFileWriter(samplePairsFilePath);
 
 		Set<String> attributes = new LinkedHashSet<String>(attributesToKeep);
-		for (int pairId = 0; pairId < numPositives; pairId++) {
-			samplePairsBw.write("Positive Item Pair #" + (pairId + 1));
+		int[] positives = candset.sample(true, numPositives, random);
+		for (int i = 0; i < positives.length; i++) {
+			writeSamplePair(samplePairsBw, "Positive Item Pair #" + (i + 1), positives[i], candset, attributes);
+		}
+		int[] negatives = candset.sample(false, numNegatives, random);
+		for (int i = 0; i < negatives.length; i++) {
+			writeSamplePair(samplePairsBw, "Negative Item Pair #" + (i + 1), negatives[i], candset, attributes);
+		}
+		samplePairsBw.close();
+		candset.close();
+	}
+
+	private static void writeSamplePair(AsyncFileWriter samplePairsBw, String title, int pairId, PairIndex candset,
+			Set<String> attributes) throws IOException {
+		samplePairsBw.write(title);
+		samplePairsBw.newLine();
+		samplePairsBw.write("-------------------------");
+		samplePairsBw.newLine();
+		String[] record = candset.get(pairId);
+		if (record.length < 6) {
+			System.err.println("Bad pair #" + pairId + ", " + record.length + " fields");
+			return;
+		}
+		String id1 = record[1].trim();
+		String attr1 = record[2].trim();
+		String id2 = record[3].trim();
+		String attr2 = record[4].trim();
+		try {
+			Map<String, String> attributeValuePairsA = parseJsonBlob(attr1, attributes);
+			Map<String, String> attributeValuePairsB = parseJsonBlob(attr2, attributes);
+			samplePairsBw.write("Walmart item (id: " + id1 + ")");
 			samplePairsBw.newLine();
-			samplePairsBw.write("-------------------------");
 			samplePairsBw.newLine();
-			CSVRecord record = candsetRecords.get(pairId);
-			String id1 = record.get(1).trim();
-			String attr1 = record.get(2).trim();
-			String id2 = record.get(3).trim();
-			String attr2 = record.get(4).trim();
-			try {
-				Map<String, String> attributeValuePairsA = parseJsonBlob(attr1, attributes);
-				Map<String, String> attributeValuePairsB = parseJsonBlob(attr2, attributes);
-				samplePairsBw.write("Walmart item (id: " + id1 + ")");
-				samplePairsBw.newLine();
-				samplePairsBw.newLine();
 
-				for (String s: attributes) {
-					String val = attributeValuePairsA.get(s);
-					if (null == val || val.isEmpty()) {
-						continue;
-					}
-					samplePairsBw.write(s + ": ");
-					samplePairsBw.write(val);
-					samplePairsBw.newLine();
-					samplePairsBw.newLine();
+			for (String s: attributes) {
+				String val = attributeValuePairsA.get(s);
+				if (null == val || val.isEmpty()) {
+					continue;
 				}
-				samplePairsBw.write("-----------------------------------------");
-				samplePairsBw.newLine();
-				samplePairsBw.write("Vendor item (id: " + id2 + ")");
+				samplePairsBw.write(s + ": ");
+				samplePairsBw.write(val);
 				samplePairsBw.newLine();
 				samplePairsBw.newLine();
+			}
+			samplePairsBw.write("-----------------------------------------");
+			samplePairsBw.newLine();
+			samplePairsBw.write("Vendor item (id: " + id2 + ")");
+			samplePairsBw.newLine();
+			samplePairsBw.newLine();
 
-				for (String s: attributes) {
-					String val = attributeValuePairsB.get(s);
-					if (null == val || val.isEmpty()) {
-						continue;
-					}
-					samplePairsBw.write(s + ": ");
-					samplePairsBw.write(val);
-					samplePairsBw.newLine();
-					samplePairsBw.newLine();
+			for (String s: attributes) {
+				String val = attributeValuePairsB.get(s);
+				if (null == val || val.isEmpty()) {
+					continue;
 				}
-				samplePairsBw.write("-----------------------------------------");
-				samplePairsBw.newLine();
-				String matchLabel = record.get(5).trim();
-				System.out.println(matchLabel);
-				samplePairsBw.write(matchLabel);
-				samplePairsBw.newLine();
-				samplePairsBw.newLine();
-				samplePairsBw.write("-----------------------------------------");
-				samplePairsBw.newLine();
-				samplePairsBw.write("-----------------------------------------");
-				samplePairsBw.newLine();
+				samplePairsBw.write(s + ": ");
+				samplePairsBw.write(val);
 				samplePairsBw.newLine();
 				samplePairsBw.newLine();
 			}
-			catch(JsonParsingException jpe) {
-				System.err.println("Bad pair #" + pairId + ", " + jpe.getMessage());
-				continue;
+			samplePairsBw.write("-----------------------------------------");
+			samplePairsBw.newLine();
+			String matchLabel = record[5].trim();
+			System.out.println(matchLabel);
+			samplePairsBw.write(matchLabel);
+			samplePairsBw.newLine();
+			samplePairsBw.newLine();
+			samplePairsBw.write("-----------------------------------------");
+			samplePairsBw.newLine();
+			samplePairsBw.write("-----------------------------------------");
+			samplePairsBw.newLine();
+			samplePairsBw.newLine();
+			samplePairsBw.newLine();
+		}
+		catch(JsonParsingException jpe) {
+			System.err.println("Bad pair #" + pairId + ", " + jpe.getMessage());
+		}
+		catch(JsonException je) {
+			System.err.println("Bad pair #" + pairId + ", " + je.getMessage());
+		}
+	}
+
+	private static void parseItems() throws IOException {
+		String dataFilePath = "/Users/sdas7/Documents/wlabs_data/CRAWLER_MATCH_WITH_DOTCOM_ANALYSIS_DATA.txt";
+		String tableAPath = "Samsung.csv";
+		parseItems(dataFilePath, tableAPath, false, false, null);
+	}
+
+	// bad records are listed in quarantinePath, if it is not null
+	private static void parseItems(String dataFilePath, String tableAPath, boolean sortIds, boolean streaming,
+			String quarantinePath) throws IOException {
+		if (streaming) {
+			parseItemsStreaming(dataFilePath, tableAPath, quarantinePath);
+			return;
+		}
+		BufferedReader br = new BufferedReader(new FileReader(dataFilePath));
+		String line;
+
+		Map<String, InternedItem> table = new HashMap<String, InternedItem>();
+		SymbolTable.Union attributes = new SymbolTable.Union(SymbolTable.ATTRIBUTES);
+
+		RecordLog log = new RecordLog("items", quarantinePath);
+		RecordLog.Type attributeCounts = log.type("No. of attributes in record: ", false);
+		RecordLog.Type duplicates = log.type("Duplicate id: ", false);
+		RecordLog.Type bad = log.type("Bad record #", true);
+		int badRecords = 0;
+		int id = 1;
+		long lineNo = 0;
+		while((line = br.readLine()) != null) {
+			lineNo++;
+			try {
+				InternedItem item = InternedItem.fromJson(line, null, attributes);
+				attributeCounts.note(item.attributes().length);
+				if (table.containsKey(id)) {
+					duplicates.note(id);
+				}
+				else {
+					table.put(String.valueOf(id), item);	
+				}
 			}
 			catch(JsonException je) {
-				System.err.println("Bad pair #" + pairId + ", " + je.getMessage());
+				bad.note(id + ": " + je.getMessage());
+				log.quarantine(dataFilePath, false, lineNo, je.getMessage());
+				badRecords++;
 				continue;
 			}
+			id++;
 		}
+		br.close();
+		log.close();
+		System.out.println("No. of records: " + table.size());
+		System.out.println("Removing Item ID from B attributes ...");
+		attributes.remove("Item ID");
+		System.out.println("No. of attributes in table: " + attributes.size());
+		System.out.println("Table attributes: ");
+		for (String s: attributes.names()) {
+			System.out.println(s);
+		}
+		System.out.println();
+		System.out.println("No. of bad records: " + badRecords);
 
-		for (int pairId = 20000; pairId < 20000 + numNegatives; pairId++) {
-			samplePairsBw.write("Negative Item Pair #" + (pairId - 19999));
-			samplePairsBw.newLine();
-			samplePairsBw.write("-------------------------");
-			samplePairsBw.newLine();
-			CSVRecord record = candsetRecords.get(pairId);
-			String id1 = record.get(1).trim();
-			String attr1 = record.get(2).trim();
-			String id2 = record.get(3).trim();
-			String attr2 = record.get(4).trim();
-			try {
-				Map<String, String> attributeValuePairsA = parseJsonBlob(attr1, attributes);
-				Map<String, String> attributeValuePairsB = parseJsonBlob(attr2, attributes);
-
-				samplePairsBw.write("Walmart item (id: " + id1 + ")");
-				samplePairsBw.newLine();
-				samplePairsBw.newLine();
+		//get header for the tables
+		String tableHeader = attributes.header();
 
-				for (String s: attributes) {
-					String val = attributeValuePairsA.get(s);
-					if (null == val || val.isEmpty()) {
-						continue;
-					}
-					samplePairsBw.write(s + ": ");
-					samplePairsBw.write(val);
-					samplePairsBw.newLine();
-					samplePairsBw.newLine();
-				}
-				samplePairsBw.write("-----------------------------------------");
-				samplePairsBw.newLine();
+		writeTable(tableAPath, table, tableHeader, attributes, sortIds);
+	}
 
-				samplePairsBw.write("Vendor item (id: " + id2 + ")");
-				samplePairsBw.newLine();
-				samplePairsBw.newLine();
+	// parseItems without holding the items: the attributes are found first by SchemaDiscovery and rows are written in file order
+	private static void parseItemsStreaming(String dataFilePath, String tableAPath, String quarantinePath) throws IOException {
+		List<String> schema = SchemaDiscovery.itemLines(dataFilePath);
+		schema.remove("Item ID");
+		System.out.println("No. of attributes discovered: " + schema.size());
+		StreamingTable table = StreamingTable.withSchema(tableAPath, schema);
 
-				for (String s: attributes) {
-					String val = attributeValuePairsB.get(s);
-					if (null == val || val.isEmpty()) {
-						continue;
-					}
-					samplePairsBw.write(s + ": ");
-					samplePairsBw.write(val);
-					samplePairsBw.newLine();
-					samplePairsBw.newLine();
-				}
-				samplePairsBw.write("-----------------------------------------");
-				samplePairsBw.newLine();
-				String matchLabel = record.get(5).trim();
-				System.out.println(matchLabel);
-				samplePairsBw.write(matchLabel);
-				samplePairsBw.newLine();
-				samplePairsBw.newLine();
-				samplePairsBw.write("-----------------------------------------");
-				samplePairsBw.newLine();
-				samplePairsBw.write("-----------------------------------------");
-				samplePairsBw.newLine();
-				samplePairsBw.newLine();
-				samplePairsBw.newLine();
-			}
-			catch(JsonParsingException jpe) {
-				System.err.println("Bad pair #" + pairId + ", " + jpe.getMessage());
-				continue;
+		BufferedReader br = new BufferedReader(new FileReader(dataFilePath));
+		String line;
+		RecordLog log = new RecordLog("items", quarantinePath);
+		RecordLog.Type attributeCounts = log.type("No. of attributes in record: ", false);
+		RecordLog.Type bad = log.type("Bad record #", true);
+		int badRecords = 0;
+		int id = 1;
+		long lineNo = 0;
+		while((line = br.readLine()) != null) {
+			lineNo++;
+			try {
+				InternedItem item = table.parse(line);
+				attributeCounts.note(item.attributes().length);
+				table.add(String.valueOf(id), item);
 			}
 			catch(JsonException je) {
-				System.err.println("Bad pair #" + pairId + ", " + je.getMessage());
+				bad.note(id + ": " + je.getMessage());
+				log.quarantine(dataFilePath, false, lineNo, je.getMessage());
+				badRecords++;
 				continue;
 			}
+			id++;
 		}
-		samplePairsBw.close();
-	}
-
-	private static void parseItems() {
-		String dataFilePath = "/Users/sdas7/Documents/wlabs_data/CRAWLER_MATCH_WITH_DOTCOM_ANALYSIS_DATA.txt";
-		String tableAPath = "Samsung.csv";
-		try {
-			BufferedReader br = new BufferedReader(new FileReader(dataFilePath));
-			String line;
-
-			Map<String, String> table = new HashMap<String, String>();
-			Set<String> attributes = new LinkedHashSet<String>();
-
-			int badRecords = 0;
-			int id = 1;
-			while((line = br.readLine()) != null) {
-				try {
-					Set<String> attrs = getAttributeNames(line);
-					System.out.println("No. of attributes in record #" + id + ": " + attrs.size());
-					attributes.addAll(attrs);
-					if (table.containsKey(id)) {
-						System.out.println("Duplicate id: " + id);
-					}
-					else {
-						table.put(String.valueOf(id), line);	
-					}
-				}
-				catch(JsonParsingException jpe) {
-					System.err.println("Bad record #" + id + ": " + jpe.getMessage());
-					badRecords++;
-					continue;
-				}
-				catch(JsonException je) {
-					System.err.println("Bad record #" + id + ": " + je.getMessage());
-					badRecords++;
-					continue;
-				}
-				id++;
-			}
-			br.close();
-			System.out.println("No. of records: " + table.size());
-			System.out.println("Removing Item ID from B attributes ...");
-			attributes.remove("Item ID");
-			System.out.println("No. of attributes in table: " + attributes.size());
-			System.out.println("Table attributes: ");
-			for (String s: attributes) {
-				System.out.println(s);
-			}
-			System.out.println();
-			System.out.println("No. of bad records: " + badRecords);
-
-			//get header for the tables
-			String tableHeader = getHeader(attributes);
-
-			BufferedWriter tableBw = new BufferedWriter(new FileWriter(tableAPath, true));
-			CSVPrinter tablePrinter = new CSVPrinter(tableBw, CSVFormat.DEFAULT.toBuilder().withRecordSeparator("\n").build());
-			tablePrinter.print(tableHeader);
-			tablePrinter.println();
-
-			// print table records
-			for (Map.Entry<String, String> entry: table.entrySet()) {
-				String id1 = entry.getKey();
-				String attr1 = entry.getValue();
-				printCsvRecord(id1, attr1, attributes, tablePrinter);
-			}
-			tablePrinter.close();
-			tableBw.close();
-		}
-		catch (FileNotFoundException e) {
-			// TODO Auto-generated catch block
-			e.printStackTrace();
-		}
-		catch (IOException e) {
-			// TODO Auto-generated catch block
-			e.printStackTrace();
+		br.close();
+		log.close();
+		System.out.println("No. of records: " + table.size());
+		System.out.println("Removing Item ID from B attributes ...");
+		List<String> attributes = table.attributeNames();
+		attributes.remove("Item ID");
+		System.out.println("No. of attributes in table: " + attributes.size());
+		System.out.println("Table attributes: ");
+		for (String s: attributes) {
+			System.out.println(s);
 		}
+		System.out.println();
+		System.out.println("No. of bad records: " + badRecords);
+
+		table.finish(attributes);
 	}
 
 	private static void parseElectronicsItems() {
 		String dataFilePath = "/Users/sanjib/Documents/walmart_catalog/elec.txt";
 		String attributesPath = "tableAttributes.txt";
 		try {
-			BufferedReader br = new BufferedReader(new FileReader(dataFilePath));
-			String line;
-
-			Map<String, Integer> attribsCount = new HashMap<String, Integer>();
-
-			int badRecords = 0;
-			int id = 1;
-			while((line = br.readLine()) != null) {
-				String[] vals = line.split("\t");
-				String itemJson = vals[0];
-				try {
-					Set<String> attribNames = getAttributeNames(itemJson, "product_attributes");
-					for (String s: attribNames) {
-						if (attribsCount.containsKey(s)) {
-							int value = attribsCount.get(s);
-							attribsCount.put(s, value + 1);
-						}
-						else {
-							attribsCount.put(s, 1);
-						}
-					}
-				}
-				catch (JsonException e) {
-					badRecords++;
-				}
-				id++;
-				//if (id > 2) break;
-			}
-			br.close();
-			System.out.println();
-			System.out.println("No. of bad records: " + badRecords);
-			for (String a: attribsCount.keySet()) {
-				int v = attribsCount.get(a);
-				System.out.println(a + ": " + v);
-			}
-			System.out.println("Total no. of attributes: " + attribsCount.size());
-		}
-		catch (FileNotFoundException e) {
-			// TODO Auto-generated catch block
-			e.printStackTrace();
+			AttributeProfiler.profile(new String[] {dataFilePath}, attributesPath, "product_attributes", 10);
 		}
 		catch (IOException e) {
 			// TODO Auto-generated catch block
@@ -855,503 +978,556 @@ public class Parser {
 
 	private static void dumpMap(String outputFileName, Map<String, Integer> map) throws FileNotFoundException {
 		PrintWriter pw = new PrintWriter(outputFileName);
-		for (String k: map.keySet()) {
-			int v = map.get(k);
-			pw.println(k + "\t" + v);
+		for (Map.Entry<String, Integer> e: sortByCount(map)) {
+			pw.println(e.getKey() + "\t" + e.getValue());
 		}
 		pw.close();
 		System.out.println("Size of dictionary: " + map.size());
 	}
 
-	private static void createDictionaries(String[] inputFileNames, String[] outputFileNames, String[] attributeNames) throws FileNotFoundException {
-		List<Map<String, Integer>> dictionaries = new ArrayList<Map<String, Integer>>(attributeNames.length);
-		for (int i = 0; i < attributeNames.length; i++) {
-			dictionaries.add(new HashMap<String, Integer>());
+	// the counted values, most frequent first, with their guaranteed counts (lower bounds), as the profiler prints them
+	private static void dumpHeavyHitters(String outputFileName, SpaceSaving heavyHitters, int top) throws FileNotFoundException {
+		PrintWriter pw = new PrintWriter(outputFileName);
+		List<SpaceSaving.Counter> counters = heavyHitters.top(top);
+		for (SpaceSaving.Counter c: counters) {
+			pw.println(c.value + "\t" + c.guaranteed());
 		}
-		try {
-			for (int i = 0; i < inputFileNames.length; i++) {
-				String inputFileName = inputFileNames[i];
-				BufferedReader br = new BufferedReader(new FileReader(inputFileName));
-				int badRecords = 0; // invalid JSON
-				int badRecords1 = 0; // no "product_attributes"
-				int[] badRecords2 = new int[attributeNames.length]; // no attributeName
-				for (int k = 0; k < badRecords2.length; k++) {
-					badRecords2[k] = 0;
-				}
-				int badRecords3 = 0; // no "values"
-				int id = 0;
-				String line;
-				while((line = br.readLine()) != null) {
-					if (id % 100000 == 0) {
-						System.out.println("Processed " + id + " records of file " + inputFileName);
-					}
-					String[] vals = line.split("\t");
-					String itemJson = vals[0];
-					try {
-						JsonReader reader = Json.createReader(new StringReader(itemJson));
-						JsonObject obj = reader.readObject();
-						if (obj.containsKey("product_attributes")) {
-							//System.out.println("Found product_attributes");
-							JsonObject obj1 = obj.getJsonObject("product_attributes");
-							if (null == obj1) {
-								badRecords1++;
-								id++;
-								continue;
-							}
-							for (int j = 0; j < attributeNames.length; j++) {
-								String attributeName = attributeNames[j];
-								JsonObject obj2 = obj1.getJsonObject(attributeName);
-								if (null == obj2) {
-									badRecords2[j]++;
-									continue;
-								}
-								JsonArray arr = obj2.getJsonArray("values");
-								if (null == arr) {
-									badRecords3++;
-									continue;
-								}
-								for (int k = 0; k < arr.size(); k++) {
-									JsonObject obj3 = arr.getJsonObject(k);
-									if (arr.size() == 1) {
-										String value = obj3.getString("value");
-										addIncr(dictionaries.get(j), value);
-										break;
-									}
-									if (obj3.containsKey("isPrimary")) {
-										//System.out.println("Found isPrimary");
-										if ("true".equals(obj3.getString("isPrimary"))) {
-											String value = obj3.getString("value");
-											addIncr(dictionaries.get(j), value);
-											break;
-										}
-									}
-								}
-							}
+		pw.close();
+		System.out.println("Size of dictionary: " + counters.size() + " most frequent values, guaranteed counts");
+	}
+
+	private static void createDictionaries(String[] inputFileNames, String[] outputFileNames, String[] attributeNames,
+			int top) throws IOException {
+		createDictionaries(inputFileNames, outputFileNames, attributeNames, top, null, false, ScanCheckpoint.DEFAULT_SECONDS);
+	}
+
+	/**
+	 * With top > 0 only about the top most frequent values of each attribute are counted,
+	 * by SpaceSaving with 2 * top counters, and the top ones are written.
+	 * With a checkpointPath the position in the inputs, the counters and the dictionaries
+	 * are saved there every checkpointSeconds, and with resume a scan goes on from the
+	 * last checkpoint. Without one, several files are read at the same time (FileFanOut),
+	 * each into its own dictionaries, which are merged.
+	 */
+	private static void createDictionaries(String[] inputFileNames, String[] outputFileNames, final String[] attributeNames,
+			final int top, String checkpointPath, boolean resume, int checkpointSeconds) throws IOException {
+		List<Map<String, Integer>> dictionaries = newDictionaries(attributeNames.length);
+		List<SpaceSaving> heavyHitters = newHeavyHitters(attributeNames.length, top);
+		ScanCheckpoint checkpoint = null;
+		boolean resumed = false;
+		boolean scanned = false;
+		if (checkpointPath == null && inputFileNames.length > 1) {
+			CatalogCounts counts = FileFanOut.ingest(inputFileNames, new FileFanOut.Ingest<CatalogCounts>() {
+				@Override
+				public CatalogCounts read(String inputFileName) throws IOException {
+					CatalogCounts c = new CatalogCounts(newDictionaries(attributeNames.length),
+							newHeavyHitters(attributeNames.length, top));
+					c.counters = scanCatalogFile(inputFileName, 0, 0, null, attributeNames, top, c.dictionaries,
+							c.heavyHitters, null);
+					return c;
+				}
+
+				@Override
+				public void report(String inputFileName, CatalogCounts c) {
+					reportCatalogFile(inputFileName, attributeNames, c.counters);
+				}
+
+				@Override
+				public CatalogCounts merge(CatalogCounts into, CatalogCounts other) {
+					for (int j = 0; j < attributeNames.length; j++) {
+						if (top > 0) {
+							into.heavyHitters.get(j).merge(other.heavyHitters.get(j));
+							continue;
+						}
+						Map<String, Integer> a = into.dictionaries.get(j);
+						Map<String, Integer> b = other.dictionaries.get(j);
+						if (b.size() > a.size()) { // the counts of the smaller map go into the bigger one
+							into.dictionaries.set(j, b);
+							b = a;
+							a = into.dictionaries.get(j);
+						}
+						for (Map.Entry<String, Integer> e: b.entrySet()) {
+							addIncr(a, e.getKey(), e.getValue());
 						}
 					}
-					catch (JsonException e) {
-						badRecords++;
-					}
-					id++;
+					return into;
 				}
-				br.close();
-				System.out.println("Input File: " + inputFileName);
-				System.out.println("No. of records seen: " + id);
-				System.out.println("No. of records with Invalid JSON: " + badRecords);
-				System.out.println("No. of records with missing product attributes: " + badRecords1);
-				for (int j = 0; j < attributeNames.length; j++) {
-					String attributeName = attributeNames[j];
-					System.out.println("No. of records with missing " + attributeName + ": " + badRecords2[j]);
+			});
+			dictionaries = counts.dictionaries;
+			heavyHitters = counts.heavyHitters;
+			scanned = true;
+		}
+		else {
+			if (checkpointPath != null) {
+				checkpoint = new ScanCheckpoint(checkpointPath, "dictionaries", inputFileNames,
+						checkpointParameters(attributeNames, "top=" + top), checkpointSeconds);
+				resumed = resume && checkpoint.load();
+				if (resumed) {
+					dictionaries = checkpoint.dictionaries;
+					heavyHitters = checkpoint.heavyHitters;
 				}
-				System.out.println("No. of records with missing values: " + badRecords3);
+				checkpoint.dictionaries = dictionaries;
+				checkpoint.heavyHitters = heavyHitters;
+			}
+			for (int i = resumed ? checkpoint.file : 0; i < inputFileNames.length; i++) {
+				boolean resuming = resumed && i == checkpoint.file;
+				int[] counters = scanCatalogFile(inputFileNames[i], i, resuming ? checkpoint.offset : 0,
+						resuming ? checkpoint.counters : null, attributeNames, top, dictionaries, heavyHitters, checkpoint);
+				reportCatalogFile(inputFileNames[i], attributeNames, counters);
 			}
+			scanned = true;
 		}
-		catch (FileNotFoundException e) {
-			// TODO Auto-generated catch block
-			e.printStackTrace();
+		if (top > 0) {
+			for (int i = 0; i < outputFileNames.length; i++) {
+				System.out.println("Output dictionary file: " + outputFileNames[i]);
+				dumpHeavyHitters(outputFileNames[i], heavyHitters.get(i), top);
+			}
 		}
-		catch (IOException e) {
-			// TODO Auto-generated catch block
-			e.printStackTrace();
+		else {
+			dumpMaps(outputFileNames, dictionaries);
+		}
+		if (scanned && checkpoint != null) {
+			checkpoint.delete();
 		}
-		dumpMaps(outputFileNames, dictionaries);
 	}
 
-	private static void createDictionary(String inputFileName, String outputFileName, String attributeName) throws FileNotFoundException {
-		Map<String, Integer> dictionary = new HashMap<String, Integer>(); // attribute value -> count
-		try {
-			BufferedReader br = new BufferedReader(new FileReader(inputFileName));
-			int badRecords = 0; // invalid JSON
-			int badRecords1 = 0; // no "product_attributes"
-			int badRecords2 = 0; // no "brand"
-			int badRecords3 = 0; // no "values"
-			int id = 0;
-			String line;
-			while((line = br.readLine()) != null) {
-				if (id % 100000 == 0) {
-					System.out.println("Processed " + id + " records");
-				}
-				String[] vals = line.split("\t");
-				String itemJson = vals[0];
-				try {
-					JsonReader reader = Json.createReader(new StringReader(itemJson));
-					JsonObject obj = reader.readObject();
-					if (obj.containsKey("product_attributes")) {
-						//System.out.println("Found product_attributes");
-						JsonObject obj1 = obj.getJsonObject("product_attributes");
-						if (null == obj1) {
-							badRecords1++;
-							id++;
-							continue;
+	private static String[] checkpointParameters(String[] attributeNames, String last) {
+		String[] parameters = Arrays.copyOf(attributeNames, attributeNames.length + 1);
+		parameters[attributeNames.length] = last;
+		return parameters;
+	}
+
+	// the dictionaries or heavy hitters of the files createDictionaries has read, and the counters of one
+	private static final class CatalogCounts {
+		List<Map<String, Integer>> dictionaries;
+		List<SpaceSaving> heavyHitters;
+		int[] counters;
+
+		CatalogCounts(List<Map<String, Integer>> dictionaries, List<SpaceSaving> heavyHitters) {
+			this.dictionaries = dictionaries;
+			this.heavyHitters = heavyHitters;
+		}
+	}
+
+	private static List<Map<String, Integer>> newDictionaries(int attributes) {
+		List<Map<String, Integer>> dictionaries = new ArrayList<Map<String, Integer>>(attributes);
+		for (int i = 0; i < attributes; i++) {
+			dictionaries.add(new HashMap<String, Integer>());
+		}
+		return dictionaries;
+	}
+
+	private static List<SpaceSaving> newHeavyHitters(int attributes, int top) {
+		List<SpaceSaving> heavyHitters = new ArrayList<SpaceSaving>(attributes);
+		for (int i = 0; i < attributes; i++) {
+			heavyHitters.add(top > 0 ? new SpaceSaving(2 * top) : null);
+		}
+		return heavyHitters;
+	}
+
+	/**
+	 * Counts the values of one file of createDictionaries, from the line at offset on, with
+	 * the counters of a checkpoint if it is resumed. Returns the counters: records seen,
+	 * invalid JSON, no "product_attributes", no "values", then no attribute per attribute.
+	 */
+	private static int[] scanCatalogFile(String inputFileName, int fileIndex, long offset, int[] resumedCounters,
+			String[] attributeNames, int top, List<Map<String, Integer>> dictionaries, List<SpaceSaving> heavyHitters,
+			ScanCheckpoint checkpoint) throws IOException {
+		OffsetLineReader br = new OffsetLineReader(inputFileName, offset);
+		int badRecords = 0; // invalid JSON
+		int badRecords1 = 0; // no "product_attributes"
+		int[] badRecords2 = new int[attributeNames.length]; // no attributeName
+		int badRecords3 = 0; // no "values"
+		int id = 0;
+		if (resumedCounters != null) {
+			id = resumedCounters[0];
+			badRecords = resumedCounters[1];
+			badRecords1 = resumedCounters[2];
+			badRecords3 = resumedCounters[3];
+			System.arraycopy(resumedCounters, 4, badRecords2, 0, badRecords2.length);
+		}
+		String[] values = new String[attributeNames.length];
+		String line;
+		while((line = br.readLine()) != null) {
+			if (id % 100000 == 0) {
+				System.out.println("Processed " + id + " records of file " + inputFileName);
+			}
+			if (checkpoint != null && checkpoint.due()) {
+				checkpoint.file = fileIndex;
+				checkpoint.offset = br.lineStart();
+				checkpoint.counters = scanCounters(badRecords2, id, badRecords, badRecords1, badRecords3);
+				checkpoint.save();
+			}
+			String[] vals = line.split("\t");
+			String itemJson = vals[0];
+			JsonIndex doc = JsonIndex.parse(itemJson);
+			int[] outcomes = doc == null ? null : catalogValues(doc, attributeNames, true, values);
+			if (outcomes != null) {
+				for (int j = 0; j < attributeNames.length; j++) {
+					if (outcomes[j] == NO_ATTRIBUTE) {
+						badRecords2[j]++;
+					}
+					else if (outcomes[j] == NO_VALUES) {
+						badRecords3++;
+					}
+					else if (values[j] != null) {
+						if (top > 0) {
+							heavyHitters.get(j).add(values[j]);
+						}
+						else {
+							addIncr(dictionaries.get(j), values[j]);
 						}
+					}
+				}
+				id++;
+				continue;
+			}
+			try {
+				JsonReader reader = Json.createReader(new StringReader(itemJson));
+				JsonObject obj = reader.readObject();
+				if (obj.containsKey("product_attributes")) {
+					//System.out.println("Found product_attributes");
+					JsonObject obj1 = obj.getJsonObject("product_attributes");
+					if (null == obj1) {
+						badRecords1++;
+						id++;
+						continue;
+					}
+					for (int j = 0; j < attributeNames.length; j++) {
+						String attributeName = attributeNames[j];
 						JsonObject obj2 = obj1.getJsonObject(attributeName);
 						if (null == obj2) {
-							badRecords2++;
-							id++;
+							badRecords2[j]++;
 							continue;
 						}
 						JsonArray arr = obj2.getJsonArray("values");
 						if (null == arr) {
 							badRecords3++;
-							id++;
 							continue;
 						}
-						for (int i = 0; i < arr.size(); i++) {
-							JsonObject obj3 = arr.getJsonObject(i);
+						for (int k = 0; k < arr.size(); k++) {
+							JsonObject obj3 = arr.getJsonObject(k);
+							if (arr.size() == 1) {
+								String value = obj3.getString("value");
+								if (top > 0) {
+									heavyHitters.get(j).add(value);
+								}
+								else {
+									addIncr(dictionaries.get(j), value);
+								}
+								break;
+							}
 							if (obj3.containsKey("isPrimary")) {
 								//System.out.println("Found isPrimary");
 								if ("true".equals(obj3.getString("isPrimary"))) {
 									String value = obj3.getString("value");
-									addIncr(dictionary, value);
+									if (top > 0) {
+										heavyHitters.get(j).add(value);
+									}
+									else {
+										addIncr(dictionaries.get(j), value);
+									}
 									break;
 								}
 							}
 						}
 					}
 				}
-				catch (JsonException e) {
-					badRecords++;
-				}
-				id++;
 			}
-			br.close();
-			System.out.println("No. of records seen: " + id);
-			System.out.println("No. of records with Invalid JSON: " + badRecords);
-			System.out.println("No. of records with missing product attributes: " + badRecords1);
-			System.out.println("No. of records with missing " + attributeName + ": " + badRecords2);
-			System.out.println("No. of records with missing values: " + badRecords3);
-		}
-		catch (FileNotFoundException e) {
-			// TODO Auto-generated catch block
-			e.printStackTrace();
-		}
-		catch (IOException e) {
-			// TODO Auto-generated catch block
-			e.printStackTrace();
-		}
-		dumpMap(outputFileName,dictionary);
-	}
-
-	/*
-	private static Map<String, Integer> sortByValue (Map<String, Integer> map) {
-		ValueComparator vc =  new ValueComparator(map);
-		Map<String,Integer> sortedMap = new TreeMap<String,Integer>(vc);
-		sortedMap.putAll(map);
-		return sortedMap;
-	}
-	 */
-
-	private static boolean extract(JsonObject obj, String[] attributesToExclude) {
-		for (String s: attributesToExclude) {
-			if (obj.containsKey(s)) {
-				return false;
+			catch (JsonException e) {
+				badRecords++;
 			}
+			id++;
 		}
-		return true;
+		br.close();
+		return scanCounters(badRecords2, id, badRecords, badRecords1, badRecords3);
 	}
 
-	private static void parseElectronicsItemPair(String outputPath, String[] attributesToExclude, String attributeToExtract) {
-		String dataFilePath = "/Users/patron/sanjib_electronics_train.txt";
-		try {
-			BufferedReader br = new BufferedReader(new FileReader(dataFilePath));
-			BufferedWriter bw = new BufferedWriter(new FileWriter(outputPath, true));
-			Map<String, Object> properties = new HashMap<String, Object>(1);
-			properties.put(JsonGenerator.PRETTY_PRINTING, true);
-			JsonWriterFactory writerFactory = Json.createWriterFactory(properties);
-			JsonWriter jsonWriter;
+	// what catalogValues found for an attribute: its value (or none marked primary), or why not
+	private static final int VALUE = 0;
+	private static final int NO_ATTRIBUTE = 1;
+	private static final int NO_VALUES = 2;
+	private static final String[] ITEM_ID = {"item_id"};
 
-			int badRecords = 0;
-			int pairsSeen = 0;
-			int id = 1;
-			String line;
-			while((line = br.readLine()) != null) {
-				String[] vals = line.split("\\?");
-				String pairId = vals[0];
-				String id1 = vals[1];
-				String item1json = vals[2];
-				//System.out.println(item1json);
-				JsonReader reader1 = Json.createReader(new StringReader(item1json));
-				try {
-					JsonObject obj1 = reader1.readObject();
-					if (extract(obj1, attributesToExclude)) {
-						Set<String> keySet1 = new HashSet<String>(obj1.keySet());
-						for (String s: attributesToignore) {
-							keySet1.remove(s);
-						}
-						for (String s: attributesToExclude) {
-							keySet1.remove(s);
-						}
-						//System.out.println("Obj1 Keyset: " + obj1.keySet());
-						//		    		for (String key: attributesToignore) {
-						//		    			obj1.remove(key);
-						//		    		}
-						//System.out.println("No. of keys: " + obj.keySet());
-						bw.write(id + ". Walmart product (item id:" + id1 + ")");
-						bw.newLine();
-						bw.write("****************************************");
-						bw.newLine();
-						for (String key: keySet1) {
-							JsonValue value = obj1.get(key);
-							bw.write(key + ": " + value);
-							bw.newLine();
-							bw.newLine();
-						}
-						bw.write(attributeToExtract + ": ");
-						bw.newLine();
-						bw.write("*******************************************************");
-						bw.newLine();
-						bw.write("*******************************************************");
-						bw.newLine();
-						bw.newLine();
-						id++;		
-					}
-				}
-				catch (JsonParsingException e) {
-					badRecords++;
+	/**
+	 * The values of product_attributes.<attribute>.values of a catalog item, read off its
+	 * structural index the way the dictionary builders read them with javax.json: the value
+	 * marked isPrimary "true", or the only one when single. Fills values, null when there is
+	 * none, and returns an outcome per attribute; null when javax.json would throw, so the
+	 * item is read with it again.
+	 */
+	private static int[] catalogValues(JsonIndex doc, String[] attributeNames, boolean single, String[] values) {
+		int[] outcomes = new int[attributeNames.length];
+		Arrays.fill(values, null);
+		int productAttributes = doc.member(doc.root(), "product_attributes");
+		if (productAttributes < 0) {
+			return outcomes;
+		}
+		if (doc.kind(productAttributes) != JsonIndex.OBJECT) {
+			return null;
+		}
+		for (int j = 0; j < attributeNames.length; j++) {
+			int attribute = doc.member(productAttributes, attributeNames[j]);
+			if (attribute < 0) {
+				outcomes[j] = NO_ATTRIBUTE;
+				continue;
+			}
+			if (doc.kind(attribute) != JsonIndex.OBJECT) {
+				return null;
+			}
+			int arr = doc.member(attribute, "values");
+			if (arr < 0) {
+				outcomes[j] = NO_VALUES;
+				continue;
+			}
+			if (doc.kind(arr) != JsonIndex.ARRAY) {
+				return null;
+			}
+			for (int e = doc.first(arr); e >= 0; e = doc.next(e, arr)) {
+				if (doc.kind(e) != JsonIndex.OBJECT) {
+					return null;
 				}
-				catch (JsonException e) {
-					badRecords++;
+				int value;
+				if (single && doc.size(arr) == 1) {
+					value = doc.member(e, "value");
 				}
-				String id2 = vals[3];
-				String item2json = vals[4];
-				JsonReader reader2 = Json.createReader(new StringReader(item2json));
-				try {
-					JsonObject obj2 = reader2.readObject();
-					if (extract(obj2, attributesToExclude)) {
-						Set<String> keySet2 = new HashSet<String>(obj2.keySet());
-						for (String s: attributesToignore) {
-							keySet2.remove(s);
-						}
-						for (String s: attributesToExclude) {
-							keySet2.remove(s);
-						}
-						//	    		System.out.println("obj2 keyset: " + obj2.keySet());
-						//	    		System.out.println("obj2 contains Item ID: " + obj2.containsKey("Item ID"));
-						//	    		System.out.println(obj2.get("Item ID"));
-						//	    		for (String key: attributesToignore) {
-						//	    			obj2.remove(key);
-						//	    		}
-						//System.out.println(obj2.keySet());
-						bw.write(id + ". Vendor product (item id:" + id2 + ")");
-						bw.newLine();
-						bw.write("***************************************");
-						bw.newLine();
-						for (String key: keySet2) {
-							JsonValue value = obj2.get(key);
-							bw.write(key + ": " + value);
-							bw.newLine();
-							bw.newLine();
-						}
-						bw.write(attributeToExtract + ": ");
-						bw.newLine();
-						bw.write("*******************************************************");
-						bw.newLine();
-						bw.write("*******************************************************");
-						bw.newLine();
-						bw.newLine();
-						String label = vals[5];
-						//				System.out.println("pairId: " + pairId);
-						//				System.out.println("id1: " + id1);
-						//				System.out.println("id2: " + id2);
-						//				System.out.println("label: " + label);
-						id++;
+				else {
+					int isPrimary = doc.member(e, "isPrimary");
+					if (isPrimary < 0) {
+						continue;
 					}
+					if (doc.kind(isPrimary) != JsonIndex.STRING) {
+						return null;
+					}
+					if (!"true".equals(doc.string(isPrimary))) {
+						continue;
+					}
+					value = doc.member(e, "value");
 				}
-				catch(JsonParsingException e) {
-					badRecords++;
-				}
-				catch (JsonException e) {
-					badRecords++;
+				if (value < 0 || doc.kind(value) != JsonIndex.STRING) {
+					return null;
 				}
-				pairsSeen++;
-				if (id > 600) break;
+				values[j] = doc.string(value);
+				break;
 			}
-			//jsonWriter.close();
-			br.close();
-			bw.close();
-			System.out.println();
-			System.out.println("No. of bad records: " + badRecords);
-			System.out.println("No. of pairs seen " + pairsSeen);
-		}
-		catch (FileNotFoundException e) {
-			// TODO Auto-generated catch block
-			e.printStackTrace();
-		}
-		catch (IOException e) {
-			// TODO Auto-generated catch block
-			e.printStackTrace();
 		}
+		return outcomes;
 	}
 
-	private static Set<String> doNotExtract(JsonObject obj, String[] attributesToExclude) {
-		Set<String> attributesPresent = new HashSet<String>();
-		for (String s: attributesToExclude) {
-			if (obj.containsKey(s)) {
-				attributesPresent.add(s);
-			}
+	private static void reportCatalogFile(String inputFileName, String[] attributeNames, int[] counters) {
+		System.out.println("Input File: " + inputFileName);
+		System.out.println("No. of records seen: " + counters[0]);
+		System.out.println("No. of records with Invalid JSON: " + counters[1]);
+		System.out.println("No. of records with missing product attributes: " + counters[2]);
+		for (int j = 0; j < attributeNames.length; j++) {
+			String attributeName = attributeNames[j];
+			System.out.println("No. of records with missing " + attributeName + ": " + counters[4 + j]);
 		}
-		return attributesPresent;
+		System.out.println("No. of records with missing values: " + counters[3]);
 	}
 
-	private static void prepareSampleForStudents(String outputPath, String[] attributesToExclude, String[] attributesToExtract) {
-		String dataFilePath = "/u/s/a/sanjibkd/Downloads/sanjib_electronics_train_325.txt";
-		try {
-			BufferedReader br = new BufferedReader(new FileReader(dataFilePath));
-			BufferedWriter bw = new BufferedWriter(new FileWriter(outputPath, true));
-			Map<String, Object> properties = new HashMap<String, Object>(1);
-			properties.put(JsonGenerator.PRETTY_PRINTING, true);
-			JsonWriterFactory writerFactory = Json.createWriterFactory(properties);
-			JsonWriter jsonWriter;
+	private static int[] scanCounters(int[] perAttribute, int... counters) {
+		int[] all = Arrays.copyOf(counters, counters.length + perAttribute.length);
+		System.arraycopy(perAttribute, 0, all, counters.length, perAttribute.length);
+		return all;
+	}
 
-			int badRecords = 0;
-			int pairsSeen = 0;
-			int id = 1;
-			String line;
-			while((line = br.readLine()) != null) {
-				String[] vals = line.split("\\?");
-				String pairId = vals[0];
-				String id1 = vals[1];
-				String item1json = vals[2];
-				//System.out.println(item1json);
-				JsonReader reader1 = Json.createReader(new StringReader(item1json));
-				try {
-					JsonObject obj1 = reader1.readObject();
-					//Set<String> attributesPresent = doNotExtract(obj1, attributesToExtract);
-					//if (attributesPresent.size() != attributesToExtract.length) {
-					Set<String> keySet1 = new HashSet<String>(obj1.keySet());
-					for (String s: attributesToignore) {
-						keySet1.remove(s);
-					}
-					//						for (String s: attributesToExclude) {
-					//							keySet1.remove(s);
-					//						}
-					//						for (String s: attributesPresent) {
-					//							keySet1.add(s);
-					//						}
-					//System.out.println("Obj1 Keyset: " + obj1.keySet());
-					//		    		for (String key: attributesToignore) {
-					//		    			obj1.remove(key);
-					//		    		}
-					//System.out.println("No. of keys: " + obj.keySet());
-					bw.write(id + ". Walmart product (item id:" + id1 + ")");
-					bw.newLine();
-					//bw.write("****************************************");
-					//bw.newLine();
-					for (String key: keySet1) {
-						JsonValue value = obj1.get(key);
-						bw.write(key + ": " + value);
-						bw.newLine();
-						bw.newLine();
-					}
-					for (String s: attributesToExtract) {
-						//							if (attributesPresent.contains(s)) {
-						//								continue;
-						//							}
-						bw.write(s.toUpperCase() + ": ");
-						bw.newLine();
-					}
-					bw.write("*********************************************************************************************************");
-					bw.newLine();
-					//						bw.write("*******************************************************");
-					//						bw.newLine();
-					bw.newLine();
-					id++;		
-					//}
+	private static void createDictionary(String inputFileName, String outputFileName, String attributeName) throws IOException {
+		createDictionary(inputFileName, outputFileName, attributeName, null, false, ScanCheckpoint.DEFAULT_SECONDS);
+	}
+
+	// checkpoints and resumes as createDictionaries does
+	private static void createDictionary(String inputFileName, String outputFileName, String attributeName,
+			String checkpointPath, boolean resume, int checkpointSeconds) throws IOException {
+		Map<String, Integer> dictionary = new HashMap<String, Integer>(); // attribute value -> count
+		ScanCheckpoint checkpoint = null;
+		boolean scanned = false;
+		boolean resumed = false;
+		if (checkpointPath != null) {
+			checkpoint = new ScanCheckpoint(checkpointPath, "dictionary", new String[] {inputFileName},
+					new String[] {attributeName}, checkpointSeconds);
+			resumed = resume && checkpoint.load();
+			if (resumed) {
+				dictionary = checkpoint.dictionaries.get(0);
+			}
+			checkpoint.dictionaries = Collections.singletonList(dictionary);
+		}
+		OffsetLineReader br = new OffsetLineReader(inputFileName, resumed ? checkpoint.offset : 0);
+		int badRecords = 0; // invalid JSON
+		int badRecords1 = 0; // no "product_attributes"
+		int badRecords2 = 0; // no "brand"
+		int badRecords3 = 0; // no "values"
+		int id = 0;
+		if (resumed) {
+			int[] c = checkpoint.counters;
+			id = c[0];
+			badRecords = c[1];
+			badRecords1 = c[2];
+			badRecords2 = c[3];
+			badRecords3 = c[4];
+		}
+		String[] attributeNames = {attributeName};
+		String[] values = new String[1];
+		String line;
+		while((line = br.readLine()) != null) {
+			if (id % 100000 == 0) {
+				System.out.println("Processed " + id + " records");
+			}
+			if (checkpoint != null && checkpoint.due()) {
+				checkpoint.offset = br.lineStart();
+				checkpoint.counters = new int[] {id, badRecords, badRecords1, badRecords2, badRecords3};
+				checkpoint.save();
+			}
+			String[] vals = line.split("\t");
+			String itemJson = vals[0];
+			JsonIndex doc = JsonIndex.parse(itemJson);
+			int[] outcomes = doc == null ? null : catalogValues(doc, attributeNames, false, values);
+			if (outcomes != null) {
+				if (outcomes[0] == NO_ATTRIBUTE) {
+					badRecords2++;
 				}
-				catch (JsonParsingException e) {
-					badRecords++;
+				else if (outcomes[0] == NO_VALUES) {
+					badRecords3++;
 				}
-				catch (JsonException e) {
-					badRecords++;
+				else if (values[0] != null) {
+					addIncr(dictionary, values[0]);
 				}
-				String id2 = vals[3];
-				String item2json = vals[4];
-				JsonReader reader2 = Json.createReader(new StringReader(item2json));
-				try {
-					JsonObject obj2 = reader2.readObject();
-					//Set<String> attributesPresent = doNotExtract(obj2, attributesToExtract);
-					//if (attributesPresent.size() != attributesToExtract.length) {
-					Set<String> keySet2 = new HashSet<String>(obj2.keySet());
-					for (String s: attributesToignore) {
-						keySet2.remove(s);
+				id++;
+				continue;
+			}
+			try {
+				JsonReader reader = Json.createReader(new StringReader(itemJson));
+				JsonObject obj = reader.readObject();
+				if (obj.containsKey("product_attributes")) {
+					//System.out.println("Found product_attributes");
+					JsonObject obj1 = obj.getJsonObject("product_attributes");
+					if (null == obj1) {
+						badRecords1++;
+						id++;
+						continue;
 					}
-					//						for (String s: attributesToExclude) {
-					//							keySet2.remove(s);
-					//						}
-					//						for (String s: attributesPresent) {
-					//							keySet2.add(s);
-					//						}
-					//	    		System.out.println("obj2 keyset: " + obj2.keySet());
-					//	    		System.out.println("obj2 contains Item ID: " + obj2.containsKey("Item ID"));
-					//	    		System.out.println(obj2.get("Item ID"));
-					//	    		for (String key: attributesToignore) {
-					//	    			obj2.remove(key);
-					//	    		}
-					//System.out.println(obj2.keySet());
-					bw.write(id + ". Vendor product (item id:" + id2 + ")");
-					bw.newLine();
-					//bw.write("***************************************");
-					//bw.newLine();
-					for (String key: keySet2) {
-						JsonValue value = obj2.get(key);
-						bw.write(key + ": " + value);
-						bw.newLine();
-						bw.newLine();
+					JsonObject obj2 = obj1.getJsonObject(attributeName);
+					if (null == obj2) {
+						badRecords2++;
+						id++;
+						continue;
 					}
-					for (String s: attributesToExtract) {
-						//							if (attributesPresent.contains(s)) {
-						//								continue;
-						//							}
-						bw.write(s.toUpperCase() + ": ");
-						bw.newLine();
+					JsonArray arr = obj2.getJsonArray("values");
+					if (null == arr) {
+						badRecords3++;
+						id++;
+						continue;
+					}
+					for (int i = 0; i < arr.size(); i++) {
+						JsonObject obj3 = arr.getJsonObject(i);
+						if (obj3.containsKey("isPrimary")) {
+							//System.out.println("Found isPrimary");
+							if ("true".equals(obj3.getString("isPrimary"))) {
+								String value = obj3.getString("value");
+								addIncr(dictionary, value);
+								break;
+							}
+						}
 					}
-					bw.write("*********************************************************************************************************");
-					bw.newLine();
-					//						bw.write("*******************************************************");
-					//						bw.newLine();
-					bw.newLine();
-					String label = vals[5];
-					//				System.out.println("pairId: " + pairId);
-					//				System.out.println("id1: " + id1);
-					//				System.out.println("id2: " + id2);
-					//				System.out.println("label: " + label);
-					id++;
-					//}
-				}
-				catch(JsonParsingException e) {
-					badRecords++;
-				}
-				catch (JsonException e) {
-					badRecords++;
 				}
-				pairsSeen++;
-				//if (id > 600) break;
-			}
-			//jsonWriter.close();
-			br.close();
-			bw.close();
-			System.out.println();
-			System.out.println("No. of bad records: " + badRecords);
-			System.out.println("No. of pairs seen " + pairsSeen);
+			}
+			catch (JsonException e) {
+				badRecords++;
+			}
+			id++;
 		}
-		catch (FileNotFoundException e) {
-			// TODO Auto-generated catch block
-			e.printStackTrace();
+		br.close();
+		System.out.println("No. of records seen: " + id);
+		System.out.println("No. of records with Invalid JSON: " + badRecords);
+		System.out.println("No. of records with missing product attributes: " + badRecords1);
+		System.out.println("No. of records with missing " + attributeName + ": " + badRecords2);
+		System.out.println("No. of records with missing values: " + badRecords3);
+		scanned = true;
+		dumpMap(outputFileName,dictionary);
+		if (scanned && checkpoint != null) {
+			checkpoint.delete();
 		}
-		catch (IOException e) {
-			// TODO Auto-generated catch block
-			e.printStackTrace();
+	}
+
+	private static final Comparator<Map.Entry<String, Integer>> BY_COUNT = new Comparator<Map.Entry<String, Integer>>() {
+		@Override
+		public int compare(Map.Entry<String, Integer> e1, Map.Entry<String, Integer> e2) {
+			int c = e2.getValue().compareTo(e1.getValue());
+			return c != 0 ? c : e1.getKey().compareTo(e2.getKey());
+		}
+	};
+
+	// most frequent first, equal counts in key order. Arrays.parallelSort sorts big maps on the common pool
+	private static List<Map.Entry<String, Integer>> sortByCount(Map<String, Integer> map) {
+		Map.Entry<String, Integer>[] entries = entryArray(map);
+		Arrays.parallelSort(entries, BY_COUNT);
+		return Arrays.asList(entries);
+	}
+
+	@SuppressWarnings("unchecked")
+	private static Map.Entry<String, Integer>[] entryArray(Map<String, Integer> map) {
+		return map.entrySet().toArray(new Map.Entry[map.size()]);
+	}
+
+	private static void parseElectronicsItemPair(String outputPath, String[] attributesToExclude, String attributeToExtract) throws IOException {
+		String dataFilePath = "/Users/patron/sanjib_electronics_train.txt";
+		parseElectronicsItemPair(dataFilePath, new String[] {outputPath}, attributesToExclude, attributeToExtract, 600);
+	}
+
+	// the items without any of attributesToExclude, dealt out to the output files; stops at about limit items unless it is 0
+	static void parseElectronicsItemPair(String dataFilePath, String[] outputPaths, String[] attributesToExclude,
+			String attributeToExtract, int limit) throws IOException {
+		BitSet skipped = SymbolTable.ATTRIBUTES.codes(attributesToignore, attributesToExclude);
+		BitSet rejecting = SymbolTable.ATTRIBUTES.codes(attributesToExclude);
+		String[] prompts = {attributeToExtract + ": "};
+		String[] footer = {"*******************************************************",
+				"*******************************************************", ""};
+		SampleRenderer.render(dataFilePath,
+				new SampleRenderer.Layout("Walmart product", "****************************************", skipped,
+						rejecting, prompts, footer),
+				new SampleRenderer.Layout("Vendor product", "***************************************", skipped,
+						rejecting, prompts, footer),
+				outputPaths, limit);
+	}
+
+	private static Set<String> doNotExtract(JsonObject obj, String[] attributesToExclude) {
+		Set<String> attributesPresent = new HashSet<String>();
+		for (String s: attributesToExclude) {
+			if (obj.containsKey(s)) {
+				attributesPresent.add(s);
+			}
 		}
+		return attributesPresent;
+	}
+
+	private static void prepareSampleForStudents(String outputPath, String[] attributesToExclude, String[] attributesToExtract) throws IOException {
+		String dataFilePath = "/u/s/a/sanjibkd/Downloads/sanjib_electronics_train_325.txt";
+		prepareStudentSamples(dataFilePath, new String[] {outputPath}, attributesToExtract);
 	}
 
-	private static void printTuple(BufferedWriter bw, JsonObject obj) throws IOException {
-		Set<String> keySet = new HashSet<String>(obj.keySet());
-		for (String s: attributesToignore) {
-			keySet.remove(s);
+	// every item with a prompt per attribute to extract, the pairs dealt out evenly to the output files
+	static void prepareStudentSamples(String dataFilePath, String[] outputPaths, String[] attributesToExtract) throws IOException {
+		BitSet skipped = SymbolTable.ATTRIBUTES.codes(attributesToignore);
+		String[] prompts = new String[attributesToExtract.length];
+		for (int i = 0; i < prompts.length; i++) {
+			prompts[i] = attributesToExtract[i].toUpperCase() + ": ";
 		}
-		for (String key: keySet) {
-			JsonValue value = obj.get(key);
-			bw.write(key + ": " + value);
+		String[] footer = {"*********************************************************************************************************", ""};
+		SampleRenderer.render(dataFilePath,
+				new SampleRenderer.Layout("Walmart product", null, skipped, new BitSet(), prompts, footer),
+				new SampleRenderer.Layout("Vendor product", null, skipped, new BitSet(), prompts, footer),
+				outputPaths, 0);
+	}
+
+	// in the order SampleRenderer renders them
+	private static void printTuple(AsyncFileWriter bw, JsonObject obj) throws IOException {
+		int[] codes = SampleRenderer.hashSetOrder(obj.keySet());
+		for (int i = 0, n = obj.size(); i < n; i++) {
+			if (IGNORED.get(codes[i])) {
+				continue;
+			}
+			String key = SymbolTable.ATTRIBUTES.symbol(codes[i]);
+			bw.write(key + ": " + obj.get(key));
 			bw.newLine();
 			bw.newLine();
 		}
@@ -1362,7 +1538,7 @@ public class Parser {
 		String dataFilePath = "/u/s/a/sanjibkd/Downloads/sanjib_electronics_train_325.txt";
 		try {
 			BufferedReader br = new BufferedReader(new FileReader(dataFilePath));
-			BufferedWriter bw = new BufferedWriter(new FileWriter(outputPath, true));
+			AsyncFileWriter bw = new AsyncFileWriter(outputPath, true);
 			Map<String, Object> properties = new HashMap<String, Object>(1);
 			properties.put(JsonGenerator.PRETTY_PRINTING, true);
 			JsonWriterFactory writerFactory = Json.createWriterFactory(properties);
@@ -1489,41 +1665,35 @@ public class Parser {
 	}
 	 */
 
-	private static void parseRuleEvals() {
+	private static void parseRuleEvals() throws IOException {
 		String ruleEvalsFilePath = "ruleEvalsCopy.txt";
 		String rulesPath = "ruleEvals.csv";
-		try {
-			BufferedReader br = new BufferedReader(new FileReader(ruleEvalsFilePath));
-			BufferedWriter ruleBw = new BufferedWriter(new FileWriter(rulesPath, true));
-			CSVPrinter rulePrinter = new CSVPrinter(ruleBw, CSVFormat.DEFAULT.toBuilder().withRecordSeparator("\n").build());
-			String line;
-			while ((line = br.readLine()) != null) {
-				String[] vals = line.split(",");
-				String ruleString = vals[0].trim();
-				int tp = Integer.parseInt(vals[1].trim().split("=")[1]);
-				int fn = Integer.parseInt(vals[2].trim().split("=")[1]);
-				int fp = Integer.parseInt(vals[3].trim().split("=")[1]);
-				double precision = (100.0 * tp) / (tp + fp);
-				double recall = (100.0 * tp) / (tp + fn);
-				double f1 = (2 * precision * recall) / (precision + recall);
-				rulePrinter.print(ruleString);
-				rulePrinter.print(precision);
-				rulePrinter.print(recall);
-				rulePrinter.print(f1);
-				rulePrinter.println();
-			}
-			br.close();
-			rulePrinter.close();
-			ruleBw.close();
-		}
-		catch (FileNotFoundException e) {
-			// TODO Auto-generated catch block
-			e.printStackTrace();
-		}
-		catch (IOException e) {
-			// TODO Auto-generated catch block
-			e.printStackTrace();
+		parseRuleEvals(ruleEvalsFilePath, rulesPath);
+	}
+
+	private static void parseRuleEvals(String ruleEvalsFilePath, String rulesPath) throws IOException {
+		BufferedReader br = new BufferedReader(new FileReader(ruleEvalsFilePath));
+		AsyncFileWriter ruleBw = new AsyncFileWriter(rulesPath, true);
+		CSVPrinter rulePrinter = new CSVPrinter(ruleBw, CSVFormat.DEFAULT.toBuilder().withRecordSeparator("\n").build());
+		String line;
+		while ((line = br.readLine()) != null) {
+			String[] vals = line.split(",");
+			String ruleString = vals[0].trim();
+			int tp = Integer.parseInt(vals[1].trim().split("=")[1]);
+			int fn = Integer.parseInt(vals[2].trim().split("=")[1]);
+			int fp = Integer.parseInt(vals[3].trim().split("=")[1]);
+			double precision = (100.0 * tp) / (tp + fp);
+			double recall = (100.0 * tp) / (tp + fn);
+			double f1 = (2 * precision * recall) / (precision + recall);
+			rulePrinter.print(ruleString);
+			rulePrinter.print(precision);
+			rulePrinter.print(recall);
+			rulePrinter.print(f1);
+			rulePrinter.println();
 		}
+		br.close();
+		rulePrinter.close();
+		ruleBw.close();
 	}
 
 	public static void applyRuleOnCrossProduct() {
@@ -1535,25 +1705,9 @@ public class Parser {
 			List<CSVRecord> recordsA = parserA.getRecords();
 			CSVParser parserB = new CSVParser(new FileReader(tableBPath));
 			List<CSVRecord> recordsB = parserB.getRecords();
-			BufferedWriter candsetBw = new BufferedWriter(new FileWriter(candsetPath, true));
+			AsyncFileWriter candsetBw = new AsyncFileWriter(candsetPath, true);
 			CSVPrinter candsetPrinter = new CSVPrinter(candsetBw, CSVFormat.DEFAULT.toBuilder().withRecordSeparator("\n").build());
-			int pairId = 0;
-			AbstractStringMetric metric = new JaccardSimilarity();
-			for (CSVRecord a: recordsA) {
-				String id1 = a.get(0);
-				String productNameA = a.get(2);
-				for (CSVRecord b: recordsB) {
-					String id2 = b.get(0);
-					String productNameB = b.get(3);
-					if (metric.getSimilarity(productNameA, productNameB) > 0.2) {
-						candsetPrinter.print(pairId);
-						candsetPrinter.print(id1);
-						candsetPrinter.print(id2);
-						candsetPrinter.println();
-						pairId++;
-					}
-				}
-			}
+			applyRuleOnCrossProduct(recordsA, recordsB, candsetPrinter);
 			candsetPrinter.close();
 			candsetBw.close();
 		}
@@ -1567,16 +1721,47 @@ public class Parser {
 		}
 	}
 
-	private static Map<String, CSVRecord> getTableFromCsv(String tableFilePath) throws FileNotFoundException, IOException {
-		Map<String, CSVRecord> table = new HashMap<String, CSVRecord>();
+	// keeps the pairs whose product names have Jaccard similarity above 0.2, returns the no. of pairs printed
+	static int applyRuleOnCrossProduct(List<CSVRecord> recordsA, List<CSVRecord> recordsB,
+			CSVPrinter candsetPrinter) throws IOException {
+		int pairId = 0;
+		AbstractStringMetric metric = new JaccardSimilarity();
+		for (CSVRecord a: recordsA) {
+			String id1 = a.get(0);
+			String productNameA = a.get(2);
+			for (CSVRecord b: recordsB) {
+				String id2 = b.get(0);
+				String productNameB = b.get(3);
+				if (metric.getSimilarity(productNameA, productNameB) > 0.2) {
+					candsetPrinter.print(pairId);
+					candsetPrinter.print(id1);
+					candsetPrinter.print(id2);
+					candsetPrinter.println();
+					pairId++;
+				}
+			}
+		}
+		return pairId;
+	}
+
+	// the records by id, off the heap, a cell being read by its column; the last record of an id is kept
+	private static ItemStore getTableFromCsv(String tableFilePath) throws FileNotFoundException, IOException {
+		ItemStore table = new ItemStore(tableFilePath + ".items");
 		CSVParser tableParser = new CSVParser(new FileReader(tableFilePath));
-		List<CSVRecord> tableRecords = tableParser.getRecords();
-		int tableSize = tableRecords.size();
-		System.out.println("No. of table records: " + tableSize);
-		for (CSVRecord r : tableRecords) {
+		int tableSize = 0;
+		int duplicates = 0;
+		for (CSVRecord r : tableParser) {
 			String id = r.get(0).trim();
-			table.put(id, r);
+			if (!table.put(id, r)) {
+				duplicates++;
+			}
+			tableSize++;
+		}
+		System.out.println("No. of table records: " + tableSize);
+		if (duplicates > 0) {
+			System.out.println("No. of records replacing an earlier one with the same id: " + duplicates);
 		}
+		table.seal();
 		return table;
 	}
 
@@ -1590,19 +1775,34 @@ public class Parser {
 		p.println();
 	}
 
+	// values are compared ignoring case and everything but letters, digits and spaces;
+	// a missing value on either side does not count as a mismatch
+	static boolean valuesMatch(String v1, String v2) {
+		v1 = v1.replaceAll("[^\\dA-Za-z ]", "");
+		v2 = v2.replaceAll("[^\\dA-Za-z ]", "");
+		if (null != v1 && null != v2 &&
+				!v1.isEmpty() && !v2.isEmpty() &&
+				!"null".equals(v1) && !"null".equals(v2)) {
+			return v1.equalsIgnoreCase(v2);
+		}
+		return true;
+	}
+
 	private static void cleanupLabeledPairs() {
 		String inputLabeledPairsFilePath = "train.csv";
 		String outputLabeledPairsFilePath = "trainPnPsdPld.csv";
 		String tableAFilePath = "walmart.csv";
 		String tableBFilePath = "vendor.csv";
+		ItemStore tableA = null;
+		ItemStore tableB = null;
 		try {
-			Map<String, CSVRecord> tableA = getTableFromCsv(tableAFilePath);
-			Map<String, CSVRecord> tableB = getTableFromCsv(tableBFilePath);
+			tableA = getTableFromCsv(tableAFilePath);
+			tableB = getTableFromCsv(tableBFilePath);
 			CSVParser inputLabeledPairsParser = new CSVParser(new FileReader(inputLabeledPairsFilePath));
 			List<CSVRecord> inputLabeledPairsRecords = inputLabeledPairsParser.getRecords();
 			int inputLabeledPairsSize = inputLabeledPairsRecords.size();
 			System.out.println("No. of input labeled pairs records: " + inputLabeledPairsSize);
-			BufferedWriter outBw = new BufferedWriter(new FileWriter(outputLabeledPairsFilePath, true));
+			AsyncFileWriter outBw = new AsyncFileWriter(outputLabeledPairsFilePath, true);
 			CSVPrinter outPrinter = new CSVPrinter(outBw, CSVFormat.DEFAULT.toBuilder().withRecordSeparator("\n").build());
 			int numPairsCleaned = 0;
 			for (CSVRecord r : inputLabeledPairsRecords) {
@@ -1610,40 +1810,17 @@ public class Parser {
 				if ("0".equals(label)) {
 					String id1 = r.get(1).trim();
 					String id2 = r.get(2).trim();
-					CSVRecord r1 = tableA.get(id1);
-					CSVRecord r2 = tableB.get(id2);
-					String pn1 = r1.get(4);
-					String psd1 = r1.get(14);
-					String pld1 = r1.get(8);
-					String pn2 = r2.get(4);
-					String psd2 = r2.get(14);
-					String pld2 = r2.get(8);
-					pn1 = pn1.replaceAll("[^\\dA-Za-z ]", "");
-					pn2 = pn2.replaceAll("[^\\dA-Za-z ]", "");
-					psd1 = psd1.replaceAll("[^\\dA-Za-z ]", "");
-					psd2 = psd2.replaceAll("[^\\dA-Za-z ]", "");
-					pld1 = pld1.replaceAll("[^\\dA-Za-z ]", "");
-					pld2 = pld2.replaceAll("[^\\dA-Za-z ]", "");
-					boolean pnMatch = true;
-					if (null != pn1 && null != pn2 &&
-							!pn1.isEmpty() && !pn2.isEmpty() &&
-							!"null".equals(pn1) && !"null".equals(pn2)) {
-						pnMatch = pn1.equalsIgnoreCase(pn2);
-					}
-
-					boolean psdMatch = true;
-					if (null != psd1 && null != psd2 &&
-							!psd1.isEmpty() && !psd2.isEmpty() &&
-							!"null".equals(psd1) && !"null".equals(psd2)) {
-						psdMatch = psd1.equalsIgnoreCase(psd2);
-					}
-
-					boolean pldMatch = true;
-					if (null != pld1 && null != pld2 &&
-							!pld1.isEmpty() && !pld2.isEmpty() &&
-							!"null".equals(pld1) && !"null".equals(pld2)) {
-						pldMatch = pld1.equalsIgnoreCase(pld2);
-					}
+					int r1 = tableA.row(id1);
+					int r2 = tableB.row(id2);
+					String pn1 = tableA.get(r1, 4);
+					String psd1 = tableA.get(r1, 14);
+					String pld1 = tableA.get(r1, 8);
+					String pn2 = tableB.get(r2, 4);
+					String psd2 = tableB.get(r2, 14);
+					String pld2 = tableB.get(r2, 8);
+					boolean pnMatch = valuesMatch(pn1, pn2);
+					boolean psdMatch = valuesMatch(psd1, psd2);
+					boolean pldMatch = valuesMatch(pld1, pld2);
 
 					if (pnMatch && psdMatch && pldMatch) {
 						// must be a match
@@ -1667,6 +1844,9 @@ public class Parser {
 			// TODO Auto-generated catch block
 			e.printStackTrace();
 		}
+		finally {
+			closeStores(tableA, tableB);
+		}
 	}
 
 	private static void cleanupLabeledPairs2() {
@@ -1674,14 +1854,16 @@ public class Parser {
 		String outputLabeledPairsFilePath = "trainPnPsdPld2.csv";
 		String tableAFilePath = "walmart.csv";
 		String tableBFilePath = "vendor.csv";
+		ItemStore tableA = null;
+		ItemStore tableB = null;
 		try {
-			Map<String, CSVRecord> tableA = getTableFromCsv(tableAFilePath);
-			Map<String, CSVRecord> tableB = getTableFromCsv(tableBFilePath);
+			tableA = getTableFromCsv(tableAFilePath);
+			tableB = getTableFromCsv(tableBFilePath);
 			CSVParser inputLabeledPairsParser = new CSVParser(new FileReader(inputLabeledPairsFilePath));
 			List<CSVRecord> inputLabeledPairsRecords = inputLabeledPairsParser.getRecords();
 			int inputLabeledPairsSize = inputLabeledPairsRecords.size();
 			System.out.println("No. of input labeled pairs records: " + inputLabeledPairsSize);
-			BufferedWriter outBw = new BufferedWriter(new FileWriter(outputLabeledPairsFilePath, true));
+			AsyncFileWriter outBw = new AsyncFileWriter(outputLabeledPairsFilePath, true);
 			CSVPrinter outPrinter = new CSVPrinter(outBw, CSVFormat.DEFAULT.toBuilder().withRecordSeparator("\n").build());
 			int numPairsCleaned = 0;
 			for (CSVRecord r : inputLabeledPairsRecords) {
@@ -1689,40 +1871,17 @@ public class Parser {
 				if ("0".equals(label)) {
 					String id1 = r.get(1).trim();
 					String id2 = r.get(2).trim();
-					CSVRecord r1 = tableA.get(id1);
-					CSVRecord r2 = tableB.get(id2);
-					String pn1 = r1.get(4).trim();
-					String psd1 = r1.get(14).trim();
-					String pld1 = r1.get(8).trim();
-					String pn2 = r2.get(4).trim();
-					String psd2 = r2.get(14).trim();
-					String pld2 = r2.get(8).trim();
-					pn1 = pn1.replaceAll("[^\\dA-Za-z ]", "");
-					pn2 = pn2.replaceAll("[^\\dA-Za-z ]", "");
-					psd1 = psd1.replaceAll("[^\\dA-Za-z ]", "");
-					psd2 = psd2.replaceAll("[^\\dA-Za-z ]", "");
-					pld1 = pld1.replaceAll("[^\\dA-Za-z ]", "");
-					pld2 = pld2.replaceAll("[^\\dA-Za-z ]", "");
-					boolean pnMatch = true;
-					if (null != pn1 && null != pn2 &&
-							!pn1.isEmpty() && !pn2.isEmpty() &&
-							!"null".equals(pn1) && !"null".equals(pn2)) {
-						pnMatch = pn1.equalsIgnoreCase(pn2);
-					}
-
-					boolean psdMatch = true;
-					if (null != psd1 && null != psd2 &&
-							!psd1.isEmpty() && !psd2.isEmpty() &&
-							!"null".equals(psd1) && !"null".equals(psd2)) {
-						psdMatch = psd1.equalsIgnoreCase(psd2);
-					}
-
-					boolean pldMatch = true;
-					if (null != pld1 && null != pld2 &&
-							!pld1.isEmpty() && !pld2.isEmpty() &&
-							!"null".equals(pld1) && !"null".equals(pld2)) {
-						pldMatch = pld1.equalsIgnoreCase(pld2);
-					}
+					int r1 = tableA.row(id1);
+					int r2 = tableB.row(id2);
+					String pn1 = tableA.get(r1, 4).trim();
+					String psd1 = tableA.get(r1, 14).trim();
+					String pld1 = tableA.get(r1, 8).trim();
+					String pn2 = tableB.get(r2, 4).trim();
+					String psd2 = tableB.get(r2, 14).trim();
+					String pld2 = tableB.get(r2, 8).trim();
+					boolean pnMatch = valuesMatch(pn1, pn2);
+					boolean psdMatch = valuesMatch(psd1, psd2);
+					boolean pldMatch = valuesMatch(pld1, pld2);
 
 					if (pnMatch && psdMatch && pldMatch) {
 						// must be a match
@@ -1746,6 +1905,9 @@ public class Parser {
 			// TODO Auto-generated catch block
 			e.printStackTrace();
 		}
+		finally {
+			closeStores(tableA, tableB);
+		}
 	}
 	/*
 	private static void sampleData(int numPositives, int numNegatives,
@@ -1761,7 +1923,7 @@ public class Parser {
 		int trainSize = trainRecords.size();
 		System.out.println("No. of train records: " + trainSize);
 
-		BufferedWriter samplePairsBw = new BufferedWriter(new FileWriter(samplePairsFilePath));
+		AsyncFileWriter samplePairsBw = new AsyncFileWriter(samplePairsFilePath);
 
 		Set<String> attributes = new LinkedHashSet<String>(attributesToConcat);
 		for (int pairId = 0; pairId < numPositives; pairId++) {
@@ -1853,27 +2015,53 @@ public class Parser {
 	}
 	 */
 
+	// the files are read at the same time (FileFanOut), each into its own dictionary
 	private static void mergeDictionaries(String[] inputFileNames, String outputFileName) throws IOException {
-		Map<String, Integer> dictionary = new HashMap<String, Integer>();
-		for (int i = 0; i < inputFileNames.length; i++) {
-			String inputFileName = inputFileNames[i];
-			BufferedReader br = new BufferedReader(new FileReader(inputFileName));
-			int badRecords = 0;
-			String line;
-			while ((line = br.readLine()) != null) {
-				String[] vals = line.split("\\t");
-				if (vals.length != 2) {
-					badRecords++;
-					continue;
+		DictionaryFile merged = FileFanOut.ingest(inputFileNames, new FileFanOut.Ingest<DictionaryFile>() {
+			@Override
+			public DictionaryFile read(String inputFileName) throws IOException {
+				DictionaryFile d = new DictionaryFile();
+				BufferedReader br = new BufferedReader(new FileReader(inputFileName));
+				String line;
+				while ((line = br.readLine()) != null) {
+					String[] vals = line.split("\\t");
+					if (vals.length != 2) {
+						d.badRecords++;
+						continue;
+					}
+					String key = vals[0].trim();
+					int value = Integer.parseInt(vals[1].trim());
+					addIncr(d.dictionary, key, value);
 				}
-				String key = vals[0].trim();
-				int value = Integer.parseInt(vals[1].trim());
-				addIncr(dictionary, key, value);
+				br.close();
+				return d;
 			}
-			System.out.println("No. of bad records in file " + inputFileName + ": " + badRecords);
-			br.close();
-		}
-		dumpMap(outputFileName, dictionary);
+
+			@Override
+			public void report(String inputFileName, DictionaryFile d) {
+				System.out.println("No. of bad records in file " + inputFileName + ": " + d.badRecords);
+			}
+
+			@Override
+			public DictionaryFile merge(DictionaryFile into, DictionaryFile other) {
+				if (other.dictionary.size() > into.dictionary.size()) { // the smaller map goes into the bigger one
+					Map<String, Integer> d = into.dictionary;
+					into.dictionary = other.dictionary;
+					other.dictionary = d;
+				}
+				for (Map.Entry<String, Integer> e: other.dictionary.entrySet()) {
+					addIncr(into.dictionary, e.getKey(), e.getValue());
+				}
+				into.badRecords += other.badRecords;
+				return into;
+			}
+		});
+		dumpMap(outputFileName, merged.dictionary);
+	}
+
+	private static final class DictionaryFile {
+		Map<String, Integer> dictionary = new HashMap<String, Integer>();
+		int badRecords;
 	}
 
 	private static void runMergeDictionaries() {
@@ -1914,170 +2102,428 @@ public class Parser {
 		}
 	}
 
-	private static void getItems(String inputFileName, String outputFileName, Set<String> itemIds) throws FileNotFoundException {
-		try {
-			BufferedReader br = new BufferedReader(new FileReader(inputFileName));
-			PrintWriter pw = new PrintWriter(outputFileName);
-			int badRecords = 0; // invalid JSON
-			int badRecords1 = 0; // no "product_attributes"
-			int badRecords2 = 0; // no "item_id"
-			int badRecords3 = 0; // no "values"
-			int id = 0;
-			String line;
-			while((line = br.readLine()) != null) {
-				if (id % 100000 == 0) {
-					System.out.println("Processed " + id + " records");
+	private static void getItems(String inputFileName, String outputFileName, Set<String> itemIds) throws IOException {
+		getItems(inputFileName, outputFileName, itemIds, null, null, false, ScanCheckpoint.DEFAULT_SECONDS);
+	}
+
+	/**
+	 * Lines with invalid JSON are listed in quarantinePath, if it is not null. Checkpoints
+	 * and resumes as createDictionaries does; the checkpoint also has the length of the
+	 * output, which is cut back to it on resume, and the records quarantined before it.
+	 */
+	private static void getItems(String inputFileName, String outputFileName, Set<String> itemIds, String quarantinePath,
+			String checkpointPath, boolean resume, int checkpointSeconds) throws IOException {
+		RecordLog log = new RecordLog("getItems", quarantinePath);
+		RecordLog.Type found = log.type("Found item_id ", false);
+		ScanCheckpoint checkpoint = null;
+		boolean resumed = false;
+		if (checkpointPath != null) {
+			// the ids by their number and hash, a Set's hash does not depend on its order
+			checkpoint = new ScanCheckpoint(checkpointPath, "getItems", new String[] {inputFileName},
+					new String[] {"ids=" + itemIds.size() + "/" + itemIds.hashCode()}, checkpointSeconds);
+			checkpoint.log = log;
+			checkpoint.output = outputFileName;
+			resumed = resume && checkpoint.load();
+		}
+		OffsetLineReader br = new OffsetLineReader(inputFileName, resumed ? checkpoint.offset : 0);
+		PrintWriter pw;
+		if (resumed) {
+			RandomAccessFile out = new RandomAccessFile(outputFileName, "rw");
+			out.setLength(checkpoint.outputLength);
+			out.close();
+			pw = new PrintWriter(new FileOutputStream(outputFileName, true));
+		}
+		else {
+			pw = new PrintWriter(outputFileName);
+		}
+		int badRecords = 0; // invalid JSON
+		int badRecords1 = 0; // no "product_attributes"
+		int badRecords2 = 0; // no "item_id"
+		int badRecords3 = 0; // no "values"
+		int id = 0;
+		if (resumed) {
+			int[] c = checkpoint.counters;
+			id = c[0];
+			badRecords = c[1];
+			badRecords1 = c[2];
+			badRecords2 = c[3];
+			badRecords3 = c[4];
+		}
+		String[] values = new String[1];
+		String line;
+		while((line = br.readLine()) != null) {
+			if (id % 100000 == 0) {
+				System.out.println("Processed " + id + " records");
+			}
+			if (checkpoint != null && checkpoint.due()) {
+				pw.flush();
+				checkpoint.offset = br.lineStart();
+				checkpoint.outputLength = new File(outputFileName).length();
+				checkpoint.counters = new int[] {id, badRecords, badRecords1, badRecords2, badRecords3};
+				checkpoint.save();
+			}
+			String[] vals = line.split("\t");
+			String itemJson = vals[0];
+			JsonIndex doc = JsonIndex.parse(itemJson);
+			int[] outcomes = doc == null ? null : catalogValues(doc, ITEM_ID, true, values);
+			if (outcomes != null) {
+				if (outcomes[0] == NO_ATTRIBUTE) {
+					badRecords2++;
+				}
+				else if (outcomes[0] == NO_VALUES) {
+					badRecords3++;
+				}
+				else if (values[0] != null && itemIds.contains(values[0])) {
+					found.note(values[0]);
+					pw.println(itemJson);
 				}
-				String[] vals = line.split("\t");
-				String itemJson = vals[0];
-				try {
-					JsonReader reader = Json.createReader(new StringReader(itemJson));
-					JsonObject obj = reader.readObject();
-					if (obj.containsKey("product_attributes")) {
-						//System.out.println("Found product_attributes");
-						JsonObject obj1 = obj.getJsonObject("product_attributes");
-						if (null == obj1) {
-							badRecords1++;
-							id++;
-							continue;
-						}
-						JsonObject obj2 = obj1.getJsonObject("item_id");
-						if (null == obj2) {
-							badRecords2++;
-							id++;
-							continue;
-						}
-						JsonArray arr = obj2.getJsonArray("values");
-						if (null == arr) {
-							badRecords3++;
-							id++;
-							continue;
+				id++;
+				continue;
+			}
+			try {
+				JsonReader reader = Json.createReader(new StringReader(itemJson));
+				JsonObject obj = reader.readObject();
+				if (obj.containsKey("product_attributes")) {
+					//System.out.println("Found product_attributes");
+					JsonObject obj1 = obj.getJsonObject("product_attributes");
+					if (null == obj1) {
+						badRecords1++;
+						id++;
+						continue;
+					}
+					JsonObject obj2 = obj1.getJsonObject("item_id");
+					if (null == obj2) {
+						badRecords2++;
+						id++;
+						continue;
+					}
+					JsonArray arr = obj2.getJsonArray("values");
+					if (null == arr) {
+						badRecords3++;
+						id++;
+						continue;
+					}
+					for (int i = 0; i < arr.size(); i++) {
+						JsonObject obj3 = arr.getJsonObject(i);
+						if (arr.size() == 1) {
+							String value = obj3.getString("value");
+							if (itemIds.contains(value)) {
+								found.note(value);
+								pw.println(itemJson);
+							}
+							break;
 						}
-						for (int i = 0; i < arr.size(); i++) {
-							JsonObject obj3 = arr.getJsonObject(i);
-							if (arr.size() == 1) {
+						if (obj3.containsKey("isPrimary")) {
+							//System.out.println("Found isPrimary");
+							if ("true".equals(obj3.getString("isPrimary"))) {
 								String value = obj3.getString("value");
 								if (itemIds.contains(value)) {
-									System.out.println("Found item_id " + value);
+									found.note(value);
 									pw.println(itemJson);
 								}
 								break;
 							}
-							if (obj3.containsKey("isPrimary")) {
-								//System.out.println("Found isPrimary");
-								if ("true".equals(obj3.getString("isPrimary"))) {
-									String value = obj3.getString("value");
-									if (itemIds.contains(value)) {
-										System.out.println("Found item_id " + value);
-										pw.println(itemJson);
-									}
-									break;
-								}
-							}
 						}
 					}
 				}
-				catch (JsonException e) {
-					badRecords++;
-				}
-				id++;
 			}
-			br.close();
-			pw.close();
-			System.out.println("No. of records seen: " + id);
-			System.out.println("No. of records with Invalid JSON: " + badRecords);
-			System.out.println("No. of records with missing product attributes: " + badRecords1);
-			System.out.println("No. of records with missing item_id: " + badRecords2);
-			System.out.println("No. of records with missing values: " + badRecords3);
+			catch (JsonException e) {
+				log.quarantine(inputFileName, false, id + 1, e.getMessage());
+				badRecords++;
+			}
+			id++;
 		}
-		catch (FileNotFoundException e) {
+		br.close();
+		pw.close();
+		log.close();
+		if (checkpoint != null) {
+			checkpoint.delete();
+		}
+		System.out.println("No. of records seen: " + id);
+		System.out.println("No. of records with Invalid JSON: " + badRecords);
+		System.out.println("No. of records with missing product attributes: " + badRecords1);
+		System.out.println("No. of records with missing item_id: " + badRecords2);
+		System.out.println("No. of records with missing values: " + badRecords3);
+	}
+
+	private static void runGetItems() {
+		String inputFileName = "/media/My Book/sanjib/walmart_catalog/electronics/elec.txt";
+		String outputFileName = "/u/s/a/sanjibkd/Downloads/enriched_walmart_items.txt";
+		String[] itemIds = {"4217002", "5347115", "8245516", "8586825", "9193948", "3377768",
+				"4217014", "9447294", "3356833", "3377763", "3377767", "3356835",
+				"8586819", "9225287", "9225291", "8586826", "9225276", "4805973",
+				"9225280", "9225292", "4216995", "9875796", "9225273", "9225293",
+				"3356836", "3371668", "4217000", "8586822", "9225274", "4217003",
+				"9225275", "3985006", "3356838", "5996481", "5996470", "9863777",
+				"9225288", "3356840", "9208106", "9225277", "9722003", "10073803",
+				"10910315", "11068335", "11082496", "11084238", "11988059", "11988076",
+				"11997515", "12180028", "12180070", "12180103", "12181608", "12181609",
+				"12181620", "12181700", "12181705", "12182239", "12182374", "12182400",
+				"12182846", "12183204", "932031", "1234894", "3756896", "4025874",
+				"7754443", "9189660", "9225261", "9871188", "12184525", "12184565",
+				"872051", "2585639", "3387612", "3576485", "12186203", "12186211",
+				"12186335", "4664464", "5723587", "12187451", "12187705", "12187816",
+				"12187871", "12342530", "12343007", "12343021", "9225253", "2445355",
+				"2585638", "2685981", "17771102", "12360588", "12361423", "7964947"};
+		Set<String> itemIdsToLookup = new HashSet<String>();
+		for (String s: itemIds) {
+			itemIdsToLookup.add(s);
+		}
+		try {
+			getItems(inputFileName, outputFileName, itemIdsToLookup);
+		} catch (IOException e) {
 			// TODO Auto-generated catch block
 			e.printStackTrace();
 		}
-		catch (IOException e) {
-			// TODO Auto-generated catch block
+	}
+
+	// FNV-1a over the chars of s, in hex
+	static String fingerprint64(String s) {
+		long h = 0xcbf29ce484222325L;
+		for (int i = 0; i < s.length(); i++) {
+			h ^= s.charAt(i);
+			h *= 0x100000001b3L;
+		}
+		return Long.toHexString(h);
+	}
+
+	// SHA-1 of the contents of a file, in hex
+	static String fingerprint(String fileName) throws IOException {
+		MessageDigest md;
+		try {
+			md = MessageDigest.getInstance("SHA-1");
+		}
+		catch (NoSuchAlgorithmException e) {
+			throw new IllegalStateException(e);
+		}
+		InputStream in = new FileInputStream(fileName);
+		byte[] buf = new byte[1 << 16];
+		int n;
+		while ((n = in.read(buf)) > 0) {
+			md.update(buf, 0, n);
+		}
+		in.close();
+		StringBuilder sb = new StringBuilder();
+		for (byte b: md.digest()) {
+			sb.append(String.format("%02x", b));
+		}
+		return sb.toString();
+	}
+
+	private static Map<String, String> readFingerprints(String fileName) throws IOException {
+		Map<String, String> fingerprints = new HashMap<String, String>();
+		if (!new File(fileName).exists()) {
+			return fingerprints;
+		}
+		BufferedReader br = new BufferedReader(new FileReader(fileName));
+		String line;
+		while ((line = br.readLine()) != null) {
+			int i = line.lastIndexOf('\t');
+			if (i > 0) {
+				fingerprints.put(line.substring(0, i), line.substring(i + 1));
+			}
+		}
+		br.close();
+		return fingerprints;
+	}
+
+	private static void writeFingerprints(String fileName, Map<String, String> fingerprints) throws IOException {
+		AsyncFileWriter bw = new AsyncFileWriter(fileName + ".tmp");
+		for (Map.Entry<String, String> e: fingerprints.entrySet()) {
+			bw.write(e.getKey());
+			bw.write('\t');
+			bw.write(e.getValue());
+			bw.newLine();
+		}
+		bw.close();
+		replaceOutput(fileName);
+	}
+
+	// incremental outputs are written next to the target and moved over it once complete
+	private static AsyncFileWriter openOutput(String fileName, boolean incremental) throws IOException {
+		if (incremental) {
+			return new AsyncFileWriter(fileName + ".tmp");
+		}
+		return new AsyncFileWriter(fileName, true);
+	}
+
+	private static void replaceOutput(String fileName) throws IOException {
+		Path tmp = Paths.get(fileName + ".tmp");
+		Path target = Paths.get(fileName);
+		try {
+			Files.move(tmp, target, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+		}
+		catch (AtomicMoveNotSupportedException e) {
+			Files.move(tmp, target, StandardCopyOption.REPLACE_EXISTING);
+		}
+	}
+
+	/**
+	 * Writes the table to fileName + ".tmp" and moves it over fileName. Rows of items whose
+	 * fingerprint (keyed by prefix + id) is the same in oldFingerprints and fingerprints are
+	 * copied from the current fileName, the others are rendered from their JSON.
+	 */
+	private static void writeTableIncremental(String fileName, final TableWriter.Rows table, String header,
+			final SymbolTable.Union attributes, String prefix, Map<String, String> oldFingerprints,
+			Map<String, String> fingerprints) throws IOException {
+		final Map<String, CSVRecord> oldRows = new HashMap<String, CSVRecord>();
+		if (new File(fileName).exists() && !oldFingerprints.isEmpty()) {
+			CSVParser oldParser = new CSVParser(new BufferedReader(new FileReader(fileName)));
+			boolean first = true;
+			for (CSVRecord r: oldParser) {
+				if (first) { // header
+					first = false;
+					continue;
+				}
+				String key = prefix + r.get(0);
+				String fp = fingerprints.get(key);
+				if (fp != null && fp.equals(oldFingerprints.get(key)) && r.size() == attributes.size() + 1) {
+					oldRows.put(r.get(0), r);
+				}
+			}
+		}
+		TableWriter.write(fileName + ".tmp", header, new TableWriter.Rows() {
+			@Override
+			public int size() {
+				return table.size();
+			}
+
+			@Override
+			public String id(int row) {
+				return table.id(row);
+			}
+
+			@Override
+			public void print(int row, CSVPrinter printer) throws IOException {
+				CSVRecord old = oldRows.get(table.id(row));
+				if (old != null) {
+					for (String v: old) {
+						printer.print(v);
+					}
+					printer.println();
+				}
+				else {
+					table.print(row, printer);
+				}
+			}
+		}, false);
+		replaceOutput(fileName);
+		int reused = oldRows.size();
+		System.out.println(fileName + ": " + reused + " rows unchanged, " + (table.size() - reused) + " rows rewritten");
+	}
+
+	private static void writeTable(String fileName, Map<String, InternedItem> table, String header,
+			SymbolTable.Union attributes, boolean sortIds) throws IOException {
+		TableWriter.write(fileName, header, itemRows(table, null, attributes, sortIds), true);
+	}
+
+	// the rows of a table held in a Map, or off the heap in store when it is not null
+	private static TableWriter.Rows itemRows(Map<String, InternedItem> table, final ItemStore store,
+			final SymbolTable.Union attributes, boolean sortIds) {
+		if (store == null) {
+			return TableWriter.rows(table, new TableWriter.RowFormatter<InternedItem>() {
+				@Override
+				public void print(String id, InternedItem item, CSVPrinter printer) throws IOException {
+					printCsvRecord(id, item, attributes, printer);
+				}
+			}, sortIds);
+		}
+		final int[] order = sortIds ? store.sortedRows(TableWriter.ID_ORDER) : null;
+		return new TableWriter.Rows() {
+			@Override
+			public int size() {
+				return store.size();
+			}
+
+			@Override
+			public String id(int row) {
+				return store.id(order == null ? row : order[row]);
+			}
+
+			@Override
+			public void print(int row, CSVPrinter printer) throws IOException {
+				int r = order == null ? row : order[row];
+				printer.print(store.id(r));
+				for (int i = 0; i < attributes.size(); i++) {
+					String value = store.get(r, attributes.code(i));
+					printer.print(value == null ? "" : value);
+				}
+				printer.println();
+			}
+		};
+	}
+
+	// adds the item to the store, or the map when there is none; false when its id is already there
+	private static boolean putItem(Map<String, InternedItem> table, ItemStore store, String id, String itemJson,
+			SymbolTable.Union seen) throws IOException {
+		if (store != null) {
+			return store.add(id, itemJson, seen);
+		}
+		InternedItem item = InternedItem.fromJson(itemJson, null, seen);
+		if (table.containsKey(id)) {
+			return false;
+		}
+		table.put(id, item);
+		return true;
+	}
+
+	// adds the item unless its id is already in the table, bad JSON is reported and skipped
+	private static void putInterned(Map<String, InternedItem> table, String id, String itemJson, SymbolTable.Union attributes) {
+		if (table.containsKey(id)) {
+			return;
+		}
+		try {
+			table.put(id, InternedItem.fromJson(itemJson, attributes, null));
+		}
+		catch (JsonException e) {
+			System.out.println("id: " + id);
 			e.printStackTrace();
 		}
 	}
 
-	private static void runGetItems() {
-		String inputFileName = "/media/My Book/sanjib/walmart_catalog/electronics/elec.txt";
-		String outputFileName = "/u/s/a/sanjibkd/Downloads/enriched_walmart_items.txt";
-		String[] itemIds = {"4217002", "5347115", "8245516", "8586825", "9193948", "3377768",
-				"4217014", "9447294", "3356833", "3377763", "3377767", "3356835",
-				"8586819", "9225287", "9225291", "8586826", "9225276", "4805973",
-				"9225280", "9225292", "4216995", "9875796", "9225273", "9225293",
-				"3356836", "3371668", "4217000", "8586822", "9225274", "4217003",
-				"9225275", "3985006", "3356838", "5996481", "5996470", "9863777",
-				"9225288", "3356840", "9208106", "9225277", "9722003", "10073803",
-				"10910315", "11068335", "11082496", "11084238", "11988059", "11988076",
-				"11997515", "12180028", "12180070", "12180103", "12181608", "12181609",
-				"12181620", "12181700", "12181705", "12182239", "12182374", "12182400",
-				"12182846", "12183204", "932031", "1234894", "3756896", "4025874",
-				"7754443", "9189660", "9225261", "9871188", "12184525", "12184565",
-				"872051", "2585639", "3387612", "3576485", "12186203", "12186211",
-				"12186335", "4664464", "5723587", "12187451", "12187705", "12187816",
-				"12187871", "12342530", "12343007", "12343021", "9225253", "2445355",
-				"2585638", "2685981", "17771102", "12360588", "12361423", "7964947"};
-		Set<String> itemIdsToLookup = new HashSet<String>();
-		for (String s: itemIds) {
-			itemIdsToLookup.add(s);
+	// putInterned for a StreamingTable, the row is written right away
+	private static void addStreaming(StreamingTable table, String id, String itemJson) throws IOException {
+		if (table.contains(id)) {
+			return;
 		}
 		try {
-			getItems(inputFileName, outputFileName, itemIdsToLookup);
-		} catch (FileNotFoundException e) {
-			// TODO Auto-generated catch block
+			table.add(id, table.parse(itemJson));
+		}
+		catch (JsonException e) {
+			System.out.println("id: " + id);
 			e.printStackTrace();
 		}
 	}
 
-	private static void writeTable(String fileName, Map<String, String> table, String header, Set<String> attributes) throws IOException {
-		BufferedWriter tableBw = new BufferedWriter(new FileWriter(fileName, true));
-		CSVPrinter tablePrinter = new CSVPrinter(tableBw, CSVFormat.DEFAULT.toBuilder().withRecordSeparator("\n").build());
-		tablePrinter.print(header);
-		tablePrinter.println();
-		for (Map.Entry<String, String> entry: table.entrySet()) {
-			String id = entry.getKey();
-			String rec = entry.getValue();
-			try {
-				printCsvRecord(id, rec, attributes, tablePrinter);
-			}
-			catch (JsonParsingException e) {
-				System.out.println("id: " + id);
-				e.printStackTrace();
-			}
+	private static SymbolTable.Union attributeUnion(String[] attributeNames) {
+		SymbolTable.Union attributes = new SymbolTable.Union(SymbolTable.ATTRIBUTES);
+		for (String s: attributeNames) {
+			attributes.add(SymbolTable.ATTRIBUTES.intern(s));
 		}
-		tablePrinter.close();
-		tableBw.close();
+		return attributes;
 	}
 
-	private static void writeTable(String fileName, Map<String, Map<String, String>> table, String header, String[] attributes) throws IOException {
-		BufferedWriter tableBw = new BufferedWriter(new FileWriter(fileName, true));
-		CSVPrinter tablePrinter = new CSVPrinter(tableBw, CSVFormat.DEFAULT.toBuilder().withRecordSeparator("\n").build());
-		tablePrinter.print(header);
-		tablePrinter.println();
-		for (String id: table.keySet()) {
-			Map<String, String> itemMap = table.get(id);
-			try {
-				printCsvRecord(id, itemMap, attributes, tablePrinter);
+	private static void writeTable(String fileName, Map<String, Map<String, String>> table, String header, final String[] attributes) throws IOException {
+		TableWriter.write(fileName, header, table, new TableWriter.RowFormatter<Map<String, String>>() {
+			@Override
+			public void print(String id, Map<String, String> itemMap, CSVPrinter printer) {
+				printCsvRecord(id, itemMap, attributes, printer);
 			}
-			catch (JsonParsingException e) {
-				System.out.println("id: " + id);
-				e.printStackTrace();
-			}
-		}
-		tablePrinter.close();
-		tableBw.close();
+		}, false, true);
 	}
 
 	private static void createTablesFromLabeledPairs(String labeledPairsFile,
-			String table1FileName, String table2FileName, String goldFile, String[] attributeNames) throws IOException {
+			String table1FileName, String table2FileName, String goldFile, String[] attributeNames,
+			boolean sortIds, boolean streaming) throws IOException {
 
-		Map<String, String> tableA = new HashMap<String, String>();
-		Map<String, String> tableB = new HashMap<String, String>();
+		Map<String, InternedItem> tableA = new HashMap<String, InternedItem>();
+		Map<String, InternedItem> tableB = new HashMap<String, InternedItem>();
+		SymbolTable.Union attributes = attributeUnion(attributeNames);
+		StreamingTable streamA = streaming ? StreamingTable.withColumns(table1FileName, attributes) : null;
+		StreamingTable streamB = streaming ? StreamingTable.withColumns(table2FileName, attributes) : null;
 
 		BufferedReader br = new BufferedReader(new FileReader(labeledPairsFile));
-		BufferedWriter goldBw = new BufferedWriter(new FileWriter(goldFile, true));
+		AsyncFileWriter goldBw = new AsyncFileWriter(goldFile, true);
 		CSVPrinter goldPrinter = new CSVPrinter(goldBw, CSVFormat.DEFAULT.toBuilder().withRecordSeparator("\n").build());
 		goldPrinter.print(GOLD_HEADER);
 		goldPrinter.println();
@@ -2092,11 +2538,13 @@ public class Parser {
 			String id2 = vals[3];
 			String item2json = vals[4];
 			String label = vals[5];
-			if (!tableA.containsKey(id1)) {
-				tableA.put(id1, item1json);
+			if (streaming) {
+				addStreaming(streamA, id1, item1json);
+				addStreaming(streamB, id2, item2json);
 			}
-			if (!tableB.containsKey(id2)) {
-				tableB.put(id2, item2json);
+			else {
+				putInterned(tableA, id1, item1json, attributes);
+				putInterned(tableB, id2, item2json, attributes);
 			}
 			goldPrinter.print(pairId);
 			goldPrinter.print(id1);
@@ -2113,15 +2561,63 @@ public class Parser {
 		br.close();
 		goldPrinter.close();
 		goldBw.close();
-
-		Set<String> attributes = new LinkedHashSet<String>();
-		for (String s: attributeNames) {
-			attributes.add(s);
+		if (streaming) {
+			streamA.finish(null);
+			streamB.finish(null);
+			return;
 		}
+
 		//get header for the tables
-		String tableHeader = getHeader(attributes);
-		writeTable(table1FileName, tableA, tableHeader, attributes);
-		writeTable(table2FileName, tableB, tableHeader, attributes);
+		String tableHeader = attributes.header();
+		writeTable(table1FileName, tableA, tableHeader, attributes, sortIds);
+		writeTable(table2FileName, tableB, tableHeader, attributes, sortIds);
+	}
+
+	// side 0 is the A (Walmart) item of each pair, side 1 the B (vendor) item
+	private static void createTableFromLabeledPairs(String labeledPairsFile, int side,
+			String tableFileName, String[] attributeNames, boolean sortIds, boolean streaming) throws IOException {
+		Map<String, InternedItem> table = new HashMap<String, InternedItem>();
+		SymbolTable.Union attributes = attributeUnion(attributeNames);
+		StreamingTable stream = streaming ? StreamingTable.withColumns(tableFileName, attributes) : null;
+		BufferedReader br = new BufferedReader(new FileReader(labeledPairsFile));
+		String line;
+		while((line = br.readLine()) != null) {
+			String[] vals = line.split("\\?");
+			if (streaming) {
+				addStreaming(stream, vals[1 + 2 * side], vals[2 + 2 * side]);
+			}
+			else {
+				putInterned(table, vals[1 + 2 * side], vals[2 + 2 * side], attributes);
+			}
+		}
+		br.close();
+		if (streaming) {
+			stream.finish(null);
+			return;
+		}
+		writeTable(tableFileName, table, attributes.header(), attributes, sortIds);
+	}
+
+	private static void createGoldFromLabeledPairs(String labeledPairsFile, String goldFile) throws IOException {
+		BufferedReader br = new BufferedReader(new FileReader(labeledPairsFile));
+		AsyncFileWriter goldBw = new AsyncFileWriter(goldFile, true);
+		CSVPrinter goldPrinter = new CSVPrinter(goldBw, CSVFormat.DEFAULT.toBuilder().withRecordSeparator("\n").build());
+		goldPrinter.print(GOLD_HEADER);
+		goldPrinter.println();
+		int pairId = 1;
+		String line;
+		while((line = br.readLine()) != null) {
+			String[] vals = line.split("\\?");
+			goldPrinter.print(pairId);
+			goldPrinter.print(vals[1]);
+			goldPrinter.print(vals[3]);
+			goldPrinter.print("MATCH".equals(vals[5]) ? 1 : 0);
+			goldPrinter.println();
+			pairId++;
+		}
+		br.close();
+		goldPrinter.close();
+		goldBw.close();
 	}
 
 	private static void runCreateTablesFromLabeledPairs() {
@@ -2136,7 +2632,7 @@ public class Parser {
 				"Screen Size", "Laptop Compartment Dimensions", "Print Color", "Page Yield",
 				"Manufacturer Part Number", "UPC"};
 		try {
-			createTablesFromLabeledPairs(labeledPairsFile, table1FileName, table2FileName, goldFileName, attributeNames);
+			createTablesFromLabeledPairs(labeledPairsFile, table1FileName, table2FileName, goldFileName, attributeNames, false, false);
 		}
 		catch (IOException e) {
 			e.printStackTrace();
@@ -2145,88 +2641,38 @@ public class Parser {
 	}
 
 	private static void collateExtractedFile(String inputFileName, String outputFileName, String[] attributeNames, String tableName) throws IOException {
-		BufferedReader br = new BufferedReader(new FileReader(inputFileName));
 		Set<String> attributes = new HashSet<String>();
-		Map<String, Map<String, String>> table = new LinkedHashMap<String, Map<String, String>>();
 		for (String s: attributeNames) {
 			attributes.add(s);
 		}
-		String line;
-		while ((line = br.readLine()) != null) {
-			if (line.contains(tableName + " product")) {
-				String[] vals = line.split(":");
-				String itemId = vals[1].substring(0, vals[1].length()-1);
-				Map<String, String> itemMap = new HashMap<String, String>();
-				String newLine;
-				while (!(newLine = br.readLine()).startsWith("***")) {
-					String[] newVals = newLine.split(": ");
-					if (newVals.length >= 2) {
-						if (attributes.contains(newVals[0])) {
-							String v = newVals[1].trim();
-							itemMap.put(newVals[0], v);
-						}
-					}
-				}
-				table.put(itemId, itemMap);
-			}
-		}
-		br.close();
-		System.out.println("Size of table: " + table.size());
-		for (String itemId: table.keySet()) {
-			System.out.print(itemId + ": ");
-			Map<String, String> itemMap = table.get(itemId);
-			for (String k: itemMap.keySet()) {
-				String v = itemMap.get(k);
-				System.out.print(k + ": " + v + ", ");
-			}
-			System.out.println();
-		}
+		Map<String, Map<String, String>> table = ExtractionParser.parse(inputFileName, tableName, attributes, false);
+		printCollated(table);
 	}
 
 	private static void collateExtractedFiles(String[] inputFileNames, String outputFileName, String[] attributeNames, String tableName) throws IOException {
-		Map<String, Map<String, String>> table = new LinkedHashMap<String, Map<String, String>>();
 		Set<String> attributes = new LinkedHashSet<String>();
 		for (String s: attributeNames) {
 			attributes.add(s);
 		}
-		for (String inputFileName: inputFileNames) {
-			BufferedReader br = new BufferedReader(new FileReader(inputFileName));
-			String line;
-			while ((line = br.readLine()) != null) {
-				if (line.contains(tableName + " product")) {
-					String[] vals = line.split(":");
-					String itemId = vals[1].substring(0, vals[1].length()-1);
-					Map<String, String> itemMap = table.get(itemId);
-					if (!table.containsKey(itemId)) {
-						itemMap = new HashMap<String, String>();
-					}
-					String newLine;
-					while (!(newLine = br.readLine()).startsWith("***")) {
-						String[] newVals = newLine.split(": ");
-						if (newVals.length >= 2) {
-							if (attributes.contains(newVals[0])) {
-								String v = newVals[1].trim();
-								itemMap.put(newVals[0], v);
-							}
-						}
-					}
-					table.put(itemId, itemMap);
-				}
-			}
-			br.close();
-		}
+		Map<String, Map<String, String>> table = ExtractionParser.parseAll(inputFileNames, tableName, attributes);
+		printCollated(table);
+		String tableHeader = getHeader(attributes);
+		writeTable(outputFileName, table, tableHeader, attributeNames);
+	}
+
+	private static void printCollated(Map<String, Map<String, String>> table) {
 		System.out.println("Size of table: " + table.size());
+		StringBuilder sb = new StringBuilder();
 		for (String itemId: table.keySet()) {
-			System.out.print(itemId + ": ");
+			sb.append(itemId).append(": ");
 			Map<String, String> itemMap = table.get(itemId);
 			for (String k: itemMap.keySet()) {
 				String v = itemMap.get(k);
-				System.out.print(k + ": " + v + ", ");
+				sb.append(k).append(": ").append(v).append(", ");
 			}
-			System.out.println();
+			sb.append(System.getProperty("line.separator"));
 		}
-		String tableHeader = getHeader(attributes);
-		writeTable(outputFileName, table, tableHeader, attributeNames);
+		System.out.print(sb);
 	}
 
 	private static void runCollateExtractedFile() {
@@ -2275,112 +2721,13 @@ public class Parser {
 	}
 
 	public static void combineFiles(String originalFileName, String collatedFileName, String enrichedFileName) throws IOException {
-		Set<String> attributes = new LinkedHashSet<String>();
-		BufferedReader br1 = new BufferedReader(new FileReader(originalFileName));
-		BufferedReader br2 = new BufferedReader(new FileReader(collatedFileName));
-		CSVParser p1 = new CSVParser(br1);
-		CSVParser p2 = new CSVParser(br2);
-		List<CSVRecord> r1 = p1.getRecords();
-		List<CSVRecord> r2 = p2.getRecords();
-
-		CSVRecord header1 = r1.get(0);
-		CSVRecord header2 = r2.get(0);
-		for (int i = 1; i < header1.size(); i++) {
-			attributes.add(header1.get(i));
-		}
-		for (int i = 1; i < header2.size(); i++) {
-			attributes.add(header2.get(i));
-		}
-		System.out.println(attributes.size());
-		for (String s: attributes) {
-			System.out.println(s);
-		}
-		String[] attributeNames = new String[attributes.size()];
-		int j = 0;
-		for (String s: attributes) {
-			attributeNames[j++] = s;
-		}
-		String tableHeader = getHeader(attributes);
-		Map<String, Map<String, String>> table = new HashMap<String, Map<String, String>>();
-		for (int i = 1; i < r1.size(); i++) {
-			CSVRecord r = r1.get(i);
-			String id = r.get(0);
-			Map<String, String> itemMap;
-			if (!table.containsKey(id)) {
-				itemMap = new HashMap<String, String>();
-			}
-			else {
-				itemMap = table.get(id);
-			}
-			for (int k = 1; k < r.size(); k++) {
-				itemMap.put(header1.get(k), r.get(k));
-			}
-			table.put(id, itemMap);
-		}
-		for (int i = 1; i < r2.size(); i++) {
-			CSVRecord r = r2.get(i);
-			String id = r.get(0);
-			Map<String, String> itemMap;
-			if (!table.containsKey(id)) {
-				itemMap = new HashMap<String, String>();
-			}
-			else {
-				itemMap = table.get(id);
-			}
-			for (int k = 1; k < r.size(); k++) {
-				String v = r.get(k);
-				String key = header2.get(k);
-				if ("X".equalsIgnoreCase(v)) {
-					if ("BRAND_X".equals(key)) {
-						v = itemMap.get("Brand");
-					}
-					else if ("MANUFACTURER_X".equals(key)) {
-						v = itemMap.get("Manufacturer");
-					}
-					else if ("MODEL_X".equals(key)) {
-						v = itemMap.get("Model");
-					}
-					else if ("SCREEN_SIZE_X".equals(key)) {
-						v = itemMap.get("Screen_Size");
-					}
-					else if ("COLOR_X".equals(key)) {
-						v = itemMap.get("Color");
-					}
-					else if ("PACKAGE_QUANTITY_X".equals(key)) {
-						v = itemMap.get("Package_Quantity");
-					}
-					else if ("LENGTH_X".equals(key)) {
-						v = itemMap.get("Assembled_Product_Length");
-					}
-					else if ("WIDTH_X".equals(key)) {
-						v = itemMap.get("Assembled_Product_Width");
-					}
-					else if ("HEIGHT_X".equals(key)) {
-						v = itemMap.get("Assembled_Product_Height");
-					}
-					else if ("WEIGHT_X".equals(key)) {
-						v = itemMap.get("Assembled_Product_Weight");
-					}
-					else if ("SIZE_X".equals(key)) {
-						v = itemMap.get("Size");
-					}
-					else if ("LAPTOP_COMPARTMENT_DIMENSIONS_X".equals(key)) {
-						v = itemMap.get("Laptop_Compartment_Dimensions");
-					}
-					else if ("PRINT_COLOR_X".equals(key)) {
-						v = itemMap.get("Print_Color");
-					}
-					else if ("PAGE_YIELD_X".equals(key)) {
-						v = itemMap.get("Page Yield");
-					}
-				}
-				itemMap.put(key, v);
-			}
-			table.put(id, itemMap);
-		}
-		writeTable(enrichedFileName, table, tableHeader, attributeNames);
-		br1.close();
-		br2.close();
+		combineFiles(originalFileName, collatedFileName, enrichedFileName, TableJoin.DEFAULT_RUN_ROWS);
+	}
+
+	// runRows rows are sorted in memory at most, see TableJoin
+	public static void combineFiles(String originalFileName, String collatedFileName, String enrichedFileName,
+			int runRows) throws IOException {
+		TableJoin.combine(originalFileName, collatedFileName, enrichedFileName, runRows);
 	}
 
 	public static void runCombineFiles() {
@@ -2398,6 +2745,23 @@ public class Parser {
 	public static String suppress(String itemJson,
 			Set<String> attributesToSuppress) {
 		int badJson = 0;
+		JsonIndex doc = JsonIndex.parse(itemJson);
+		int root = doc == null ? -1 : doc.root();
+		if (doc != null && doc.start(root) == 0 && doc.end(root) == itemJson.length() && doc.verbatim(root)) {
+			// the JSON writer would give back the members as they are, the ones kept are copied
+			StringBuilder sb = new StringBuilder(itemJson.length());
+			sb.append('{');
+			for (int key = doc.first(root); key >= 0; key = doc.next(key, root)) {
+				if (attributesToSuppress.contains(doc.string(key))) {
+					continue;
+				}
+				if (sb.length() > 1) {
+					sb.append(',');
+				}
+				sb.append(itemJson, doc.start(key), doc.end(key + 1));
+			}
+			return sb.append('}').toString();
+		}
 		try {
 			JsonReader reader = Json.createReader(new StringReader(itemJson));
 			JsonObject obj = reader.readObject();
@@ -2421,6 +2785,9 @@ public class Parser {
 		if (itemJson == null || itemJson.isEmpty()) {
 			return false;
 		}
+		if (JsonIndex.parse(itemJson) != null) {
+			return true;
+		}
 		try {
 			JsonReader reader = Json.createReader(new StringReader(itemJson));
 			JsonObject obj = reader.readObject();
@@ -2462,7 +2829,7 @@ public class Parser {
 			Set<String> attributesToSuppress1, Set<String> attributesToSuppress2)
 					throws IOException {
 		BufferedReader br = new BufferedReader(new FileReader(inFileName));
-		BufferedWriter bw = new BufferedWriter(new FileWriter(outFileName));
+		AsyncFileWriter bw = new AsyncFileWriter(outFileName);
 		String line = null;
 		int badPairs = 0;
 		while ((line = br.readLine()) != null) {
@@ -2534,23 +2901,37 @@ public class Parser {
 		return ids;
 	}
 
+	// the files are read at the same time (FileFanOut)
 	public static Set<String> getIds(String[] fileNames) throws IOException {
-		Set<String> ids = new HashSet<String>();
-		for (String fileName: fileNames) {
-			BufferedReader br = new BufferedReader(new FileReader(fileName));
-			String line;
-			while ((line = br.readLine()) != null) {
-				ids.add(line.split("\\?")[0]);
-			}
-			br.close();
+		if (fileNames.length == 0) {
+			return new HashSet<String>();
 		}
-		return ids;
+		return FileFanOut.ingest(fileNames, new FileFanOut.Ingest<Set<String>>() {
+			@Override
+			public Set<String> read(String fileName) throws IOException {
+				return getIds(fileName);
+			}
+
+			@Override
+			public void report(String fileName, Set<String> ids) {
+			}
+
+			@Override
+			public Set<String> merge(Set<String> into, Set<String> other) {
+				if (other.size() > into.size()) {
+					other.addAll(into);
+					return other;
+				}
+				into.addAll(other);
+				return into;
+			}
+		});
 	}
 
 	public static void writeDiff(String inFile1, String inFile2, String outFile) throws IOException {
 		Set<String> ids = getIds(inFile2);
 		BufferedReader br = new BufferedReader(new FileReader(inFile1));
-		BufferedWriter bw = new BufferedWriter(new FileWriter(outFile));
+		AsyncFileWriter bw = new AsyncFileWriter(outFile);
 		String line;
 		while ((line = br.readLine()) != null) {
 			String id = line.split("\\?")[0];
@@ -2566,7 +2947,7 @@ public class Parser {
 	public static void writeDiff(String inFile, String[] excludeFiles, String outFile) throws IOException {
 		Set<String> ids = getIds(excludeFiles);
 		BufferedReader br = new BufferedReader(new FileReader(inFile));
-		BufferedWriter bw = new BufferedWriter(new FileWriter(outFile));
+		AsyncFileWriter bw = new AsyncFileWriter(outFile);
 		String line;
 		while ((line = br.readLine()) != null) {
 			String id = line.split("\\?")[0];
@@ -2581,9 +2962,9 @@ public class Parser {
 
 	public static void writeLines(List<String> lines, String[] outFiles, int[] sizes) throws IOException {
 		int l = outFiles.length;
-		BufferedWriter[] writers = new BufferedWriter[l];
+		AsyncFileWriter[] writers = new AsyncFileWriter[l];
 		for (int i = 0; i < l; i++) {
-			writers[i] = new BufferedWriter(new FileWriter(outFiles[i]));
+			writers[i] = new AsyncFileWriter(outFiles[i]);
 		}
 		int indx = 0;
 		int to = sizes[0]; 
@@ -2602,8 +2983,20 @@ public class Parser {
 		}
 	}
 	
+	// shuffles the lines of inFile into outFiles, sizes[i] lines to outFiles[i] (all lines to a single output file)
+	public static void shuffleLines(String inFile, String[] outFiles, int[] sizes, boolean validJsonOnly) throws IOException {
+		List<String> lines = validJsonOnly ? getLinesWithValidJson(inFile) : getLines(inFile);
+		Collections.shuffle(lines);
+		if (outFiles.length == 1 && sizes.length == 0) {
+			writeLines(lines, outFiles[0]);
+		}
+		else {
+			writeLines(lines, outFiles, sizes);
+		}
+	}
+
 	public static void writeLines(List<String> lines, String outFile) throws IOException {
-		BufferedWriter writer = new BufferedWriter(new FileWriter(outFile));
+		AsyncFileWriter writer = new AsyncFileWriter(outFile);
 		for (String line: lines) {
 			writer.write(line);
 			writer.newLine();
@@ -2627,43 +3020,48 @@ public class Parser {
 	}
 
 	public static void anonymizeAndRemoveLabels(String inFile, String studFile, String taFile) throws IOException {
+		anonymizeAndRemoveLabels(inFile, studFile, taFile, null);
+	}
+
+	// idMapFile, if not null, gets the original ids of every anonymous id, see Anonymizer
+	public static void anonymizeAndRemoveLabels(String inFile, String studFile, String taFile, String idMapFile)
+			throws IOException {
+		Anonymizer.anonymize(inFile, studFile, taFile, idMapFile);
+	}
+
+	// replaces the anonymous pair id starting every line of a graded or labeled file with pair id, id1 and id2
+	public static void deanonymize(String inFile, String idMapFile, String outFile) throws IOException {
+		AnonIdMap idMap = new AnonIdMap(idMapFile);
 		BufferedReader br = new BufferedReader(new FileReader(inFile));
-		BufferedWriter bw1 = new BufferedWriter(new FileWriter(studFile));
-		BufferedWriter bw2 = new BufferedWriter(new FileWriter(taFile));
-		String line;
-		int anonPairId = 0;
-		int anonId1 = 0;
-		int anonId2 = 0;
-		while ((line = br.readLine()) != null) {
-			String[] vals = line.split("\\?");
-			if (vals.length == 6) {
-				bw1.write(String.valueOf(++anonPairId));
-				bw1.write("?");
-				bw1.write(String.valueOf(++anonId1));
-				bw1.write("?");
-				String item1 = vals[2];
-				bw1.write(item1);
-				bw1.write("?");
-				bw1.write(String.valueOf(++anonId2));
-				bw1.write("?");
-				String item2 = vals[4];
-				bw1.write(item2);
-				bw1.newLine();
-				String label = vals[5].trim();
-				if (!label.equalsIgnoreCase("UNKNOWN")) {
-					bw2.write(String.valueOf(anonPairId));
-					bw2.write(",");
-					bw2.write(label);
-					bw2.newLine();
-				}
+		AsyncFileWriter bw = new AsyncFileWriter(outFile);
+		CSVPrinter printer = new CSVPrinter(bw, CSVFormat.DEFAULT.toBuilder().withRecordSeparator("\n").build());
+		int unknown = 0;
+		for (CSVRecord r: new CSVParser(br)) {
+			int anonId;
+			try {
+				anonId = Integer.parseInt(r.get(0).trim());
 			}
-			else {
-				System.err.println("Bad pair");
+			catch (NumberFormatException e) {
+				anonId = 0;
+			}
+			if (anonId < 1 || anonId > idMap.size()) {
+				unknown++;
+				continue;
 			}
+			for (String id: idMap.original(anonId)) {
+				printer.print(id);
+			}
+			for (int i = 1; i < r.size(); i++) {
+				printer.print(r.get(i));
+			}
+			printer.println();
 		}
 		br.close();
-		bw1.close();
-		bw2.close();
+		printer.close();
+		bw.close();
+		if (unknown > 0) {
+			System.err.println(unknown + " lines of " + inFile + " without a known anonymous id");
+		}
 	}
 	
 	public static void runStage3() throws IOException {
@@ -2717,27 +3115,64 @@ public class Parser {
 	public static void downsampleNegatives() throws IOException {
 		String inFile = "test_stage3.csv";
 		String outFile = "test_stage3_down2.csv";
-		BufferedReader br = new BufferedReader(new FileReader(inFile));
-		BufferedWriter bw = new BufferedWriter(new FileWriter(outFile));
-		String line;
+		downsampleNegatives(inFile, outFile, 3793.0/6207.0);
+	}
+
+	// keeps the header, every positive pair and each negative pair with probability prob
+	public static void downsampleNegatives(String inFile, String outFile, double prob) throws IOException {
+		PairColumns pairs = PairColumns.read(inFile);
+		AsyncFileWriter bw = new AsyncFileWriter(outFile);
 		Random rand = new Random();
-		double prob = 3793.0/6207.0;
-		while ((line = br.readLine()) != null) {
-			String[] vals = line.split(",");
-			String label = vals[3].trim();
-			if (label.equals("0") && rand.nextDouble() >= prob) {
+		String header = pairs.header();
+		if (header != null) {
+			bw.write(header);
+			bw.newLine();
+		}
+		for (int row = 0; row < pairs.size(); row++) {
+			if (pairs.label(row) == 0 && rand.nextDouble() >= prob) {
 				continue;
 			}
-			bw.write(line);
+			bw.write(pairs.record(row));
 			bw.newLine();
 		}
-		br.close();
+		pairs.close();
+		bw.close();
+	}
+
+	/**
+	 * Gives every pair of the candset the label of the same A id, B id pair in the gold
+	 * file, keeping the candset's pair id. Pairs the gold file does not label are left out.
+	 */
+	public static void labelCandset(String candsetFile, String goldFile, String outFile) throws IOException {
+		PairColumns.Ids aIds = new PairColumns.Ids();
+		PairColumns.Ids bIds = new PairColumns.Ids();
+		PairColumns gold = PairColumns.read(goldFile, aIds, bIds);
+		PairColumns candset = PairColumns.read(candsetFile, aIds, bIds);
+		AsyncFileWriter bw = new AsyncFileWriter(outFile);
+		CSVPrinter printer = new CSVPrinter(bw, CSVFormat.DEFAULT.toBuilder().withRecordSeparator("\n").build());
+		printer.print(GOLD_HEADER);
+		printer.println();
+		int unlabeled = 0;
+		for (int row = 0; row < candset.size(); row++) {
+			int g = gold.find(candset.a(row), candset.b(row));
+			if (g < 0 || gold.label(g) == PairColumns.NONE) {
+				unlabeled++;
+				continue;
+			}
+			printer.print(candset.pairId(row));
+			printer.print(candset.aId(row));
+			printer.print(candset.bId(row));
+			printer.print(gold.label(g));
+			printer.println();
+		}
+		printer.close();
 		bw.close();
+		System.out.println("Labeled pairs: " + (candset.size() - unlabeled) + ", unlabeled: " + unlabeled);
 	}
 	
 	private static void replaceLabels(String inFile, String outFile) throws IOException {
 		BufferedReader br = new BufferedReader(new FileReader(inFile));
-		BufferedWriter bw = new BufferedWriter(new FileWriter(outFile));
+		AsyncFileWriter bw = new AsyncFileWriter(outFile);
 		String line;
 		int numLines = 0;
 		while ((line = br.readLine()) != null) {
@@ -2756,120 +3191,213 @@ public class Parser {
 		System.out.println("No. of lines: "  + numLines);
 	}
 	
-	public static void main(String[] args) throws IOException {
-		//parseItems();
-		//parseLabeledItemPairs();
-		//parseTrainTestItemPairs();
-		//parseRuleEvals();
-		//applyRuleOnCrossProduct();
-		//		List<String> attributes = new ArrayList<String>();
-		//		attributes.add("Product Name");
-		//		attributes.add("Product Short Description");
-		//		attributes.add("Product Long Description");
-		//		attributes.add("Product Segment");
-		//		attributes.add("Product Type");
-		//		attributes.add("Brand");
-		//		attributes.add("Manufacturer");
-		//		attributes.add("Color");
-		//		attributes.add("Actual Color");
-		//		attributes.add("Assembled Product Length");
-		//		attributes.add("Assembled Product Width");
-		//		attributes.add("Assembled Product Height");
-		//		attributes.add("UPC");
-		//		attributes.add("Manufacturer Part Number");
-		//		try {
-		//			sampleExamplePairs(0, 50, attributes);
-		//		} catch (IOException e) {
-		//			// TODO Auto-generated catch block
-		//			e.printStackTrace();
-		//		}
-		//cleanupLabeledPairs2();
-		String outputPath = "/u/s/a/sanjibkd/Downloads/6.txt";
-		String[] attributesToExclude = {};
-		String[] attributesToExtract1 = {"Brand", "Manufacturer"};
-		String[] attributesToExtract2 = {"Model", "Screen Size"};
-		String[] attributesToExtract3 = {"Color", "Package Quantity"};
-		String[] attributesToExtract4 = {"Length", "Width", "Height", "Size"};
-		String[] attributesToExtract5 = {"Weight", "Material"};
-		String[] attributesToExtract6 = {"Laptop Compartment Dimensions", "Print Color", "Page Yield"};
-		String[] attributesToExtract7 = {"MPN", "UPC"};
-		//prepareSampleForStudents(outputPath, attributesToExclude, attributesToExtract6);
-		//		String inputFileName = "/media/My Book/sanjib/walmart_catalog/electronics/elec.txt";
-		//		String outputFileName = "/u/s/a/sanjibkd/Downloads/material_dictionary.txt";
-		//		try {
-		//			createDictionary(inputFileName, outputFileName, "material");
-		//		}
-		//		catch (FileNotFoundException e) {
-		//			e.printStackTrace();
-		//		}
-
-		String[] inputFileNames = {"/media/My Book/sanjib/walmart_catalog/bmm.txt"};
-		//		String[] inputFileNames = {"/u/s/a/sanjibkd/Downloads/elec_catalog_1.txt", "/u/s/a/sanjibkd/Downloads/elec_catalog_2.txt"};
-		//		String[] outputFileNames = {"/u/s/a/sanjibkd/Downloads/package_quantity_dictionary.txt",
-		//									"/u/s/a/sanjibkd/Downloads/product_type_dictionary.txt",
-		//									"/u/s/a/sanjibkd/Downloads/product_category_dictionary.txt",
-		//									"/u/s/a/sanjibkd/Downloads/manufacturer_part_number_dictionary.txt",
-		//									"/u/s/a/sanjibkd/Downloads/upc_dictionary.txt"};
-		//		String[] attributeNames = {"package_quantity", "product_type", "product_category", "manufacturer_part_number", "upc"};
-
-		String[] outputFileNames = {"/u/s/a/sanjibkd/Downloads/bmm_brand_dictionary.txt",
-				"/u/s/a/sanjibkd/Downloads/bmm_manufacturer_dictionary.txt",
-				"/u/s/a/sanjibkd/Downloads/bmm_model_dictionary.txt",
-				"/u/s/a/sanjibkd/Downloads/bmm_color_dictionary.txt",
-				"/u/s/a/sanjibkd/Downloads/bmm_actual_color_dictionary.txt",
-				"/u/s/a/sanjibkd/Downloads/bmm_assembled_product_length_dictionary.txt",
-				"/u/s/a/sanjibkd/Downloads/bmm_assembled_product_width_dictionary.txt",
-				"/u/s/a/sanjibkd/Downloads/bmm_assembled_product_height_dictionary.txt",
-				"/u/s/a/sanjibkd/Downloads/bmm_assembled_product_weight_dictionary.txt",
-				"/u/s/a/sanjibkd/Downloads/bmm_size_dictionary.txt",
-				"/u/s/a/sanjibkd/Downloads/bmm_material_dictionary.txt",
-				"/u/s/a/sanjibkd/Downloads/bmm_package_quantity_dictionary.txt",
-				"/u/s/a/sanjibkd/Downloads/bmm_product_type_dictionary.txt",
-				"/u/s/a/sanjibkd/Downloads/bmm_product_category_dictionary.txt",
-				"/u/s/a/sanjibkd/Downloads/bmm_manufacturer_part_number_dictionary.txt",
-		"/u/s/a/sanjibkd/Downloads/bmm_upc_dictionary.txt"};
-		String[] attributeNames = {"brand",
-				"manufacturer",
-				"model",
-				"color",
-				"actual_color",
-				"assembled_product_length",
-				"assembled_product_width",
-				"assembled_product_height",
-				"assembled_product_weight",
-				"size",
-				"material",
-				"package_quantity",
-				"product_type",
-				"product_category",
-				"manufacturer_part_number",
-		"upc"};
-
-		//		try {
-		//			createDictionaries(inputFileNames, outputFileNames, attributeNames);
-		//		}
-		//		catch (FileNotFoundException e) {
-		//			e.printStackTrace();
-		//		}
-		//runMergeDictionaries();
-		//runGetItems();
-		//runCreateTablesFromLabeledPairs();
-		//runCollateExtractedFiles();
-		//runCombineFiles();
-		/*
+	private static Set<String> asSet(String[] vals) {
+		Set<String> set = new LinkedHashSet<String>();
+		for (String s: vals) {
+			set.add(s);
+		}
+		return set;
+	}
+
+	static void runStage(Job.Stage stage) throws IOException {
+		String kind = stage.kind;
+		if (stage.getFlag("streaming") && stage.getFlag("sorted")) {
+			throw new IllegalArgumentException("Stage " + stage.name + ": streaming tables are written in the order ids are seen, they cannot be sorted");
+		}
+		if (stage.getFlag("streaming") && stage.getFlag("incremental")) {
+			throw new IllegalArgumentException("Stage " + stage.name + ": incremental runs keep the items in memory to compare them with the previous run, they cannot be streaming");
+		}
+		if (stage.getFlag("streaming") && stage.getFlag("offHeap")) {
+			throw new IllegalArgumentException("Stage " + stage.name + ": streaming tables keep no items, they cannot be off heap");
+		}
+		if ("labeledPairs".equals(kind)) {
+			parseLabeledItemPairs(stage.get("in"), stage.get("tableA"), stage.get("tableB"),
+					stage.get("candset"), stage.get("gold"), stage.getFlag("sorted"), stage.getFlag("streaming"),
+					stage.get("quarantine"));
+		}
+		else if ("trainTest".equals(kind)) {
+			parseTrainTestItemPairs(stage.get("train"), stage.get("test"), stage.get("tableA"), stage.get("tableB"),
+					stage.get("candset"), stage.get("trainOut"), stage.get("testOut"), stage.getFlag("incremental"),
+					stage.getFlag("sorted"), stage.getFlag("streaming"), stage.getFlag("offHeap"), stage.get("quarantine"));
+		}
+		else if ("items".equals(kind)) {
+			parseItems(stage.get("in"), stage.get("out"), stage.getFlag("sorted"), stage.getFlag("streaming"),
+					stage.get("quarantine"));
+		}
+		else if ("tables".equals(kind)) {
+			createTablesFromLabeledPairs(stage.get("in"), stage.get("tableA"), stage.get("tableB"),
+					stage.get("gold"), stage.getList("attributes"), stage.getFlag("sorted"), stage.getFlag("streaming"));
+		}
+		else if ("table".equals(kind)) {
+			String side = stage.get("side");
+			if (!"A".equalsIgnoreCase(side) && !"B".equalsIgnoreCase(side)) {
+				throw new IllegalArgumentException("Stage " + stage.name + ": side must be A or B, got " + side);
+			}
+			createTableFromLabeledPairs(stage.get("in"), "A".equalsIgnoreCase(side) ? 0 : 1,
+					stage.get("out"), stage.getList("attributes"), stage.getFlag("sorted"), stage.getFlag("streaming"));
+		}
+		else if ("gold".equals(kind)) {
+			createGoldFromLabeledPairs(stage.get("in"), stage.get("out"));
+		}
+		else if ("dictionaries".equals(kind)) {
+			String top = stage.get("top");
+			String seconds = stage.get("checkpointSeconds");
+			createDictionaries(stage.getList("in"), stage.getList("out"), stage.getList("attributes"),
+					top == null ? 0 : Integer.parseInt(top), stage.get("checkpoint"), stage.getFlag("resume"),
+					seconds == null ? ScanCheckpoint.DEFAULT_SECONDS : Integer.parseInt(seconds));
+		}
+		else if ("profile".equals(kind)) {
+			String attributesKey = stage.get("attributes");
+			String top = stage.get("top");
+			AttributeProfiler.profile(stage.getList("in"), stage.get("out"),
+					attributesKey == null ? "product_attributes" : attributesKey, top == null ? 10 : Integer.parseInt(top));
+		}
+		else if ("mergeDictionaries".equals(kind)) {
+			mergeDictionaries(stage.getList("in"), stage.get("out"));
+		}
+		else if ("getItems".equals(kind)) {
+			String seconds = stage.get("checkpointSeconds");
+			getItems(stage.get("in"), stage.get("out"), asSet(stage.getList("ids")), stage.get("quarantine"),
+					stage.get("checkpoint"), stage.getFlag("resume"),
+					seconds == null ? ScanCheckpoint.DEFAULT_SECONDS : Integer.parseInt(seconds));
+		}
+		else if ("collate".equals(kind)) {
+			collateExtractedFiles(stage.getList("in"), stage.get("out"), stage.getList("attributes"), stage.get("table"));
+		}
+		else if ("combine".equals(kind)) {
+			String runRows = stage.get("runRows");
+			combineFiles(stage.get("original"), stage.get("collated"), stage.get("out"),
+					runRows == null ? TableJoin.DEFAULT_RUN_ROWS : Integer.parseInt(runRows));
+		}
+		else if ("diff".equals(kind)) {
+			writeDiff(stage.get("in"), stage.getList("exclude"), stage.get("out"));
+		}
+		else if ("suppress".equals(kind)) {
+			suppressAttributes(stage.get("in"), stage.get("out"),
+					asSet(stage.getList("suppress1")), asSet(stage.getList("suppress2")));
+		}
+		else if ("shuffle".equals(kind)) {
+			shuffleLines(stage.get("in"), stage.getList("out"), stage.getInts("sizes"), stage.getFlag("validJson"));
+		}
+		else if ("anonymize".equals(kind)) {
+			anonymizeAndRemoveLabels(stage.get("in"), stage.get("students"), stage.get("labels"), stage.get("idMap"));
+		}
+		else if ("deanonymize".equals(kind)) {
+			deanonymize(stage.get("in"), stage.get("idMap"), stage.get("out"));
+		}
+		else if ("downsample".equals(kind)) {
+			downsampleNegatives(stage.get("in"), stage.get("out"), stage.getNumber("keep"));
+		}
+		else if ("labelCandset".equals(kind)) {
+			labelCandset(stage.get("candset"), stage.get("gold"), stage.get("out"));
+		}
+		else if ("replaceLabels".equals(kind)) {
+			replaceLabels(stage.get("in"), stage.get("out"));
+		}
+		else if ("ruleEvals".equals(kind)) {
+			parseRuleEvals(stage.get("in"), stage.get("out"));
+		}
+		else if ("indexPairs".equals(kind)) {
+			String out = stage.get("out");
+			PairIndex.build(stage.get("in"), out == null ? PairIndex.defaultIndexName(stage.get("in")) : out);
+		}
+		else if ("samplePairs".equals(kind)) {
+			String index = stage.get("index");
+			String seed = stage.get("seed");
+			sampleExamplePairs(stage.get("in"), index == null ? PairIndex.defaultIndexName(stage.get("in")) : index,
+					stage.get("out"), Integer.parseInt(stage.get("positives")), Integer.parseInt(stage.get("negatives")),
+					Arrays.asList(stage.getList("attributes")), seed == null ? new Random() : new Random(Long.parseLong(seed)));
+		}
+		else if ("studentSample".equals(kind)) {
+			prepareStudentSamples(stage.get("in"), stage.getList("out"), stage.getList("extract"));
+		}
+		else if ("extractionSample".equals(kind)) {
+			String limit = stage.get("limit");
+			parseElectronicsItemPair(stage.get("in"), stage.getList("out"), stage.getList("exclude"),
+					stage.get("extract"), limit == null ? 0 : Integer.parseInt(limit));
+		}
+		else if ("evalRules".equals(kind)) {
+			RuleEngine.evaluate(stage.get("in"), stage.get("tableA"), stage.get("tableB"), stage.get("rules"), stage.get("out"));
+		}
+		else {
+			throw new IllegalArgumentException("No runner for stage kind " + kind);
+		}
+	}
+
+	private static void printUsage() {
+		System.err.println("Usage: Parser --job <job.properties> [--threads <n>]");
+		System.err.println("       Parser <kind> [<param>=<value> ...] (list values are comma separated)");
+		System.err.println("Stage kinds:");
+		for (Map.Entry<String, Job.Param[]> e: Job.KINDS.entrySet()) {
+			StringBuilder sb = new StringBuilder("  " + e.getKey());
+			for (Job.Param p: e.getValue()) {
+				sb.append(p.required ? " " + p.name + "=" : " [" + p.name + "=]");
+			}
+			System.err.println(sb.toString());
+		}
+	}
+
+	public static void main(String[] args) throws IOException, InterruptedException {
+		Job job;
+		int threads = -1;
+		List<String> rest = new ArrayList<String>();
+		for (int i = 0; i < args.length; i++) {
+			if ("--threads".equals(args[i]) && i + 1 < args.length) {
+				threads = Integer.parseInt(args[++i]);
+			}
+			else {
+				rest.add(args[i]);
+			}
+		}
+		if (rest.isEmpty()) {
+			printUsage();
+			System.exit(2);
+		}
 		try {
-			runStage3();
+			if ("--job".equals(rest.get(0))) {
+				if (rest.size() != 2) {
+					printUsage();
+					System.exit(2);
+				}
+				job = Job.load(rest.get(1));
+			}
+			else {
+				Map<String, String> params = new LinkedHashMap<String, String>();
+				for (String arg: rest.subList(1, rest.size())) {
+					int eq = arg.indexOf('=');
+					if (eq <= 0) {
+						throw new IllegalArgumentException("Expected <param>=<value>, got " + arg);
+					}
+					params.put(arg.substring(0, eq), arg.substring(eq + 1));
+				}
+				job = new Job().stage(rest.get(0), rest.get(0), params);
+			}
+			job.validate();
 		}
-		catch(IOException e) {
-			e.printStackTrace();
+		catch (IllegalArgumentException e) {
+			System.err.println(e.getMessage());
+			printUsage();
+			System.exit(2);
+			return;
+		}
+		if (threads > 0) {
+			job.threads(threads);
+		}
+		ExecutorService executor = Executors.newFixedThreadPool(job.threads());
+		Set<String> failed;
+		try {
+			failed = job.run(executor, new Job.StageRunner() {
+				public void run(Job.Stage stage) throws IOException {
+					runStage(stage);
+				}
+			});
+		}
+		finally {
+			executor.shutdown();
+		}
+		if (!failed.isEmpty()) {
+			System.err.println("Failed stages: " + failed);
+			System.exit(1);
 		}
-		*/
-		//downsampleNegatives();
-		/*
-		String inFile = "/Users/patron/Downloads/784_IS/elec_pairs_stage3_test2_10K.txt";
-		String outFile = "/Users/patron/Downloads/784_IS/elec_pairs_stage3_test2_10K_noise.txt";
-		replaceLabels(inFile, outFile);
-		*/
-		runStage4();
 	}
 }
@@ -0,0 +1,302 @@
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.commons.csv.CSVFormat;
+import org.apache.commons.csv.CSVPrinter;
+
+/**
+ * The console messages of the per-record loops. A message is counted under its type,
+ * and only the first SAMPLED of a type and every EVERY-th after them are printed. They
+ * are put in a ring buffer that a daemon thread prints from; a message that finds the
+ * ring full is dropped rather than waiting, so a loop never blocks on the console.
+ * close() prints what is left and a count per type.
+ *
+ * Bad records can be quarantined by their number in the file, the CSV record or line
+ * CSVParser or readLine would give. close() finds their byte offsets and lengths with one
+ * scan per file and writes them to the quarantine file, if there is one:
+ *
+ *   file,record,offset,length,reason
+ */
+final class RecordLog {
+
+	static final int SAMPLED = 10;
+	static final int EVERY = 10000;
+	private static final int RING_SIZE = 8192;
+
+	private static final BlockingQueue<Object> RING = new ArrayBlockingQueue<Object>(RING_SIZE);
+
+	static {
+		Thread printer = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				while (true) {
+					Object o;
+					try {
+						o = RING.take();
+					}
+					catch (InterruptedException e) {
+						return;
+					}
+					if (o instanceof CountDownLatch) { // everything before it is printed
+						System.out.flush();
+						System.err.flush();
+						((CountDownLatch) o).countDown();
+					}
+					else {
+						Message m = (Message) o;
+						(m.err ? System.err : System.out).println(m.text);
+					}
+				}
+			}
+		}, "record-log");
+		printer.setDaemon(true);
+		printer.start();
+	}
+
+	private static final class Message {
+		final boolean err;
+		final String text;
+
+		Message(boolean err, String text) {
+			this.err = err;
+			this.text = text;
+		}
+	}
+
+	final class Type {
+		private final String prefix;
+		private final boolean err;
+		private final AtomicLong count = new AtomicLong();
+		private final AtomicLong printed = new AtomicLong();
+
+		private Type(String prefix, boolean err) {
+			this.prefix = prefix;
+			this.err = err;
+		}
+
+		// prefix + detail, made into a String only when it is printed
+		void note(Object detail) {
+			long n = count.incrementAndGet();
+			if (n > SAMPLED && n % EVERY != 0) {
+				return;
+			}
+			if (RING.offer(new Message(err, prefix + detail))) {
+				printed.incrementAndGet();
+			}
+			else {
+				dropped.incrementAndGet();
+			}
+		}
+
+		long count() {
+			return count.get();
+		}
+	}
+
+	private static final class Quarantined {
+		final long record;
+		final String reason;
+		long offset = -1;
+		long length;
+
+		Quarantined(long record, String reason) {
+			this.record = record;
+			this.reason = reason;
+		}
+	}
+
+	private final String name;
+	private final String quarantinePath;
+	private final Map<String, Type> types = new LinkedHashMap<String, Type>();
+	private final AtomicLong dropped = new AtomicLong();
+	// per file, and whether it is CSV or lines
+	private final Map<String, List<Quarantined>> quarantined = new LinkedHashMap<String, List<Quarantined>>();
+	private final Map<String, Boolean> csvFiles = new LinkedHashMap<String, Boolean>();
+
+	/**
+	 * A log for the loops of one stage; quarantinePath may be null, the bad records are
+	 * then only counted.
+	 */
+	RecordLog(String name, String quarantinePath) {
+		this.name = name;
+		this.quarantinePath = quarantinePath;
+	}
+
+	// messages start with prefix, e.g. "Duplicate A id: "
+	synchronized Type type(String prefix, boolean err) {
+		Type t = types.get(prefix);
+		if (t == null) {
+			t = new Type(prefix, err);
+			types.put(prefix, t);
+		}
+		return t;
+	}
+
+	// record counts from 1, CSV records skip empty lines as CSVParser does
+	synchronized void quarantine(String file, boolean csv, long record, String reason) {
+		List<Quarantined> records = quarantined.get(file);
+		if (records == null) {
+			records = new ArrayList<Quarantined>();
+			quarantined.put(file, records);
+			csvFiles.put(file, csv);
+		}
+		records.add(new Quarantined(record, reason));
+	}
+
+	// the quarantined records so far, for a checkpoint
+	synchronized void writeQuarantined(DataOutputStream out) throws IOException {
+		int n = 0;
+		for (List<Quarantined> records: quarantined.values()) {
+			n += records.size();
+		}
+		out.writeInt(n);
+		for (Map.Entry<String, List<Quarantined>> e: quarantined.entrySet()) {
+			for (Quarantined q: e.getValue()) {
+				ScanCheckpoint.writeString(out, e.getKey());
+				out.writeBoolean(csvFiles.get(e.getKey()));
+				out.writeLong(q.record);
+				ScanCheckpoint.writeString(out, q.reason);
+			}
+		}
+	}
+
+	// what writeQuarantined wrote, quarantined again
+	void readQuarantined(DataInputStream in) throws IOException {
+		for (int n = in.readInt(); n > 0; n--) {
+			String file = ScanCheckpoint.readString(in);
+			boolean csv = in.readBoolean();
+			long record = in.readLong();
+			quarantine(file, csv, record, ScanCheckpoint.readString(in));
+		}
+	}
+
+	void close() throws IOException {
+		CountDownLatch flushed = new CountDownLatch(1);
+		try {
+			RING.put(flushed);
+			flushed.await();
+		}
+		catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+		synchronized (this) {
+			for (Type t: types.values()) {
+				long n = t.count();
+				if (n > t.printed.get()) {
+					System.out.println(name + ": " + label(t.prefix) + ": " + n + " (" + t.printed.get() + " printed)");
+				}
+			}
+			if (dropped.get() > 0) {
+				System.out.println(name + ": " + dropped.get() + " messages dropped, the console was behind");
+			}
+			int n = 0;
+			for (List<Quarantined> records: quarantined.values()) {
+				n += records.size();
+			}
+			if (quarantinePath != null && n > 0) {
+				writeQuarantine();
+				System.out.println(name + ": " + n + " bad records quarantined in " + quarantinePath);
+			}
+		}
+	}
+
+	private static String label(String prefix) {
+		return prefix.replaceAll("[\\s:#,]+$", "");
+	}
+
+	private void writeQuarantine() throws IOException {
+		AsyncFileWriter bw = new AsyncFileWriter(quarantinePath);
+		CSVPrinter printer = new CSVPrinter(bw, CSVFormat.DEFAULT.toBuilder().withRecordSeparator("\n").build());
+		for (String s: new String[] {"file", "record", "offset", "length", "reason"}) {
+			printer.print(s);
+		}
+		printer.println();
+		for (Map.Entry<String, List<Quarantined>> e: quarantined.entrySet()) {
+			List<Quarantined> records = e.getValue();
+			Collections.sort(records, new Comparator<Quarantined>() {
+				@Override
+				public int compare(Quarantined a, Quarantined b) {
+					return Long.compare(a.record, b.record);
+				}
+			});
+			locate(e.getKey(), csvFiles.get(e.getKey()), records);
+			for (Quarantined q: records) {
+				printer.print(e.getKey());
+				printer.print(q.record);
+				printer.print(q.offset);
+				printer.print(q.length);
+				printer.print(q.reason);
+				printer.println();
+			}
+		}
+		printer.close();
+		bw.close();
+	}
+
+	// the offsets and lengths, without the line end, of the records, sorted by number
+	private static void locate(String file, boolean csv, List<Quarantined> records) throws IOException {
+		InputStream in = new FileInputStream(new File(file));
+		byte[] buf = new byte[1 << 16];
+		int next = 0; // the next record to locate
+		long record = 0;
+		long start = 0;
+		long pos = 0;
+		boolean quoted = false;
+		boolean empty = true;
+		long crAt = -1; // the position of a '\r' just before pos
+		try {
+			int n;
+			while (next < records.size() && (n = in.read(buf)) > 0) {
+				for (int i = 0; i < n && next < records.size(); i++) {
+					byte b = buf[i];
+					if (b == '"' && csv) {
+						quoted = !quoted;
+					}
+					if (b == '\n' && !quoted) {
+						if (!csv || !empty) {
+							record++;
+							long end = crAt == pos - 1 ? pos - 1 : pos;
+							while (next < records.size() && records.get(next).record == record) {
+								records.get(next).offset = start;
+								records.get(next++).length = end - start;
+							}
+						}
+						start = pos + 1;
+						empty = true;
+					}
+					else if (b == '\r') {
+						crAt = pos;
+					}
+					else {
+						empty = false;
+					}
+					pos++;
+				}
+			}
+		}
+		finally {
+			in.close();
+		}
+		if (next < records.size() && (!csv || !empty) && pos > start) { // no line end after the last record
+			record++;
+			while (next < records.size() && records.get(next).record == record) {
+				records.get(next).offset = start;
+				records.get(next++).length = pos - start;
+			}
+		}
+	}
+}
@@ -0,0 +1,504 @@
+import java.util.Arrays;
+
+/**
+ * A compressed set of non-negative ints in the layout of Roaring bitmaps: the ints are
+ * grouped by their high 16 bits, and each group is a sorted char array while it has at
+ * most ARRAY_MAX values, a 65536 bit bitmap above that. and, or and andNot return new
+ * bitmaps and leave their operands as they are; andCardinality counts an intersection
+ * without building it.
+ */
+final class RoaringBitmap {
+
+	private static final int ARRAY_MAX = 4096;
+	private static final int WORDS = 1 << 10;
+
+	private char[] keys;
+	private Container[] containers;
+	private int size;
+
+	RoaringBitmap() {
+		this(4);
+	}
+
+	private RoaringBitmap(int capacity) {
+		keys = new char[capacity];
+		containers = new Container[capacity];
+	}
+
+	// [0, end)
+	static RoaringBitmap range(int end) {
+		RoaringBitmap b = new RoaringBitmap((end >>> 16) + 1);
+		for (int start = 0; start < end; start += 1 << 16) {
+			BitmapContainer c = new BitmapContainer();
+			int n = Math.min(1 << 16, end - start);
+			Arrays.fill(c.words, 0, n >>> 6, -1L);
+			if ((n & 63) != 0) {
+				c.words[n >>> 6] = (1L << n) - 1;
+			}
+			c.cardinality = n;
+			b.append((char) (start >>> 16), c.optimize());
+		}
+		return b;
+	}
+
+	// fastest with ascending values
+	void add(int x) {
+		char key = (char) (x >>> 16);
+		int i = size > 0 && keys[size - 1] == key ? size - 1 : index(key);
+		if (i < 0) {
+			i = -i - 1;
+			insert(i, key, new ArrayContainer(4));
+		}
+		containers[i] = containers[i].add((char) x);
+	}
+
+	boolean contains(int x) {
+		int i = index((char) (x >>> 16));
+		return i >= 0 && containers[i].contains((char) x);
+	}
+
+	int cardinality() {
+		int n = 0;
+		for (int i = 0; i < size; i++) {
+			n += containers[i].cardinality();
+		}
+		return n;
+	}
+
+	boolean isEmpty() {
+		return size == 0;
+	}
+
+	RoaringBitmap and(RoaringBitmap o) {
+		RoaringBitmap r = new RoaringBitmap(Math.max(1, Math.min(size, o.size)));
+		for (int i = 0, j = 0; i < size && j < o.size; ) {
+			if (keys[i] < o.keys[j]) {
+				i++;
+			}
+			else if (keys[i] > o.keys[j]) {
+				j++;
+			}
+			else {
+				r.append(keys[i], containers[i].and(o.containers[j]));
+				i++;
+				j++;
+			}
+		}
+		return r;
+	}
+
+	int andCardinality(RoaringBitmap o) {
+		int n = 0;
+		for (int i = 0, j = 0; i < size && j < o.size; ) {
+			if (keys[i] < o.keys[j]) {
+				i++;
+			}
+			else if (keys[i] > o.keys[j]) {
+				j++;
+			}
+			else {
+				n += containers[i].andCardinality(o.containers[j]);
+				i++;
+				j++;
+			}
+		}
+		return n;
+	}
+
+	RoaringBitmap or(RoaringBitmap o) {
+		RoaringBitmap r = new RoaringBitmap(Math.max(1, size + o.size));
+		int i = 0;
+		int j = 0;
+		while (i < size || j < o.size) {
+			if (j == o.size || (i < size && keys[i] < o.keys[j])) {
+				r.append(keys[i], containers[i].copy());
+				i++;
+			}
+			else if (i == size || keys[i] > o.keys[j]) {
+				r.append(o.keys[j], o.containers[j].copy());
+				j++;
+			}
+			else {
+				r.append(keys[i], containers[i].or(o.containers[j]));
+				i++;
+				j++;
+			}
+		}
+		return r;
+	}
+
+	RoaringBitmap andNot(RoaringBitmap o) {
+		RoaringBitmap r = new RoaringBitmap(Math.max(1, size));
+		for (int i = 0, j = 0; i < size; i++) {
+			while (j < o.size && o.keys[j] < keys[i]) {
+				j++;
+			}
+			if (j < o.size && o.keys[j] == keys[i]) {
+				r.append(keys[i], containers[i].andNot(o.containers[j]));
+			}
+			else {
+				r.append(keys[i], containers[i].copy());
+			}
+		}
+		return r;
+	}
+
+	// bytes taken by the containers, to compare with a plain bitmap
+	long sizeInBytes() {
+		long n = 0;
+		for (int i = 0; i < size; i++) {
+			n += containers[i] instanceof ArrayContainer ? 2L * containers[i].cardinality() : 8L * WORDS;
+		}
+		return n;
+	}
+
+	private int index(char key) {
+		int lo = 0;
+		int hi = size - 1;
+		while (lo <= hi) {
+			int mid = (lo + hi) >>> 1;
+			if (keys[mid] < key) {
+				lo = mid + 1;
+			}
+			else if (keys[mid] > key) {
+				hi = mid - 1;
+			}
+			else {
+				return mid;
+			}
+		}
+		return -(lo + 1);
+	}
+
+	private void insert(int i, char key, Container c) {
+		if (size == keys.length) {
+			keys = Arrays.copyOf(keys, 2 * size);
+			containers = Arrays.copyOf(containers, 2 * size);
+		}
+		System.arraycopy(keys, i, keys, i + 1, size - i);
+		System.arraycopy(containers, i, containers, i + 1, size - i);
+		keys[i] = key;
+		containers[i] = c;
+		size++;
+	}
+
+	// empty containers are dropped
+	private void append(char key, Container c) {
+		if (c.cardinality() > 0) {
+			insert(size, key, c);
+		}
+	}
+
+	private abstract static class Container {
+		abstract int cardinality();
+
+		// this, or the container it became
+		abstract Container add(char v);
+
+		abstract boolean contains(char v);
+
+		abstract Container copy();
+
+		abstract Container and(Container o);
+
+		abstract int andCardinality(Container o);
+
+		abstract Container or(Container o);
+
+		abstract Container andNot(Container o);
+	}
+
+	private static final class ArrayContainer extends Container {
+		char[] values;
+		int cardinality;
+
+		ArrayContainer(int capacity) {
+			values = new char[capacity];
+		}
+
+		@Override
+		int cardinality() {
+			return cardinality;
+		}
+
+		@Override
+		Container add(char v) {
+			int i = cardinality > 0 && values[cardinality - 1] < v ? -(cardinality + 1) : Arrays.binarySearch(values, 0, cardinality, v);
+			if (i >= 0) {
+				return this;
+			}
+			if (cardinality == ARRAY_MAX) {
+				return toBitmap().add(v);
+			}
+			i = -i - 1;
+			if (cardinality == values.length) {
+				values = Arrays.copyOf(values, Math.min(ARRAY_MAX, Math.max(4, 2 * cardinality)));
+			}
+			System.arraycopy(values, i, values, i + 1, cardinality - i);
+			values[i] = v;
+			cardinality++;
+			return this;
+		}
+
+		@Override
+		boolean contains(char v) {
+			return Arrays.binarySearch(values, 0, cardinality, v) >= 0;
+		}
+
+		@Override
+		Container copy() {
+			ArrayContainer c = new ArrayContainer(0);
+			c.values = Arrays.copyOf(values, cardinality);
+			c.cardinality = cardinality;
+			return c;
+		}
+
+		BitmapContainer toBitmap() {
+			BitmapContainer b = new BitmapContainer();
+			for (int i = 0; i < cardinality; i++) {
+				b.words[values[i] >>> 6] |= 1L << values[i];
+			}
+			b.cardinality = cardinality;
+			return b;
+		}
+
+		@Override
+		Container and(Container o) {
+			ArrayContainer r = new ArrayContainer(cardinality);
+			if (o instanceof BitmapContainer) {
+				long[] words = ((BitmapContainer) o).words;
+				for (int i = 0; i < cardinality; i++) {
+					char v = values[i];
+					if ((words[v >>> 6] & (1L << v)) != 0) {
+						r.values[r.cardinality++] = v;
+					}
+				}
+				return r;
+			}
+			ArrayContainer a = (ArrayContainer) o;
+			for (int i = 0, j = 0; i < cardinality && j < a.cardinality; ) {
+				if (values[i] < a.values[j]) {
+					i++;
+				}
+				else if (values[i] > a.values[j]) {
+					j++;
+				}
+				else {
+					r.values[r.cardinality++] = values[i];
+					i++;
+					j++;
+				}
+			}
+			return r;
+		}
+
+		@Override
+		int andCardinality(Container o) {
+			int n = 0;
+			if (o instanceof BitmapContainer) {
+				long[] words = ((BitmapContainer) o).words;
+				for (int i = 0; i < cardinality; i++) {
+					char v = values[i];
+					n += (int) (words[v >>> 6] >>> v) & 1;
+				}
+				return n;
+			}
+			ArrayContainer a = (ArrayContainer) o;
+			for (int i = 0, j = 0; i < cardinality && j < a.cardinality; ) {
+				if (values[i] < a.values[j]) {
+					i++;
+				}
+				else if (values[i] > a.values[j]) {
+					j++;
+				}
+				else {
+					n++;
+					i++;
+					j++;
+				}
+			}
+			return n;
+		}
+
+		@Override
+		Container or(Container o) {
+			if (o instanceof BitmapContainer) {
+				return o.or(this);
+			}
+			ArrayContainer a = (ArrayContainer) o;
+			if (cardinality + a.cardinality > ARRAY_MAX) {
+				return toBitmap().orInPlace(a);
+			}
+			ArrayContainer r = new ArrayContainer(cardinality + a.cardinality);
+			int i = 0;
+			int j = 0;
+			while (i < cardinality || j < a.cardinality) {
+				if (j == a.cardinality || (i < cardinality && values[i] < a.values[j])) {
+					r.values[r.cardinality++] = values[i++];
+				}
+				else if (i == cardinality || values[i] > a.values[j]) {
+					r.values[r.cardinality++] = a.values[j++];
+				}
+				else {
+					r.values[r.cardinality++] = values[i];
+					i++;
+					j++;
+				}
+			}
+			return r;
+		}
+
+		@Override
+		Container andNot(Container o) {
+			ArrayContainer r = new ArrayContainer(cardinality);
+			if (o instanceof BitmapContainer) {
+				long[] words = ((BitmapContainer) o).words;
+				for (int i = 0; i < cardinality; i++) {
+					char v = values[i];
+					if ((words[v >>> 6] & (1L << v)) == 0) {
+						r.values[r.cardinality++] = v;
+					}
+				}
+				return r;
+			}
+			ArrayContainer a = (ArrayContainer) o;
+			int j = 0;
+			for (int i = 0; i < cardinality; i++) {
+				while (j < a.cardinality && a.values[j] < values[i]) {
+					j++;
+				}
+				if (j == a.cardinality || a.values[j] != values[i]) {
+					r.values[r.cardinality++] = values[i];
+				}
+			}
+			return r;
+		}
+	}
+
+	private static final class BitmapContainer extends Container {
+		final long[] words = new long[WORDS];
+		int cardinality;
+
+		@Override
+		int cardinality() {
+			return cardinality;
+		}
+
+		@Override
+		Container add(char v) {
+			long bit = 1L << v;
+			if ((words[v >>> 6] & bit) == 0) {
+				words[v >>> 6] |= bit;
+				cardinality++;
+			}
+			return this;
+		}
+
+		@Override
+		boolean contains(char v) {
+			return (words[v >>> 6] & (1L << v)) != 0;
+		}
+
+		@Override
+		Container copy() {
+			BitmapContainer c = new BitmapContainer();
+			System.arraycopy(words, 0, c.words, 0, WORDS);
+			c.cardinality = cardinality;
+			return c;
+		}
+
+		// an array container when it is small enough
+		Container optimize() {
+			if (cardinality > ARRAY_MAX) {
+				return this;
+			}
+			ArrayContainer a = new ArrayContainer(cardinality);
+			for (int w = 0; w < WORDS; w++) {
+				for (long word = words[w]; word != 0; word &= word - 1) {
+					a.values[a.cardinality++] = (char) ((w << 6) + Long.numberOfTrailingZeros(word));
+				}
+			}
+			return a;
+		}
+
+		BitmapContainer orInPlace(ArrayContainer a) {
+			for (int i = 0; i < a.cardinality; i++) {
+				add(a.values[i]);
+			}
+			return this;
+		}
+
+		@Override
+		Container and(Container o) {
+			if (o instanceof ArrayContainer) {
+				return o.and(this);
+			}
+			long[] other = ((BitmapContainer) o).words;
+			BitmapContainer r = new BitmapContainer();
+			int n = 0;
+			for (int w = 0; w < WORDS; w++) {
+				long word = words[w] & other[w];
+				r.words[w] = word;
+				n += Long.bitCount(word);
+			}
+			r.cardinality = n;
+			return r.optimize();
+		}
+
+		@Override
+		int andCardinality(Container o) {
+			if (o instanceof ArrayContainer) {
+				return o.andCardinality(this);
+			}
+			long[] other = ((BitmapContainer) o).words;
+			int n = 0;
+			for (int w = 0; w < WORDS; w++) {
+				n += Long.bitCount(words[w] & other[w]);
+			}
+			return n;
+		}
+
+		@Override
+		Container or(Container o) {
+			if (o instanceof ArrayContainer) {
+				return ((BitmapContainer) copy()).orInPlace((ArrayContainer) o);
+			}
+			long[] other = ((BitmapContainer) o).words;
+			BitmapContainer r = new BitmapContainer();
+			int n = 0;
+			for (int w = 0; w < WORDS; w++) {
+				long word = words[w] | other[w];
+				r.words[w] = word;
+				n += Long.bitCount(word);
+			}
+			r.cardinality = n;
+			return r;
+		}
+
+		@Override
+		Container andNot(Container o) {
+			BitmapContainer r = (BitmapContainer) copy();
+			if (o instanceof ArrayContainer) {
+				ArrayContainer a = (ArrayContainer) o;
+				for (int i = 0; i < a.cardinality; i++) {
+					char v = a.values[i];
+					long bit = 1L << v;
+					if ((r.words[v >>> 6] & bit) != 0) {
+						r.words[v >>> 6] &= ~bit;
+						r.cardinality--;
+					}
+				}
+				return r.optimize();
+			}
+			long[] other = ((BitmapContainer) o).words;
+			int n = 0;
+			for (int w = 0; w < WORDS; w++) {
+				long word = words[w] & ~other[w];
+				r.words[w] = word;
+				n += Long.bitCount(word);
+			}
+			r.cardinality = n;
+			return r.optimize();
+		}
+	}
+}
@@ -0,0 +1,533 @@
+import java.io.BufferedReader;
+import java.io.FileReader;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.Future;
+
+import org.apache.commons.csv.CSVFormat;
+import org.apache.commons.csv.CSVParser;
+import org.apache.commons.csv.CSVPrinter;
+import org.apache.commons.csv.CSVRecord;
+
+import uk.ac.shef.wit.simmetrics.similaritymetrics.AbstractStringMetric;
+import uk.ac.shef.wit.simmetrics.similaritymetrics.CosineSimilarity;
+import uk.ac.shef.wit.simmetrics.similaritymetrics.DiceSimilarity;
+import uk.ac.shef.wit.simmetrics.similaritymetrics.JaccardSimilarity;
+import uk.ac.shef.wit.simmetrics.similaritymetrics.JaroWinkler;
+import uk.ac.shef.wit.simmetrics.similaritymetrics.Levenshtein;
+import uk.ac.shef.wit.simmetrics.similaritymetrics.MongeElkan;
+
+/**
+ * Scores matching rules on a labeled pair set. A rule is a boolean expression of
+ * similarity predicates on the attributes of tables A and B, one rule per line:
+ *
+ *   jaccard(Product Name) >= 0.6 AND (exact(Brand) = 1 OR NOT levenshtein(Color) < 0.5)
+ *
+ * Metrics are exact (Parser.valuesMatch, 1 or 0), jaccard, cosine, dice, levenshtein,
+ * jaroWinkler and mongeElkan; a missing value scores 0 with all but exact. Operators are
+ * >=, >, <=, < and =, AND binds tighter than OR.
+ *
+ * All rules are compiled first. The similarity of every (metric, attribute) they use is
+ * computed once per pair, in parallel chunks of pairs, and every distinct predicate once
+ * into a RoaringBitmap of the pairs it holds for, as are the matches. The rules, evaluated
+ * in parallel batches, only combine the cached bitmaps, and tp is the cardinality of
+ * their intersection with the matches.
+ */
+final class RuleEngine {
+
+	private static final int CHUNK_PAIRS = 4096;
+	private static final int BATCH_RULES = 64;
+	private static final String[] METRICS = {"exact", "jaccard", "cosine", "dice", "levenshtein", "jaroWinkler", "mongeElkan"};
+
+	// the pairs, as rows of A and B
+	private final Table tableA;
+	private final Table tableB;
+	private final int[] rowA;
+	private final int[] rowB;
+	private final RoaringBitmap matches;
+	private final RoaringBitmap all;
+	private final int size;
+
+	private final Map<String, float[]> scores = new HashMap<String, float[]>();
+	private final Map<String, Predicate> compiled = new HashMap<String, Predicate>();
+	private final Map<String, RoaringBitmap> predicates = new HashMap<String, RoaringBitmap>();
+
+	private static final class Table {
+		final Map<String, Integer> columns = new HashMap<String, Integer>();
+		final Map<String, Integer> rows = new HashMap<String, Integer>();
+		final List<String[]> values = new ArrayList<String[]>();
+
+		Table(String fileName) throws IOException {
+			BufferedReader br = new BufferedReader(new FileReader(fileName));
+			boolean first = true;
+			for (CSVRecord r: new CSVParser(br)) {
+				if (first) { // getHeader() writes the header as one cell
+					first = false;
+					String[] names = (r.size() == 1 ? r.get(0).split(",") : toArray(r));
+					for (int i = 0; i < names.length; i++) {
+						columns.put(names[i].trim(), i);
+					}
+					continue;
+				}
+				rows.put(r.get(0).trim(), values.size());
+				values.add(toArray(r));
+			}
+			br.close();
+		}
+
+		String value(int row, int column) {
+			String[] v = values.get(row);
+			return column < v.length ? v[column] : "";
+		}
+
+		private static String[] toArray(CSVRecord r) {
+			String[] a = new String[r.size()];
+			for (int i = 0; i < a.length; i++) {
+				a[i] = r.get(i);
+			}
+			return a;
+		}
+	}
+
+	private RuleEngine(String pairsFile, Table tableA, Table tableB) throws IOException {
+		this.tableA = tableA;
+		this.tableB = tableB;
+		List<int[]> pairs = new ArrayList<int[]>();
+		RoaringBitmap matches = new RoaringBitmap();
+		int unknown = 0;
+		BufferedReader br = new BufferedReader(new FileReader(pairsFile));
+		for (CSVRecord r: new CSVParser(br)) {
+			// train_stage1.csv (pair id, id1, item1, id2, item2, label) or gold (pair id, id1, id2, label)
+			String id1;
+			String id2;
+			String label;
+			if (r.size() >= 6) {
+				id1 = r.get(1);
+				id2 = r.get(3);
+				label = r.get(5);
+			}
+			else if (r.size() == 4) {
+				id1 = r.get(1);
+				id2 = r.get(2);
+				label = r.get(3);
+			}
+			else {
+				continue;
+			}
+			label = label.trim();
+			boolean match = "MATCH".equals(label) || "1".equals(label);
+			if (!match && !"MISMATCH".equals(label) && !"0".equals(label)) {
+				continue; // a header
+			}
+			Integer a = tableA.rows.get(id1.trim());
+			Integer b = tableB.rows.get(id2.trim());
+			if (a == null || b == null) {
+				unknown++;
+				continue;
+			}
+			if (match) {
+				matches.add(pairs.size());
+			}
+			pairs.add(new int[] {a, b});
+		}
+		br.close();
+		if (unknown > 0) {
+			System.err.println(unknown + " pairs with ids not in the tables skipped");
+		}
+		size = pairs.size();
+		rowA = new int[size];
+		rowB = new int[size];
+		for (int i = 0; i < size; i++) {
+			rowA[i] = pairs.get(i)[0];
+			rowB[i] = pairs.get(i)[1];
+		}
+		this.matches = matches;
+		all = RoaringBitmap.range(size);
+		System.out.println("No. of labeled pairs: " + size + ", matches: " + matches.cardinality());
+	}
+
+	static void evaluate(String pairsFile, String tableAFile, String tableBFile, String rulesFile, String outFile)
+			throws IOException {
+		RuleEngine engine = new RuleEngine(pairsFile, new Table(tableAFile), new Table(tableBFile));
+		List<String> texts = new ArrayList<String>();
+		List<Node> rules = new ArrayList<Node>();
+		BufferedReader br = new BufferedReader(new FileReader(rulesFile));
+		String line;
+		while ((line = br.readLine()) != null) {
+			line = line.trim();
+			if (line.isEmpty() || line.startsWith("#")) {
+				continue;
+			}
+			try {
+				rules.add(engine.compile(line));
+				texts.add(line);
+			}
+			catch (IllegalArgumentException e) {
+				System.err.println("Bad rule " + line + ": " + e.getMessage());
+			}
+		}
+		br.close();
+		engine.computePredicates();
+		int[][] counts = engine.count(rules);
+
+		AsyncFileWriter bw = new AsyncFileWriter(outFile);
+		CSVPrinter printer = new CSVPrinter(bw, CSVFormat.DEFAULT.toBuilder().withRecordSeparator("\n").build());
+		printer.print("rule");
+		printer.print("tp");
+		printer.print("fp");
+		printer.print("fn");
+		printer.print("precision");
+		printer.print("recall");
+		printer.print("f1");
+		printer.println();
+		for (int i = 0; i < rules.size(); i++) {
+			int tp = counts[i][0];
+			int fp = counts[i][1];
+			int fn = counts[i][2];
+			// as parseRuleEvals
+			double precision = (100.0 * tp) / (tp + fp);
+			double recall = (100.0 * tp) / (tp + fn);
+			double f1 = (2 * precision * recall) / (precision + recall);
+			printer.print(texts.get(i));
+			printer.print(tp);
+			printer.print(fp);
+			printer.print(fn);
+			printer.print(precision);
+			printer.print(recall);
+			printer.print(f1);
+			printer.println();
+		}
+		printer.close();
+		bw.close();
+		System.out.println("No. of rules evaluated: " + rules.size() + ", distinct predicates: " + engine.compiled.size());
+	}
+
+	private static AbstractStringMetric metric(String name) {
+		if ("jaccard".equals(name)) {
+			return new JaccardSimilarity();
+		}
+		if ("cosine".equals(name)) {
+			return new CosineSimilarity();
+		}
+		if ("dice".equals(name)) {
+			return new DiceSimilarity();
+		}
+		if ("levenshtein".equals(name)) {
+			return new Levenshtein();
+		}
+		if ("jaroWinkler".equals(name)) {
+			return new JaroWinkler();
+		}
+		if ("mongeElkan".equals(name)) {
+			return new MongeElkan();
+		}
+		return null; // exact
+	}
+
+	// fills scores, then predicates, for everything the compiled rules use
+	private void computePredicates() throws IOException {
+		List<Future<?>> pending = new ArrayList<Future<?>>();
+		for (Map.Entry<String, float[]> e: scores.entrySet()) {
+			String feature = e.getKey();
+			final String metricName = feature.substring(0, feature.indexOf('('));
+			final int[] columns = columnsOf(feature);
+			final float[] s = e.getValue();
+			for (int from = 0; from < size; from += CHUNK_PAIRS) {
+				final int start = from;
+				final int end = Math.min(size, from + CHUNK_PAIRS);
+				pending.add(TableWriter.POOL.submit(new Callable<Void>() {
+					@Override
+					public Void call() {
+						AbstractStringMetric metric = metric(metricName); // not shared between threads
+						for (int i = start; i < end; i++) {
+							String a = tableA.value(rowA[i], columns[0]);
+							String b = tableB.value(rowB[i], columns[1]);
+							if (metric == null) {
+								s[i] = Parser.valuesMatch(a, b) ? 1 : 0;
+							}
+							else {
+								s[i] = a.isEmpty() || b.isEmpty() ? 0 : metric.getSimilarity(a, b);
+							}
+						}
+						return null;
+					}
+				}));
+			}
+		}
+		for (Future<?> f: pending) {
+			TableWriter.get(f);
+		}
+
+		List<String> keys = new ArrayList<String>(compiled.keySet());
+		List<Future<RoaringBitmap>> bits = new ArrayList<Future<RoaringBitmap>>();
+		for (String key: keys) {
+			final Predicate p = compiled.get(key);
+			final float[] s = scores.get(p.feature);
+			bits.add(TableWriter.POOL.submit(new Callable<RoaringBitmap>() {
+				@Override
+				public RoaringBitmap call() {
+					RoaringBitmap b = new RoaringBitmap();
+					for (int i = 0; i < size; i++) {
+						if (p.test(s[i])) {
+							b.add(i);
+						}
+					}
+					return b;
+				}
+			}));
+		}
+		for (int i = 0; i < keys.size(); i++) {
+			predicates.put(keys.get(i), TableWriter.get(bits.get(i)));
+		}
+	}
+
+	// tp, fp and fn of every rule
+	private int[][] count(final List<Node> rules) throws IOException {
+		final int[][] counts = new int[rules.size()][];
+		final int matchCount = matches.cardinality();
+		List<Future<?>> pending = new ArrayList<Future<?>>();
+		for (int from = 0; from < rules.size(); from += BATCH_RULES) {
+			final int start = from;
+			final int end = Math.min(rules.size(), from + BATCH_RULES);
+			pending.add(TableWriter.POOL.submit(new Callable<Void>() {
+				@Override
+				public Void call() {
+					for (int i = start; i < end; i++) {
+						RoaringBitmap fired = rules.get(i).eval();
+						int tp = fired.andCardinality(matches);
+						counts[i] = new int[] {tp, fired.cardinality() - tp, matchCount - tp};
+					}
+					return null;
+				}
+			}));
+		}
+		for (Future<?> f: pending) {
+			TableWriter.get(f);
+		}
+		return counts;
+	}
+
+	private int[] columnsOf(String feature) {
+		String attribute = feature.substring(feature.indexOf('(') + 1, feature.length() - 1);
+		Integer a = tableA.columns.get(attribute);
+		Integer b = tableB.columns.get(attribute);
+		if (a == null || b == null) {
+			throw new IllegalArgumentException("No column " + attribute + " in table " + (a == null ? "A" : "B"));
+		}
+		return new int[] {a, b};
+	}
+
+	private abstract class Node {
+		abstract RoaringBitmap eval();
+	}
+
+	private final class Leaf extends Node {
+		final String key;
+
+		Leaf(String key) {
+			this.key = key;
+		}
+
+		@Override
+		RoaringBitmap eval() {
+			return predicates.get(key);
+		}
+	}
+
+	private final class Not extends Node {
+		final Node operand;
+
+		Not(Node operand) {
+			this.operand = operand;
+		}
+
+		@Override
+		RoaringBitmap eval() {
+			return all.andNot(operand.eval());
+		}
+	}
+
+	private final class Junction extends Node {
+		final boolean and;
+		final List<Node> operands;
+
+		Junction(boolean and, List<Node> operands) {
+			this.and = and;
+			this.operands = operands;
+		}
+
+		@Override
+		RoaringBitmap eval() {
+			RoaringBitmap b = operands.get(0).eval();
+			for (int i = 1; i < operands.size(); i++) {
+				if (and && b.isEmpty()) {
+					break;
+				}
+				RoaringBitmap o = operands.get(i).eval();
+				b = and ? b.and(o) : b.or(o);
+			}
+			return b;
+		}
+	}
+
+	// metric(attribute) op threshold, the key is its canonical form
+	private static final class Predicate {
+		final String feature;
+		final String op;
+		final float threshold;
+
+		Predicate(String feature, String op, float threshold) {
+			this.feature = feature;
+			this.op = op;
+			this.threshold = threshold;
+		}
+
+		String key() {
+			return feature + op + threshold;
+		}
+
+		boolean test(float s) {
+			if (">=".equals(op)) {
+				return s >= threshold;
+			}
+			if (">".equals(op)) {
+				return s > threshold;
+			}
+			if ("<=".equals(op)) {
+				return s <= threshold;
+			}
+			if ("<".equals(op)) {
+				return s < threshold;
+			}
+			return s == threshold;
+		}
+	}
+
+	private Node compile(String rule) {
+		RuleParser p = new RuleParser(rule);
+		Node n = p.or();
+		p.skipSpaces();
+		if (p.pos < rule.length()) {
+			throw new IllegalArgumentException("unexpected " + rule.substring(p.pos));
+		}
+		return n;
+	}
+
+	// recursive descent: or := and (OR and)*, and := unary (AND unary)*, unary := NOT unary | ( or ) | predicate
+	private final class RuleParser {
+		final String s;
+		int pos;
+
+		RuleParser(String s) {
+			this.s = s;
+		}
+
+		Node or() {
+			List<Node> operands = new ArrayList<Node>();
+			operands.add(and());
+			while (keyword("OR")) {
+				operands.add(and());
+			}
+			return operands.size() == 1 ? operands.get(0) : new Junction(false, operands);
+		}
+
+		Node and() {
+			List<Node> operands = new ArrayList<Node>();
+			operands.add(unary());
+			while (keyword("AND")) {
+				operands.add(unary());
+			}
+			return operands.size() == 1 ? operands.get(0) : new Junction(true, operands);
+		}
+
+		Node unary() {
+			if (keyword("NOT")) {
+				return new Not(unary());
+			}
+			skipSpaces();
+			if (pos < s.length() && s.charAt(pos) == '(') {
+				pos++;
+				Node n = or();
+				expect(')');
+				return n;
+			}
+			return predicate();
+		}
+
+		Node predicate() {
+			skipSpaces();
+			int open = s.indexOf('(', pos);
+			int close = open < 0 ? -1 : s.indexOf(')', open);
+			if (close < 0) {
+				throw new IllegalArgumentException("expected metric(attribute) at " + pos);
+			}
+			String metric = s.substring(pos, open).trim();
+			boolean known = false;
+			for (String m: METRICS) {
+				known |= m.equals(metric);
+			}
+			if (!known) {
+				throw new IllegalArgumentException("unknown metric " + metric);
+			}
+			// table columns have underscores for spaces, see Parser.getHeader
+			String feature = metric + "(" + s.substring(open + 1, close).trim().replaceAll(" ", "_") + ")";
+			columnsOf(feature);
+			pos = close + 1;
+			skipSpaces();
+			int start = pos;
+			while (pos < s.length() && "<>=".indexOf(s.charAt(pos)) >= 0) {
+				pos++;
+			}
+			String op = s.substring(start, pos);
+			if (!">=".equals(op) && !">".equals(op) && !"<=".equals(op) && !"<".equals(op) && !"=".equals(op)) {
+				throw new IllegalArgumentException("bad operator " + op);
+			}
+			skipSpaces();
+			start = pos;
+			while (pos < s.length() && (Character.isDigit(s.charAt(pos)) || s.charAt(pos) == '.' || s.charAt(pos) == '-')) {
+				pos++;
+			}
+			float threshold;
+			try {
+				threshold = Float.parseFloat(s.substring(start, pos));
+			}
+			catch (NumberFormatException e) {
+				throw new IllegalArgumentException("bad threshold at " + start);
+			}
+			if (!scores.containsKey(feature)) {
+				scores.put(feature, new float[size]);
+			}
+			Predicate predicate = new Predicate(feature, op, threshold);
+			compiled.put(predicate.key(), predicate);
+			return new Leaf(predicate.key());
+		}
+
+		boolean keyword(String k) {
+			skipSpaces();
+			if (s.regionMatches(true, pos, k, 0, k.length())
+					&& (pos + k.length() == s.length() || !Character.isLetterOrDigit(s.charAt(pos + k.length())))) {
+				pos += k.length();
+				return true;
+			}
+			return false;
+		}
+
+		void expect(char c) {
+			skipSpaces();
+			if (pos >= s.length() || s.charAt(pos) != c) {
+				throw new IllegalArgumentException("expected " + c + " at " + pos);
+			}
+			pos++;
+		}
+
+		void skipSpaces() {
+			while (pos < s.length() && Character.isWhitespace(s.charAt(pos))) {
+				pos++;
+			}
+		}
+	}
+}
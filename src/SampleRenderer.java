@@ -0,0 +1,243 @@
+import java.io.BufferedReader;
+import java.io.FileReader;
+import java.io.IOException;
+import java.io.StringReader;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.Future;
+
+import javax.json.Json;
+import javax.json.JsonException;
+import javax.json.JsonObject;
+import javax.json.JsonReader;
+
+/**
+ * Renders the items of a '?' pair file into numbered annotation text, as
+ * prepareSampleForStudents and parseElectronicsItemPair write it:
+ *
+ *   <n>. Walmart product (item id:<id>)
+ *   [rule]
+ *   <attribute>: <JSON value>
+ *   (blank line)
+ *   ...
+ *   <prompt>, e.g. BRAND:
+ *   <footer lines>
+ *
+ * A Layout is compiled once into the fixed text around the attributes. Pairs are read in
+ * chunks and rendered in parallel on TableWriter's pool; the items are numbered and
+ * written in pair order. With several outputs, pair i goes to output i % outputs, so the
+ * packets are even, and each is numbered from 1.
+ */
+final class SampleRenderer {
+
+	private static final int CHUNK_PAIRS = 1024;
+	private static final int WINDOW = 4 * Runtime.getRuntime().availableProcessors();
+	private static final String NEW_LINE = System.getProperty("line.separator");
+
+	static final class Layout {
+		private final String header; // after the number, up to the item id
+		private final String afterHeader;
+		private final BitSet skipped; // attribute codes, SymbolTable.ATTRIBUTES
+		private final BitSet rejecting;
+		private final String tail;
+
+		/**
+		 * product names the side ("Walmart product"), rule is a line under the header or null.
+		 * Attributes coded in skipped are not rendered, items with one coded in rejecting not at all.
+		 * Every prompt and footer line ends with a new line.
+		 */
+		Layout(String product, String rule, BitSet skipped, BitSet rejecting, String[] prompts, String[] footer) {
+			header = ". " + product + " (item id:";
+			afterHeader = ")" + NEW_LINE + (rule == null ? "" : rule + NEW_LINE);
+			this.skipped = skipped;
+			this.rejecting = rejecting;
+			StringBuilder sb = new StringBuilder();
+			for (String p: prompts) {
+				sb.append(p).append(NEW_LINE);
+			}
+			for (String f: footer) {
+				sb.append(f).append(NEW_LINE);
+			}
+			tail = sb.toString();
+		}
+
+		// the item without its number, null when it is rejected; bad JSON throws
+		String render(String id, String itemJson) throws JsonException {
+			JsonReader reader = Json.createReader(new StringReader(itemJson));
+			JsonObject obj = reader.readObject();
+			// the attributes present, coded once, then masked
+			int n = obj.size();
+			int[] codes = hashSetOrder(obj.keySet());
+			BitSet kept = new BitSet();
+			for (int i = 0; i < n; i++) {
+				kept.set(codes[i]);
+			}
+			if (kept.intersects(rejecting)) {
+				return null;
+			}
+			kept.andNot(skipped);
+			StringBuilder sb = new StringBuilder(itemJson.length() + tail.length() + 64);
+			sb.append(header).append(id).append(afterHeader);
+			for (int i = 0; i < n; i++) {
+				if (kept.get(codes[i])) {
+					String key = SymbolTable.ATTRIBUTES.symbol(codes[i]);
+					sb.append(key).append(": ").append(obj.get(key)).append(NEW_LINE).append(NEW_LINE);
+				}
+			}
+			return sb.append(tail).toString();
+		}
+	}
+
+	// the rendered items of a chunk, two per pair, null when not rendered
+	private static final class Chunk {
+		final String[] items;
+		final byte[] bad; // bad items per pair
+
+		Chunk(int pairs) {
+			items = new String[2 * pairs];
+			bad = new byte[pairs];
+		}
+	}
+
+	private SampleRenderer() {
+	}
+
+	private static final ThreadLocal<int[]> ORDER = new ThreadLocal<int[]>() {
+		@Override
+		protected int[] initialValue() {
+			return new int[64];
+		}
+	};
+
+	/**
+	 * The attribute codes of keys, in the order the samples have always had: the order a
+	 * new HashSet<String>(keys) iterates them, by bucket, (hash ^ hash >>> 16) & (capacity - 1)
+	 * for the capacity that set is made with, then as inserted. The first keys.size() codes
+	 * of an array reused by the thread, good until its next call.
+	 */
+	static int[] hashSetOrder(Set<String> keys) {
+		int n = keys.size();
+		int[] order = ORDER.get();
+		if (order.length < n) {
+			order = new int[Integer.highestOneBit(n) * 2];
+			ORDER.set(order);
+		}
+		int capacity = Integer.highestOneBit(Math.max((int) (n / .75f) + 1, 16) - 1) << 1;
+		int i = 0;
+		for (String key: keys) {
+			int bucket = bucket(key, capacity);
+			int j = i++;
+			// an insertion sort, so a bucket keeps its keys as inserted
+			while (j > 0 && bucket(SymbolTable.ATTRIBUTES.symbol(order[j - 1]), capacity) > bucket) {
+				order[j] = order[j - 1];
+				j--;
+			}
+			order[j] = SymbolTable.ATTRIBUTES.intern(key);
+		}
+		return order;
+	}
+
+	private static int bucket(String key, int capacity) {
+		int h = key.hashCode();
+		return (h ^ (h >>> 16)) & (capacity - 1);
+	}
+
+	/**
+	 * Renders the A items of a pair file with layoutA and the B items with layoutB, appending
+	 * to outFiles. Stops after the pair that brings the rendered items to limit, if it is
+	 * not 0.
+	 */
+	static void render(String pairFile, final Layout layoutA, final Layout layoutB, String[] outFiles, int limit)
+			throws IOException {
+		BufferedReader br = new BufferedReader(new FileReader(pairFile));
+		AsyncFileWriter[] writers = new AsyncFileWriter[outFiles.length];
+		int[] numbers = new int[outFiles.length];
+		int badRecords = 0;
+		int pairsSeen = 0;
+		int rendered = 0;
+		try {
+			for (int i = 0; i < outFiles.length; i++) {
+				writers[i] = new AsyncFileWriter(outFiles[i], true);
+			}
+			ArrayDeque<Future<Chunk>> pending = new ArrayDeque<Future<Chunk>>();
+			boolean eof = false;
+			boolean done = false;
+			while (!done && (!eof || !pending.isEmpty())) {
+				while (!eof && pending.size() < WINDOW) {
+					final List<String> lines = new ArrayList<String>(CHUNK_PAIRS);
+					String line;
+					while (lines.size() < CHUNK_PAIRS && (line = br.readLine()) != null) {
+						lines.add(line);
+					}
+					eof = lines.size() < CHUNK_PAIRS;
+					if (!lines.isEmpty()) {
+						pending.add(TableWriter.POOL.submit(new Callable<Chunk>() {
+							@Override
+							public Chunk call() {
+								return renderChunk(lines, layoutA, layoutB);
+							}
+						}));
+					}
+				}
+				if (pending.isEmpty()) {
+					break;
+				}
+				Chunk chunk = TableWriter.get(pending.poll());
+				for (int i = 0; i < chunk.items.length; i += 2) {
+					int shard = pairsSeen % writers.length;
+					for (int j = i; j < i + 2; j++) {
+						if (chunk.items[j] != null) {
+							writers[shard].write(String.valueOf(++numbers[shard]));
+							writers[shard].write(chunk.items[j]);
+							rendered++;
+						}
+					}
+					badRecords += chunk.bad[i >> 1];
+					pairsSeen++;
+					if (limit > 0 && rendered >= limit) {
+						done = true;
+						break;
+					}
+				}
+			}
+			for (Future<Chunk> f: pending) {
+				f.cancel(false);
+			}
+		}
+		finally {
+			br.close();
+			for (AsyncFileWriter w: writers) {
+				if (w != null) {
+					w.close();
+				}
+			}
+		}
+		System.out.println();
+		System.out.println("No. of bad records: " + badRecords);
+		System.out.println("No. of pairs seen " + pairsSeen);
+	}
+
+	private static Chunk renderChunk(List<String> lines, Layout layoutA, Layout layoutB) {
+		Chunk chunk = new Chunk(lines.size());
+		for (int i = 0; i < lines.size(); i++) {
+			String[] vals = lines.get(i).split("\\?");
+			for (int side = 0; side < 2; side++) {
+				if (vals.length < 3 + 2 * side) {
+					chunk.bad[i]++;
+					continue;
+				}
+				try {
+					chunk.items[2 * i + side] = (side == 0 ? layoutA : layoutB).render(vals[1 + 2 * side], vals[2 + 2 * side]);
+				}
+				catch (JsonException e) {
+					chunk.bad[i]++;
+				}
+			}
+		}
+		return chunk;
+	}
+}
@@ -0,0 +1,215 @@
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Where a scan over catalog files is, so it can go on from there after a crash:
+ *
+ *   int MAGIC, String kind, int inputs, per input String name, long length, long lastModified
+ *   int parameters, String ... what else the scan depends on, e.g. the attributes and top
+ *   int file, long offset      the input being read and the offset of its next line
+ *   long outputLength          bytes of the output written so far, -1 if there is none
+ *   int counters, int ...
+ *   int dictionaries, per dictionary int size, per entry String value, int count
+ *   int heavy hitters, per one boolean present, SpaceSaving state
+ *   int quarantined, per record String file, boolean csv, long record, String reason
+ *
+ * Strings are an int length and UTF-8 bytes. A checkpoint is written to a temporary file
+ * that is renamed over the previous one, so there is always one complete checkpoint. It
+ * only matches the inputs and parameters it was written for; after a change to them, or
+ * when the output is shorter than it was, it is ignored. The records quarantined in the
+ * RecordLog of the scan, if it has one, are saved with it and put back in the log on resume.
+ */
+final class ScanCheckpoint {
+
+	static final int DEFAULT_SECONDS = 300;
+
+	private static final int MAGIC = 0x53434b32; // "SCK2"
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+
+	private final String path;
+	private final String kind;
+	private final String[] inputs;
+	private final String[] parameters;
+	private final long intervalNanos;
+	private long last = System.nanoTime();
+
+	// the state, as saved or loaded
+	int file;
+	long offset;
+	long outputLength = -1;
+	int[] counters = new int[0];
+	List<Map<String, Integer>> dictionaries = new ArrayList<Map<String, Integer>>();
+	List<SpaceSaving> heavyHitters = new ArrayList<SpaceSaving>();
+	RecordLog log;
+	String output; // if the scan writes one, it must still have outputLength bytes
+
+	ScanCheckpoint(String path, String kind, String[] inputs, String[] parameters, int seconds) {
+		this.path = path;
+		this.kind = kind;
+		this.inputs = inputs;
+		this.parameters = parameters;
+		intervalNanos = seconds * 1000000000L;
+	}
+
+	// whether a checkpoint is due, the interval having passed since the last one
+	boolean due() {
+		return System.nanoTime() - last >= intervalNanos;
+	}
+
+	void save() throws IOException {
+		File tmp = new File(path + ".tmp");
+		FileOutputStream stream = new FileOutputStream(tmp);
+		DataOutputStream out = new DataOutputStream(new BufferedOutputStream(stream, 1 << 16));
+		try {
+			out.writeInt(MAGIC);
+			writeString(out, kind);
+			out.writeInt(inputs.length);
+			for (String input: inputs) {
+				File f = new File(input);
+				writeString(out, input);
+				out.writeLong(f.length());
+				out.writeLong(f.lastModified());
+			}
+			out.writeInt(parameters.length);
+			for (String p: parameters) {
+				writeString(out, p);
+			}
+			out.writeInt(file);
+			out.writeLong(offset);
+			out.writeLong(outputLength);
+			out.writeInt(counters.length);
+			for (int c: counters) {
+				out.writeInt(c);
+			}
+			out.writeInt(dictionaries.size());
+			for (Map<String, Integer> d: dictionaries) {
+				out.writeInt(d.size());
+				for (Map.Entry<String, Integer> e: d.entrySet()) {
+					writeString(out, e.getKey());
+					out.writeInt(e.getValue());
+				}
+			}
+			out.writeInt(heavyHitters.size());
+			for (SpaceSaving s: heavyHitters) {
+				out.writeBoolean(s != null);
+				if (s != null) {
+					s.write(out);
+				}
+			}
+			if (log != null) {
+				log.writeQuarantined(out);
+			}
+			else {
+				out.writeInt(0);
+			}
+			out.flush();
+			stream.getFD().sync();
+		}
+		finally {
+			out.close();
+		}
+		Files.move(tmp.toPath(), new File(path).toPath(), StandardCopyOption.REPLACE_EXISTING,
+				StandardCopyOption.ATOMIC_MOVE);
+		last = System.nanoTime();
+		System.out.println("Checkpoint at byte " + offset + " of " + inputs[file]);
+	}
+
+	/**
+	 * Loads the checkpoint, false when there is none or it was written for other inputs or
+	 * parameters.
+	 */
+	boolean load() throws IOException {
+		File f = new File(path);
+		if (!f.exists()) {
+			System.out.println("No checkpoint " + path + ", starting from the beginning");
+			return false;
+		}
+		DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(f), 1 << 16));
+		try {
+			if (in.readInt() != MAGIC || !kind.equals(readString(in)) || in.readInt() != inputs.length) {
+				System.out.println("Checkpoint " + path + " is not for this stage, starting from the beginning");
+				return false;
+			}
+			for (String input: inputs) {
+				File i = new File(input);
+				if (!input.equals(readString(in)) || in.readLong() != i.length() || in.readLong() != i.lastModified()) {
+					System.out.println("Input " + input + " changed since checkpoint " + path + ", starting from the beginning");
+					return false;
+				}
+			}
+			boolean same = in.readInt() == parameters.length;
+			for (int i = 0; same && i < parameters.length; i++) {
+				same = parameters[i].equals(readString(in));
+			}
+			if (!same) {
+				System.out.println("Checkpoint " + path + " was written with other parameters than "
+						+ Arrays.toString(parameters) + ", starting from the beginning");
+				return false;
+			}
+			file = in.readInt();
+			offset = in.readLong();
+			outputLength = in.readLong();
+			if (output != null && new File(output).length() < outputLength) {
+				System.out.println("Output " + output + " is shorter than at checkpoint " + path
+						+ ", starting from the beginning");
+				return false;
+			}
+			counters = new int[in.readInt()];
+			for (int i = 0; i < counters.length; i++) {
+				counters[i] = in.readInt();
+			}
+			dictionaries = new ArrayList<Map<String, Integer>>();
+			for (int n = in.readInt(); n > 0; n--) {
+				int size = in.readInt();
+				Map<String, Integer> d = new HashMap<String, Integer>(2 * size);
+				for (int i = 0; i < size; i++) {
+					d.put(readString(in), in.readInt());
+				}
+				dictionaries.add(d);
+			}
+			heavyHitters = new ArrayList<SpaceSaving>();
+			for (int n = in.readInt(); n > 0; n--) {
+				heavyHitters.add(in.readBoolean() ? SpaceSaving.read(in) : null);
+			}
+			if (log != null) {
+				log.readQuarantined(in);
+			}
+		}
+		finally {
+			in.close();
+		}
+		System.out.println("Resuming at byte " + offset + " of " + inputs[file]);
+		return true;
+	}
+
+	// once the scan is done, a resume starts over
+	void delete() {
+		new File(path).delete();
+	}
+
+	static void writeString(DataOutputStream out, String s) throws IOException {
+		byte[] bytes = s.getBytes(UTF8);
+		out.writeInt(bytes.length);
+		out.write(bytes);
+	}
+
+	static String readString(DataInputStream in) throws IOException {
+		byte[] bytes = new byte[in.readInt()];
+		in.readFully(bytes);
+		return new String(bytes, UTF8);
+	}
+}
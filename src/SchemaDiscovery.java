@@ -0,0 +1,662 @@
+import java.io.BufferedReader;
+import java.io.FileReader;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.apache.commons.csv.CSVParser;
+import org.apache.commons.csv.CSVRecord;
+
+/**
+ * Finds the attributes of a table before its items are read: the union of the top level
+ * keys of the item JSONs in the order they are first seen, as parseLabeledItemPairs,
+ * parseTrainTestItemPairs and parseItems collect them while they buffer the items.
+ * Only the keys are tokenized and values are skipped. The file is mapped and scanned in
+ * parallel chunks whose unions are merged in chunk order.
+ *
+ * Values are not validated, so an item that javax.json rejects can still add its keys;
+ * StreamingTable lays its rows out again when that happens. In pair files, a chunk
+ * finds its first record by the parity of the quotes before it. Quotes that CSVPrinter
+ * would not have written (inside unquoted fields, or followed by anything but a
+ * delimiter) make that unreliable, and the file is then read again with CSVParser.
+ */
+final class SchemaDiscovery {
+
+	private static final int CHUNK = 16 << 20;
+	private static final int SEGMENT_BITS = 30;
+	private static final int SEGMENT = 1 << SEGMENT_BITS;
+	// the charset FileReader decodes with
+	private static final Charset CHARSET = Charset.defaultCharset();
+
+	private SchemaDiscovery() {
+	}
+
+	/**
+	 * The A and B attributes of pair files (pairId, id1, item1, id2, item2, label), read one
+	 * after the other. As when the pairs are parsed, the B item of a pair whose A item is
+	 * bad does not count.
+	 */
+	static List<List<String>> pairFiles(String... fileNames) throws IOException {
+		SymbolTable.Union a = new SymbolTable.Union(SymbolTable.ATTRIBUTES);
+		SymbolTable.Union b = new SymbolTable.Union(SymbolTable.ATTRIBUTES);
+		for (String fileName: fileNames) {
+			List<Scanner> chunks = scan(fileName, true);
+			if (chunks == null) {
+				scanPairsSequentially(fileName, a, b);
+				continue;
+			}
+			for (Scanner s: chunks) {
+				for (int i = 0; i < s.a.size(); i++) {
+					a.add(s.a.code(i));
+				}
+				for (int i = 0; i < s.b.size(); i++) {
+					b.add(s.b.code(i));
+				}
+			}
+		}
+		List<List<String>> unions = new ArrayList<List<String>>();
+		unions.add(new ArrayList<String>(a.names()));
+		unions.add(new ArrayList<String>(b.names()));
+		return unions;
+	}
+
+	// the attributes of a file with one item per line
+	static List<String> itemLines(String fileName) throws IOException {
+		SymbolTable.Union union = new SymbolTable.Union(SymbolTable.ATTRIBUTES);
+		for (Scanner s: scan(fileName, false)) {
+			for (int i = 0; i < s.a.size(); i++) {
+				union.add(s.a.code(i));
+			}
+		}
+		return new ArrayList<String>(union.names());
+	}
+
+	// null when the pair file has to be read with CSVParser
+	private static List<Scanner> scan(String fileName, final boolean pairs) throws IOException {
+		RandomAccessFile file = new RandomAccessFile(fileName, "r");
+		int threads = Runtime.getRuntime().availableProcessors();
+		ExecutorService pool = Executors.newFixedThreadPool(threads);
+		try {
+			final Mapped bytes = new Mapped(file.getChannel());
+			int chunks = (int) Math.max(1, (bytes.length + CHUNK - 1) / CHUNK);
+
+			int[] startParity = new int[chunks];
+			if (pairs) {
+				List<Future<Integer>> counts = new ArrayList<Future<Integer>>();
+				for (int k = 0; k < chunks; k++) {
+					final long from = (long) k * CHUNK;
+					counts.add(pool.submit(new Callable<Integer>() {
+						@Override
+						public Integer call() {
+							return bytes.quotes(from, Math.min(from + CHUNK, bytes.length));
+						}
+					}));
+				}
+				int parity = 0;
+				for (int k = 0; k < chunks; k++) {
+					startParity[k] = parity;
+					parity = (parity + get(counts.get(k))) & 1;
+				}
+			}
+
+			List<Future<Scanner>> results = new ArrayList<Future<Scanner>>();
+			for (int k = 0; k < chunks; k++) {
+				final Scanner s = new Scanner(bytes, (long) k * CHUNK, Math.min((long) (k + 1) * CHUNK, bytes.length),
+						startParity[k]);
+				results.add(pool.submit(new Callable<Scanner>() {
+					@Override
+					public Scanner call() {
+						if (pairs) {
+							s.pairs();
+						}
+						else {
+							s.lines();
+						}
+						return s;
+					}
+				}));
+			}
+			List<Scanner> scanners = new ArrayList<Scanner>();
+			for (Future<Scanner> f: results) {
+				Scanner s = get(f);
+				if (s.ambiguous) {
+					return null;
+				}
+				scanners.add(s);
+			}
+			return scanners;
+		}
+		finally {
+			pool.shutdownNow();
+			file.close();
+		}
+	}
+
+	private static void scanPairsSequentially(String fileName, SymbolTable.Union a, SymbolTable.Union b) throws IOException {
+		BufferedReader br = new BufferedReader(new FileReader(fileName));
+		Keys keys = new Keys();
+		for (CSVRecord rec: new CSVParser(br)) {
+			byte[] item1 = rec.get(2).trim().getBytes(CHARSET);
+			if (!keys.scan(item1, 0, item1.length)) {
+				continue;
+			}
+			keys.addTo(a);
+			byte[] item2 = rec.get(4).trim().getBytes(CHARSET);
+			if (keys.scan(item2, 0, item2.length)) {
+				keys.addTo(b);
+			}
+		}
+		br.close();
+	}
+
+	private static <T> T get(Future<T> f) throws IOException {
+		try {
+			return f.get();
+		}
+		catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException("Interrupted while discovering the table attributes");
+		}
+		catch (ExecutionException e) {
+			Throwable cause = e.getCause();
+			if (cause instanceof RuntimeException) {
+				throw (RuntimeException) cause;
+			}
+			throw new IOException(cause);
+		}
+	}
+
+	// a read-only file mapped in segments of up to 1 GB
+	private static final class Mapped {
+		final long length;
+		private final MappedByteBuffer[] segments;
+
+		Mapped(FileChannel channel) throws IOException {
+			length = channel.size();
+			segments = new MappedByteBuffer[(int) ((length + SEGMENT - 1) / SEGMENT)];
+			for (int i = 0; i < segments.length; i++) {
+				long from = (long) i * SEGMENT;
+				segments[i] = channel.map(FileChannel.MapMode.READ_ONLY, from, Math.min(SEGMENT, length - from));
+			}
+		}
+
+		// length bytes from from into copy
+		void read(long from, byte[] copy, int length) {
+			for (int i = 0; i < length; ) {
+				long pos = from + i;
+				ByteBuffer segment = segments[(int) (pos >>> SEGMENT_BITS)].duplicate();
+				segment.position((int) pos & (SEGMENT - 1));
+				int n = Math.min(segment.remaining(), length - i);
+				segment.get(copy, i, n);
+				i += n;
+			}
+		}
+
+		byte at(long pos) {
+			return segments[(int) (pos >>> SEGMENT_BITS)].get((int) pos & (SEGMENT - 1));
+		}
+
+		int quotes(long from, long to) {
+			int n = 0;
+			byte[] block = new byte[1 << 16];
+			for (long p = from; p < to; p += block.length) {
+				int length = (int) Math.min(block.length, to - p);
+				read(p, block, length);
+				for (int i = 0; i < length; i++) {
+					if (block[i] == '"') {
+						n++;
+					}
+				}
+			}
+			return n;
+		}
+	}
+
+	// the records of one chunk: the ones that start in [from, to)
+	private static final class Scanner {
+		private final Mapped bytes;
+		private final long from;
+		private final long to;
+		private final int parity;
+		final SymbolTable.Union a = new SymbolTable.Union(SymbolTable.ATTRIBUTES);
+		final SymbolTable.Union b = new SymbolTable.Union(SymbolTable.ATTRIBUTES);
+		boolean ambiguous;
+
+		private byte[] window; // the bytes of [from, to), records that run past it are read from the mapping
+		private final Keys keys = new Keys();
+		private byte[] field1 = new byte[4096];
+		private byte[] field2 = new byte[4096];
+		private int length1;
+		private int length2;
+
+		Scanner(Mapped bytes, long from, long to, int parity) {
+			this.bytes = bytes;
+			this.from = from;
+			this.to = to;
+			this.parity = parity;
+		}
+
+		private byte at(long p) {
+			long i = p - from;
+			return i >= 0 && i < window.length ? window[(int) i] : bytes.at(p);
+		}
+
+		// one item per line, lines end as for BufferedReader.readLine
+		void lines() {
+			window = new byte[(int) (to - from)];
+			bytes.read(from, window, window.length);
+			long p = from;
+			while (p < to && !(p == 0 || at(p - 1) == '\n' || (at(p - 1) == '\r' && at(p) != '\n'))) {
+				p++;
+			}
+			while (p < to) {
+				length1 = 0;
+				byte c;
+				while (p < bytes.length && (c = at(p)) != '\n' && c != '\r') {
+					field1 = append(field1, length1++, c);
+					p++;
+				}
+				if (p < bytes.length && at(p) == '\r') {
+					p++;
+				}
+				if (p < bytes.length && at(p) == '\n') {
+					p++;
+				}
+				if (keys.scan(field1, 0, length1)) {
+					keys.addTo(a);
+				}
+			}
+			release();
+		}
+
+		// CSV pair records, the items are fields 2 and 4
+		void pairs() {
+			window = new byte[(int) (to - from)];
+			bytes.read(from, window, window.length);
+			long p = from;
+			if (from > 0) {
+				int inQuotes = parity;
+				boolean start = inQuotes == 0 && isEol(at(from - 1));
+				while (!start && p < to) {
+					byte c = at(p++);
+					if (c == '"') {
+						inQuotes ^= 1;
+					}
+					else if (inQuotes == 0 && isEol(c)) {
+						start = true;
+					}
+				}
+			}
+			while (p < to && !ambiguous) {
+				p = record(p);
+			}
+			release();
+		}
+
+		// only the unions are kept until the chunks are merged
+		private void release() {
+			window = null;
+			field1 = null;
+			field2 = null;
+		}
+
+		private static boolean isEol(byte c) {
+			return c == '\n' || c == '\r';
+		}
+
+		// parses the record at p, returns the start of the next one
+		private long record(long p) {
+			if (isEol(at(p))) { // empty lines are skipped, as CSVParser does
+				return p + 1;
+			}
+			long end = bytes.length;
+			length1 = -1;
+			length2 = -1;
+			int field = 0;
+			while (true) {
+				int length = 0;
+				byte[] buf = field == 2 ? field1 : field == 4 ? field2 : null;
+				if (p < end && at(p) == '"') {
+					p++;
+					while (true) {
+						if (p >= end) {
+							ambiguous = true;
+							return end;
+						}
+						if (buf != null && p >= from && p < to) { // copy up to the next quote at once
+							int i = (int) (p - from);
+							int j = i;
+							int limit = window.length;
+							while (j < limit && window[j] != '"') {
+								j++;
+							}
+							if (length + (j - i) > buf.length) {
+								buf = Arrays.copyOf(buf, Math.max(buf.length * 2, length + (j - i)));
+							}
+							System.arraycopy(window, i, buf, length, j - i);
+							length += j - i;
+							p += j - i;
+							if (p >= end) {
+								continue;
+							}
+						}
+						byte c = at(p++);
+						if (c == '"') {
+							if (p < end && at(p) == '"') {
+								p++;
+							}
+							else {
+								break;
+							}
+						}
+						if (buf != null) {
+							buf = append(buf, length++, c);
+						}
+					}
+					if (p < end && at(p) != ',' && !isEol(at(p))) {
+						ambiguous = true;
+						return end;
+					}
+				}
+				else {
+					byte c;
+					while (p < end && (c = at(p)) != ',' && !isEol(c)) {
+						if (c == '"') {
+							ambiguous = true;
+							return end;
+						}
+						if (buf != null) {
+							buf = append(buf, length++, c);
+						}
+						p++;
+					}
+				}
+				if (field == 2) {
+					field1 = buf;
+					length1 = length;
+				}
+				else if (field == 4) {
+					field2 = buf;
+					length2 = length;
+				}
+				if (p < end && at(p) == ',') {
+					p++;
+					field++;
+					continue;
+				}
+				if (p < end && at(p) == '\r') {
+					p++;
+				}
+				if (p < end && at(p) == '\n') {
+					p++;
+				}
+				break;
+			}
+			if (length2 < 0) {
+				return p;
+			}
+			if (!scanTrimmed(field1, length1)) {
+				return p;
+			}
+			keys.addTo(a);
+			if (scanTrimmed(field2, length2)) {
+				keys.addTo(b);
+			}
+			return p;
+		}
+
+		// the items are trimmed as String.trim() does
+		private boolean scanTrimmed(byte[] buf, int length) {
+			int start = 0;
+			while (length > 0 && (buf[length - 1] & 0xff) <= ' ') {
+				length--;
+			}
+			while (start < length && (buf[start] & 0xff) <= ' ') {
+				start++;
+			}
+			return keys.scan(buf, start, length);
+		}
+
+		private static byte[] append(byte[] buf, int i, byte c) {
+			if (i == buf.length) {
+				buf = Arrays.copyOf(buf, buf.length * 2);
+			}
+			buf[i] = c;
+			return buf;
+		}
+	}
+
+	/**
+	 * Tokenizes the top level keys of a JSON object and skips the values. Rejects only what
+	 * javax.json rejects too, so a rejected item has no keys. Works on the encoded bytes,
+	 * which is right for the ASCII compatible charsets: only keys with bytes above 0x7f are
+	 * decoded.
+	 */
+	private static final class Keys {
+		private int[] codes = new int[64];
+		private int count;
+		private final StringBuilder key = new StringBuilder();
+		private final ByteChars view = new ByteChars();
+		private byte[] c;
+		private int n;
+		private int p;
+
+		boolean scan(byte[] bytes, int start, int end) {
+			c = bytes;
+			n = end;
+			p = start;
+			count = 0;
+			skipWhitespace();
+			if (p >= n || c[p++] != '{') {
+				return false;
+			}
+			skipWhitespace();
+			if (p < n && c[p] == '}') {
+				return true;
+			}
+			while (true) {
+				if (!readKey()) {
+					return false;
+				}
+				skipWhitespace();
+				if (p >= n || c[p++] != ':') {
+					return false;
+				}
+				skipWhitespace();
+				if (!skipValue()) {
+					return false;
+				}
+				skipWhitespace();
+				if (p >= n) {
+					return false;
+				}
+				byte d = c[p++];
+				if (d == '}') {
+					return true; // what follows is not looked at
+				}
+				if (d != ',') {
+					return false;
+				}
+				skipWhitespace();
+			}
+		}
+
+		// in the order of the keys
+		void addTo(SymbolTable.Union union) {
+			for (int i = 0; i < count; i++) {
+				union.add(codes[i]);
+			}
+		}
+
+		private boolean readKey() {
+			if (p >= n || c[p] != '"') {
+				return false;
+			}
+			int start = ++p;
+			boolean plain = true;
+			while (p < n && c[p] != '"') {
+				if (c[p] == '\\') {
+					plain = false;
+					p++;
+				}
+				else if (c[p] < 0) {
+					plain = false;
+				}
+				p++;
+			}
+			if (p >= n) {
+				return false;
+			}
+			int end = p++;
+			int code;
+			if (plain) {
+				view.set(c);
+				code = SymbolTable.ATTRIBUTES.intern(view, start, end);
+			}
+			else {
+				String raw = new String(c, start, end - start, CHARSET);
+				key.setLength(0);
+				for (int i = 0; i < raw.length(); i++) {
+					char ch = raw.charAt(i);
+					if (ch == '\\') {
+						char e = raw.charAt(++i);
+						switch (e) {
+						case 'b': ch = '\b'; break;
+						case 'f': ch = '\f'; break;
+						case 'n': ch = '\n'; break;
+						case 'r': ch = '\r'; break;
+						case 't': ch = '\t'; break;
+						case '"': case '\\': case '/': ch = e; break;
+						case 'u':
+							if (i + 4 >= raw.length()) {
+								return false;
+							}
+							int v = 0;
+							for (int k = i + 1; k <= i + 4; k++) {
+								char h = raw.charAt(k);
+								int d = h >= '0' && h <= '9' ? h - '0' : h >= 'a' && h <= 'f' ? h - 'a' + 10
+										: h >= 'A' && h <= 'F' ? h - 'A' + 10 : -1;
+								if (d < 0) {
+									return false;
+								}
+								v = v * 16 + d;
+							}
+							ch = (char) v;
+							i += 4;
+							break;
+						default:
+							return false;
+						}
+					}
+					key.append(ch);
+				}
+				code = SymbolTable.ATTRIBUTES.intern(key, 0, key.length());
+			}
+			if (count == codes.length) {
+				codes = Arrays.copyOf(codes, count * 2);
+			}
+			codes[count++] = code;
+			return true;
+		}
+
+		private boolean skipValue() {
+			if (p >= n) {
+				return false;
+			}
+			byte d = c[p];
+			if (d == '"') {
+				return skipString();
+			}
+			if (d == '{' || d == '[') {
+				int depth = 0;
+				while (p < n) {
+					d = c[p];
+					if (d == '"') {
+						if (!skipString()) {
+							return false;
+						}
+						continue;
+					}
+					if (d == '{' || d == '[') {
+						depth++;
+					}
+					else if (d == '}' || d == ']') {
+						if (--depth == 0) {
+							p++;
+							return true;
+						}
+					}
+					p++;
+				}
+				return false;
+			}
+			int start = p;
+			while (p < n && (d = c[p]) != ',' && d != '}' && d != ']' && d != ' ' && d != '\t' && d != '\n' && d != '\r') {
+				p++;
+			}
+			return p > start;
+		}
+
+		private boolean skipString() {
+			p++;
+			while (p < n && c[p] != '"') {
+				if (c[p] == '\\') {
+					p++;
+				}
+				p++;
+			}
+			if (p >= n) {
+				return false;
+			}
+			p++;
+			return true;
+		}
+
+		private void skipWhitespace() {
+			while (p < n && (c[p] == ' ' || c[p] == '\t' || c[p] == '\n' || c[p] == '\r')) {
+				p++;
+			}
+		}
+	}
+
+	// ASCII bytes as a CharSequence, to intern keys without making Strings of them
+	private static final class ByteChars implements CharSequence {
+		private byte[] bytes;
+
+		void set(byte[] bytes) {
+			this.bytes = bytes;
+		}
+
+		@Override
+		public int length() {
+			return bytes.length;
+		}
+
+		@Override
+		public char charAt(int index) {
+			return (char) bytes[index];
+		}
+
+		@Override
+		public CharSequence subSequence(int start, int end) {
+			return new String(bytes, start, end - start, CHARSET);
+		}
+
+		@Override
+		public String toString() {
+			return new String(bytes, CHARSET);
+		}
+	}
+}
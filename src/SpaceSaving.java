@@ -0,0 +1,161 @@
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * The most frequent values in a fixed number of counters (space-saving, Metwally et al.).
+ * A value without a counter takes over the smallest one and adds to its count, so counts
+ * are over by at most their error, and every value seen more than n / capacity times has
+ * a counter. The counters are a min-heap on count, a value costs O(log capacity).
+ */
+final class SpaceSaving {
+
+	static final class Counter {
+		String value;
+		long count;
+		long error;
+		private int index; // in the heap
+
+		Counter(String value, long count, long error) {
+			this.value = value;
+			this.count = count;
+			this.error = error;
+		}
+
+		// the count without the counts inherited from other values, a lower bound
+		long guaranteed() {
+			return count - error;
+		}
+	}
+
+	private static final Comparator<Counter> BY_COUNT = new Comparator<Counter>() {
+		@Override
+		public int compare(Counter c1, Counter c2) {
+			if (c1.count != c2.count) {
+				return c1.count > c2.count ? -1 : 1;
+			}
+			return c1.value.compareTo(c2.value);
+		}
+	};
+
+	private final Counter[] heap;
+	private int size;
+	private final Map<String, Counter> counters = new HashMap<String, Counter>();
+
+	SpaceSaving(int capacity) {
+		heap = new Counter[capacity];
+	}
+
+	void add(String value) {
+		add(value, 1, 0);
+	}
+
+	private void add(String value, long count, long error) {
+		Counter c = counters.get(value);
+		if (c != null) {
+			c.count += count;
+			c.error += error;
+			siftDown(c.index);
+			return;
+		}
+		if (size < heap.length) {
+			c = new Counter(value, count, error);
+			c.index = size;
+			heap[size++] = c;
+			counters.put(value, c);
+			siftUp(c.index);
+			return;
+		}
+		Counter min = heap[0];
+		counters.remove(min.value);
+		min.error = min.count + error;
+		min.count += count;
+		min.value = value;
+		counters.put(value, min);
+		siftDown(0);
+	}
+
+	// afterwards this counts the values added to either, with the errors of both
+	void merge(SpaceSaving other) {
+		for (int i = 0; i < other.size; i++) {
+			Counter c = other.heap[i];
+			add(c.value, c.count, c.error);
+		}
+	}
+
+	int size() {
+		return size;
+	}
+
+	// the counters in heap order, so read() gives back the same heap
+	void write(DataOutputStream out) throws IOException {
+		out.writeInt(heap.length);
+		out.writeInt(size);
+		for (int i = 0; i < size; i++) {
+			ScanCheckpoint.writeString(out, heap[i].value);
+			out.writeLong(heap[i].count);
+			out.writeLong(heap[i].error);
+		}
+	}
+
+	static SpaceSaving read(DataInputStream in) throws IOException {
+		SpaceSaving s = new SpaceSaving(in.readInt());
+		s.size = in.readInt();
+		for (int i = 0; i < s.size; i++) {
+			Counter c = new Counter(ScanCheckpoint.readString(in), in.readLong(), in.readLong());
+			s.place(c, i);
+			s.counters.put(c.value, c);
+		}
+		return s;
+	}
+
+	// the k largest counters, largest first
+	List<Counter> top(int k) {
+		List<Counter> sorted = new ArrayList<Counter>(counters.values());
+		Collections.sort(sorted, BY_COUNT);
+		return sorted.subList(0, Math.min(k, sorted.size()));
+	}
+
+	private void siftUp(int i) {
+		Counter c = heap[i];
+		while (i > 0) {
+			int parent = (i - 1) >>> 1;
+			if (heap[parent].count <= c.count) {
+				break;
+			}
+			place(heap[parent], i);
+			i = parent;
+		}
+		place(c, i);
+	}
+
+	private void siftDown(int i) {
+		Counter c = heap[i];
+		while (true) {
+			int child = 2 * i + 1;
+			if (child >= size) {
+				break;
+			}
+			if (child + 1 < size && heap[child + 1].count < heap[child].count) {
+				child++;
+			}
+			if (heap[child].count >= c.count) {
+				break;
+			}
+			place(heap[child], i);
+			i = child;
+		}
+		place(c, i);
+	}
+
+	private void place(Counter c, int i) {
+		heap[i] = c;
+		c.index = i;
+	}
+}
@@ -0,0 +1,158 @@
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+
+import javax.json.JsonException;
+
+import org.apache.commons.csv.CSVFormat;
+import org.apache.commons.csv.CSVParser;
+import org.apache.commons.csv.CSVPrinter;
+import org.apache.commons.csv.CSVRecord;
+
+/**
+ * A table A or B written while the pairs are read, in the order the ids are first seen,
+ * without keeping any item in memory. Seen ids are a LongHashSet of their fingerprints.
+ *
+ * The columns are either given, or the attributes SchemaDiscovery found before the pairs
+ * are read. In the second case the attributes of the parsed items are collected too, and
+ * finish() lays the rows out again when the final header differs from the discovered
+ * one, which only happens when items that javax.json rejects had keys of their own.
+ */
+final class StreamingTable {
+
+	private static final CSVFormat FORMAT = CSVFormat.DEFAULT.toBuilder().withRecordSeparator("\n").build();
+
+	private final String fileName;
+	private final SymbolTable.Union columns;
+	private final SymbolTable.Union seen; // attributes of the parsed items, with discovered columns
+	private final long start; // where this table starts, the file is appended to
+	private final LongHashSet ids = new LongHashSet();
+	private final AsyncFileWriter out;
+	private final CSVPrinter printer;
+
+	private StreamingTable(String fileName, SymbolTable.Union columns, boolean discovered) throws IOException {
+		this.fileName = fileName;
+		this.columns = columns;
+		seen = discovered ? new SymbolTable.Union(SymbolTable.ATTRIBUTES) : null;
+		start = new File(fileName).length();
+		out = new AsyncFileWriter(fileName, true);
+		printer = new CSVPrinter(out, FORMAT);
+		printer.print(columns.header());
+		printer.println();
+	}
+
+	static StreamingTable withColumns(String fileName, SymbolTable.Union columns) throws IOException {
+		return new StreamingTable(fileName, columns, false);
+	}
+
+	// columns from SchemaDiscovery, without "Item ID"
+	static StreamingTable withSchema(String fileName, List<String> columns) throws IOException {
+		SymbolTable.Union union = new SymbolTable.Union(SymbolTable.ATTRIBUTES);
+		for (String c: columns) {
+			union.add(SymbolTable.ATTRIBUTES.intern(c));
+		}
+		return new StreamingTable(fileName, union, true);
+	}
+
+	// parses an item, keeping only the columns; its keys are seen even if its id turns out to be a duplicate
+	InternedItem parse(String itemJson) throws JsonException {
+		return InternedItem.fromJson(itemJson, columns, seen);
+	}
+
+	boolean contains(String id) {
+		return ids.contains(LongHashSet.fingerprint(id));
+	}
+
+	// false, and nothing written, when the id was already added
+	boolean add(String id, InternedItem item) throws IOException {
+		if (!ids.add(LongHashSet.fingerprint(id))) {
+			return false;
+		}
+		Parser.printCsvRecord(id, item, columns, printer);
+		return true;
+	}
+
+	int size() {
+		return ids.size();
+	}
+
+	// the attributes of the parsed items in the order they were first seen, empty with given columns
+	List<String> attributeNames() {
+		return seen == null ? new ArrayList<String>() : new ArrayList<String>(seen.names());
+	}
+
+	/**
+	 * Closes the table. header is ignored when the columns were given, otherwise it lists
+	 * the final columns, in order; when they are not the discovered ones the rows written
+	 * so far are laid out under it, columns it lacks are dropped and new ones are empty.
+	 */
+	void finish(List<String> header) throws IOException {
+		printer.close();
+		out.close();
+		if (seen == null || new ArrayList<String>(columns.names()).equals(header)) {
+			return;
+		}
+		System.out.println("Attributes of " + fileName + " differ from the discovered ones, laying out the rows again ...");
+		Map<String, Integer> columnOf = new HashMap<String, Integer>();
+		for (int i = 0; i < header.size(); i++) {
+			columnOf.put(header.get(i), i);
+		}
+		int[] column = new int[columns.size()];
+		for (int i = 0; i < columns.size(); i++) {
+			Integer c = columnOf.get(SymbolTable.ATTRIBUTES.symbol(columns.code(i)));
+			column[i] = c == null ? -1 : c;
+		}
+
+		// move the rows out of the way, then append them again under the new header
+		File rows = new File(fileName + ".rows");
+		RandomAccessFile table = new RandomAccessFile(fileName, "rw");
+		FileChannel channel = table.getChannel();
+		FileChannel rowsChannel = new RandomAccessFile(rows, "rw").getChannel();
+		long length = channel.size();
+		for (long p = start; p < length; ) {
+			p += channel.transferTo(p, length - p, rowsChannel);
+		}
+		rowsChannel.close();
+		channel.truncate(start);
+		table.close();
+
+		AsyncFileWriter tableBw = new AsyncFileWriter(fileName, true);
+		CSVPrinter tablePrinter = new CSVPrinter(tableBw, FORMAT);
+		tablePrinter.print(Parser.getHeader(new LinkedHashSet<String>(header)));
+		tablePrinter.println();
+		BufferedReader rowsReader = new BufferedReader(new FileReader(rows));
+		boolean first = true;
+		String[] values = new String[header.size()];
+		for (CSVRecord r: new CSVParser(rowsReader)) {
+			if (first) { // the discovered header
+				first = false;
+				continue;
+			}
+			for (int i = 0; i < values.length; i++) {
+				values[i] = "";
+			}
+			for (int i = 0; i < column.length && i + 1 < r.size(); i++) {
+				if (column[i] >= 0) {
+					values[column[i]] = r.get(i + 1);
+				}
+			}
+			tablePrinter.print(r.get(0));
+			for (String v: values) {
+				tablePrinter.print(v);
+			}
+			tablePrinter.println();
+		}
+		rowsReader.close();
+		tablePrinter.close();
+		tableBw.close();
+		rows.delete();
+	}
+}
@@ -0,0 +1,251 @@
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.LinkedHashSet;
+import java.util.Set;
+
+/**
+ * Interns strings into dense int codes, 0, 1, 2, ... in the order they are first seen.
+ * Lookups of known strings take no lock, so the global tables can be shared by stages
+ * that run at the same time, and a range of chars can be looked up without making a
+ * String of it first.
+ */
+final class SymbolTable {
+
+	// attribute names of all items seen by this process
+	static final SymbolTable ATTRIBUTES = new SymbolTable();
+
+	// open addressing, code + 1 per slot and 0 when empty, at most half full.
+	// Slots are only filled in place, a bigger table replaces the whole array.
+	private volatile int[] slots = new int[128];
+	private volatile String[] symbols = new String[64];
+	private volatile String[] headerNames = new String[64];
+	private int size;
+
+	int intern(String s) {
+		return intern(s, 0, s.length());
+	}
+
+	int intern(CharSequence s, int start, int end) {
+		return intern(s, start, end, Integer.MAX_VALUE);
+	}
+
+	// -1 when the symbol is new and the table already has limit symbols
+	int intern(CharSequence s, int start, int end, int limit) {
+		int h = hash(s, start, end);
+		int code = find(s, start, end, h);
+		if (code >= 0) {
+			return code;
+		}
+		synchronized (this) {
+			code = find(s, start, end, h);
+			if (code >= 0 || size >= limit) {
+				return code;
+			}
+			if (size == symbols.length) {
+				symbols = Arrays.copyOf(symbols, size * 2);
+			}
+			symbols[size] = s.subSequence(start, end).toString();
+			if ((size + 1) * 2 > slots.length) {
+				int[] bigger = new int[slots.length * 2];
+				for (int c = 0; c < size; c++) {
+					put(bigger, c, hash(symbols[c], 0, symbols[c].length()));
+				}
+				put(bigger, size, h);
+				slots = bigger;
+			}
+			else {
+				put(slots, size, h);
+			}
+			return size++;
+		}
+	}
+
+	// -1 when s was never interned
+	int code(String s) {
+		int h = hash(s, 0, s.length());
+		int code = find(s, 0, s.length(), h);
+		if (code < 0) {
+			synchronized (this) {
+				code = find(s, 0, s.length(), h);
+			}
+		}
+		return code;
+	}
+
+	// the codes of all the symbols, interned if new, as a mask for items coded by this table
+	BitSet codes(String[]... symbols) {
+		BitSet codes = new BitSet();
+		for (String[] a: symbols) {
+			for (String s: a) {
+				codes.set(intern(s));
+			}
+		}
+		return codes;
+	}
+
+	String symbol(int code) {
+		String s = symbols[code];
+		if (s == null) { // interned by another thread, not visible to this one yet
+			synchronized (this) {
+				s = symbols[code];
+			}
+		}
+		return s;
+	}
+
+	// a miss is only certain under the lock, without it a symbol being added may not be seen
+	private int find(CharSequence s, int start, int end, int h) {
+		int[] t = slots;
+		String[] syms = symbols;
+		int mask = t.length - 1;
+		for (int i = h & mask; ; i = (i + 1) & mask) {
+			int code = t[i] - 1;
+			if (code < 0) {
+				return -1;
+			}
+			if (code < syms.length) {
+				String sym = syms[code];
+				if (sym != null && contentEquals(sym, s, start, end)) {
+					return code;
+				}
+			}
+		}
+	}
+
+	private static void put(int[] t, int code, int h) {
+		int mask = t.length - 1;
+		int i = h & mask;
+		while (t[i] != 0) {
+			i = (i + 1) & mask;
+		}
+		t[i] = code + 1;
+	}
+
+	private static int hash(CharSequence s, int start, int end) {
+		int h = 0;
+		for (int i = start; i < end; i++) {
+			h = 31 * h + s.charAt(i);
+		}
+		return h ^ (h >>> 16);
+	}
+
+	private static boolean contentEquals(String sym, CharSequence s, int start, int end) {
+		if (sym.length() != end - start) {
+			return false;
+		}
+		for (int i = 0; i < sym.length(); i++) {
+			if (sym.charAt(i) != s.charAt(start + i)) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	// the symbol with spaces replaced by underscores, as used in table headers
+	String headerName(int code) {
+		String[] names = headerNames;
+		if (code < names.length && names[code] != null) {
+			return names[code];
+		}
+		synchronized (this) {
+			if (code >= headerNames.length) {
+				headerNames = Arrays.copyOf(headerNames, Math.max(code + 1, headerNames.length * 2));
+			}
+			String name = symbols[code].replaceAll(" ", "_");
+			headerNames[code] = name;
+			return name;
+		}
+	}
+
+	synchronized int size() {
+		return size;
+	}
+
+	/**
+	 * A set of codes that iterates in insertion order, the int counterpart of a
+	 * LinkedHashSet<String> of attribute names.
+	 */
+	static final class Union {
+		private final SymbolTable table;
+		private final BitSet members = new BitSet();
+		private int[] order = new int[32];
+		private int[] positions = new int[32]; // by code, valid for members
+		private int size;
+
+		Union(SymbolTable table) {
+			this.table = table;
+		}
+
+		void add(int code) {
+			if (members.get(code)) {
+				return;
+			}
+			members.set(code);
+			if (size == order.length) {
+				order = Arrays.copyOf(order, size * 2);
+			}
+			if (code >= positions.length) {
+				positions = Arrays.copyOf(positions, Math.max(code + 1, positions.length * 2));
+			}
+			positions[code] = size;
+			order[size++] = code;
+		}
+
+		boolean contains(int code) {
+			return members.get(code);
+		}
+
+		void addAll(int[] codes) {
+			for (int c: codes) {
+				add(c);
+			}
+		}
+
+		void remove(String symbol) {
+			int code = table.code(symbol);
+			if (code < 0 || !members.get(code)) {
+				return;
+			}
+			members.clear(code);
+			int j = 0;
+			for (int i = 0; i < size; i++) {
+				if (order[i] != code) {
+					positions[order[i]] = j;
+					order[j++] = order[i];
+				}
+			}
+			size = j;
+		}
+
+		int size() {
+			return size;
+		}
+
+		// the position of code in insertion order, -1 when it is not a member
+		int indexOf(int code) {
+			return members.get(code) ? positions[code] : -1;
+		}
+
+		int code(int i) {
+			return order[i];
+		}
+
+		Set<String> names() {
+			Set<String> names = new LinkedHashSet<String>();
+			for (int i = 0; i < size; i++) {
+				names.add(table.symbol(order[i]));
+			}
+			return names;
+		}
+
+		String header() {
+			StringBuilder sb = new StringBuilder();
+			sb.append("id");
+			for (int i = 0; i < size; i++) {
+				sb.append(",");
+				sb.append(table.headerName(order[i]));
+			}
+			return sb.toString();
+		}
+	}
+}
@@ -0,0 +1,355 @@
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.BufferedReader;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.FileReader;
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.Set;
+
+import org.apache.commons.csv.CSVFormat;
+import org.apache.commons.csv.CSVParser;
+import org.apache.commons.csv.CSVPrinter;
+import org.apache.commons.csv.CSVRecord;
+
+/**
+ * combineFiles as a sort-merge join: the rows of the original table and of the collated
+ * annotations are sorted by id, then by the order combineFiles read them in, and each id
+ * is folded into one enriched row as it comes out of the sort, so no table is held in
+ * memory. At most runRows rows are sorted in memory; with more, every sorted run is
+ * spilled to a file next to the output and the runs are merged.
+ *
+ * Both headers are resolved once into column indexes of the output attributes, and the
+ * "X" placeholders of the collated columns into the index of the column they copy.
+ * Enriched rows come in id order.
+ */
+final class TableJoin {
+
+	static final int DEFAULT_RUN_ROWS = 500000;
+
+	private static final CSVFormat FORMAT = CSVFormat.DEFAULT.toBuilder().withRecordSeparator("\n").build();
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+	private static final int NONE = -1; // not a placeholder column
+	private static final int ABSENT = -2; // a placeholder for a column neither file has
+
+	// collated column -> the original column an "X" in it stands for
+	private static final String[][] PLACEHOLDERS = {
+		{"BRAND_X", "Brand"},
+		{"MANUFACTURER_X", "Manufacturer"},
+		{"MODEL_X", "Model"},
+		{"SCREEN_SIZE_X", "Screen_Size"},
+		{"COLOR_X", "Color"},
+		{"PACKAGE_QUANTITY_X", "Package_Quantity"},
+		{"LENGTH_X", "Assembled_Product_Length"},
+		{"WIDTH_X", "Assembled_Product_Width"},
+		{"HEIGHT_X", "Assembled_Product_Height"},
+		{"WEIGHT_X", "Assembled_Product_Weight"},
+		{"SIZE_X", "Size"},
+		{"LAPTOP_COMPARTMENT_DIMENSIONS_X", "Laptop_Compartment_Dimensions"},
+		{"PRINT_COLOR_X", "Print_Color"},
+		{"PAGE_YIELD_X", "Page Yield"},
+	};
+
+	private static final Comparator<Row> ORDER = new Comparator<Row>() {
+		@Override
+		public int compare(Row a, Row b) {
+			int c = a.id.compareTo(b.id);
+			return c != 0 ? c : Long.compare(a.seq, b.seq);
+		}
+	};
+
+	// a row of either file: its cells after the id, and where it was read
+	private static final class Row {
+		final String id;
+		final boolean collated;
+		final long seq;
+		final String[] cells;
+
+		Row(String id, boolean collated, long seq, String[] cells) {
+			this.id = id;
+			this.collated = collated;
+			this.seq = seq;
+			this.cells = cells;
+		}
+	}
+
+	private final int[] originalColumns; // output attribute of every original cell
+	private final int[] collatedColumns;
+	private final int[] placeholderSources; // per collated cell, NONE, ABSENT or an output attribute
+	private final int attributeCount;
+
+	private TableJoin(List<String> header1, List<String> header2, List<String> attributes) {
+		Map<String, Integer> index = new HashMap<String, Integer>();
+		for (int i = 0; i < attributes.size(); i++) {
+			index.put(attributes.get(i), i);
+		}
+		Map<String, String> placeholders = new HashMap<String, String>();
+		for (String[] p: PLACEHOLDERS) {
+			placeholders.put(p[0], p[1]);
+		}
+		originalColumns = new int[header1.size()];
+		for (int k = 1; k < header1.size(); k++) {
+			originalColumns[k] = index.get(header1.get(k));
+		}
+		collatedColumns = new int[header2.size()];
+		placeholderSources = new int[header2.size()];
+		for (int k = 1; k < header2.size(); k++) {
+			collatedColumns[k] = index.get(header2.get(k));
+			String source = placeholders.get(header2.get(k));
+			Integer s = source == null ? null : index.get(source);
+			placeholderSources[k] = source == null ? NONE : s == null ? ABSENT : s;
+		}
+		attributeCount = attributes.size();
+	}
+
+	static void combine(String originalFileName, String collatedFileName, String enrichedFileName, int runRows)
+			throws IOException {
+		BufferedReader br1 = new BufferedReader(new FileReader(originalFileName));
+		BufferedReader br2 = new BufferedReader(new FileReader(collatedFileName));
+		Iterator<CSVRecord> r1 = new CSVParser(br1).iterator();
+		Iterator<CSVRecord> r2 = new CSVParser(br2).iterator();
+		List<String> header1 = headerCells(r1.next());
+		List<String> header2 = headerCells(r2.next());
+
+		Set<String> attributes = new LinkedHashSet<String>();
+		attributes.addAll(header1.subList(1, header1.size()));
+		attributes.addAll(header2.subList(1, header2.size()));
+		System.out.println(attributes.size());
+		for (String s: attributes) {
+			System.out.println(s);
+		}
+		TableJoin join = new TableJoin(header1, header2, new ArrayList<String>(attributes));
+
+		// sorted runs, spilled when there is more than one
+		File dir = new File(enrichedFileName).getAbsoluteFile().getParentFile();
+		List<File> runs = new ArrayList<File>();
+		List<Row> buffer = new ArrayList<Row>();
+		Row[] last;
+		long seq = 0;
+		try {
+			for (int file = 0; file < 2; file++) {
+				Iterator<CSVRecord> records = file == 0 ? r1 : r2;
+				int width = file == 0 ? header1.size() : header2.size();
+				while (records.hasNext()) {
+					CSVRecord r = records.next();
+					String[] cells = new String[Math.max(0, Math.min(r.size(), width) - 1)];
+					for (int k = 0; k < cells.length; k++) {
+						cells[k] = r.get(k + 1);
+					}
+					buffer.add(new Row(r.get(0), file == 1, seq++, cells));
+					if (buffer.size() == runRows) {
+						runs.add(spill(sort(buffer), dir));
+						buffer.clear();
+					}
+				}
+			}
+			br1.close();
+			br2.close();
+			last = sort(buffer);
+			buffer = null;
+			if (!runs.isEmpty()) {
+				runs.add(spill(last, dir));
+				last = null;
+				System.out.println(seq + " rows sorted in " + runs.size() + " runs");
+			}
+
+			AsyncFileWriter bw = new AsyncFileWriter(enrichedFileName, true);
+			CSVPrinter printer = new CSVPrinter(bw, FORMAT);
+			printer.print(Parser.getHeader(attributes));
+			printer.println();
+			int rows = runs.isEmpty() ? join.fold(Arrays.asList(last).iterator(), printer) : join.fold(merge(runs), printer);
+			printer.close();
+			bw.close();
+			System.out.println("No. of enriched rows: " + rows);
+		}
+		finally {
+			for (File run: runs) {
+				run.delete();
+			}
+		}
+	}
+
+	// getHeader() writes the header as one cell
+	private static List<String> headerCells(CSVRecord header) {
+		List<String> cells = new ArrayList<String>();
+		if (header.size() == 1 && header.get(0).indexOf(',') >= 0) {
+			cells.addAll(Arrays.asList(header.get(0).split(",")));
+		}
+		else {
+			for (String c: header) {
+				cells.add(c);
+			}
+		}
+		return cells;
+	}
+
+	private static Row[] sort(List<Row> rows) {
+		Row[] sorted = rows.toArray(new Row[rows.size()]);
+		Arrays.parallelSort(sorted, ORDER);
+		return sorted;
+	}
+
+	// folds the rows of every id, in order, into its enriched row
+	private int fold(Iterator<Row> rows, CSVPrinter printer) throws IOException {
+		int n = 0;
+		String id = null;
+		String[] item = new String[attributeCount];
+		while (rows.hasNext()) {
+			Row r = rows.next();
+			if (!r.id.equals(id)) {
+				if (id != null) {
+					print(id, item, printer);
+					n++;
+					Arrays.fill(item, null);
+				}
+				id = r.id;
+			}
+			if (!r.collated) {
+				for (int k = 0; k < r.cells.length; k++) {
+					item[originalColumns[k + 1]] = r.cells[k];
+				}
+				continue;
+			}
+			for (int k = 0; k < r.cells.length; k++) {
+				String v = r.cells[k];
+				int source = placeholderSources[k + 1];
+				if (source != NONE && "X".equalsIgnoreCase(v)) {
+					v = source == ABSENT ? null : item[source];
+				}
+				item[collatedColumns[k + 1]] = v;
+			}
+		}
+		if (id != null) {
+			print(id, item, printer);
+			n++;
+		}
+		return n;
+	}
+
+	private static void print(String id, String[] item, CSVPrinter printer) throws IOException {
+		printer.print(id);
+		for (String v: item) {
+			printer.print(v);
+		}
+		printer.println();
+	}
+
+	private static File spill(Row[] rows, File dir) throws IOException {
+		File run = File.createTempFile("combine", ".run", dir);
+		run.deleteOnExit();
+		DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(run), 1 << 16));
+		try {
+			for (Row r: rows) {
+				writeString(out, r.id);
+				out.writeBoolean(r.collated);
+				out.writeLong(r.seq);
+				out.writeInt(r.cells.length);
+				for (String c: r.cells) {
+					writeString(out, c);
+				}
+			}
+		}
+		finally {
+			out.close();
+		}
+		return run;
+	}
+
+	private static void writeString(DataOutputStream out, String s) throws IOException {
+		byte[] bytes = s.getBytes(UTF8);
+		out.writeInt(bytes.length);
+		out.write(bytes);
+	}
+
+	private static final class RunReader {
+		final DataInputStream in;
+		Row head;
+
+		RunReader(File run) throws IOException {
+			in = new DataInputStream(new BufferedInputStream(new FileInputStream(run), 1 << 16));
+			advance();
+		}
+
+		void advance() throws IOException {
+			String id;
+			try {
+				id = readString();
+			}
+			catch (EOFException e) {
+				head = null;
+				in.close();
+				return;
+			}
+			boolean collated = in.readBoolean();
+			long seq = in.readLong();
+			String[] cells = new String[in.readInt()];
+			for (int k = 0; k < cells.length; k++) {
+				cells[k] = readString();
+			}
+			head = new Row(id, collated, seq, cells);
+		}
+
+		private String readString() throws IOException {
+			byte[] bytes = new byte[in.readInt()];
+			in.readFully(bytes);
+			return new String(bytes, UTF8);
+		}
+	}
+
+	// the rows of all runs in ORDER
+	private static Iterator<Row> merge(List<File> runs) throws IOException {
+		final PriorityQueue<RunReader> queue = new PriorityQueue<RunReader>(runs.size(), new Comparator<RunReader>() {
+			@Override
+			public int compare(RunReader a, RunReader b) {
+				return ORDER.compare(a.head, b.head);
+			}
+		});
+		for (File run: runs) {
+			RunReader reader = new RunReader(run);
+			if (reader.head != null) {
+				queue.add(reader);
+			}
+		}
+		return new Iterator<Row>() {
+			@Override
+			public boolean hasNext() {
+				return !queue.isEmpty();
+			}
+
+			@Override
+			public Row next() {
+				RunReader reader = queue.poll();
+				Row r = reader.head;
+				try {
+					reader.advance();
+				}
+				catch (IOException e) {
+					throw new IllegalStateException("Cannot read a sorted run", e);
+				}
+				if (reader.head != null) {
+					queue.add(reader);
+				}
+				return r;
+			}
+
+			@Override
+			public void remove() {
+				throw new UnsupportedOperationException();
+			}
+		};
+	}
+}
@@ -0,0 +1,211 @@
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+
+import org.apache.commons.csv.CSVFormat;
+import org.apache.commons.csv.CSVPrinter;
+
+/**
+ * Writes a table (header plus one row per id) with the rows formatted in parallel.
+ * Ids are cut into chunks of CHUNK_ROWS, each chunk is formatted into its own
+ * buffer on the shared pool, and the buffers go to one FileChannel with gathering
+ * writes in chunk order, so the file is the same as the one a single CSVPrinter
+ * would write. At most WINDOW chunks are formatted ahead of the write.
+ */
+final class TableWriter {
+
+	interface RowFormatter<V> {
+		void print(String id, V value, CSVPrinter printer) throws IOException;
+	}
+
+	// the rows of a table in the order they are written, from a Map or held elsewhere
+	interface Rows {
+		int size();
+
+		String id(int row);
+
+		void print(int row, CSVPrinter printer) throws IOException;
+	}
+
+	static final int CHUNK_ROWS = 2048;
+	private static final int THREADS = Runtime.getRuntime().availableProcessors();
+	private static final int WINDOW = 4 * THREADS;
+	private static final CSVFormat FORMAT = CSVFormat.DEFAULT.toBuilder().withRecordSeparator("\n").build();
+	// FileWriter, which the tables used to be written with, encodes with the default charset
+	private static final Charset CHARSET = Charset.defaultCharset();
+
+	// shared with other stages that format rows in parallel
+	static final ExecutorService POOL = Executors.newFixedThreadPool(THREADS, new ThreadFactory() {
+		private int n;
+
+		@Override
+		public synchronized Thread newThread(Runnable r) {
+			Thread t = new Thread(r, "table-writer-" + (++n));
+			t.setDaemon(true);
+			return t;
+		}
+	});
+
+	// ids starting with a number (Walmart ids, "<id>#<vendor>" B ids, row numbers) sort by that number first
+	static final Comparator<String> ID_ORDER = new Comparator<String>() {
+		@Override
+		public int compare(String a, String b) {
+			int da = leadingDigits(a);
+			int db = leadingDigits(b);
+			if (da > 0 && db > 0) {
+				if (da != db) {
+					return da - db;
+				}
+				int c = a.substring(0, da).compareTo(b.substring(0, db));
+				if (c != 0) {
+					return c;
+				}
+			}
+			return a.compareTo(b);
+		}
+	};
+
+	private TableWriter() {
+	}
+
+	private static int leadingDigits(String s) {
+		int i = 0;
+		while (i < s.length() && s.charAt(i) >= '0' && s.charAt(i) <= '9') {
+			i++;
+		}
+		return i;
+	}
+
+	/**
+	 * @param sortIds rows in id order instead of the iteration order of the table
+	 * @param append append to the file, as FileWriter(fileName, true) does, instead of replacing it
+	 */
+	static <V> void write(String fileName, String header, Map<String, V> table,
+			RowFormatter<V> formatter, boolean sortIds, boolean append) throws IOException {
+		write(fileName, header, rows(table, formatter, sortIds), append);
+	}
+
+	/**
+	 * @param sortIds rows in id order instead of the iteration order of the table
+	 */
+	static <V> Rows rows(final Map<String, V> table, final RowFormatter<V> formatter, boolean sortIds) {
+		final List<String> ids = new ArrayList<String>(table.keySet());
+		if (sortIds) {
+			Collections.sort(ids, ID_ORDER);
+		}
+		return new Rows() {
+			@Override
+			public int size() {
+				return ids.size();
+			}
+
+			@Override
+			public String id(int row) {
+				return ids.get(row);
+			}
+
+			@Override
+			public void print(int row, CSVPrinter printer) throws IOException {
+				String id = ids.get(row);
+				formatter.print(id, table.get(id), printer);
+			}
+		};
+	}
+
+	/**
+	 * @param append append to the file, as FileWriter(fileName, true) does, instead of replacing it
+	 */
+	static void write(String fileName, String header, final Rows rows, boolean append) throws IOException {
+		FileChannel channel = append
+				? FileChannel.open(Paths.get(fileName), StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.APPEND)
+				: FileChannel.open(Paths.get(fileName), StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+		try {
+			StringBuilder sb = new StringBuilder();
+			CSVPrinter headerPrinter = new CSVPrinter(sb, FORMAT);
+			headerPrinter.print(header);
+			headerPrinter.println();
+			writeFully(channel, new ByteBuffer[] {encode(sb)});
+
+			int chunks = (rows.size() + CHUNK_ROWS - 1) / CHUNK_ROWS;
+			ArrayDeque<Future<ByteBuffer>> pending = new ArrayDeque<Future<ByteBuffer>>();
+			List<ByteBuffer> batch = new ArrayList<ByteBuffer>();
+			int submitted = 0;
+			while (submitted < chunks || !pending.isEmpty()) {
+				while (submitted < chunks && pending.size() < WINDOW) {
+					final int from = submitted * CHUNK_ROWS;
+					final int to = Math.min(from + CHUNK_ROWS, rows.size());
+					pending.add(POOL.submit(new Callable<ByteBuffer>() {
+						@Override
+						public ByteBuffer call() throws IOException {
+							StringBuilder text = new StringBuilder((to - from) * 256);
+							CSVPrinter printer = new CSVPrinter(text, FORMAT);
+							for (int i = from; i < to; i++) {
+								rows.print(i, printer);
+							}
+							return encode(text);
+						}
+					}));
+					submitted++;
+				}
+				// the head chunk is next in the file, the ones done behind it are written with it
+				batch.add(get(pending.poll()));
+				while (!pending.isEmpty() && pending.peek().isDone() && batch.size() < THREADS) {
+					batch.add(get(pending.poll()));
+				}
+				writeFully(channel, batch.toArray(new ByteBuffer[batch.size()]));
+				batch.clear();
+			}
+		}
+		finally {
+			channel.close();
+		}
+	}
+
+	private static ByteBuffer encode(CharSequence s) {
+		return CHARSET.encode(CharBuffer.wrap(s));
+	}
+
+	static <T> T get(Future<T> f) throws IOException {
+		try {
+			return f.get();
+		}
+		catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException("Interrupted while formatting rows");
+		}
+		catch (ExecutionException e) {
+			Throwable cause = e.getCause();
+			if (cause instanceof IOException) {
+				throw (IOException) cause;
+			}
+			if (cause instanceof RuntimeException) {
+				throw (RuntimeException) cause;
+			}
+			throw new IOException(cause);
+		}
+	}
+
+	private static void writeFully(FileChannel channel, ByteBuffer[] buffers) throws IOException {
+		ByteBuffer last = buffers[buffers.length - 1];
+		while (last.hasRemaining()) {
+			channel.write(buffers);
+		}
+	}
+}